@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.util.concurrent.ConcurrentHashMap;
+
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.SupplyDataFormat;
+import co.akabe.common.electricusage.SupplyDataFormatH;
+
+/**
+ * ベンチマークで使う合成CSVと、各社のデータフォーマット定義の組
+ * <p>
+ * CSVはテストリソースと同じもので、各社の形式に合わせて手で作ったものである (実際に取得したデータではない)。
+ * <p>
+ * CSVは「fixture:ファイル名」というURLでメモリ上から読み込むため、
+ * パーサの計測に通信やディスクの読み込みが混ざらない。
+ */
+public enum Fixture {
+
+    HOKKAIDO("juyo_hokkaidou.csv", ElectricUsageCSVParser.Format_Hokkaido),
+    TOHOKU("juyo_02_20160801.csv", ElectricUsageCSVParser.buildTohokuFormat()),
+    TOKYO("juyo-j.csv", ElectricUsageCSVParser.Format_Tokyo),
+    HOKURIKU("juyo_05_20160801.csv", ElectricUsageCSVParser.buildHokurikuFormat()),
+    CHUBU("juyo_cepco003.csv", ElectricUsageCSVParser.Format_Chubu),
+    KANSAI("juyo1_kansai.csv", ElectricUsageCSVParser.Format_Kansai),
+    CHUGOKU("juyo_07_20160801.csv", ElectricUsageCSVParser.buildChugokuFormat()),
+    SHIKOKU("juyo_shikoku.csv", ElectricUsageCSVParser.Format_Shikoku),
+    KYUSHU("juyo-hourly-20160801.csv", ElectricUsageCSVParser.buildKyushuFormat()),
+    /**
+     * 5分ごとのデータだけを公表していた頃の九州電力の形式 (時間別需要行が0)
+     */
+    KYUSHU_5MIN("juyo-5min-kyushu.csv", new SupplyDataFormat("", 5, 2, 0, 8));
+
+    private static final String RESOURCE_DIR = "/co/akabe/common/electricusage/test/";
+    private static final ConcurrentHashMap<String, byte[]> BODIES = new ConcurrentHashMap<String, byte[]>();
+
+    static {
+        URL.setURLStreamHandlerFactory(new URLStreamHandlerFactory() {
+            public URLStreamHandler createURLStreamHandler(String protocol) {
+                if (!"fixture".equals(protocol))
+                    return null;
+                return new URLStreamHandler() {
+                    @Override
+                    protected URLConnection openConnection(final URL u) {
+                        return new URLConnection(u) {
+                            @Override
+                            public void connect() {
+                            }
+
+                            @Override
+                            public InputStream getInputStream() {
+                                return new ByteArrayInputStream(BODIES.get(u.getPath()));
+                            }
+                        };
+                    }
+                };
+            }
+        });
+    }
+
+    private final String resource;
+    private final SupplyDataFormat layout;
+
+    Fixture(String r, SupplyDataFormat f) {
+        resource = r;
+        layout = f;
+    }
+
+    /**
+     * 合成CSVの本文を返す。
+     *
+     * @return CSVの本文
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public byte[] body() throws IOException {
+        byte[] b = BODIES.get(resource);
+        if (b == null) {
+            InputStream in = Fixture.class.getResourceAsStream(RESOURCE_DIR + resource);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    out.write(buf, 0, n);
+                b = out.toByteArray();
+            } finally {
+                in.close();
+            }
+            BODIES.put(resource, b);
+        }
+        return b;
+    }
+
+    /**
+     * 合成CSVをメモリ上から読み込むデータフォーマット定義を返す。行の位置は各社の定義と同じ。
+     *
+     * @return データフォーマット定義
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public SupplyDataFormat format() throws IOException {
+        body();
+        String url = "fixture:" + resource;
+        if (layout.isHokkaido)
+            return new SupplyDataFormatH(url, layout.peakDemand_Line, layout.peakSupply_Line,
+                    layout.hourlyDemand_Line, layout.fiveMinDemand_Line);
+        return new SupplyDataFormat(url, layout.peakDemand_Line, layout.peakSupply_Line,
+                layout.hourlyDemand_Line, layout.fiveMinDemand_Line);
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage.bench;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.HourlyDemand;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.PeakSupply;
+
+/**
+ * 需要データのモデルクラスの主要なメソッドを計測するベンチマーク
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+
+    // 定数畳み込みを避けるためフィールドに置く
+    private String date = "2016/8/1";
+    private String time = "14:05";
+    private String demandStr = "4275";
+    private String diffStr = "-1048576";
+    private int demand = 4275;
+
+    private Vector<FiveMinDemand> day;
+    private PeakSupply supply;
+    private HourlyDemand sample;
+    private ParsedUsageDocument document;
+
+    @Setup
+    public void setUp() throws IOException {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(Fixture.TOKYO.format());
+        supply = parser.getPeakSupply();
+        document = parser.getDocument();
+        day = parser.get5MinDemand();
+        // 実績の入っていない時刻 (需要0) を1日分まで補い、seekNearestHistoryが後ろから探索するようにする
+        for (int m = day.size() * 5; m < 24 * 60; m += 5)
+            day.add(new FiveMinDemand(date, (m / 60) + ":" + (m % 60 < 10 ? "0" : "") + (m % 60), 0, -1048576));
+        sample = new HourlyDemand(date, "14:00", 4275, 4190);
+    }
+
+    @Benchmark
+    public HourlyDemand newHourlyDemandFromStrings() {
+        return new HourlyDemand(date, time, demandStr, diffStr);
+    }
+
+    @Benchmark
+    public HourlyDemand newHourlyDemandFromInts() {
+        return new HourlyDemand(date, time, demand, -1048576);
+    }
+
+    @Benchmark
+    public FiveMinDemand seekNearestHistory() {
+        return HourlyDemand.seekNearestHistory(day);
+    }
+
+    @Benchmark
+    public FiveMinDemand latestFromDocument() {
+        return document.getLatest5MinDemand();
+    }
+
+    @Benchmark
+    public float getUsePercentage() {
+        return sample.getUsePercentage(supply);
+    }
+
+    @Benchmark
+    public int getHour() {
+        return sample.getHour();
+    }
+
+    @Benchmark
+    public String toStringPlain() {
+        return sample.toString();
+    }
+
+    @Benchmark
+    public String toStringWithDiff() {
+        return sample.toStringWithDiff();
+    }
+
+    @Benchmark
+    public String toStringWithPercentage() {
+        return sample.toStringWithPercentage(supply);
+    }
+
+    @Benchmark
+    public String toStringWithDiffandPercentage() {
+        return sample.toStringWithDiffandPercentage(supply);
+    }
+
+}
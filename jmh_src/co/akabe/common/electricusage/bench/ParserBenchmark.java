@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import co.akabe.common.electricusage.DemandDataListener;
+import co.akabe.common.electricusage.DemandSection;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.HourlyDemand;
+import co.akabe.common.electricusage.PeakDemand;
+import co.akabe.common.electricusage.PeakSupply;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+/**
+ * 各社のデータフォーマットごとにCSV全体の解析を計測するベンチマーク
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"HOKKAIDO", "TOHOKU", "TOKYO", "HOKURIKU", "CHUBU", "KANSAI", "CHUGOKU", "SHIKOKU", "KYUSHU",
+            "KYUSHU_5MIN"})
+    public Fixture fixture;
+
+    private SupplyDataFormat format;
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        format = fixture.format();
+        body = fixture.body();
+    }
+
+    /**
+     * 従来のgetterで全セクションを得る (URL読み込み・全行バッファリングを含む)
+     */
+    @Benchmark
+    public void getters(Blackhole bh) {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(format);
+        bh.consume(parser.getPeakSupply());
+        bh.consume(parser.getPeakDemand());
+        bh.consume(parser.getHourlyDemand());
+        bh.consume(parser.get5MinDemand());
+    }
+
+    /**
+     * ストリーミング解析で全セクションを得る
+     */
+    @Benchmark
+    public void streamAll(Blackhole bh) throws IOException {
+        new ElectricUsageCSVParser(format).parse(new ByteArrayInputStream(body), new Sink(bh),
+                EnumSet.allOf(DemandSection.class));
+    }
+
+    /**
+     * ストリーミング解析でピーク値だけを得る (途中で読み込みを打ち切る)
+     */
+    @Benchmark
+    public void streamPeakOnly(Blackhole bh) throws IOException {
+        new ElectricUsageCSVParser(format).parse(new ByteArrayInputStream(body), new Sink(bh),
+                EnumSet.of(DemandSection.PEAK_SUPPLY, DemandSection.PEAK_DEMAND));
+    }
+
+    /**
+     * バイト列から全セクションを解析する (Shift_JISのデコードは日本語を含む行だけ)
+     */
+    @Benchmark
+    public Object parseBytes() throws IOException {
+        return new ElectricUsageCSVParser(format).parse(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * 5分ごとの需要実績をDemandSeriesとして得る
+     */
+    @Benchmark
+    public Object fiveMinSeries() {
+        return new ElectricUsageCSVParser(format).get5MinDemandSeries();
+    }
+
+    /**
+     * 解析結果をBlackholeに渡すだけのリスナ
+     */
+    private static final class Sink implements DemandDataListener {
+        private final Blackhole bh;
+
+        Sink(Blackhole b) {
+            bh = b;
+        }
+
+        public void onPeakSupply(PeakSupply s) {
+            bh.consume(s);
+        }
+
+        public void onPeakDemand(PeakDemand d) {
+            bh.consume(d);
+        }
+
+        public void onHourlyDemand(HourlyDemand d) {
+            bh.consume(d);
+        }
+
+        public void onFiveMinDemand(FiveMinDemand d) {
+            bh.consume(d);
+        }
+    }
+
+}
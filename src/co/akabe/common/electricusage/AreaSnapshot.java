@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.Vector;
+
+/**
+ * 1区域分の取得結果
+ * <p>
+ * 取得に成功した場合は解析結果を、失敗した場合は失敗の原因を保持する。
+ */
+public final class AreaSnapshot {
+
+    private final ServiceArea area;
+    private final SupplyDataFormat format;
+    private final ParsedUsageDocument document;
+    private final Throwable failure;
+    private final long elapsedMillis;
+
+    /**
+     * 取得に成功した結果を作る。
+     */
+    AreaSnapshot(ServiceArea a, SupplyDataFormat f, ParsedUsageDocument doc, long elapsed) {
+        area = a;
+        format = f;
+        document = doc;
+        failure = null;
+        elapsedMillis = elapsed;
+    }
+
+    /**
+     * 取得に失敗した結果を作る。
+     */
+    AreaSnapshot(ServiceArea a, SupplyDataFormat f, Throwable cause, long elapsed) {
+        area = a;
+        format = f;
+        document = null;
+        failure = cause;
+        elapsedMillis = elapsed;
+    }
+
+    /**
+     * 供給区域を返す。
+     *
+     * @return 供給区域
+     */
+    public ServiceArea getArea() {
+        return area;
+    }
+
+    /**
+     * 取得に使ったデータフォーマット定義を返す。
+     *
+     * @return データフォーマット定義
+     */
+    public SupplyDataFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * 取得に成功したかどうかを返す。
+     *
+     * @return 成功した場合はtrue
+     */
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    /**
+     * 取得に失敗した原因を返す。
+     *
+     * @return 失敗の原因。成功した場合はnull
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * 取得に失敗した理由を返す。
+     *
+     * @return 失敗の理由。成功した場合はnull
+     */
+    public FetchFailure getFailureReason() {
+        return failure == null ? null : FetchFailure.of(failure);
+    }
+
+    /**
+     * 取得にかかった時間を返す。
+     *
+     * @return 取得にかかった時間 (ミリ秒)
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * 解析結果を返す。
+     *
+     * @return 解析結果。失敗した場合はnull
+     */
+    public ParsedUsageDocument getDocument() {
+        return document;
+    }
+
+    /**
+     * ピーク時の最大電力供給を返す。
+     *
+     * @return ピーク時の最大電力供給。失敗した場合はnull
+     */
+    public PeakSupply getPeakSupply() {
+        return document == null ? null : document.getPeakSupply();
+    }
+
+    /**
+     * ピーク時の予想最大電力を返す。
+     *
+     * @return ピーク時の予想最大電力。失敗した場合はnull
+     */
+    public PeakDemand getPeakDemand() {
+        return document == null ? null : document.getPeakDemand();
+    }
+
+    /**
+     * 時間ごとの需要実績を返す。
+     *
+     * @return 時間ごとの需要実績の写し。失敗した場合、または時間ごとのデータがない区域ではnull
+     */
+    public Vector<HourlyDemand> getHourlyDemand() {
+        if (document == null || document.getHourlyDemand() == null)
+            return null;
+        return new Vector<HourlyDemand>(document.getHourlyDemand());
+    }
+
+    /**
+     * 5分ごとの需要実績を返す。
+     *
+     * @return 5分ごとの需要実績の写し。失敗した場合、または5分ごとのデータがない区域ではnull
+     */
+    public Vector<FiveMinDemand> get5MinDemand() {
+        if (document == null || document.get5MinDemand() == null)
+            return null;
+        return new Vector<FiveMinDemand>(document.get5MinDemand());
+    }
+
+    /**
+     * 最新の5分ごとの需要実績を返す。写しを作らずに、解析時に記録した位置から返す。
+     *
+     * @return 最新の需要実績。失敗した場合、または該当する行がない場合はnull
+     */
+    public FiveMinDemand getLatest5MinDemand() {
+        return document == null ? null : document.getLatest5MinDemand();
+    }
+
+}
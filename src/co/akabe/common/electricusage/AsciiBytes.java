@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ASCIIだけからなるバイト列を、文字列に変換せずに {@link CharSequence} として見せるビュー
+ * <p>
+ * 需要実績の行は数字・カンマ・スラッシュ・コロンだけなので、Shift_JISとしてデコードせずに
+ * バイトをそのまま文字として読める。{@link CSVRowScanner} に渡して使う。
+ * 文字列を作るのは {@link #toString()} を呼んだときだけである。
+ */
+final class AsciiBytes implements CharSequence {
+
+    private final ByteBuffer buf;
+    private final int start;
+    private final int end;
+
+    /**
+     * コンストラクタ
+     *
+     * @param b バイト列。絶対位置で読むので、positionとlimitは変更されない
+     * @param s 開始位置
+     * @param e 終了位置 (この位置を含まない)
+     */
+    AsciiBytes(ByteBuffer b, int s, int e) {
+        buf = b;
+        start = s;
+        end = e;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        return (char) buf.get(start + index);
+    }
+
+    public CharSequence subSequence(int s, int e) {
+        if (s < 0 || e > end - start || s > e)
+            throw new IndexOutOfBoundsException(s + ", " + e);
+        return new AsciiBytes(buf, start + s, start + e);
+    }
+
+    @Override
+    public String toString() {
+        char[] c = new char[end - start];
+        for (int i = 0; i < c.length; i++)
+            c[i] = (char) buf.get(start + i);
+        return new String(c);
+    }
+
+}
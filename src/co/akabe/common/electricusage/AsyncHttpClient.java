@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ノンブロッキングI/OによるHTTPクライアント
+ * <p>
+ * 1本のセレクタスレッドで全ての通信を多重化するため、同時に取得する数が増えてもスレッドは増えない。
+ * 需給データの取得に必要な範囲だけを実装している：http のGETのみ、1回ごとに接続を閉じる
+ * (Connection: close)、Content-Length と chunked の本文、gzipの展開、5回までのリダイレクト。
+ * 受け取ったバイト数は {@link HttpTransport} に記録する。
+ * <p>
+ * Javaには名前解決のノンブロッキングAPIがないため、名前解決だけは呼び出し元が指定したExecutorで行う。
+ */
+final class AsyncHttpClient implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncHttpClient.class);
+
+    /**
+     * 通信の完了を受け取るハンドラ。セレクタスレッドから呼ばれるので、重い処理は別のスレッドに渡すこと
+     */
+    interface Handler {
+
+        /**
+         * 200が返されたときに呼ばれる。
+         *
+         * @param body 本文
+         */
+        void completed(byte[] body);
+
+        /**
+         * 失敗したときに呼ばれる。
+         *
+         * @param cause 失敗の原因
+         */
+        void failed(Throwable cause);
+    }
+
+    private static final int MAX_REDIRECTS = 5;
+    private static AsyncHttpClient shared;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Exchange> pending = new ConcurrentLinkedQueue<Exchange>();
+    /** 通信中のもの。セレクタスレッドだけが触る */
+    private final Set<Exchange> active = new HashSet<Exchange>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    private AsyncHttpClient() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * 共有のクライアントを返す。初回の呼び出しでセレクタスレッドを起動する。
+     */
+    static synchronized AsyncHttpClient shared() throws IOException {
+        if (shared == null) {
+            AsyncHttpClient c = new AsyncHttpClient();
+            Thread t = new Thread(c, "electricusage-selector");
+            t.setDaemon(true);
+            t.start();
+            shared = c;
+        }
+        return shared;
+    }
+
+    /**
+     * GETを開始する。
+     *
+     * @param url 取得するURL (http のみ)
+     * @param timeoutMillis 名前解決から本文の受信完了までのタイムアウト (ミリ秒)。0の場合は無期限
+     * @param transport gzipを受け付けるかの設定と、受け取ったバイト数の記録先
+     * @param resolver 名前解決を行うExecutor
+     * @param handler 完了を受け取るハンドラ
+     */
+    void get(String url, long timeoutMillis, HttpTransport transport, Executor resolver, Handler handler) {
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        get(url, deadline, transport, resolver, handler, 0);
+    }
+
+    private void get(String url, final long deadline, final HttpTransport transport, final Executor resolver,
+                     final Handler handler, final int redirects) {
+        final URL u;
+        try {
+            u = new URL(url);
+        } catch (MalformedURLException e) {
+            handler.failed(e);
+            return;
+        }
+        if (!"http".equals(u.getProtocol())) {
+            handler.failed(new MalformedURLException("Unsupported protocol: " + url));
+            return;
+        }
+        resolver.execute(new Runnable() {
+            public void run() {
+                try {
+                    InetAddress addr = InetAddress.getByName(u.getHost());
+                    int port = u.getPort() < 0 ? u.getDefaultPort() : u.getPort();
+                    pending.add(new Exchange(u, new InetSocketAddress(addr, port), deadline, transport, resolver,
+                            handler, redirects));
+                    selector.wakeup();
+                } catch (IOException e) {
+                    handler.failed(e);
+                }
+            }
+        });
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Exchange ex;
+                while ((ex = pending.poll()) != null)
+                    start(ex);
+                selector.select(nextTimeout());
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle(key);
+                }
+                expire();
+            } catch (IOException e) {
+                // セレクタ自体のエラー：通信中のものを全て失敗させて続ける
+                for (Exchange ex : new HashSet<Exchange>(active))
+                    finish(ex, e);
+            } catch (RuntimeException e) {
+                // ハンドラの例外でセレクタスレッドを止めない
+                LOG.error("Handler failed", e);
+            }
+        }
+    }
+
+    private long nextTimeout() {
+        if (active.isEmpty())
+            return 0; // 無期限
+        long nearest = Long.MAX_VALUE;
+        for (Exchange ex : active)
+            nearest = Math.min(nearest, ex.deadline);
+        return Math.max(1, nearest - System.currentTimeMillis());
+    }
+
+    private void expire() {
+        if (active.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        for (Exchange ex : new HashSet<Exchange>(active)) {
+            if (ex.deadline <= now)
+                finish(ex, new SocketTimeoutException("Read timed out: " + ex.url));
+        }
+    }
+
+    private void start(Exchange ex) {
+        active.add(ex);
+        try {
+            ex.channel = SocketChannel.open();
+            ex.channel.configureBlocking(false);
+            if (ex.channel.connect(ex.address))
+                ex.channel.register(selector, SelectionKey.OP_WRITE, ex);
+            else
+                ex.channel.register(selector, SelectionKey.OP_CONNECT, ex);
+        } catch (IOException e) {
+            finish(ex, e);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Exchange ex = (Exchange) key.attachment();
+        try {
+            if (key.isConnectable() && ex.channel.finishConnect())
+                key.interestOps(SelectionKey.OP_WRITE);
+            if (key.isValid() && key.isWritable()) {
+                ex.channel.write(ex.request);
+                if (!ex.request.hasRemaining())
+                    key.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isValid() && key.isReadable()) {
+                readBuffer.clear();
+                int n = ex.channel.read(readBuffer);
+                if (n < 0) {
+                    complete(ex);
+                } else if (n > 0) {
+                    readBuffer.flip();
+                    byte[] chunk = new byte[n];
+                    readBuffer.get(chunk);
+                    ex.response.write(chunk, 0, n);
+                    if (ex.isBodyComplete())
+                        complete(ex);
+                }
+            }
+        } catch (IOException e) {
+            finish(ex, e);
+        } catch (RuntimeException e) {
+            finish(ex, new IOException("Malformed response from " + ex.url, e));
+        }
+    }
+
+    private void complete(Exchange ex) {
+        byte[] raw = ex.response.toByteArray();
+        byte[] body;
+        try {
+            int headerEnd = ex.headerEnd >= 0 ? ex.headerEnd : indexOfHeaderEnd(raw);
+            if (headerEnd < 0)
+                throw new IOException("Incomplete response from " + ex.url);
+            String head = new String(raw, 0, headerEnd, "ISO-8859-1");
+            String[] lines = head.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+                throw new IOException("Malformed status line from " + ex.url + ": " + lines[0]);
+            int status = Integer.parseInt(statusLine[1]);
+            String location = header(lines, "location");
+            if (status >= 300 && status < 400 && location != null) {
+                close(ex);
+                if (ex.redirects >= MAX_REDIRECTS)
+                    throw new IOException("Too many redirects: " + ex.url);
+                get(new URL(ex.url, location).toString(), ex.deadline, ex.transport, ex.resolver, ex.handler,
+                        ex.redirects + 1);
+                return;
+            }
+            if (status != 200)
+                throw DemandFetchException.httpStatus(status, ex.url.toString());
+            int start = headerEnd + 4;
+            if ("chunked".equalsIgnoreCase(header(lines, "transfer-encoding")))
+                body = dechunk(raw, start);
+            else
+                body = copy(raw, start, ex.contentLength >= 0 ? start + ex.contentLength : raw.length);
+            int wire = body.length;
+            if ("gzip".equalsIgnoreCase(header(lines, "content-encoding")))
+                body = HttpResponseCache.readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+            ex.transport.record(wire, body.length);
+        } catch (IOException e) {
+            finish(ex, e);
+            return;
+        } catch (RuntimeException e) {
+            finish(ex, new IOException("Malformed response from " + ex.url, e));
+            return;
+        }
+        close(ex);
+        ex.handler.completed(body);
+    }
+
+    private void finish(Exchange ex, Throwable cause) {
+        close(ex);
+        ex.handler.failed(cause);
+    }
+
+    private void close(Exchange ex) {
+        active.remove(ex);
+        if (ex.channel != null) {
+            try {
+                ex.channel.close();
+            } catch (IOException e) {
+                // 閉じる際のエラーは無視する
+            }
+        }
+    }
+
+    private static String header(String[] lines, String name) {
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase(name))
+                return lines[i].substring(colon + 1).trim();
+        }
+        return null;
+    }
+
+    static int indexOfHeaderEnd(byte[] b) {
+        for (int i = 0; i + 3 < b.length; i++) {
+            if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private static byte[] copy(byte[] b, int from, int to) throws IOException {
+        if (to > b.length)
+            throw new IOException("Truncated response body");
+        byte[] ret = new byte[to - from];
+        System.arraycopy(b, from, ret, 0, ret.length);
+        return ret;
+    }
+
+    private static byte[] dechunk(byte[] b, int pos) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(b.length - pos);
+        while (true) {
+            int eol = pos;
+            while (eol + 1 < b.length && !(b[eol] == '\r' && b[eol + 1] == '\n'))
+                eol++;
+            if (eol + 1 >= b.length)
+                throw new IOException("Truncated chunked body");
+            String size = new String(b, pos, eol - pos, "ISO-8859-1");
+            int semicolon = size.indexOf(';');
+            int n = Integer.parseInt((semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+            pos = eol + 2;
+            if (n == 0)
+                return out.toByteArray();
+            if (pos + n > b.length)
+                throw new IOException("Truncated chunked body");
+            out.write(b, pos, n);
+            pos += n + 2;
+        }
+    }
+
+    /**
+     * 1回分のリクエストとレスポンス
+     */
+    private static final class Exchange {
+        final URL url;
+        final InetSocketAddress address;
+        final long deadline;
+        final HttpTransport transport;
+        final Executor resolver;
+        final Handler handler;
+        final int redirects;
+        final ByteBuffer request;
+        final ByteArrayOutputStream response = new ByteArrayOutputStream(32 * 1024);
+        SocketChannel channel;
+        int headerEnd = -1;
+        int contentLength = -1;
+
+        Exchange(URL u, InetSocketAddress addr, long d, HttpTransport t, Executor r, Handler h, int redir)
+                throws IOException {
+            url = u;
+            address = addr;
+            deadline = d;
+            transport = t;
+            resolver = r;
+            handler = h;
+            redirects = redir;
+            String path = u.getFile().length() == 0 ? "/" : u.getFile();
+            String host = u.getPort() < 0 ? u.getHost() : u.getHost() + ":" + u.getPort();
+            request = ByteBuffer.wrap(("GET " + path + " HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n"
+                    + "Accept: */*\r\n"
+                    + (t.isGzipEnabled() ? "Accept-Encoding: gzip\r\n" : "")
+                    + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+        }
+
+        /**
+         * Content-Lengthの分だけ本文を受け取ったかどうか。接続が閉じられるのを待たずに完了するために使う
+         */
+        boolean isBodyComplete() throws IOException {
+            if (headerEnd < 0) {
+                byte[] raw = response.toByteArray();
+                headerEnd = indexOfHeaderEnd(raw);
+                if (headerEnd < 0)
+                    return false;
+                String[] lines = new String(raw, 0, headerEnd, "ISO-8859-1").split("\r\n");
+                String length = header(lines, "content-length");
+                if (length != null && header(lines, "transfer-encoding") == null)
+                    contentLength = Integer.parseInt(length);
+            }
+            return contentLength >= 0 && response.size() >= headerEnd + 4 + contentLength;
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * CSVの1行をフィールド単位で読み進めるスキャナ
+ * <p>
+ * {@link String#split(String)} と違い、配列や部分文字列を作らずに
+ * 数値フィールドを直接プリミティブ値として読み出す。文字列を生成するのは
+ * 日付・時刻のように本当に文字列として必要なフィールドだけである。
+ * <p>
+ * 1つのインスタンスを {@link #reset(CharSequence)} で使い回すことを想定している。
+ * スレッドセーフではない。
+ */
+public final class CSVRowScanner {
+
+    private CharSequence row;
+    private int pos;
+    private int end;
+
+    /**
+     * 読み込む行を設定し、先頭のフィールドに戻る。
+     *
+     * @param r CSVの1行
+     * @return このスキャナ
+     */
+    public CSVRowScanner reset(CharSequence r) {
+        row = r;
+        pos = 0;
+        end = r.length();
+        return this;
+    }
+
+    /**
+     * まだ読んでいないフィールドがあるかどうかを返す。
+     *
+     * @return フィールドが残っていればtrue
+     */
+    public boolean hasNextField() {
+        return pos <= end;
+    }
+
+    /**
+     * 次のフィールドが空かどうかを返す。読み位置は進めない。
+     *
+     * @return 次のフィールドが空であるか、フィールドが残っていなければtrue
+     */
+    public boolean isNextFieldEmpty() {
+        return pos >= end || row.charAt(pos) == ',';
+    }
+
+    /**
+     * 次のフィールドを読み飛ばす。
+     */
+    public void skipField() {
+        pos = fieldEnd() + 1;
+    }
+
+    /**
+     * 次のフィールドを文字列として読む。
+     *
+     * @return フィールドの文字列
+     */
+    public String nextString() {
+        return nextString(null);
+    }
+
+    /**
+     * 次のフィールドを文字列として読む。<br>
+     * フィールドの内容が候補と等しい場合は新しい文字列を作らずに候補をそのまま返す。
+     * 日付のように各行で同じ値が続くフィールドに使う。
+     *
+     * @param candidate 再利用する文字列の候補 (nullも可)
+     * @return フィールドの文字列
+     */
+    public String nextString(String candidate) {
+        requireField();
+        int start = pos;
+        int fe = fieldEnd();
+        pos = fe + 1;
+        int len = fe - start;
+        if (candidate != null && candidate.length() == len && regionEquals(candidate, start)) {
+            return candidate;
+        }
+        return row.subSequence(start, fe).toString();
+    }
+
+    /**
+     * 次のフィールドを整数として読む。<br>
+     * 小数部がある場合は切り捨てる (北海道電力のデータは小数で公表されている)。
+     *
+     * @return フィールドの整数値
+     * @throws NumberFormatException 数値として解釈できない場合
+     */
+    public int nextInt() {
+        requireField();
+        int start = pos;
+        int fe = fieldEnd();
+        pos = fe + 1;
+        return parseInt(row, start, fe);
+    }
+
+    /**
+     * 次のフィールドを時刻 (H:MM形式) として読み、0時からの経過分を返す。<br>
+     * 「14:00～15:00」のような時間帯の場合は開始時刻を読む。
+     *
+     * @return 0時からの経過分
+     * @throws NumberFormatException 時刻として解釈できない場合
+     */
+    public int nextMinuteOfDay() {
+        requireField();
+        int start = pos;
+        int fe = fieldEnd();
+        pos = fe + 1;
+        return parseMinuteOfDay(row, start, fe);
+    }
+
+    /**
+     * 時刻 (H:MM形式) を解釈し、0時からの経過分を返す。
+     *
+     * @param s 時刻を表す文字列
+     * @return 0時からの経過分
+     * @throws NumberFormatException 時刻として解釈できない場合
+     */
+    public static int parseMinuteOfDay(CharSequence s) {
+        return parseMinuteOfDay(s, 0, s.length());
+    }
+
+    private static int parseMinuteOfDay(CharSequence s, int start, int end) {
+        int hour = 0;
+        int minute = 0;
+        int i = start;
+        int digits = 0;
+        for (; i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++, digits++)
+            hour = hour * 10 + (s.charAt(i) - '0');
+        if (digits > 0 && i < end && s.charAt(i) == ':') {
+            digits = 0;
+            for (i++; i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++, digits++)
+                minute = minute * 10 + (s.charAt(i) - '0');
+        }
+        if (digits == 0)
+            throw new NumberFormatException("Not a time: \"" + s.subSequence(start, end) + "\"");
+        return hour * 60 + minute;
+    }
+
+    /**
+     * 文字列を整数として解釈する。小数部がある場合は切り捨てる。
+     *
+     * @param s 数値を表す文字列
+     * @return 整数値
+     * @throws NumberFormatException 数値として解釈できない場合
+     */
+    public static int parseInt(CharSequence s) {
+        return parseInt(s, 0, s.length());
+    }
+
+    private static int parseInt(CharSequence s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        int digitsStart = i;
+        int value = 0;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.')
+                break;
+            if (c < '0' || c > '9')
+                throw new NumberFormatException("For input string: \""
+                        + s.subSequence(start, end) + "\"");
+            value = value * 10 + (c - '0');
+        }
+        if (i == digitsStart)
+            throw new NumberFormatException("For input string: \""
+                    + s.subSequence(start, end) + "\"");
+        for (i++; i < end; i++) { // 小数部は数字であることだけ確認して捨てる
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                throw new NumberFormatException("For input string: \""
+                        + s.subSequence(start, end) + "\"");
+        }
+        return negative ? -value : value;
+    }
+
+    private void requireField() {
+        if (pos > end)
+            throw new IndexOutOfBoundsException("No more fields in row: " + row);
+    }
+
+    private int fieldEnd() {
+        int i = pos;
+        while (i < end && row.charAt(i) != ',')
+            i++;
+        return i;
+    }
+
+    private boolean regionEquals(String s, int start) {
+        for (int i = 0; i < s.length(); i++) {
+            if (row.charAt(start + i) != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+}
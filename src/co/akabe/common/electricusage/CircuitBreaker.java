@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * 区域ごとのサーバの不調を検知し、取得を打ち切るサーキットブレーカー
+ * <p>
+ * {@link SupplyDataFormat#getCircuitBreaker()} でデータフォーマット定義ごとに1つ持つ。
+ * サーバに起因する失敗 (タイムアウト、通信エラー、5xxのステータス) が続けて一定回数起きると開き、
+ * 一定時間は取得を試みずに {@link FetchFailure#CIRCUIT_OPEN} の {@link DemandFetchException} で失敗させる。
+ * これにより、止まっている1社のタイムアウトが全区域の更新のたびに待たされることを防ぐ。
+ * 時間が経つと半開きになって1回だけ試行を許し、成功すれば閉じ、失敗すればまた開く。
+ * <p>
+ * このクラスはスレッドセーフである。
+ */
+public class CircuitBreaker {
+
+    /**
+     * 開くまでの連続失敗回数の既定値
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /**
+     * 開いている時間の既定値 (ミリ秒)
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 60000;
+
+    /**
+     * 状態
+     */
+    public enum State {
+        /**
+         * 取得を許している
+         */
+        CLOSED,
+        /**
+         * 取得を打ち切っている
+         */
+        OPEN,
+        /**
+         * 試行を1回だけ許している
+         */
+        HALF_OPEN
+    }
+
+    private final DemandClock clock;
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openMillis = DEFAULT_OPEN_MILLIS;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    /**
+     * システムの時計を使うサーキットブレーカーを作る。
+     */
+    public CircuitBreaker() {
+        this(DemandClock.SYSTEM);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param c 開いてからの時間を計る時計
+     */
+    public CircuitBreaker(DemandClock c) {
+        clock = c;
+    }
+
+    /**
+     * 開く条件と開いている時間を設定する。
+     *
+     * @param threshold 開くまでの連続失敗回数。0の場合は開かない
+     * @param openMillis 開いている時間 (ミリ秒)
+     */
+    public synchronized void configure(int threshold, long openMillis) {
+        if (threshold < 0 || openMillis < 0)
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        failureThreshold = threshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 別のサーキットブレーカーの設定を引き継ぐ。状態は引き継がない。
+     *
+     * @param other 設定の引き継ぎ元
+     */
+    void configureFrom(CircuitBreaker other) {
+        int threshold;
+        long millis;
+        synchronized (other) {
+            threshold = other.failureThreshold;
+            millis = other.openMillis;
+        }
+        configure(threshold, millis);
+    }
+
+    /**
+     * 取得を始めてよいか確認する。開いている場合は例外をスローする。<br>
+     * 確認が通った場合は、取得の終了時に必ず {@link #onSuccess()} か {@link #onFailure(Throwable)} を呼ぶこと。
+     *
+     * @param url 取得するURL (例外のメッセージに使う)
+     * @throws DemandFetchException 開いている場合
+     */
+    public synchronized void acquire(String url) throws DemandFetchException {
+        if (state == State.OPEN && clock.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && trialInFlight))
+            throw new DemandFetchException(FetchFailure.CIRCUIT_OPEN, 0, "Circuit open for " + url);
+        if (state == State.HALF_OPEN)
+            trialInFlight = true;
+    }
+
+    /**
+     * 取得が成功したことを記録する。閉じる。
+     */
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+    }
+
+    /**
+     * 取得が失敗したことを記録する。<br>
+     * サーバに起因しない失敗 (4xxのステータス、解析エラーなど) はサーバが応答しているので成功として扱う。
+     *
+     * @param cause 失敗の原因
+     */
+    public synchronized void onFailure(Throwable cause) {
+        if (!isServerFailure(cause)) {
+            if (FetchFailure.of(cause) == FetchFailure.INTERRUPTED)
+                release(); // サーバの状態はわからない
+            else
+                onSuccess();
+            return;
+        }
+        consecutiveFailures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || (failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = clock.currentTimeMillis();
+        }
+    }
+
+    /**
+     * サーバの状態がわからないまま取得を取りやめたことを記録する。
+     * 半開きの場合は、次の呼び出しに試行を許す。
+     */
+    synchronized void release() {
+        trialInFlight = false;
+    }
+
+    /**
+     * 状態を返す。開いている時間が過ぎていれば半開きを返す。
+     *
+     * @return 状態
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && clock.currentTimeMillis() - openedAt >= openMillis)
+            return State.HALF_OPEN;
+        return state;
+    }
+
+    /**
+     * 連続して失敗した回数を返す。
+     *
+     * @return 連続失敗回数
+     */
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * 閉じた状態に戻す。
+     */
+    public synchronized void reset() {
+        onSuccess();
+    }
+
+    private static boolean isServerFailure(Throwable cause) {
+        switch (FetchFailure.of(cause)) {
+            case TIMEOUT:
+            case NETWORK:
+                return true;
+            case HTTP_STATUS:
+                return ((DemandFetchException) cause).getStatus() >= 500;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker[" + getState() + ", failures=" + consecutiveFailures + "]";
+    }
+
+}
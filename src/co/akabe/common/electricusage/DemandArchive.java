@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * 1区域分の需給データを日ごとの固定長レコードで保存するアーカイブ
+ * <p>
+ * ファイルはヘッダと、基準日からの日数で位置が決まる1日1件のレコードからなる。
+ * レコードにはピーク時供給力・予想最大電力と、5分ごとの需要実績288件が入る。
+ * 読み込みは {@link MappedByteBuffer} を通して行うため、任意の日付のデータに
+ * 定数時間で到達でき、オブジェクトへの変換も必要ない。
+ * <p>
+ * 10年分でも1区域あたり約4MBに収まる。
+ * <p>
+ * 読み込みは複数のスレッドから同時に行ってよい。書き込みは同期化されている。
+ * MappedByteBufferは明示的に解放できないため、{@link #close()} 後もマッピングは
+ * ガベージコレクションされるまで残る。
+ */
+public class DemandArchive implements Closeable {
+
+    /**
+     * 1日あたりのスロット数 (5分ごと)
+     */
+    public static final int SLOTS_PER_DAY = 288;
+
+    /**
+     * 基準日の既定値 (2011年1月1日。各社が需給データの公表を始めた年)
+     */
+    public static final int DEFAULT_BASE_DAY = DemandDate.toEpochDay(2011, 1, 1);
+
+    /**
+     * データがないことを表す値
+     */
+    public static final int NO_VALUE = DemandSeries.NO_VALUE;
+
+    private static final int MAGIC = 0x45554152; // "EUAR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final int RECORD_SIZE = RECORD_HEADER_SIZE + SLOTS_PER_DAY * 4;
+    private static final int GROW_DAYS = 366;
+
+    private static final int FLAG_PRESENT = 1;
+
+    // レコード内のオフセット
+    private static final int OFF_FLAGS = 0;
+    private static final int OFF_SUPPLY = 4;
+    private static final int OFF_SUPPLY_MINUTE = 8;
+    private static final int OFF_DEMAND = 12;
+    private static final int OFF_DEMAND_MINUTE = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int baseDay;
+    private volatile MappedByteBuffer buffer;
+    private volatile int capacityDays;
+
+    private DemandArchive(RandomAccessFile f, int base) throws IOException {
+        file = f;
+        channel = f.getChannel();
+        baseDay = base;
+        capacityDays = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    /**
+     * 区域のアーカイブを開く。ファイルは「区域名.dat」とする。
+     *
+     * @param dir アーカイブを置くディレクトリ
+     * @param area 供給区域
+     * @return アーカイブ
+     * @throws IOException ファイルを開けなかった場合
+     */
+    public static DemandArchive open(File dir, ServiceArea area) throws IOException {
+        return open(new File(dir, area.name().toLowerCase(Locale.ENGLISH) + ".dat"));
+    }
+
+    /**
+     * アーカイブを開く。ファイルがなければ基準日を {@link #DEFAULT_BASE_DAY} として作成する。
+     *
+     * @param f アーカイブファイル
+     * @return アーカイブ
+     * @throws IOException ファイルを開けなかった場合、またはアーカイブの形式でない場合
+     */
+    public static DemandArchive open(File f) throws IOException {
+        return open(f, DEFAULT_BASE_DAY);
+    }
+
+    /**
+     * アーカイブを開く。ファイルがなければ指定した基準日で作成する。
+     *
+     * @param f アーカイブファイル
+     * @param base 新規作成時の基準日 (通算日)。これより前の日付は保存できない
+     * @return アーカイブ
+     * @throws IOException ファイルを開けなかった場合、またはアーカイブの形式でない場合
+     */
+    public static DemandArchive open(File f, int base) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            if (raf.length() == 0) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(base);
+                raf.writeInt(SLOTS_PER_DAY);
+                raf.writeInt(RECORD_SIZE);
+                raf.setLength(HEADER_SIZE);
+            } else {
+                if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC)
+                    throw new IOException("Not a demand archive: " + f);
+                int version = raf.readInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported archive version " + version + ": " + f);
+                base = raf.readInt();
+                if (raf.readInt() != SLOTS_PER_DAY || raf.readInt() != RECORD_SIZE)
+                    throw new IOException("Unsupported record layout: " + f);
+            }
+            return new DemandArchive(raf, base);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 基準日を返す。
+     *
+     * @return 基準日 (通算日)
+     */
+    public int getBaseDay() {
+        return baseDay;
+    }
+
+    /**
+     * 1日分のデータを保存する。既に同じ日のデータがあれば上書きする。
+     *
+     * @param epochDay 日付 (通算日)
+     * @param supply ピーク時供給力 (nullも可)
+     * @param demand ピーク時予想最大電力 (nullも可)
+     * @param fiveMin 5分ごとの需要実績 (nullも可)
+     * @throws IOException ファイルの拡張に失敗した場合
+     */
+    public synchronized void put(int epochDay, PeakSupply supply, PeakDemand demand, DemandSeries fiveMin)
+            throws IOException {
+        int index = indexOf(epochDay);
+        if (index < 0)
+            throw new IllegalArgumentException("Date before archive base: " + DemandDate.format(epochDay));
+        ensureCapacity(index + 1);
+        MappedByteBuffer b = buffer;
+        int rec = recordOffset(index);
+        b.putInt(rec + OFF_SUPPLY, supply == null ? NO_VALUE : supply.getAmount());
+        b.putInt(rec + OFF_SUPPLY_MINUTE, supply == null ? -1 : peakMinute(supply));
+        b.putInt(rec + OFF_DEMAND, demand == null ? NO_VALUE : demand.getAmount());
+        b.putInt(rec + OFF_DEMAND_MINUTE, demand == null ? -1 : peakMinute(demand));
+        int slots = rec + RECORD_HEADER_SIZE;
+        for (int i = 0; i < SLOTS_PER_DAY; i++)
+            b.putInt(slots + i * 4, NO_VALUE);
+        if (fiveMin != null) {
+            for (int i = 0; i < fiveMin.size(); i++) {
+                int slot = fiveMin.getMinuteOfDay(i) / 5;
+                if (slot < SLOTS_PER_DAY && !fiveMin.isMissing(i))
+                    b.putInt(slots + slot * 4, fiveMin.getDemandToday(i));
+            }
+        }
+        b.putInt(rec + OFF_FLAGS, FLAG_PRESENT); // 最後にフラグを立てる
+    }
+
+    /**
+     * パーサから当日分のデータを読み、保存する。
+     *
+     * @param parser 対象区域のパーサ
+     * @return 保存した日付 (通算日)。5分ごとのデータが得られなかった場合は保存せずに-1
+     * @throws IOException ファイルの拡張に失敗した場合
+     */
+    public int put(ElectricUsageCSVParser parser) throws IOException {
+        DemandSeries fiveMin = parser.get5MinDemandSeries();
+        if (fiveMin == null)
+            return -1;
+        int day = DemandDate.parseEpochDay(fiveMin.getDate());
+        put(day, parser.getPeakSupply(), parser.getPeakDemand(), fiveMin);
+        return day;
+    }
+
+    /**
+     * 指定した日のデータがあるかどうかを返す。
+     *
+     * @param epochDay 日付 (通算日)
+     * @return データがあればtrue
+     */
+    public boolean contains(int epochDay) {
+        int index = indexOf(epochDay);
+        if (index < 0 || index >= capacityDays)
+            return false;
+        return (buffer.getInt(recordOffset(index) + OFF_FLAGS) & FLAG_PRESENT) != 0;
+    }
+
+    /**
+     * 5分ごとの需要実績を返す。
+     *
+     * @param epochDay 日付 (通算日)
+     * @param slot 0時からのスロット番号 (0～287)
+     * @return 需要実績。データがない場合は {@link #NO_VALUE}
+     */
+    public int getDemand(int epochDay, int slot) {
+        if (slot < 0 || slot >= SLOTS_PER_DAY)
+            throw new IndexOutOfBoundsException("slot: " + slot);
+        if (!contains(epochDay))
+            return NO_VALUE;
+        return buffer.getInt(recordOffset(indexOf(epochDay)) + RECORD_HEADER_SIZE + slot * 4);
+    }
+
+    /**
+     * ピーク時供給力を返す。
+     *
+     * @param epochDay 日付 (通算日)
+     * @return ピーク時供給力。データがない場合は {@link #NO_VALUE}
+     */
+    public int getPeakSupply(int epochDay) {
+        return getHeaderInt(epochDay, OFF_SUPPLY, NO_VALUE);
+    }
+
+    /**
+     * ピーク時供給力の時刻を返す。
+     *
+     * @param epochDay 日付 (通算日)
+     * @return 0時からの経過分。データがない場合は-1
+     */
+    public int getPeakSupplyMinute(int epochDay) {
+        return getHeaderInt(epochDay, OFF_SUPPLY_MINUTE, -1);
+    }
+
+    /**
+     * ピーク時予想最大電力を返す。
+     *
+     * @param epochDay 日付 (通算日)
+     * @return ピーク時予想最大電力。データがない場合は {@link #NO_VALUE}
+     */
+    public int getPeakDemand(int epochDay) {
+        return getHeaderInt(epochDay, OFF_DEMAND, NO_VALUE);
+    }
+
+    /**
+     * ピーク時予想最大電力の時刻を返す。
+     *
+     * @param epochDay 日付 (通算日)
+     * @return 0時からの経過分。データがない場合は-1
+     */
+    public int getPeakDemandMinute(int epochDay) {
+        return getHeaderInt(epochDay, OFF_DEMAND_MINUTE, -1);
+    }
+
+    /**
+     * 指定した日の5分ごとの需要実績を、コピーせずに参照する読み取り専用のビューを返す。
+     *
+     * @param epochDay 日付 (通算日)
+     * @return 288件の需要実績のビュー。データがない場合はnull
+     */
+    public IntBuffer getDayView(int epochDay) {
+        if (!contains(epochDay))
+            return null;
+        ByteBuffer b = buffer.duplicate();
+        int start = recordOffset(indexOf(epochDay)) + RECORD_HEADER_SIZE;
+        b.position(start);
+        b.limit(start + SLOTS_PER_DAY * 4);
+        return b.slice().asIntBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * 指定した期間の需要実績を配列にコピーする。データのない日やスロットは {@link #NO_VALUE} になる。
+     *
+     * @param fromDay 開始日 (通算日、この日を含む)
+     * @param toDay 終了日 (通算日、この日を含む)
+     * @param dst 格納先。(日数 × 288) 件以上の長さが必要
+     * @return 格納した件数
+     */
+    public int copyDemand(int fromDay, int toDay, int[] dst) {
+        int n = 0;
+        for (int day = fromDay; day <= toDay; day++) {
+            IntBuffer view = getDayView(day);
+            if (view == null) {
+                for (int i = 0; i < SLOTS_PER_DAY; i++)
+                    dst[n++] = NO_VALUE;
+            } else {
+                view.get(dst, n, SLOTS_PER_DAY);
+                n += SLOTS_PER_DAY;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 保存されている最初の日を返す。
+     *
+     * @return 最初の日 (通算日)。データがなければ-1
+     */
+    public int getFirstDay() {
+        for (int i = 0; i < capacityDays; i++) {
+            if (contains(baseDay + i))
+                return baseDay + i;
+        }
+        return -1;
+    }
+
+    /**
+     * 保存されている最後の日を返す。
+     *
+     * @return 最後の日 (通算日)。データがなければ-1
+     */
+    public int getLastDay() {
+        for (int i = capacityDays - 1; i >= 0; i--) {
+            if (contains(baseDay + i))
+                return baseDay + i;
+        }
+        return -1;
+    }
+
+    /**
+     * 書き込んだ内容をディスクに反映する。
+     */
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    /**
+     * アーカイブを閉じる。
+     *
+     * @throws IOException ファイルを閉じられなかった場合
+     */
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private int getHeaderInt(int epochDay, int offset, int absent) {
+        if (!contains(epochDay))
+            return absent;
+        return buffer.getInt(recordOffset(indexOf(epochDay)) + offset);
+    }
+
+    private int indexOf(int epochDay) {
+        return epochDay - baseDay;
+    }
+
+    private static int recordOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private static int peakMinute(TimeAmountData d) {
+        try {
+            return d.getMinuteOfDay();
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * ファイルを1年単位で拡張し、マッピングし直す。
+     */
+    private void ensureCapacity(int days) throws IOException {
+        if (days <= capacityDays)
+            return;
+        int newDays = Math.max(days, capacityDays + GROW_DAYS);
+        long size = HEADER_SIZE + (long) newDays * RECORD_SIZE;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Archive too large");
+        file.setLength(size); // 拡張した部分は0 (フラグなし) で埋められる
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        capacityDays = newDays;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 一括取り込みの結果を区域ごとの {@link DemandArchive} に保存する出力先
+ * <p>
+ * アーカイブは最初に結果を受け取った時点で、ディレクトリの「区域名.dat」として開く。
+ * 5分ごとの需要実績を含まないファイルは保存しない。
+ * 使い終わったら {@link #close()} を呼ぶこと。
+ */
+public class DemandArchiveSink implements DemandBackfillSink, Closeable {
+
+    private final File dir;
+    private final Map<ServiceArea, DemandArchive> archives =
+            new EnumMap<ServiceArea, DemandArchive>(ServiceArea.class);
+
+    /**
+     * コンストラクタ
+     *
+     * @param dir アーカイブを置くディレクトリ
+     */
+    public DemandArchiveSink(File dir) {
+        this.dir = dir;
+    }
+
+    public void accept(ServiceArea area, File source, ParsedUsageDocument doc) throws IOException {
+        DemandSeries fiveMin = doc.get5MinDemandSeries();
+        if (fiveMin == null)
+            return;
+        archiveFor(area).put(DemandDate.parseEpochDay(fiveMin.getDate()), doc.getPeakSupply(),
+                doc.getPeakDemand(), fiveMin);
+    }
+
+    /**
+     * 区域のアーカイブを返す。開いていなければ開く。
+     *
+     * @param area 供給区域
+     * @return アーカイブ
+     * @throws IOException アーカイブを開けなかった場合
+     */
+    public synchronized DemandArchive archiveFor(ServiceArea area) throws IOException {
+        DemandArchive a = archives.get(area);
+        if (a == null) {
+            a = DemandArchive.open(dir, area);
+            archives.put(area, a);
+        }
+        return a;
+    }
+
+    /**
+     * 開いた全てのアーカイブを閉じる。
+     *
+     * @throws IOException 閉じられなかった場合
+     */
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (DemandArchive a : archives.values()) {
+            try {
+                a.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        archives.clear();
+        if (error != null)
+            throw error;
+    }
+
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 保存しておいた日ごとの供給データCSVを並列に解析し、一括で取り込むクラス
+ * <p>
+ * 取り込むディレクトリには、区域名 (大文字・小文字は問わない。例えば「tokyo」) のサブディレクトリを置き、
+ * その下に拡張子が「.csv」のファイルを置く。区域のディレクトリの下はさらに年ごとなどに分けてもよい。
+ * 日付はファイル名ではなく、ファイルの内容から得る。
+ * <p>
+ * ファイルはURLを通さずに直接読み、{@link ForkJoinPool} で全てのコアを使って解析する。
+ * 解析には区域ごとのデータフォーマット定義を使うが、過去のファイルは形式が混在していることがあるので、
+ * 作業の単位ごとに定義を複製し、解析計画を別々に持つ。
+ * 解析結果は {@link DemandBackfillSink} に渡す。
+ * <p>
+ * 進捗 (処理したファイル数・行数と、1秒あたりの件数) は一定間隔で {@link ProgressListener} に通知する。
+ * 通知先を指定しなければログに記録する。
+ * <p>
+ * 読めなかったファイルや需要実績を含まないファイルは、警告を記録して読み飛ばす。
+ * 出力先が例外をスローした場合は、取り込み全体を中止する。
+ */
+public class DemandBackfillImporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DemandBackfillImporter.class);
+
+    /**
+     * 進捗の通知間隔の既定値 (ミリ秒)
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 10000;
+
+    /**
+     * 1つの作業でまとめて処理するファイル数の上限
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * 取り込みの進捗を受け取るリスナ
+     */
+    public interface ProgressListener {
+
+        /**
+         * 進捗が通知されるときに呼び出される。作業スレッドから呼び出される。
+         *
+         * @param p その時点の進捗
+         */
+        void onProgress(Progress p);
+    }
+
+    private static final ProgressListener LOGGING = new ProgressListener() {
+        public void onProgress(Progress p) {
+            LOG.info("Backfill progress: {}", p);
+        }
+    };
+
+    private final int parallelism;
+    private final Map<ServiceArea, SupplyDataFormat> formats =
+            new EnumMap<ServiceArea, SupplyDataFormat>(ServiceArea.class);
+    private volatile ProgressListener progressListener = LOGGING;
+    private volatile long progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PROGRESS_INTERVAL_MILLIS);
+
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong nextReport = new AtomicLong();
+    private volatile int filesTotal;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile boolean aborted;
+
+    /**
+     * 利用できる全てのプロセッサを使うインスタンスを作る。
+     */
+    public DemandBackfillImporter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param parallelism 解析に使うスレッド数
+     */
+    public DemandBackfillImporter(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 区域の解析に使うデータフォーマット定義を指定する。<br>
+     * 指定しなければ {@link ServiceArea#buildFormat()} を使う。
+     * 指定した定義は複製して使うので、解析計画などは書き換えない。
+     *
+     * @param area 供給区域
+     * @param f データフォーマット定義。nullの場合は既定に戻す
+     */
+    public void setFormat(ServiceArea area, SupplyDataFormat f) {
+        synchronized (formats) {
+            if (f == null)
+                formats.remove(area);
+            else
+                formats.put(area, f);
+        }
+    }
+
+    /**
+     * 進捗の通知先と間隔を指定する。
+     *
+     * @param listener 通知先。nullの場合はログに記録する
+     * @param intervalMillis 通知間隔 (ミリ秒)
+     */
+    public void setProgressListener(ProgressListener listener, long intervalMillis) {
+        progressListener = listener == null ? LOGGING : listener;
+        progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * ディレクトリ以下の全区域のファイルを取り込む。
+     *
+     * @param root 取り込むディレクトリ
+     * @param sink 解析結果の出力先
+     * @return 最終的な進捗
+     * @throws IOException ディレクトリを読めなかった場合、または出力先が例外をスローした場合
+     */
+    public Progress run(File root, DemandBackfillSink sink) throws IOException {
+        return run(root, EnumSet.allOf(ServiceArea.class), sink);
+    }
+
+    /**
+     * ディレクトリ以下の指定した区域のファイルを取り込む。<br>
+     * 同じインスタンスで同時に複数の取り込みを行うことはできない。
+     *
+     * @param root 取り込むディレクトリ
+     * @param areas 取り込む区域
+     * @param sink 解析結果の出力先
+     * @return 最終的な進捗
+     * @throws IOException ディレクトリを読めなかった場合、または出力先が例外をスローした場合
+     */
+    public synchronized Progress run(File root, EnumSet<ServiceArea> areas, DemandBackfillSink sink)
+            throws IOException {
+        if (sink == null)
+            throw new NullPointerException("sink");
+        List<Job> jobs = scan(root, areas);
+        filesDone.set(0);
+        filesFailed.set(0);
+        rows.set(0);
+        bytes.set(0);
+        filesTotal = jobs.size();
+        aborted = false;
+        startNanos = System.nanoTime();
+        endNanos = 0;
+        nextReport.set(startNanos + progressIntervalNanos);
+
+        int batch = Math.max(1, Math.min(MAX_BATCH, jobs.size() / (parallelism * 8)));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ImportTask(jobs, 0, jobs.size(), batch, sink));
+        } catch (SinkFailure e) {
+            // ForkJoinPoolは呼び出し側のスレッドで例外を作り直すことがあるので、原因をたどる
+            Throwable cause = e;
+            while (cause instanceof SinkFailure)
+                cause = cause.getCause();
+            throw (IOException) cause;
+        } finally {
+            pool.shutdown();
+            endNanos = System.nanoTime();
+        }
+        Progress p = getProgress();
+        progressListener.onProgress(p);
+        return p;
+    }
+
+    /**
+     * 現在の進捗を返す。取り込み中でも呼び出してよい。
+     *
+     * @return 進捗
+     */
+    public Progress getProgress() {
+        long end = endNanos;
+        long elapsed = (end == 0 ? System.nanoTime() : end) - startNanos;
+        return new Progress(filesTotal, filesDone.get(), filesFailed.get(), rows.get(), bytes.get(),
+                startNanos == 0 ? 0 : elapsed);
+    }
+
+    private SupplyDataFormat formatFor(ServiceArea area) {
+        SupplyDataFormat f;
+        synchronized (formats) {
+            f = formats.get(area);
+        }
+        return new SupplyDataFormat(f == null ? area.buildFormat() : f);
+    }
+
+    /**
+     * 区域のディレクトリを探し、取り込むファイルを区域・パスの順に並べる。
+     */
+    private static List<Job> scan(File root, EnumSet<ServiceArea> areas) throws IOException {
+        File[] children = root.listFiles();
+        if (children == null)
+            throw new IOException("Not a directory: " + root);
+        Arrays.sort(children);
+        List<Job> jobs = new ArrayList<Job>();
+        for (ServiceArea area : areas) {
+            for (File dir : children) {
+                if (!dir.isDirectory() || !dir.getName().toUpperCase(Locale.ENGLISH).equals(area.name()))
+                    continue;
+                List<File> files = new ArrayList<File>();
+                collect(dir, files);
+                for (File f : files)
+                    jobs.add(new Job(area, f));
+            }
+        }
+        return jobs;
+    }
+
+    private static void collect(File dir, List<File> out) {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+        Arrays.sort(children);
+        for (File f : children) {
+            if (f.isDirectory())
+                collect(f, out);
+            else if (f.getName().toLowerCase(Locale.ENGLISH).endsWith(".csv"))
+                out.add(f);
+        }
+    }
+
+    /**
+     * 1ファイルを読み、解析して出力先に渡す。
+     *
+     * @return 出力先に渡した場合はtrue。読み飛ばした場合はfalse
+     */
+    private boolean importFile(ElectricUsageCSVParser parser, Job job, DemandBackfillSink sink) {
+        ParsedUsageDocument doc;
+        try {
+            byte[] body = Files.readAllBytes(job.file.toPath());
+            bytes.addAndGet(body.length);
+            doc = parser.parse(ByteBuffer.wrap(body));
+        } catch (IOException e) {
+            LOG.warn("Failed to read {}", job.file, e);
+            return false;
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to parse {}", job.file, e);
+            return false;
+        }
+        DemandSeries hourly = doc.getHourlyDemandSeries();
+        DemandSeries fiveMin = doc.get5MinDemandSeries();
+        if (hourly == null && fiveMin == null) {
+            LOG.warn("No demand rows in {}", job.file);
+            return false;
+        }
+        try {
+            sink.accept(job.area, job.file, doc);
+        } catch (IOException e) {
+            aborted = true;
+            throw new SinkFailure(e);
+        }
+        rows.addAndGet((hourly == null ? 0 : hourly.size()) + (fiveMin == null ? 0 : fiveMin.size()));
+        return true;
+    }
+
+    private void reportIfDue() {
+        long next = nextReport.get();
+        long now = System.nanoTime();
+        if (now - next >= 0 && nextReport.compareAndSet(next, now + progressIntervalNanos))
+            progressListener.onProgress(getProgress());
+    }
+
+    /**
+     * 取り込むファイル
+     */
+    private static final class Job {
+        final ServiceArea area;
+        final File file;
+
+        Job(ServiceArea a, File f) {
+            area = a;
+            file = f;
+        }
+    }
+
+    /**
+     * ファイルの範囲を半分ずつに分け、一定数以下になったら順に処理するタスク
+     */
+    private final class ImportTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Job> jobs;
+        private final int from;
+        private final int to;
+        private final int batch;
+        private final DemandBackfillSink sink;
+
+        ImportTask(List<Job> jobs, int from, int to, int batch, DemandBackfillSink sink) {
+            this.jobs = jobs;
+            this.from = from;
+            this.to = to;
+            this.batch = batch;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > batch) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ImportTask(jobs, from, mid, batch, sink), new ImportTask(jobs, mid, to, batch, sink));
+                return;
+            }
+            // ファイルは区域・パスの順に並んでいるので、区域ごとのパーサは同じ形式のファイルを続けて解析する
+            Map<ServiceArea, ElectricUsageCSVParser> parsers =
+                    new EnumMap<ServiceArea, ElectricUsageCSVParser>(ServiceArea.class);
+            for (int i = from; i < to && !aborted; i++) {
+                Job job = jobs.get(i);
+                ElectricUsageCSVParser parser = parsers.get(job.area);
+                if (parser == null) {
+                    parser = new ElectricUsageCSVParser(formatFor(job.area));
+                    parsers.put(job.area, parser);
+                }
+                if (!importFile(parser, job, sink))
+                    filesFailed.incrementAndGet();
+                filesDone.incrementAndGet();
+                reportIfDue();
+            }
+        }
+    }
+
+    /**
+     * 出力先の例外を作業スレッドから呼び出し側へ運ぶ
+     */
+    private static final class SinkFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        SinkFailure(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * 取り込みの進捗
+     * <p>
+     * このクラスは不変である。
+     */
+    public static final class Progress {
+
+        private final int filesTotal;
+        private final long filesDone;
+        private final long filesFailed;
+        private final long rows;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        Progress(int filesTotal, long filesDone, long filesFailed, long rows, long bytes, long elapsedNanos) {
+            this.filesTotal = filesTotal;
+            this.filesDone = filesDone;
+            this.filesFailed = filesFailed;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * 取り込むファイルの総数を返す。
+         */
+        public int getFilesTotal() {
+            return filesTotal;
+        }
+
+        /**
+         * 処理したファイル数を返す。読み飛ばしたファイルを含む。
+         */
+        public long getFilesDone() {
+            return filesDone;
+        }
+
+        /**
+         * 読み飛ばしたファイル数を返す。
+         */
+        public long getFilesFailed() {
+            return filesFailed;
+        }
+
+        /**
+         * 出力先に渡した需要実績の行数 (時間ごとと5分ごとの合計) を返す。
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * 読み込んだバイト数を返す。
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * 取り込みを始めてからの経過時間 (ミリ秒) を返す。
+         */
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * 1秒あたりに処理したファイル数を返す。
+         */
+        public double getFilesPerSecond() {
+            return elapsedNanos <= 0 ? 0 : filesDone * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * 1秒あたりに処理した行数を返す。
+         */
+        public double getRowsPerSecond() {
+            return elapsedNanos <= 0 ? 0 : rows * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%d/%d files (%d skipped), %d rows, %.1f files/s, %.0f rows/s",
+                    filesDone, filesTotal, filesFailed, rows, getFilesPerSecond(), getRowsPerSecond());
+        }
+    }
+
+}
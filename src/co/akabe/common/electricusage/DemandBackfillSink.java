@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 一括取り込みで解析したファイルごとの結果を受け取る出力先
+ * <p>
+ * {@link DemandBackfillImporter} の作業スレッドから同時に呼び出されるので、スレッドセーフに実装すること。
+ * 同じ区域のファイルは日付順に近い順序で渡されるが、順序は保証しない。
+ */
+public interface DemandBackfillSink {
+
+    /**
+     * 1ファイル分の解析結果を受け取る。<br>
+     * 例外をスローすると取り込み全体を中止する。
+     *
+     * @param area 供給区域
+     * @param source 解析したファイル
+     * @param doc 解析結果
+     * @throws IOException 書き込みに失敗した場合
+     */
+    void accept(ServiceArea area, File source, ParsedUsageDocument doc) throws IOException;
+
+}
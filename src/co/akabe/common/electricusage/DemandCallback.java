@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * {@link DemandFuture} の完了を受け取るコールバック
+ *
+ * @param <V> 結果の型
+ */
+public interface DemandCallback<V> {
+
+    /**
+     * 処理が成功したときに呼ばれる。
+     *
+     * @param result 結果
+     */
+    void onSuccess(V result);
+
+    /**
+     * 処理が失敗したとき、または取り消されたときに呼ばれる。
+     *
+     * @param cause 失敗の原因。取り消された場合は {@link java.util.concurrent.CancellationException}
+     */
+    void onFailure(Throwable cause);
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * 現在時刻を与えるインターフェイス
+ * <p>
+ * 日付入りのURLの解決や日付の切り替わりの判定に使う。
+ * テストや過去データの再生では、任意の時刻を返す実装に差し替える。
+ */
+public interface DemandClock {
+
+    /**
+     * システムの時計
+     */
+    DemandClock SYSTEM = new DemandClock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * 現在時刻を返す。
+     *
+     * @return {@link System#currentTimeMillis()} と同じ基準のミリ秒
+     */
+    long currentTimeMillis();
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * ストリーミング解析時に各行の解析結果を受け取るリスナ
+ * <p>
+ * {@link ElectricUsageCSVParser#parse(DemandDataListener)} から、入力ストリームを
+ * 1行読むごとに該当するメソッドが呼び出される。
+ */
+public interface DemandDataListener {
+
+    /**
+     * ピーク時供給力の行が読まれたときに呼び出される。
+     *
+     * @param s ピーク時供給力
+     */
+    void onPeakSupply(PeakSupply s);
+
+    /**
+     * ピーク時予想最大電力の行が読まれたときに呼び出される。
+     *
+     * @param d ピーク時予想最大電力
+     */
+    void onPeakDemand(PeakDemand d);
+
+    /**
+     * 時間ごとの需要実績の行が読まれるたびに呼び出される。
+     *
+     * @param d 時間ごとの需要実績
+     */
+    void onHourlyDemand(HourlyDemand d);
+
+    /**
+     * 5分ごとの需要実績の行が読まれるたびに呼び出される。
+     *
+     * @param d 5分ごとの需要実績
+     */
+    void onFiveMinDemand(FiveMinDemand d);
+
+}
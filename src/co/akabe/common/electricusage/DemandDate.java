@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * 日付と通算日 (1970年1月1日からの日数) の相互変換を行うユーティリティ
+ * <p>
+ * 元データの日付は「2016/8/1」のような yyyy/M/d 形式の文字列である。
+ */
+public final class DemandDate {
+
+    private DemandDate() {
+    }
+
+    /**
+     * 年月日から通算日を求める。
+     *
+     * @param year 年
+     * @param month 月 (1～12)
+     * @param day 日 (1～31)
+     * @return 1970年1月1日からの日数
+     */
+    public static int toEpochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * yyyy/M/d 形式の日付を通算日に変換する。「-」区切りも受け付ける。
+     *
+     * @param s 日付文字列
+     * @return 1970年1月1日からの日数
+     * @throws NumberFormatException 日付として解釈できない場合
+     */
+    public static int parseEpochDay(CharSequence s) {
+        int day = tryParseEpochDay(s);
+        if (day == INVALID)
+            throw new NumberFormatException("Not a date: \"" + s + "\"");
+        return day;
+    }
+
+    /**
+     * 日付として解釈できなかったことを表す値
+     */
+    static final int INVALID = Integer.MIN_VALUE;
+
+    /**
+     * yyyy/M/d 形式の日付を通算日に変換する。解釈できない場合は例外の代わりに {@link #INVALID} を返す。
+     */
+    static int tryParseEpochDay(CharSequence s) {
+        int year = 0;
+        int month = 0;
+        int day = 0;
+        int field = 0;
+        int digits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int v = c - '0';
+                if (field == 0)
+                    year = year * 10 + v;
+                else if (field == 1)
+                    month = month * 10 + v;
+                else
+                    day = day * 10 + v;
+                if (++digits > 4)
+                    return INVALID;
+            } else if ((c == '/' || c == '-') && digits > 0 && field < 2) {
+                field++;
+                digits = 0;
+            } else {
+                return INVALID;
+            }
+        }
+        if (field != 2 || digits == 0 || month < 1 || month > 12 || day < 1 || day > 31)
+            return INVALID;
+        return toEpochDay(year, month, day);
+    }
+
+    /**
+     * 日本標準時の時差 (分)
+     */
+    static final int JST_OFFSET_MINUTES = 9 * 60;
+
+    /**
+     * 日本標準時での通算日と時刻を、UTCの1970年1月1日0時からのミリ秒に変換する。
+     *
+     * @param epochDay 1970年1月1日からの日数
+     * @param minuteOfDay 0時からの分
+     * @return {@link System#currentTimeMillis()} と同じ基準のミリ秒
+     */
+    public static long toEpochMillis(int epochDay, int minuteOfDay) {
+        return ((long) epochDay * 1440 + minuteOfDay - JST_OFFSET_MINUTES) * 60000L;
+    }
+
+    /**
+     * UTCの1970年1月1日0時からのミリ秒を、日本標準時での通算日に変換する。
+     *
+     * @param epochMillis {@link System#currentTimeMillis()} と同じ基準のミリ秒
+     * @return 1970年1月1日からの日数
+     */
+    public static int epochDayAt(long epochMillis) {
+        long minutes = epochMillis / 60000 + JST_OFFSET_MINUTES;
+        if (epochMillis < 0 && epochMillis % 60000 != 0)
+            minutes--;
+        long day = minutes / 1440;
+        if (minutes < 0 && minutes % 1440 != 0)
+            day--;
+        return (int) day;
+    }
+
+    /**
+     * 通算日を元データと同じ yyyy/M/d 形式の文字列にする。
+     *
+     * @param epochDay 1970年1月1日からの日数
+     * @return 日付文字列
+     */
+    public static String format(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = z - era * 146097;
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return year + "/" + month + "/" + day;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.IOException;
+
+/**
+ * 失敗の理由を持つ取得エラー
+ * <p>
+ * サーバのエラーステータスと、{@link CircuitBreaker} による取得の打ち切りを表す。
+ * それ以外の通信エラーは元の例外のままスローされるので、理由は {@link FetchFailure#of(Throwable)} で判定する。
+ */
+public class DemandFetchException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final FetchFailure reason;
+    private final int status;
+
+    /**
+     * コンストラクタ
+     *
+     * @param reason 失敗の理由
+     * @param status HTTPのステータス。ステータスがない場合は0
+     * @param message メッセージ
+     */
+    public DemandFetchException(FetchFailure reason, int status, String message) {
+        super(message);
+        this.reason = reason;
+        this.status = status;
+    }
+
+    /**
+     * サーバがエラーのステータスを返したことを表す例外を作る。
+     *
+     * @param status HTTPのステータス
+     * @param url 取得したURL
+     * @return 例外
+     */
+    static DemandFetchException httpStatus(int status, String url) {
+        return new DemandFetchException(FetchFailure.HTTP_STATUS, status,
+                "Server returned HTTP response code: " + status + " for URL: " + url);
+    }
+
+    /**
+     * 失敗の理由を返す。
+     *
+     * @return 失敗の理由
+     */
+    public FetchFailure getReason() {
+        return reason;
+    }
+
+    /**
+     * HTTPのステータスを返す。
+     *
+     * @return HTTPのステータス。ステータスがない場合は0
+     */
+    public int getStatus() {
+        return status;
+    }
+
+}
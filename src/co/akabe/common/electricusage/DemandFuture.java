@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 非同期に取得する結果
+ * <p>
+ * {@link Future} としてブロックして待つこともできるが、{@link #addCallback(DemandCallback)} で
+ * コールバックを登録すれば、スレッドを待たせずに結果を受け取れる。
+ * コールバックは作成時に指定したExecutorで実行する。
+ * <p>
+ * このクラスはスレッドセーフである。
+ *
+ * @param <V> 結果の型
+ */
+public final class DemandFuture<V> implements Future<V> {
+
+    private final Executor executor;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private List<DemandCallback<? super V>> callbacks = new ArrayList<DemandCallback<? super V>>(2);
+    private V value;
+    private Throwable failure;
+
+    /**
+     * コンストラクタ
+     *
+     * @param e コールバックを実行するExecutor
+     */
+    DemandFuture(Executor e) {
+        executor = e;
+    }
+
+    /**
+     * 既に成功した結果を作る。
+     */
+    static <V> DemandFuture<V> completed(Executor e, V value) {
+        DemandFuture<V> f = new DemandFuture<V>(e);
+        f.complete(value);
+        return f;
+    }
+
+    /**
+     * コールバックを登録する。既に完了していれば、すぐにExecutorへ渡す。
+     *
+     * @param callback コールバック
+     */
+    public void addCallback(DemandCallback<? super V> callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        dispatch(callback);
+    }
+
+    /**
+     * 成功した結果を設定する。既に完了していれば何もしない。
+     *
+     * @return 設定した場合はtrue
+     */
+    boolean complete(V result) {
+        return finish(result, null);
+    }
+
+    /**
+     * 失敗を設定する。既に完了していれば何もしない。
+     *
+     * @return 設定した場合はtrue
+     */
+    boolean fail(Throwable cause) {
+        return finish(null, cause);
+    }
+
+    private boolean finish(V result, Throwable cause) {
+        List<DemandCallback<? super V>> list;
+        synchronized (this) {
+            if (callbacks == null)
+                return false;
+            value = result;
+            failure = cause;
+            list = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for (DemandCallback<? super V> c : list)
+            dispatch(c);
+        return true;
+    }
+
+    private void dispatch(final DemandCallback<? super V> c) {
+        executor.execute(new Runnable() {
+            public void run() {
+                Throwable cause;
+                V result;
+                synchronized (DemandFuture.this) {
+                    cause = failure;
+                    result = value;
+                }
+                if (cause == null)
+                    c.onSuccess(result);
+                else
+                    c.onFailure(cause);
+            }
+        });
+    }
+
+    /**
+     * 取り消す。実行中の通信は中断しないが、結果は捨てる。
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return fail(new CancellationException());
+    }
+
+    public synchronized boolean isCancelled() {
+        return failure instanceof CancellationException;
+    }
+
+    public synchronized boolean isDone() {
+        return callbacks == null;
+    }
+
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException();
+        return result();
+    }
+
+    private synchronized V result() throws ExecutionException {
+        if (failure instanceof CancellationException)
+            throw (CancellationException) failure;
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return value;
+    }
+
+}
@@ -0,0 +1,641 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 全区域の5分ごとの需要実績を、日ごとに圧縮してメモリ上に保持する履歴
+ * <p>
+ * 区域ごとに当日分だけを圧縮しない配列に置いて追加を受け付け、日付が変わると前日分を圧縮した「チャンク」に封じる。
+ * チャンクは288の時刻枠のうち実績のある枠と、値の差分の差分 (delta-of-delta) を可変長のビット列で書いたもので、
+ * 5分ごとにゆっくり変化する需要曲線ではほとんどの値が1～2バイト未満になる。
+ * 1区域1日あたり200バイト前後なので、全区域の数年分を1台のノードで保持できる。
+ * <p>
+ * 読み込みは {@link Cursor} でチャンクをその場で復号しながら1件ずつ行い、オブジェクトを作らない。
+ * <p>
+ * このクラスはスレッドセーフである。追加と読み込みを別のスレッドから同時に行ってよい。
+ * 封じたチャンクは変更しないので、読み込みはチャンクを取り出す間だけ区域ごとのロックを取る。
+ */
+public class DemandHistoryStore {
+
+    /**
+     * 1日あたりの時刻枠の数 (5分ごと)
+     */
+    public static final int SLOTS_PER_DAY = 288;
+
+    private static final int BITMAP_LONGS = (SLOTS_PER_DAY + 63) >>> 6;
+    private static final int BITMAP_BYTES = (SLOTS_PER_DAY + 7) >>> 3;
+    private static final int NO_DAY = DemandDate.INVALID;
+
+    // チャンクの先頭バイト
+    private static final int CONTIGUOUS = 1;
+
+    private final Map<ServiceArea, AreaHistory> areas = new EnumMap<ServiceArea, AreaHistory>(ServiceArea.class);
+
+    /**
+     * 空の履歴を作る。
+     */
+    public DemandHistoryStore() {
+        for (ServiceArea a : ServiceArea.values())
+            areas.put(a, new AreaHistory());
+    }
+
+    /**
+     * 実績を1件追加する。<br>
+     * 当日より新しい日付の実績を受け取ると、当日分をチャンクに封じてから新しい日を始める。
+     * 新しい日のチャンクが {@link #putDay(ServiceArea, DemandSeries)} で既に保存されていれば、
+     * その実績を当日分に読み込んでから追加する。
+     *
+     * @param area 供給区域
+     * @param epochDay 日付 (通算日)
+     * @param minuteOfDay 時刻 (0時からの経過分)
+     * @param demand 需要 (万kW)
+     * @return 新しい時刻の実績であればtrue。既にある時刻は値を上書きしてfalse。
+     * 当日より前の日付のため追加しなかった場合もfalse ({@link #putDay(ServiceArea, DemandSeries)} を使うこと)
+     */
+    public boolean append(ServiceArea area, int epochDay, int minuteOfDay, int demand) {
+        int slot = minuteOfDay / 5;
+        if (minuteOfDay < 0 || slot >= SLOTS_PER_DAY)
+            throw new IllegalArgumentException("Minute out of range: " + minuteOfDay);
+        AreaHistory h = areas.get(area);
+        synchronized (h) {
+            if (h.openDay != NO_DAY && epochDay < h.openDay)
+                return false;
+            if (epochDay != h.openDay)
+                openDay(area, h, epochDay);
+            return h.setOpen(slot, demand);
+        }
+    }
+
+    /**
+     * 当日分を封じ、指定した日を当日として始める。
+     * その日のチャンクがあれば当日分に復号し、チャンクは取り除く。呼び出し側で h のロックを取ること。
+     */
+    private void openDay(ServiceArea area, AreaHistory h, int day) {
+        h.sealOpenDay();
+        h.openDay = day;
+        if (h.chunkAt(day) == null)
+            return;
+        // 当日分は空なので、カーソルはチャンクを読む
+        Cursor c = new Cursor();
+        c.reset(area, day, day);
+        while (c.next())
+            h.setOpen(c.getMinuteOfDay() / 5, c.getDemand());
+        h.putChunk(day, null);
+    }
+
+    /**
+     * 実績を1件追加する。
+     *
+     * @param area 供給区域
+     * @param d 5分ごとの需要実績
+     * @return {@link #append(ServiceArea, int, int, int)} と同じ
+     */
+    public boolean append(ServiceArea area, FiveMinDemand d) {
+        return append(area, d.getEpochDay(), d.getMinuteOfDay(), d.getDemandToday());
+    }
+
+    /**
+     * 系列の実績を追加する。欠測は飛ばす。
+     *
+     * @param area 供給区域
+     * @param series 5分ごとの需要実績の系列
+     * @return 新しい時刻として追加した件数
+     */
+    public int append(ServiceArea area, DemandSeries series) {
+        int day = series.getEpochDay();
+        int added = 0;
+        for (int i = 0; i < series.size(); i++) {
+            if (!series.isMissing(i) && append(area, day, series.getMinuteOfDay(i), series.getDemandToday(i)))
+                added++;
+        }
+        return added;
+    }
+
+    /**
+     * 過去の1日分をまとめてチャンクとして保存する。既に同じ日のチャンクがあれば置き換える。<br>
+     * 一括取り込みなどで、当日より前の日を後から埋める場合に使う。
+     * 当日の日付であれば、通常の追加と同じく当日分に加える。
+     *
+     * @param area 供給区域
+     * @param series 5分ごとの需要実績の系列
+     */
+    public void putDay(ServiceArea area, DemandSeries series) {
+        int day = series.getEpochDay();
+        int[] values = new int[SLOTS_PER_DAY];
+        long[] present = new long[BITMAP_LONGS];
+        int count = 0;
+        for (int i = 0; i < series.size(); i++) {
+            int slot = series.getMinuteOfDay(i) / 5;
+            if (series.isMissing(i) || slot >= SLOTS_PER_DAY)
+                continue;
+            if ((present[slot >>> 6] & (1L << slot)) == 0)
+                count++;
+            present[slot >>> 6] |= 1L << slot;
+            values[slot] = series.getDemandToday(i);
+        }
+        AreaHistory h = areas.get(area);
+        synchronized (h) {
+            if (day == h.openDay) {
+                append(area, series);
+                return;
+            }
+            h.putChunk(day, count == 0 ? null : encode(values, present, count));
+        }
+    }
+
+    /**
+     * 当日分をチャンクに封じる。日付の変わり目に呼ぶと、翌日の最初の実績を待たずに圧縮できる。
+     *
+     * @param area 供給区域
+     */
+    public void seal(ServiceArea area) {
+        AreaHistory h = areas.get(area);
+        synchronized (h) {
+            h.sealOpenDay();
+            h.openDay = NO_DAY;
+        }
+    }
+
+    /**
+     * 指定した日の実績があるかどうかを返す。
+     *
+     * @param area 供給区域
+     * @param epochDay 日付 (通算日)
+     * @return 実績があればtrue
+     */
+    public boolean contains(ServiceArea area, int epochDay) {
+        AreaHistory h = areas.get(area);
+        synchronized (h) {
+            return (epochDay == h.openDay && h.openCount > 0) || h.chunkAt(epochDay) != null;
+        }
+    }
+
+    /**
+     * 最も古い日付を返す。
+     *
+     * @param area 供給区域
+     * @return 日付 (通算日)。実績がなければ-1
+     */
+    public int getFirstDay(ServiceArea area) {
+        AreaHistory h = areas.get(area);
+        synchronized (h) {
+            for (int i = 0; i < h.chunks.length; i++) {
+                if (h.chunks[i] != null)
+                    return h.openDay != NO_DAY && h.openCount > 0 ? Math.min(h.baseDay + i, h.openDay) : h.baseDay + i;
+            }
+            return h.openDay != NO_DAY && h.openCount > 0 ? h.openDay : -1;
+        }
+    }
+
+    /**
+     * 最も新しい日付を返す。
+     *
+     * @param area 供給区域
+     * @return 日付 (通算日)。実績がなければ-1
+     */
+    public int getLastDay(ServiceArea area) {
+        AreaHistory h = areas.get(area);
+        synchronized (h) {
+            int last = -1;
+            for (int i = h.chunks.length - 1; i >= 0; i--) {
+                if (h.chunks[i] != null) {
+                    last = h.baseDay + i;
+                    break;
+                }
+            }
+            if (h.openDay != NO_DAY && h.openCount > 0)
+                last = Math.max(last, h.openDay);
+            return last;
+        }
+    }
+
+    /**
+     * 封じたチャンクの合計バイト数を返す。
+     *
+     * @return 圧縮後のバイト数
+     */
+    public long getCompressedBytes() {
+        long n = 0;
+        for (AreaHistory h : areas.values()) {
+            synchronized (h) {
+                n += h.compressedBytes;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 保持している実績の件数を返す。当日分を含む。
+     *
+     * @return 件数
+     */
+    public long getSampleCount() {
+        long n = 0;
+        for (AreaHistory h : areas.values()) {
+            synchronized (h) {
+                n += h.sealedSamples + h.openCount;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 読み込み用のカーソルを作る。カーソルは繰り返し使える。
+     *
+     * @return カーソル
+     */
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * 1日分の値をチャンクに書く。
+     * <p>
+     * 先頭バイトが {@link #CONTIGUOUS} であれば、続く2バイトずつが最初の枠と件数で、枠は連続している。
+     * そうでなければ、続く36バイトが実績のある枠のビットマップである。
+     * その後に、最初の値を32ビット、以降は直前の差分との差 (delta-of-delta) を次の可変長のビット列で書く。
+     * <pre>
+     * 0                   差が0
+     * 10   + 7ビット      -64～63
+     * 110  + 10ビット     -512～511
+     * 1110 + 16ビット     -32768～32767
+     * 1111 + 64ビット     それ以外
+     * </pre>
+     */
+    static byte[] encode(int[] values, long[] present, int count) {
+        int first = -1;
+        int last = -1;
+        for (int s = 0; s < SLOTS_PER_DAY; s++) {
+            if ((present[s >>> 6] & (1L << s)) != 0) {
+                if (first < 0)
+                    first = s;
+                last = s;
+            }
+        }
+        boolean contiguous = last - first + 1 == count;
+        BitWriter w = new BitWriter(count * 2 + 48);
+        if (contiguous) {
+            w.write(CONTIGUOUS, 8);
+            w.write(first, 16);
+            w.write(count, 16);
+        } else {
+            w.write(0, 8);
+            for (int i = 0; i < BITMAP_BYTES; i++)
+                w.write((int) (present[i >>> 3] >>> ((i & 7) << 3)) & 0xFF, 8);
+        }
+        long prev = 0;
+        long prevDelta = 0;
+        boolean head = true;
+        for (int s = first; s <= last; s++) {
+            if ((present[s >>> 6] & (1L << s)) == 0)
+                continue;
+            long v = values[s];
+            if (head) {
+                w.write((int) v, 32);
+                head = false;
+            } else {
+                long delta = v - prev;
+                long dod = delta - prevDelta;
+                if (dod == 0) {
+                    w.write(0, 1);
+                } else if (dod >= -64 && dod <= 63) {
+                    w.write(2, 2);
+                    w.write((int) dod, 7);
+                } else if (dod >= -512 && dod <= 511) {
+                    w.write(6, 3);
+                    w.write((int) dod, 10);
+                } else if (dod >= -32768 && dod <= 32767) {
+                    w.write(14, 4);
+                    w.write((int) dod, 16);
+                } else {
+                    w.write(15, 4);
+                    w.write((int) (dod >>> 32), 32);
+                    w.write((int) dod, 32);
+                }
+                prevDelta = delta;
+            }
+            prev = v;
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * 1区域分の履歴。全てのフィールドはこのオブジェクトのロックで保護する
+     */
+    private static final class AreaHistory {
+        int baseDay = NO_DAY;
+        byte[][] chunks = new byte[0][];
+        long compressedBytes;
+        long sealedSamples;
+
+        int openDay = NO_DAY;
+        final int[] openValues = new int[SLOTS_PER_DAY];
+        final long[] openPresent = new long[BITMAP_LONGS];
+        int openCount;
+
+        boolean setOpen(int slot, int demand) {
+            openValues[slot] = demand;
+            long bit = 1L << slot;
+            if ((openPresent[slot >>> 6] & bit) != 0)
+                return false;
+            openPresent[slot >>> 6] |= bit;
+            openCount++;
+            return true;
+        }
+
+        void sealOpenDay() {
+            if (openDay != NO_DAY && openCount > 0)
+                putChunk(openDay, encode(openValues, openPresent, openCount));
+            Arrays.fill(openPresent, 0);
+            openCount = 0;
+        }
+
+        byte[] chunkAt(int day) {
+            int i = day - baseDay;
+            return baseDay == NO_DAY || i < 0 || i >= chunks.length ? null : chunks[i];
+        }
+
+        void putChunk(int day, byte[] chunk) {
+            if (baseDay == NO_DAY) {
+                if (chunk == null)
+                    return;
+                baseDay = day;
+            }
+            if (day < baseDay) {
+                if (chunk == null)
+                    return;
+                int shift = baseDay - day;
+                byte[][] c = new byte[chunks.length + shift][];
+                System.arraycopy(chunks, 0, c, shift, chunks.length);
+                chunks = c;
+                baseDay = day;
+            }
+            int i = day - baseDay;
+            if (i >= chunks.length) {
+                if (chunk == null)
+                    return;
+                chunks = Arrays.copyOf(chunks, Math.max(i + 1, chunks.length + chunks.length / 2 + 16));
+            }
+            byte[] old = chunks[i];
+            if (old != null) {
+                compressedBytes -= old.length;
+                sealedSamples -= countOf(old);
+            }
+            chunks[i] = chunk;
+            if (chunk != null) {
+                compressedBytes += chunk.length;
+                sealedSamples += countOf(chunk);
+            }
+        }
+
+        private static int countOf(byte[] chunk) {
+            if (chunk[0] == CONTIGUOUS)
+                return ((chunk[3] & 0xFF) << 8) | (chunk[4] & 0xFF);
+            int n = 0;
+            for (int i = 1; i <= BITMAP_BYTES; i++)
+                n += Integer.bitCount(chunk[i] & 0xFF);
+            return n;
+        }
+    }
+
+    /**
+     * ビット列を上位ビットから詰めて書く
+     */
+    private static final class BitWriter {
+        private byte[] buf;
+        private long bits;
+
+        BitWriter(int initialBytes) {
+            buf = new byte[initialBytes];
+        }
+
+        /**
+         * 値の下位nビット (n≦32) を書く
+         */
+        void write(int value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                int pos = (int) (bits >>> 3);
+                if (pos >= buf.length)
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                if (((value >>> i) & 1) != 0)
+                    buf[pos] |= 0x80 >>> (bits & 7);
+                bits++;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, (int) ((bits + 7) >>> 3));
+        }
+    }
+
+    /**
+     * 履歴を日付順・時刻順に1件ずつ読むカーソル
+     * <p>
+     * チャンクはその場で復号し、当日分は読み始めにカーソル内の配列へ写すので、読み込み中にオブジェクトを作らない。
+     * {@link #reset(ServiceArea, int, int)} で範囲を指定し、{@link #next()} がfalseを返すまで読む。
+     * スレッドセーフではないので、スレッドごとに作ること。
+     */
+    public final class Cursor {
+
+        private AreaHistory history;
+        private int day;
+        private int toDay;
+
+        // 復号中のチャンク
+        private byte[] chunk;
+        private long bitPos;
+        private boolean contiguous;
+        private int remaining;
+        private boolean head;
+        private long value;
+        private long delta;
+
+        // 当日分の写し
+        private final int[] openValues = new int[SLOTS_PER_DAY];
+        private final long[] openPresent = new long[BITMAP_LONGS];
+        private boolean inOpenDay;
+
+        private int slot;
+        private int currentDay;
+
+        private Cursor() {
+        }
+
+        /**
+         * 読む範囲を指定し、先頭の前に位置付ける。
+         *
+         * @param area 供給区域
+         * @param fromDay 最初の日 (通算日)
+         * @param to 最後の日 (通算日、この日を含む)
+         */
+        public void reset(ServiceArea area, int fromDay, int to) {
+            history = areas.get(area);
+            day = fromDay - 1;
+            toDay = to;
+            chunk = null;
+            inOpenDay = false;
+            remaining = 0;
+        }
+
+        /**
+         * 次の実績に進む。
+         *
+         * @return 次の実績があればtrue
+         */
+        public boolean next() {
+            while (remaining == 0) {
+                if (day >= toDay)
+                    return false;
+                day++;
+                loadDay();
+            }
+            remaining--;
+            if (inOpenDay) {
+                slot = nextOpenSlot(slot + 1);
+                value = openValues[slot];
+                return true;
+            }
+            if (contiguous) {
+                slot++;
+            } else {
+                slot = nextChunkSlot(slot + 1);
+            }
+            if (head) {
+                value = readBits(32) << 32 >> 32;
+                head = false;
+            } else {
+                long dod;
+                if (readBits(1) == 0)
+                    dod = 0;
+                else if (readBits(1) == 0)
+                    dod = signed(readBits(7), 7);
+                else if (readBits(1) == 0)
+                    dod = signed(readBits(10), 10);
+                else if (readBits(1) == 0)
+                    dod = signed(readBits(16), 16);
+                else
+                    dod = (readBits(32) << 32) | readBits(32);
+                delta += dod;
+                value += delta;
+            }
+            return true;
+        }
+
+        private void loadDay() {
+            AreaHistory h = history;
+            synchronized (h) {
+                if (day == h.openDay && h.openCount > 0) {
+                    System.arraycopy(h.openValues, 0, openValues, 0, SLOTS_PER_DAY);
+                    System.arraycopy(h.openPresent, 0, openPresent, 0, BITMAP_LONGS);
+                    inOpenDay = true;
+                    chunk = null;
+                    remaining = h.openCount;
+                    slot = -1;
+                    currentDay = day;
+                    return;
+                }
+                chunk = h.chunkAt(day);
+            }
+            inOpenDay = false;
+            if (chunk == null) {
+                remaining = 0;
+                return;
+            }
+            currentDay = day;
+            contiguous = chunk[0] == CONTIGUOUS;
+            if (contiguous) {
+                slot = (((chunk[1] & 0xFF) << 8) | (chunk[2] & 0xFF)) - 1;
+                remaining = ((chunk[3] & 0xFF) << 8) | (chunk[4] & 0xFF);
+                bitPos = 5 * 8;
+            } else {
+                remaining = 0;
+                for (int i = 1; i <= BITMAP_BYTES; i++)
+                    remaining += Integer.bitCount(chunk[i] & 0xFF);
+                slot = -1;
+                bitPos = (1 + BITMAP_BYTES) * 8;
+            }
+            head = true;
+            value = 0;
+            delta = 0;
+        }
+
+        private int nextOpenSlot(int from) {
+            for (int s = from; s < SLOTS_PER_DAY; s++) {
+                if ((openPresent[s >>> 6] & (1L << s)) != 0)
+                    return s;
+            }
+            throw new IllegalStateException();
+        }
+
+        private int nextChunkSlot(int from) {
+            for (int s = from; s < SLOTS_PER_DAY; s++) {
+                if ((chunk[1 + (s >>> 3)] & (1 << (s & 7))) != 0)
+                    return s;
+            }
+            throw new IllegalStateException();
+        }
+
+        private long readBits(int n) {
+            long v = 0;
+            for (int i = 0; i < n; i++) {
+                int b = (chunk[(int) (bitPos >>> 3)] >>> (7 - (bitPos & 7))) & 1;
+                v = (v << 1) | b;
+                bitPos++;
+            }
+            return v;
+        }
+
+        private long signed(long v, int n) {
+            return v << (64 - n) >> (64 - n);
+        }
+
+        /**
+         * 現在の実績の日付を返す。
+         *
+         * @return 日付 (通算日)
+         */
+        public int getEpochDay() {
+            return currentDay;
+        }
+
+        /**
+         * 現在の実績の時刻を返す。
+         *
+         * @return 0時からの経過分
+         */
+        public int getMinuteOfDay() {
+            return slot * 5;
+        }
+
+        /**
+         * 現在の実績の需要を返す。
+         *
+         * @return 需要 (万kW)
+         */
+        public int getDemand() {
+            return (int) value;
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * 取得と解析の計測値を受け取るインターフェース
+ * <p>
+ * {@link SupplyDataFormat#setMetrics(DemandMetrics)} でデータフォーマット定義ごとに設定する。
+ * 取得のたびに呼ばれるので、実装は軽く、スレッドセーフにすること。
+ * 既定の実装として、JMXで公開する {@link JmxDemandMetrics} がある。
+ */
+public interface DemandMetrics {
+
+    /**
+     * 何も記録しない実装。データフォーマット定義の既定値
+     */
+    DemandMetrics NONE = new DemandMetrics() {
+        public void recordFetch(long nanos, long bytes) {
+        }
+
+        public void recordParse(long nanos, int rows) {
+        }
+
+        public void recordCacheHit() {
+        }
+
+        public void recordError(Throwable cause) {
+        }
+    };
+
+    /**
+     * 本文の取得が終わったときに呼ばれる。
+     *
+     * @param nanos 接続から本文を読み終えるまでの時間 (ナノ秒)
+     * @param bytes 受け取った本文のバイト数 (展開後)。304で本文がない場合は0
+     */
+    void recordFetch(long nanos, long bytes);
+
+    /**
+     * 解析が終わったときに呼ばれる。
+     *
+     * @param nanos 解析にかかった時間 (ナノ秒)
+     * @param rows 解析した行数
+     */
+    void recordParse(long nanos, int rows);
+
+    /**
+     * キャッシュ (304応答による以前の解析結果の再利用、{@link SnapshotCache} の有効期限内の読み出し) で
+     * 済んだときに呼ばれる。
+     */
+    void recordCacheHit();
+
+    /**
+     * 取得または解析に失敗したときに呼ばれる。
+     *
+     * @param cause 失敗の原因
+     */
+    void recordError(Throwable cause);
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.Map;
+
+/**
+ * {@link JmxDemandMetrics} がJMXで公開する属性と操作
+ */
+public interface DemandMetricsMXBean {
+
+    /**
+     * @return 供給区域の名前
+     */
+    String getArea();
+
+    /**
+     * @return 本文を取得した回数
+     */
+    long getFetchCount();
+
+    /**
+     * @return 取得時間のヒストグラムの各区間の上限 (ミリ秒)。最後の区間は上限なし
+     */
+    long[] getFetchLatencyBucketsMillis();
+
+    /**
+     * @return 取得時間のヒストグラム。{@link #getFetchLatencyBucketsMillis()} より要素が1つ多い
+     */
+    long[] getFetchLatencyHistogram();
+
+    /**
+     * @return 取得時間の平均 (ミリ秒)
+     */
+    double getFetchLatencyMeanMillis();
+
+    /**
+     * @return 取得時間の最大 (ミリ秒)
+     */
+    double getFetchLatencyMaxMillis();
+
+    /**
+     * @return ヒストグラムから求めた取得時間の中央値 (ミリ秒、区間の上限)
+     */
+    long getFetchLatencyP50Millis();
+
+    /**
+     * @return ヒストグラムから求めた取得時間の99パーセンタイル (ミリ秒、区間の上限)
+     */
+    long getFetchLatencyP99Millis();
+
+    /**
+     * @return 解析した回数
+     */
+    long getParseCount();
+
+    /**
+     * @return 解析時間の平均 (ミリ秒)
+     */
+    double getParseTimeMeanMillis();
+
+    /**
+     * @return 受け取った本文の合計バイト数
+     */
+    long getBytesRead();
+
+    /**
+     * @return 解析した合計行数
+     */
+    long getRowsParsed();
+
+    /**
+     * @return キャッシュで済んだ回数
+     */
+    long getCacheHits();
+
+    /**
+     * @return 失敗した回数の合計
+     */
+    long getErrorCount();
+
+    /**
+     * @return 例外のクラス名ごとの失敗回数。{@link DemandFetchException} は失敗の理由ごとに分ける
+     */
+    Map<String, Long> getErrorsByType();
+
+    /**
+     * 計測値を0に戻す。
+     */
+    void reset();
+
+}
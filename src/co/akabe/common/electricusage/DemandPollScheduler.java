@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 各区域の公開の間隔に合わせて5分ごとの需要実績を取得するスケジューラ
+ * <p>
+ * 一定間隔で取得すると、取得しすぎるか新しいデータに気づくのが遅れる。
+ * このクラスは区域ごとに {@link PublicationEstimator} で公開の遅れを学習し、
+ * 次の行が公開される見込みの時刻の直後に取得する。見込みの時刻を過ぎても公開されていなければ、
+ * ゆらぎを加えた指数バックオフで取得間隔を広げる。
+ * 取得には {@link FiveMinDemandSession} を使うので、2回目以降は増えた部分だけを受け取る。
+ * <p>
+ * 新しい行が見つかった場合だけ {@link DemandUpdateListener} に通知する。
+ * リスナは取得用のスレッドから呼ばれる。
+ * このクラスはスレッドセーフである。使い終わったら {@link #shutdown()} を呼ぶこと。
+ */
+public class DemandPollScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DemandPollScheduler.class);
+
+    /**
+     * バックオフの初期間隔の既定値 (ミリ秒)
+     */
+    public static final long DEFAULT_MIN_BACKOFF_MILLIS = 15000;
+
+    /**
+     * バックオフの最大間隔の既定値 (ミリ秒)
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+
+    /**
+     * 公開見込み時刻から取得までの余裕の既定値 (ミリ秒)
+     */
+    public static final long DEFAULT_MARGIN_MILLIS = 5000;
+
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final long margin;
+    private final Random random = new Random();
+    private final ExecutorService executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final CopyOnWriteArrayList<DemandUpdateListener> listeners =
+            new CopyOnWriteArrayList<DemandUpdateListener>();
+    private final Map<ServiceArea, Watch> watches = new EnumMap<ServiceArea, Watch>(ServiceArea.class);
+
+    /**
+     * 既定の間隔を使うスケジューラを作る。
+     */
+    public DemandPollScheduler() {
+        this(DEFAULT_MIN_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS, DEFAULT_MARGIN_MILLIS);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param minBackoffMillis バックオフの初期間隔 (ミリ秒)
+     * @param maxBackoffMillis バックオフの最大間隔 (ミリ秒)
+     * @param marginMillis 公開見込み時刻から取得までの余裕 (ミリ秒)
+     */
+    public DemandPollScheduler(long minBackoffMillis, long maxBackoffMillis, long marginMillis) {
+        if (minBackoffMillis <= 0 || maxBackoffMillis < minBackoffMillis)
+            throw new IllegalArgumentException("Invalid backoff: " + minBackoffMillis + ", " + maxBackoffMillis);
+        minBackoff = minBackoffMillis;
+        maxBackoff = maxBackoffMillis;
+        margin = marginMillis;
+        executor = NationalDemandFetcher.createExecutor(ServiceArea.values().length, "electricusage-poll-");
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "electricusage-poll-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * リスナを登録する。
+     *
+     * @param listener リスナ
+     */
+    public void addListener(DemandUpdateListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * リスナの登録を解除する。
+     *
+     * @param listener リスナ
+     */
+    public void removeListener(DemandUpdateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 区域の取得を始める。最初の取得はすぐに行う。
+     *
+     * @param area 供給区域
+     */
+    public void watch(ServiceArea area) {
+        watch(area, area.buildFormat());
+    }
+
+    /**
+     * 区域の取得を、指定したデータフォーマット定義で始める。既に取得している区域であれば置き換える。
+     *
+     * @param area 供給区域
+     * @param format データフォーマット定義
+     */
+    public void watch(ServiceArea area, SupplyDataFormat format) {
+        if (format.fiveMinDemand_Line == 0)
+            throw new IllegalArgumentException("No five-minute demand in format for " + area);
+        Watch w = new Watch(area, format);
+        synchronized (watches) {
+            Watch old = watches.put(area, w);
+            if (old != null)
+                old.cancelled = true;
+        }
+        w.submit();
+    }
+
+    /**
+     * 区域の取得をやめる。
+     *
+     * @param area 供給区域
+     */
+    public void unwatch(ServiceArea area) {
+        synchronized (watches) {
+            Watch old = watches.remove(area);
+            if (old != null)
+                old.cancelled = true;
+        }
+    }
+
+    /**
+     * 区域の取得回数を返す。
+     *
+     * @param area 供給区域
+     * @return 取得を始めてからの取得回数。取得していない区域では0
+     */
+    public int getFetchCount(ServiceArea area) {
+        Watch w = watchOf(area);
+        return w == null ? 0 : w.fetchCount;
+    }
+
+    /**
+     * 区域の推定した公開の遅れを返す。
+     *
+     * @param area 供給区域
+     * @return 行の時刻から公開までの遅れ (ミリ秒)。まだ推定できていない場合は負の値
+     */
+    public long getEstimatedLag(ServiceArea area) {
+        Watch w = watchOf(area);
+        if (w == null)
+            return -1;
+        synchronized (w) {
+            return w.estimator.getEstimatedLag();
+        }
+    }
+
+    /**
+     * 区域の次に取得する予定の時刻を返す。
+     *
+     * @param area 供給区域
+     * @return 次に取得する時刻。取得していない区域または取得中の場合は負の値
+     */
+    public long getNextPollAt(ServiceArea area) {
+        Watch w = watchOf(area);
+        return w == null ? -1 : w.nextPollAt;
+    }
+
+    /**
+     * 区域の直近の取得が失敗した場合に、その原因を返す。
+     *
+     * @param area 供給区域
+     * @return 失敗の原因。直近の取得が成功した場合はnull
+     */
+    public Throwable getLastFailure(ServiceArea area) {
+        Watch w = watchOf(area);
+        return w == null ? null : w.lastFailure;
+    }
+
+    /**
+     * 取得を停止する。実行中の取得は中断しない。
+     */
+    public void shutdown() {
+        synchronized (watches) {
+            for (Watch w : watches.values())
+                w.cancelled = true;
+            watches.clear();
+        }
+        timer.shutdownNow();
+        executor.shutdown();
+    }
+
+    private Watch watchOf(ServiceArea area) {
+        synchronized (watches) {
+            return watches.get(area);
+        }
+    }
+
+    /**
+     * 1区域分の取得の状態
+     */
+    private class Watch implements Runnable {
+
+        private final ServiceArea area;
+        private final FiveMinDemandSession session;
+        private final PublicationEstimator estimator;
+        private long lastPollAt = -1;
+        volatile int fetchCount;
+        volatile long nextPollAt = -1;
+        volatile Throwable lastFailure;
+        volatile boolean cancelled;
+
+        Watch(ServiceArea a, SupplyDataFormat f) {
+            area = a;
+            session = new FiveMinDemandSession(f);
+            synchronized (random) {
+                estimator = new PublicationEstimator(minBackoff, maxBackoff, margin, new Random(random.nextLong()));
+            }
+        }
+
+        /**
+         * 取得用のスレッドで取得を行う。
+         */
+        void submit() {
+            if (cancelled)
+                return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // 停止済み
+            }
+        }
+
+        public void run() {
+            if (cancelled)
+                return;
+            nextPollAt = -1;
+            long now = System.currentTimeMillis();
+            Vector<FiveMinDemand> rows = null;
+            try {
+                rows = session.poll();
+                lastFailure = null;
+            } catch (IOException e) {
+                lastFailure = e;
+            } catch (RuntimeException e) {
+                lastFailure = e;
+            }
+            fetchCount++;
+            long latestAt = latestAt(session.getLatest());
+            long next;
+            synchronized (this) {
+                if (rows != null && !rows.isEmpty())
+                    estimator.onChanged(latestAt, lastPollAt, now);
+                else
+                    estimator.onUnchanged();
+                lastPollAt = now;
+                next = estimator.nextPollAt(latestAt, System.currentTimeMillis());
+            }
+            if (rows != null && !rows.isEmpty() && !cancelled) {
+                List<FiveMinDemand> view = Collections.unmodifiableList(rows);
+                for (DemandUpdateListener l : listeners) {
+                    try {
+                        l.onDemandUpdated(area, view);
+                    } catch (RuntimeException e) {
+                        LOG.error("Listener failed for {}", area, e);
+                    }
+                }
+            }
+            schedule(next);
+        }
+
+        private void schedule(long at) {
+            if (cancelled)
+                return;
+            nextPollAt = at;
+            try {
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        submit();
+                    }
+                }, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 停止済み
+            }
+        }
+
+        /**
+         * 行の時刻をミリ秒にする。日付か時刻が解釈できない場合は負の値を返す。
+         */
+        private long latestAt(FiveMinDemand latest) {
+            if (latest == null)
+                return -1;
+            try {
+                return DemandDate.toEpochMillis(latest.getEpochDay(), latest.getMinuteOfDay());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+}
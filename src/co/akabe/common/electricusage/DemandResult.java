@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * 取得結果。値か、失敗の理由と原因のどちらかを持つ
+ * <p>
+ * 休日などでデータがないこと ({@link FetchFailure#NO_DATA}) と、サーバの不調などによる失敗を区別できる。
+ * このクラスは不変である。
+ *
+ * @param <V> 値の型
+ */
+public final class DemandResult<V> {
+
+    private final V value;
+    private final FetchFailure reason;
+    private final Throwable cause;
+
+    private DemandResult(V v, FetchFailure r, Throwable c) {
+        value = v;
+        reason = r;
+        cause = c;
+    }
+
+    /**
+     * 成功した結果を作る。
+     *
+     * @param value 値。nullの場合は {@link FetchFailure#NO_DATA} の失敗とする
+     * @return 結果
+     */
+    public static <V> DemandResult<V> of(V value) {
+        if (value == null)
+            return new DemandResult<V>(null, FetchFailure.NO_DATA, null);
+        return new DemandResult<V>(value, null, null);
+    }
+
+    /**
+     * 失敗した結果を作る。失敗の理由は例外から判定する。
+     *
+     * @param cause 失敗の原因
+     * @return 結果
+     */
+    public static <V> DemandResult<V> failure(Throwable cause) {
+        return new DemandResult<V>(null, FetchFailure.of(cause), cause);
+    }
+
+    /**
+     * 成功したかどうかを返す。
+     *
+     * @return 値がある場合はtrue
+     */
+    public boolean isSuccess() {
+        return reason == null;
+    }
+
+    /**
+     * 値を返す。
+     *
+     * @return 値
+     * @throws IllegalStateException 失敗した結果の場合
+     */
+    public V getValue() {
+        if (reason != null)
+            throw new IllegalStateException("No value: " + reason, cause);
+        return value;
+    }
+
+    /**
+     * 値を返す。失敗した場合はnullを返す。
+     *
+     * @return 値。失敗した場合はnull
+     */
+    public V getValueOrNull() {
+        return value;
+    }
+
+    /**
+     * 失敗の理由を返す。
+     *
+     * @return 失敗の理由。成功した場合はnull
+     */
+    public FetchFailure getFailureReason() {
+        return reason;
+    }
+
+    /**
+     * 失敗の原因を返す。
+     *
+     * @return 失敗の原因。成功した場合と {@link FetchFailure#NO_DATA} の場合はnull
+     */
+    public Throwable getFailure() {
+        return cause;
+    }
+
+    @Override
+    public String toString() {
+        if (reason == null)
+            return "DemandResult[" + value + "]";
+        return "DemandResult[" + reason + (cause != null ? ": " + cause : "") + "]";
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * 供給データCSVに含まれるセクションの種類
+ */
+public enum DemandSection {
+
+    /**
+     * ピーク時供給力
+     */
+    PEAK_SUPPLY,
+
+    /**
+     * ピーク時予想最大電力
+     */
+    PEAK_DEMAND,
+
+    /**
+     * 時間ごとの需要実績
+     */
+    HOURLY,
+
+    /**
+     * 5分ごとの需要実績
+     */
+    FIVE_MIN
+
+}
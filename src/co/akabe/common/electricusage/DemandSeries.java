@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * 1区域1日分の需要実績をプリミティブ配列で保持するクラス
+ * <p>
+ * {@link HourlyDemand} や {@link FiveMinDemand} を1件ずつオブジェクトとして持つ代わりに、
+ * 時刻 (0時からの経過分)・当日実績・前日実績または予測値を列ごとの配列に、
+ * 欠測 (実績が空欄の行) をビットマップに格納する。長期間の履歴をメモリ上に持つ場合に使う。
+ * <p>
+ * 既存のクラスが必要な場合は {@link #getHourlyDemand(int)} などで変換できる。
+ * スレッドセーフではないが、{@link ParsedUsageDocument} から得たものは読み取り専用であり、
+ * 複数のスレッドから参照してよい。
+ */
+public final class DemandSeries {
+
+    /**
+     * 値がないことを表す値 ({@link HourlyDemand#getDemandYesterday()} の慣例に合わせている)
+     */
+    public static final int NO_VALUE = -1048576;
+
+    private final String date;
+    private final int epochDay;
+    private final boolean fiveMin;
+    private final boolean forecast;
+    private final boolean hokkaido;
+    private int[] minuteOfDay;
+    private int[] today;
+    private int[] secondary;
+    private long[] missing;
+    private int size;
+    private int latest = -1;
+    private boolean sealed;
+
+    /**
+     * コンストラクタ
+     *
+     * @param d 日付
+     * @param five 5分ごとの需要実績であればtrue、時間ごとであればfalse
+     * @param fc 第2列が予測値であればtrue、前日実績であればfalse
+     * @param h 北海道電力のデータであればtrue (変換時に北海道用のクラスを作る)
+     * @param capacity 初期容量 (時間ごとなら24、5分ごとなら288)
+     */
+    public DemandSeries(String d, boolean five, boolean fc, boolean h, int capacity) {
+        date = d;
+        epochDay = d == null ? DemandDate.INVALID : DemandDate.tryParseEpochDay(d);
+        fiveMin = five;
+        forecast = fc;
+        hokkaido = h;
+        minuteOfDay = new int[capacity];
+        today = new int[capacity];
+        secondary = new int[capacity];
+        missing = new long[(capacity + 63) >>> 6];
+    }
+
+    /**
+     * 実績を追加する。
+     *
+     * @param minute 0時からの経過分
+     * @param demandToday 当日実績
+     * @param second 前日実績または予測値。ない場合は {@link #NO_VALUE}
+     */
+    public void add(int minute, int demandToday, int second) {
+        checkWritable();
+        ensureCapacity(size + 1);
+        minuteOfDay[size] = minute;
+        today[size] = demandToday;
+        secondary[size] = second;
+        if (demandToday > 0)
+            latest = size;
+        size++;
+    }
+
+    /**
+     * 欠測 (実績が空欄) の行を追加する。
+     *
+     * @param minute 0時からの経過分
+     * @param second 前日実績または予測値。ない場合は {@link #NO_VALUE}
+     */
+    public void addMissing(int minute, int second) {
+        checkWritable();
+        ensureCapacity(size + 1);
+        minuteOfDay[size] = minute;
+        today[size] = 0;
+        secondary[size] = second;
+        missing[size >>> 6] |= 1L << size;
+        size++;
+    }
+
+    /**
+     * 需要が0でない最後の行の添字を返す。追加のたびに記録しているので探索はしない。
+     *
+     * @return 最新の実績の添字。該当する行がなければ-1
+     * @see HourlyDemand#seekNearestHistory(Vector)
+     */
+    public int getLatestIndex() {
+        return latest;
+    }
+
+    /**
+     * 当日実績の範囲を、配列をコピーせずに読み取り専用のビューとして返す。<br>
+     * ビューの添字0が系列の添字fromに当たる。ビューは以後の {@link #add(int, int, int)} などを反映しないことがある。
+     *
+     * @param from 開始添字 (含む)
+     * @param to 終了添字 (含まない)
+     * @return 当日実績のビュー
+     * @throws IndexOutOfBoundsException 範囲が不正な場合
+     */
+    public IntBuffer getDemandTodayView(int from, int to) {
+        if (from < 0 || to > size || from > to)
+            throw new IndexOutOfBoundsException("from=" + from + ", to=" + to + ", size=" + size);
+        return IntBuffer.wrap(today, from, to - from).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 最新の実績までのn件の当日実績を、配列をコピーせずに読み取り専用のビューとして返す。
+     *
+     * @param n 件数。最新の実績までの件数より多い場合は先頭から
+     * @return 当日実績のビュー。最新の実績がなければ空
+     */
+    public IntBuffer getLastDemandTodayView(int n) {
+        int to = latest + 1;
+        return getDemandTodayView(Math.max(0, to - n), to);
+    }
+
+    /**
+     * 配列を実際の件数に切り詰め、メモリを節約する。
+     */
+    public void trimToSize() {
+        checkWritable();
+        if (minuteOfDay.length != size) {
+            minuteOfDay = Arrays.copyOf(minuteOfDay, size);
+            today = Arrays.copyOf(today, size);
+            secondary = Arrays.copyOf(secondary, size);
+            missing = Arrays.copyOf(missing, (size + 63) >>> 6);
+        }
+    }
+
+    /**
+     * 配列を切り詰めたうえで読み取り専用にする。
+     */
+    void seal() {
+        trimToSize();
+        sealed = true;
+    }
+
+    /**
+     * 読み取り専用かどうかを返す。
+     *
+     * @return 読み取り専用であればtrue
+     */
+    public boolean isReadOnly() {
+        return sealed;
+    }
+
+    private void checkWritable() {
+        if (sealed)
+            throw new IllegalStateException("DemandSeries is read-only");
+    }
+
+    private void ensureCapacity(int n) {
+        if (n > minuteOfDay.length) {
+            int c = Math.max(n, minuteOfDay.length * 2);
+            minuteOfDay = Arrays.copyOf(minuteOfDay, c);
+            today = Arrays.copyOf(today, c);
+            secondary = Arrays.copyOf(secondary, c);
+            missing = Arrays.copyOf(missing, (c + 63) >>> 6);
+        }
+    }
+
+    /**
+     * 日付を返す。
+     *
+     * @return 実績データの日付
+     */
+    public String getDate() {
+        return date;
+    }
+
+    /**
+     * 日付を通算日 (1970年1月1日からの日数) で返す。
+     *
+     * @return 実績データの日付 (通算日)
+     * @throws NumberFormatException 日付として解釈できない場合
+     */
+    public int getEpochDay() {
+        if (epochDay == DemandDate.INVALID)
+            throw new NumberFormatException("Not a date: \"" + date + "\"");
+        return epochDay;
+    }
+
+    /**
+     * 5分ごとの需要実績かどうかを返す。
+     *
+     * @return 5分ごとであればtrue、時間ごとであればfalse
+     */
+    public boolean isFiveMin() {
+        return fiveMin;
+    }
+
+    /**
+     * 第2列が予測値かどうかを返す。
+     *
+     * @return 予測値であればtrue、前日実績であればfalse
+     */
+    public boolean isForecast() {
+        return forecast;
+    }
+
+    /**
+     * 件数を返す。
+     *
+     * @return 欠測を含む件数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 時刻を返す。
+     *
+     * @param i 添字
+     * @return 0時からの経過分
+     */
+    public int getMinuteOfDay(int i) {
+        checkIndex(i);
+        return minuteOfDay[i];
+    }
+
+    /**
+     * 当日実績を返す。
+     *
+     * @param i 添字
+     * @return 当日実績。欠測の場合は0
+     */
+    public int getDemandToday(int i) {
+        checkIndex(i);
+        return today[i];
+    }
+
+    /**
+     * 前日実績または予測値を返す。
+     *
+     * @param i 添字
+     * @return 前日実績または予測値。ない場合は {@link #NO_VALUE}
+     * @see #isForecast()
+     */
+    public int getSecondary(int i) {
+        checkIndex(i);
+        return secondary[i];
+    }
+
+    /**
+     * 欠測かどうかを返す。
+     *
+     * @param i 添字
+     * @return 実績が空欄であればtrue
+     */
+    public boolean isMissing(int i) {
+        checkIndex(i);
+        return (missing[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * 欠測でない件数を返す。
+     *
+     * @return 実績の入っている件数
+     */
+    public int countPresent() {
+        int n = size;
+        for (long m : missing)
+            n -= Long.bitCount(m);
+        return n;
+    }
+
+    /**
+     * 時刻が指定した時刻以降である最初の行の添字を二分探索で求める。
+     *
+     * @param minute 0時からの経過分
+     * @return 該当する行の添字。該当する行がなければ {@link #size()}
+     */
+    public int lowerBound(int minute) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (minuteOfDay[mid] < minute)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * 時刻が指定した時刻より後である最初の行の添字を二分探索で求める。<br>
+     * 13:00～15:00の行は {@code for (int i = lowerBound(780); i < upperBound(900); i++)} で列挙できる。
+     *
+     * @param minute 0時からの経過分
+     * @return 該当する行の添字。該当する行がなければ {@link #size()}
+     */
+    public int upperBound(int minute) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (minuteOfDay[mid] <= minute)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * 時刻が指定した時刻以前で、欠測でない最後の行を探す。<br>
+     * 例えば「14:35時点の実績」を求める場合に使う。
+     *
+     * @param minute 0時からの経過分
+     * @return 該当する行の添字。該当する行がなければ-1
+     */
+    public int indexAtOrBefore(int minute) {
+        int i = upperBound(minute) - 1;
+        while (i >= 0 && isMissing(i))
+            i--;
+        return i;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+    }
+
+    /**
+     * 時刻を元データと同じ形式 (H:MM) の文字列にする。
+     *
+     * @param i 添字
+     * @return 時刻文字列
+     */
+    public String getTime(int i) {
+        int m = getMinuteOfDay(i);
+        int min = m % 60;
+        return (m / 60) + (min < 10 ? ":0" : ":") + min;
+    }
+
+    /**
+     * 指定した行を {@link HourlyDemand} に変換する。
+     *
+     * @param i 添字
+     * @return 時間ごとの需要実績。北海道のデータでは {@link HourlyDemandH}
+     */
+    public HourlyDemand getHourlyDemand(int i) {
+        int y = forecast ? NO_VALUE : getSecondary(i);
+        if (hokkaido)
+            return new HourlyDemandH(date, getTime(i), today[i], y);
+        return new HourlyDemand(date, getTime(i), today[i], y);
+    }
+
+    /**
+     * 指定した行を {@link FiveMinDemand} に変換する。
+     *
+     * @param i 添字
+     * @return 5分ごとの需要実績。北海道のデータでは {@link FiveMinDemandH}
+     */
+    public FiveMinDemand getFiveMinDemand(int i) {
+        int y = forecast ? NO_VALUE : getSecondary(i);
+        if (hokkaido)
+            return new FiveMinDemandH(date, getTime(i), today[i], y);
+        return new FiveMinDemand(date, getTime(i), today[i], y);
+    }
+
+    /**
+     * 欠測でない行を全て {@link HourlyDemand} に変換する。
+     *
+     * @return 時間ごとの需要実績
+     */
+    public Vector<HourlyDemand> toHourlyDemand() {
+        Vector<HourlyDemand> ret = new Vector<HourlyDemand>(size);
+        for (int i = 0; i < size; i++) {
+            if (!isMissing(i))
+                ret.add(getHourlyDemand(i));
+        }
+        return ret;
+    }
+
+    /**
+     * 欠測でない行を全て {@link FiveMinDemand} に変換する。
+     *
+     * @return 5分ごとの需要実績
+     */
+    public Vector<FiveMinDemand> toFiveMinDemand() {
+        Vector<FiveMinDemand> ret = new Vector<FiveMinDemand>(size);
+        for (int i = 0; i < size; i++) {
+            if (!isMissing(i))
+                ret.add(getFiveMinDemand(i));
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,708 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * 1区域1日分の解析結果をノード間で受け渡すための、版付きのコンパクトなバイナリ形式
+ * <p>
+ * ピーク時供給力・予想最大電力と、時間ごと・5分ごとの需要実績を {@link DemandSeries} の値から書き出す。
+ * 需要の値は直前の行との差をZigZag符号化した可変長整数 (1行あたり多くは1バイト) で書き、
+ * 時刻が一定間隔で並ぶ場合は先頭の時刻と間隔だけを書いて各行の時刻を省く。
+ * 元のCSVを再送して各ノードで解析し直すよりも、またJavaのシリアライズよりも、はるかに小さい。
+ * <p>
+ * 書き込み・読み込みとも {@link ByteBuffer} の現在位置から順に行うので、
+ * 1つのバッファに複数の区域を続けて書き、そのまま順に読むことができる。
+ * 読み込みは {@link Reader} で1行ずつ行い、行ごとのオブジェクトは作らない。
+ * <p>
+ * 形式:
+ * <pre>
+ * 'E' 'U' 版(1バイト) 区域(1バイト、なければ0xFF) フラグ(1バイト)
+ * 日付(通算日、ZigZag) 取得時刻(ミリ秒、ZigZag)
+ * [ピーク時供給力: 値(ZigZag) 時刻(0時からの分+1) 時刻の文字列(長さ+UTF-8)]
+ * [ピーク時予想最大電力: 同上]
+ * [時間ごとの需要実績: 系列]
+ * [5分ごとの需要実績: 系列]
+ *
+ * 系列: フラグ(1バイト) 行数
+ *       [先頭の時刻 間隔]           (時刻が一定間隔の場合)
+ *       [欠測のビットマップ]         (欠測がある場合)
+ *       [第2列の有無のビットマップ] (第2列が一部の行にだけある場合)
+ *       行ごとに [時刻の差] [当日実績の差] [第2列の差]
+ * </pre>
+ * 数値は特に断らない限り符号なしの可変長整数 (7ビットずつ、下位から) である。
+ * <p>
+ * 版が上がっても古い版は読めるようにし、読めない新しい版は {@link IOException} で拒否する。
+ */
+public final class DemandSnapshotCodec {
+
+    /**
+     * 現在の版
+     */
+    public static final int VERSION = 1;
+
+    private static final byte MAGIC_0 = 'E';
+    private static final byte MAGIC_1 = 'U';
+    private static final int NO_AREA = 0xFF;
+
+    // スナップショットのフラグ
+    private static final int HAS_SUPPLY = 1;
+    private static final int HAS_DEMAND = 1 << 1;
+    private static final int HAS_HOURLY = 1 << 2;
+    private static final int HAS_FIVE_MIN = 1 << 3;
+    private static final int HOKKAIDO = 1 << 4;
+
+    // 系列のフラグ
+    private static final int S_FORECAST = 1;
+    private static final int S_IMPLICIT_TIME = 1 << 1;
+    private static final int S_MISSING = 1 << 2;
+    private static final int S_SECONDARY = 1 << 3;
+    private static final int S_SECONDARY_GAPS = 1 << 4;
+
+    private static final ServiceArea[] AREAS = ServiceArea.values();
+
+    private DemandSnapshotCodec() {
+    }
+
+    /**
+     * 解析結果を書き出したときの大きさの上限を返す。書き込み先のバッファを用意する際に使う。
+     *
+     * @param doc 解析結果
+     * @return 上限のバイト数
+     */
+    public static int maxEncodedSize(ParsedUsageDocument doc) {
+        int n = 5 + 5 + 10;
+        n += maxPeakSize(doc.getPeakSupply()) + maxPeakSize(doc.getPeakDemand());
+        n += maxSeriesSize(doc.getHourlyDemandSeries()) + maxSeriesSize(doc.get5MinDemandSeries());
+        return n;
+    }
+
+    /**
+     * 解析結果をバイト列に書き出す。
+     *
+     * @param area 供給区域 (nullも可)
+     * @param doc 解析結果
+     * @return 書き出したバイト列
+     */
+    public static byte[] encode(ServiceArea area, ParsedUsageDocument doc) {
+        ByteBuffer buf = ByteBuffer.allocate(maxEncodedSize(doc));
+        encode(area, doc, buf);
+        byte[] ret = new byte[buf.position()];
+        buf.flip();
+        buf.get(ret);
+        return ret;
+    }
+
+    /**
+     * 解析結果をバッファの現在位置から書き出す。書き出した分だけpositionを進める。
+     *
+     * @param area 供給区域 (nullも可)
+     * @param doc 解析結果
+     * @param out 書き込み先。{@link #maxEncodedSize(ParsedUsageDocument)} 以上の空きがあれば必ず足りる
+     * @throws java.nio.BufferOverflowException 書き込み先の空きが足りない場合
+     */
+    public static void encode(ServiceArea area, ParsedUsageDocument doc, ByteBuffer out) {
+        PeakSupply supply = doc.getPeakSupply();
+        PeakDemand demand = doc.getPeakDemand();
+        DemandSeries hourly = doc.getHourlyDemandSeries();
+        DemandSeries fiveMin = doc.get5MinDemandSeries();
+        int flags = 0;
+        if (supply != null)
+            flags |= HAS_SUPPLY;
+        if (demand != null)
+            flags |= HAS_DEMAND;
+        if (hourly != null)
+            flags |= HAS_HOURLY;
+        if (fiveMin != null)
+            flags |= HAS_FIVE_MIN;
+        if (doc.getFormat() != null && doc.getFormat().isHokkaido)
+            flags |= HOKKAIDO;
+        String date = doc.getDateText();
+        int day = date == null ? DemandDate.INVALID : DemandDate.tryParseEpochDay(date);
+
+        out.put(MAGIC_0).put(MAGIC_1).put((byte) VERSION);
+        out.put((byte) (area == null ? NO_AREA : area.ordinal()));
+        out.put((byte) flags);
+        putVarint(out, zigzag(day));
+        putVarlong(out, (doc.getFetchedAt() << 1) ^ (doc.getFetchedAt() >> 63));
+        if (supply != null)
+            putPeak(out, supply.getAmount(), supply);
+        if (demand != null)
+            putPeak(out, demand.getAmount(), demand);
+        if (hourly != null)
+            putSeries(out, hourly, 60);
+        if (fiveMin != null)
+            putSeries(out, fiveMin, 5);
+    }
+
+    /**
+     * バッファの現在位置から1件を読み、解析結果に戻す。<br>
+     * 行ごとのオブジェクトを作るので、値だけを使う場合は {@link Reader} を使うこと。
+     * 行のオブジェクトは {@link ElectricUsageCSVParser} で解析した場合と同じく、需要実績の系列から作る。
+     * 取得元のURLは書き出していないのでnullとなる。
+     *
+     * @param in 読み込み元。読んだ分だけpositionを進める
+     * @param f 解析結果に記録するデータフォーマット定義
+     * @return 解析結果
+     * @throws IOException 形式が正しくない場合、または読めない版の場合
+     */
+    public static ParsedUsageDocument decode(ByteBuffer in, SupplyDataFormat f) throws IOException {
+        Reader r = new Reader();
+        r.reset(in);
+        String date = r.epochDay == DemandDate.INVALID ? null : DemandDate.format(r.epochDay);
+        PeakSupply supply = null;
+        PeakDemand demand = null;
+        if (r.hasPeakSupply()) {
+            supply = r.isHokkaido() ? new PeakSupplyH(r.getPeakSupplyTime(), (float) r.getPeakSupply())
+                    : new PeakSupply(r.getPeakSupplyTime(), r.getPeakSupply());
+        }
+        if (r.hasPeakDemand()) {
+            demand = r.isHokkaido() ? new PeakDemandH(r.getPeakDemandTime(), (float) r.getPeakDemand())
+                    : new PeakDemand(r.getPeakDemandTime(), r.getPeakDemand());
+        }
+        DemandSeries hourly = null;
+        DemandSeries fiveMin = null;
+        while (r.nextRow()) {
+            DemandSeries s;
+            if (r.getRowSection() == DemandSection.HOURLY) {
+                if (hourly == null)
+                    hourly = new DemandSeries(date, false, r.isForecast(), r.isHokkaido(), r.getRowCount());
+                s = hourly;
+            } else {
+                if (fiveMin == null)
+                    fiveMin = new DemandSeries(date, true, r.isForecast(), r.isHokkaido(), r.getRowCount());
+                s = fiveMin;
+            }
+            if (r.isMissing())
+                s.addMissing(r.getMinuteOfDay(), r.getSecondary());
+            else
+                s.add(r.getMinuteOfDay(), r.getDemandToday(), r.getSecondary());
+        }
+        return new ParsedUsageDocument(f, null, r.getFetchedAt(), date, supply, demand, hourly, fiveMin);
+    }
+
+    private static int maxPeakSize(TimeAmountData d) {
+        if (d == null)
+            return 0;
+        String t = d.time;
+        return 5 + 5 + 5 + (t == null ? 0 : t.length() * 3);
+    }
+
+    private static int maxSeriesSize(DemandSeries s) {
+        if (s == null)
+            return 0;
+        int n = s.size();
+        return 1 + 5 + 10 + 2 * ((n + 7) >>> 3) + n * 15;
+    }
+
+    private static void putPeak(ByteBuffer out, int amount, TimeAmountData d) {
+        int minute;
+        try {
+            minute = d.getMinuteOfDay();
+        } catch (NumberFormatException e) {
+            minute = -1;
+        }
+        putVarint(out, zigzag(amount));
+        putVarint(out, minute + 1);
+        byte[] text;
+        try {
+            text = d.time == null ? new byte[0] : d.time.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        putVarint(out, text.length);
+        out.put(text);
+    }
+
+    private static void putSeries(ByteBuffer out, DemandSeries s, int step) {
+        final int n = s.size();
+        int first = n == 0 ? 0 : s.getMinuteOfDay(0);
+        boolean implicit = true;
+        boolean anySecondary = false;
+        boolean secondaryGaps = false;
+        for (int i = 0; i < n; i++) {
+            if (s.getMinuteOfDay(i) != first + i * step)
+                implicit = false;
+            if (s.getSecondary(i) == DemandSeries.NO_VALUE)
+                secondaryGaps = true;
+            else
+                anySecondary = true;
+        }
+        secondaryGaps &= anySecondary;
+        boolean hasMissing = s.countPresent() != n;
+
+        int flags = 0;
+        if (s.isForecast())
+            flags |= S_FORECAST;
+        if (implicit)
+            flags |= S_IMPLICIT_TIME;
+        if (hasMissing)
+            flags |= S_MISSING;
+        if (anySecondary)
+            flags |= S_SECONDARY;
+        if (secondaryGaps)
+            flags |= S_SECONDARY_GAPS;
+        out.put((byte) flags);
+        putVarint(out, n);
+        if (implicit) {
+            putVarint(out, first);
+            putVarint(out, step);
+        }
+        if (hasMissing) {
+            for (int i = 0; i < n; i += 8) {
+                int bits = 0;
+                for (int j = 0; j < 8 && i + j < n; j++) {
+                    if (s.isMissing(i + j))
+                        bits |= 1 << j;
+                }
+                out.put((byte) bits);
+            }
+        }
+        if (secondaryGaps) {
+            for (int i = 0; i < n; i += 8) {
+                int bits = 0;
+                for (int j = 0; j < 8 && i + j < n; j++) {
+                    if (s.getSecondary(i + j) != DemandSeries.NO_VALUE)
+                        bits |= 1 << j;
+                }
+                out.put((byte) bits);
+            }
+        }
+        int prevMinute = 0;
+        int prevToday = 0;
+        int prevSecond = 0;
+        for (int i = 0; i < n; i++) {
+            if (!implicit) {
+                int m = s.getMinuteOfDay(i);
+                putVarint(out, zigzag(m - prevMinute));
+                prevMinute = m;
+            }
+            if (!s.isMissing(i)) {
+                int v = s.getDemandToday(i);
+                putVarint(out, zigzag(v - prevToday));
+                prevToday = v;
+            }
+            int sec = s.getSecondary(i);
+            if (anySecondary && sec != DemandSeries.NO_VALUE) {
+                putVarint(out, zigzag(sec - prevSecond));
+                prevSecond = sec;
+            }
+        }
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void putVarint(ByteBuffer out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static void putVarlong(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static int getVarint(ByteBuffer in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long getVarlong(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * 書き出した1件を、オブジェクトを作らずに先頭から1行ずつ読むカーソル
+     * <p>
+     * {@link #reset(ByteBuffer)} で見出し (日付・ピーク時の値) を読み、
+     * {@link #nextRow()} で時間ごと、続いて5分ごとの需要実績を1行ずつ読む。
+     * 全ての行を読み終えると、読み込み元のpositionは次の1件の先頭にある。
+     * 1つのインスタンスを繰り返し使える。スレッドセーフではない。
+     */
+    public static final class Reader {
+
+        private ByteBuffer in;
+        private int version;
+        private int area;
+        private int flags;
+        private int epochDay;
+        private long fetchedAt;
+        private int supply;
+        private int supplyMinute;
+        private int supplyTimePos;
+        private int supplyTimeLen;
+        private int demand;
+        private int demandMinute;
+        private int demandTimePos;
+        private int demandTimeLen;
+
+        // 読んでいる系列
+        private int pendingSections;
+        private DemandSection section;
+        private int seriesFlags;
+        private int rowCount;
+        private int row;
+        private int step;
+        private int missingPos;
+        private int secondaryPos;
+
+        // 読んでいる行
+        private int minute;
+        private int today;
+        private int secondary;
+        private boolean missing;
+        private int prevToday;
+        private int prevSecond;
+
+        /**
+         * バッファの現在位置から1件の見出しを読む。
+         *
+         * @param buf 読み込み元
+         * @throws IOException 形式が正しくない場合、または読めない版の場合
+         */
+        public void reset(ByteBuffer buf) throws IOException {
+            in = buf;
+            if (buf.get() != MAGIC_0 || buf.get() != MAGIC_1)
+                throw new IOException("Not a demand snapshot");
+            version = buf.get() & 0xFF;
+            if (version < 1 || version > VERSION)
+                throw new IOException("Unsupported snapshot version " + version);
+            area = buf.get() & 0xFF;
+            flags = buf.get() & 0xFF;
+            epochDay = unzigzag(getVarint(buf));
+            long t = getVarlong(buf);
+            fetchedAt = (t >>> 1) ^ -(t & 1);
+            if ((flags & HAS_SUPPLY) != 0) {
+                supply = unzigzag(getVarint(buf));
+                supplyMinute = getVarint(buf) - 1;
+                supplyTimeLen = getVarint(buf);
+                supplyTimePos = buf.position();
+                buf.position(supplyTimePos + supplyTimeLen);
+            }
+            if ((flags & HAS_DEMAND) != 0) {
+                demand = unzigzag(getVarint(buf));
+                demandMinute = getVarint(buf) - 1;
+                demandTimeLen = getVarint(buf);
+                demandTimePos = buf.position();
+                buf.position(demandTimePos + demandTimeLen);
+            }
+            pendingSections = flags & (HAS_HOURLY | HAS_FIVE_MIN);
+            section = null;
+            rowCount = 0;
+            row = 0;
+        }
+
+        /**
+         * 次の行に進む。
+         *
+         * @return 次の行があればtrue。全ての行を読み終えた場合はfalse
+         * @throws IOException 形式が正しくない場合
+         */
+        public boolean nextRow() throws IOException {
+            while (section == null || row + 1 >= rowCount) {
+                if (pendingSections == 0) {
+                    section = null;
+                    return false;
+                }
+                beginSeries();
+                if (rowCount > 0)
+                    break;
+            }
+            row++;
+            ByteBuffer buf = in;
+            if ((seriesFlags & S_IMPLICIT_TIME) != 0)
+                minute += row == 0 ? 0 : step;
+            else
+                minute += unzigzag(getVarint(buf));
+            missing = (seriesFlags & S_MISSING) != 0 && bit(missingPos, row);
+            if (missing) {
+                today = 0;
+            } else {
+                prevToday += unzigzag(getVarint(buf));
+                today = prevToday;
+            }
+            boolean hasSecondary = (seriesFlags & S_SECONDARY) != 0
+                    && ((seriesFlags & S_SECONDARY_GAPS) == 0 || bit(secondaryPos, row));
+            if (hasSecondary) {
+                prevSecond += unzigzag(getVarint(buf));
+                secondary = prevSecond;
+            } else {
+                secondary = DemandSeries.NO_VALUE;
+            }
+            return true;
+        }
+
+        private void beginSeries() throws IOException {
+            ByteBuffer buf = in;
+            if ((pendingSections & HAS_HOURLY) != 0) {
+                pendingSections &= ~HAS_HOURLY;
+                section = DemandSection.HOURLY;
+            } else {
+                pendingSections &= ~HAS_FIVE_MIN;
+                section = DemandSection.FIVE_MIN;
+            }
+            seriesFlags = buf.get() & 0xFF;
+            rowCount = getVarint(buf);
+            row = -1;
+            minute = 0;
+            step = 0;
+            if ((seriesFlags & S_IMPLICIT_TIME) != 0) {
+                minute = getVarint(buf);
+                step = getVarint(buf);
+            }
+            int bitmapSize = (rowCount + 7) >>> 3;
+            if ((seriesFlags & S_MISSING) != 0) {
+                missingPos = buf.position();
+                buf.position(missingPos + bitmapSize);
+            }
+            if ((seriesFlags & S_SECONDARY_GAPS) != 0) {
+                secondaryPos = buf.position();
+                buf.position(secondaryPos + bitmapSize);
+            }
+            prevToday = 0;
+            prevSecond = 0;
+        }
+
+        private boolean bit(int pos, int i) {
+            return (in.get(pos + (i >>> 3)) & (1 << (i & 7))) != 0;
+        }
+
+        private String text(int pos, int len) {
+            byte[] b = new byte[len];
+            for (int i = 0; i < len; i++)
+                b[i] = in.get(pos + i);
+            try {
+                return new String(b, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * 書き出したときの版を返す。
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * 供給区域を返す。
+         *
+         * @return 供給区域。書き出されていなければnull
+         */
+        public ServiceArea getArea() {
+            return area < AREAS.length ? AREAS[area] : null;
+        }
+
+        /**
+         * 日付を返す。
+         *
+         * @return 日付 (通算日)
+         */
+        public int getEpochDay() {
+            return epochDay;
+        }
+
+        /**
+         * 取得時刻を返す。
+         *
+         * @return 取得時刻 (エポックミリ秒)
+         */
+        public long getFetchedAt() {
+            return fetchedAt;
+        }
+
+        /**
+         * 北海道電力のデータかどうかを返す。
+         */
+        public boolean isHokkaido() {
+            return (flags & HOKKAIDO) != 0;
+        }
+
+        /**
+         * ピーク時供給力があるかどうかを返す。
+         */
+        public boolean hasPeakSupply() {
+            return (flags & HAS_SUPPLY) != 0;
+        }
+
+        /**
+         * ピーク時供給力を返す。
+         */
+        public int getPeakSupply() {
+            return supply;
+        }
+
+        /**
+         * ピーク時供給力の時刻を返す。
+         *
+         * @return 0時からの経過分。時刻として解釈できなかった場合は-1
+         */
+        public int getPeakSupplyMinute() {
+            return supplyMinute;
+        }
+
+        /**
+         * ピーク時供給力の時刻を元データの文字列で返す。文字列を作る。
+         */
+        public String getPeakSupplyTime() {
+            return text(supplyTimePos, supplyTimeLen);
+        }
+
+        /**
+         * ピーク時予想最大電力があるかどうかを返す。
+         */
+        public boolean hasPeakDemand() {
+            return (flags & HAS_DEMAND) != 0;
+        }
+
+        /**
+         * ピーク時予想最大電力を返す。
+         */
+        public int getPeakDemand() {
+            return demand;
+        }
+
+        /**
+         * ピーク時予想最大電力の時刻を返す。
+         *
+         * @return 0時からの経過分。時刻として解釈できなかった場合は-1
+         */
+        public int getPeakDemandMinute() {
+            return demandMinute;
+        }
+
+        /**
+         * ピーク時予想最大電力の時刻を元データの文字列で返す。文字列を作る。
+         */
+        public String getPeakDemandTime() {
+            return text(demandTimePos, demandTimeLen);
+        }
+
+        /**
+         * 時間ごとの需要実績があるかどうかを返す。
+         */
+        public boolean hasHourly() {
+            return (flags & HAS_HOURLY) != 0;
+        }
+
+        /**
+         * 5分ごとの需要実績があるかどうかを返す。
+         */
+        public boolean hasFiveMin() {
+            return (flags & HAS_FIVE_MIN) != 0;
+        }
+
+        /**
+         * 現在の行のセクションを返す。
+         *
+         * @return {@link DemandSection#HOURLY} または {@link DemandSection#FIVE_MIN}
+         */
+        public DemandSection getRowSection() {
+            return section;
+        }
+
+        /**
+         * 現在の系列の行数を返す。
+         */
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * 現在の行の系列内での添字を返す。
+         */
+        public int getRowIndex() {
+            return row;
+        }
+
+        /**
+         * 現在の系列の第2列が予測値かどうかを返す。
+         *
+         * @return 予測値であればtrue、前日実績であればfalse
+         */
+        public boolean isForecast() {
+            return (seriesFlags & S_FORECAST) != 0;
+        }
+
+        /**
+         * 現在の行の時刻を返す。
+         *
+         * @return 0時からの経過分
+         */
+        public int getMinuteOfDay() {
+            return minute;
+        }
+
+        /**
+         * 現在の行の当日実績を返す。
+         *
+         * @return 当日実績。欠測の場合は0
+         */
+        public int getDemandToday() {
+            return today;
+        }
+
+        /**
+         * 現在の行の前日実績または予測値を返す。
+         *
+         * @return 前日実績または予測値。ない場合は {@link DemandSeries#NO_VALUE}
+         */
+        public int getSecondary() {
+            return secondary;
+        }
+
+        /**
+         * 現在の行が欠測かどうかを返す。
+         */
+        public boolean isMissing() {
+            return missing;
+        }
+    }
+
+}
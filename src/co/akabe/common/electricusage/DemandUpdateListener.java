@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.List;
+
+/**
+ * {@link DemandPollScheduler} が新しい需要実績を見つけたときに通知を受けるリスナ
+ */
+public interface DemandUpdateListener {
+
+    /**
+     * 新しい5分ごとの需要実績が公開されたときに呼ばれる。<br>
+     * 取得のたびではなく、前回から行が増えた場合だけ呼ばれる。
+     *
+     * @param area 供給区域
+     * @param newRows 新しく公開された行 (時刻順)
+     */
+    void onDemandUpdated(ServiceArea area, List<FiveMinDemand> newRows);
+
+}
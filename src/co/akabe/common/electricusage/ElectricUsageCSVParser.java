@@ -20,14 +20,24 @@
 package co.akabe.common.electricusage;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Parser class of demand CSV data
@@ -36,6 +46,8 @@ import java.util.Vector;
  */
 public class ElectricUsageCSVParser {
 
+	private static final Logger LOG = LoggerFactory.getLogger(ElectricUsageCSVParser.class);
+
 	/**
 	 * 東京電力管内のデータURL
 	 *
@@ -79,13 +91,12 @@ public class ElectricUsageCSVParser {
 	/**
 	 * 九州電力のデータフォーマット定義
 	 *
-	 * @deprecated 日付をまたぐとデータが取得できなくなってしまうため、 {@link #buildKyushuFormat()}を使うこと。
+	 * URLは取得のたびにその時点の日付で解決する。
+	 *
+	 * @deprecated 1つのインスタンスを共有するため、時計の設定などが他の利用者に影響する。 {@link #buildKyushuFormat()}を使うこと。
 	 */
 	@Deprecated
-	public static final SupplyDataFormat Format_Kyushu = new SupplyDataFormat(
-			"http://www.kyuden.co.jp/power_usages/csv/juyo-hourly-"
-					+ new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".csv",
-			5, 2, 8, 44);
+	public static final SupplyDataFormat Format_Kyushu = buildKyushuFormat();
 
 	/**
 	 * 中国電力のデータフォーマット定義
@@ -119,8 +130,7 @@ public class ElectricUsageCSVParser {
 	 * @return 九州電力のデータフォーマット定義
 	 */
 	public static SupplyDataFormat buildKyushuFormat() {
-		return new SupplyDataFormat("http://www.kyuden.co.jp/power_usages/csv/juyo-hourly-"
-				+ new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".csv", 5, 2, 8, 44);
+		return datedFormat("http://www.kyuden.co.jp/power_usages/csv/juyo-hourly-{yyyyMMdd}.csv", 5, 2, 8, 44);
 	}
 
 	/**
@@ -129,8 +139,7 @@ public class ElectricUsageCSVParser {
 	 * @return 東北電力のデータフォーマット定義
 	 */
 	public static SupplyDataFormat buildTohokuFormat() {
-		return new SupplyDataFormat("http://setsuden.tohoku-epco.co.jp/common/demand/juyo_02_"
-				+ new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".csv", 5, 2, 8, 44);
+		return datedFormat("http://setsuden.tohoku-epco.co.jp/common/demand/juyo_02_{yyyyMMdd}.csv", 5, 2, 8, 44);
 	}
 
 	/**
@@ -139,8 +148,7 @@ public class ElectricUsageCSVParser {
 	 * @return 北陸電力のデータフォーマット定義
 	 */
 	public static SupplyDataFormat buildHokurikuFormat() {
-		return new SupplyDataFormat("http://www.rikuden.co.jp/denki-yoho/csv/juyo_05_"
-				+ new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".csv", 5, 2, 8, 44);
+		return datedFormat("http://www.rikuden.co.jp/denki-yoho/csv/juyo_05_{yyyyMMdd}.csv", 5, 2, 8, 44);
 	}
 
 	/**
@@ -149,12 +157,34 @@ public class ElectricUsageCSVParser {
 	 * @return 中国電力のデータフォーマット定義
 	 */
 	public static SupplyDataFormat buildChugokuFormat() {
-		return new SupplyDataFormat("http://www.energia.co.jp/jukyuu/sys/juyo_07_"
-				+ new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".csv", 5, 2, 8, 44);
+		return datedFormat("http://www.energia.co.jp/jukyuu/sys/juyo_07_{yyyyMMdd}.csv", 5, 2, 8, 44);
+	}
+
+	/**
+	 * 日付入りのURLのデータフォーマット定義を作成する
+	 *
+	 * @param template URLのテンプレート
+	 * @return データフォーマット定義
+	 * @see SupplyDataFormat#setURLTemplate(String)
+	 */
+	private static SupplyDataFormat datedFormat(String template, int pdl, int psl, int hdl, int fivemin) {
+		SupplyDataFormat f = new SupplyDataFormat(template, pdl, psl, hdl, fivemin);
+		f.setURLTemplate(template);
+		return f;
 	}
 
 	private SupplyDataFormat df;
-	private Vector<String> buff;
+	private HttpResponseCache responseCache;
+	private HttpTransport transport = HttpTransport.getDefault();
+	private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+	/** 最新の解析結果。差し替えは {@link #loadLock} を取って行い、参照はロックなしで行う */
+	private volatile ParsedUsageDocument document;
+	/** 解析結果を差し替えた回数 */
+	private volatile int generation;
+	private final Object loadLock = new Object();
+	/** 非同期の読み込み中の結果。{@link #asyncLock} を取って参照する */
+	private DemandFuture<ParsedUsageDocument> pendingFetch;
+	private final Object asyncLock = new Object();
 
 	public ElectricUsageCSVParser(SupplyDataFormat f) {
 		df = f;
@@ -172,7 +202,6 @@ public class ElectricUsageCSVParser {
 	public ElectricUsageCSVParser(String URL) {
 		// this(URL, "Shift_JIS");
 		df = new SupplyDataFormat(URL, 2, 5, 8);
-		buff = null;
 	}
 
 	/**
@@ -188,23 +217,398 @@ public class ElectricUsageCSVParser {
 	public ElectricUsageCSVParser(String URL, String charset) {
 		// usageDataURL = URL;
 		df = new SupplyDataFormat(URL, 2, 5, 8, charset);
-		buff = null;
 	}
 
 	/**
-	 * URLからテキストを読み込む
+	 * 条件付きGETに使うレスポンスキャッシュを設定する。<br>
+	 * 設定すると、データが更新されていない場合はサーバから本文を受け取らずに
+	 * 保存済みの本文と解析結果を再利用する。
+	 *
+	 * @param cache
+	 *            レスポンスキャッシュ。nullの場合はキャッシュを使わない
+	 */
+	public void setResponseCache(HttpResponseCache cache) {
+		responseCache = cache;
+	}
+
+	/**
+	 * 取得に使う通信の設定を指定する。<br>
+	 * 指定しなければ {@link HttpTransport#getDefault()} を使う。
+	 * レスポンスキャッシュを使う場合は、キャッシュ側の設定が使われる。
+	 *
+	 * @param t
+	 *            通信の設定
+	 */
+	public void setTransport(HttpTransport t) {
+		if (t == null)
+			throw new NullPointerException("transport");
+		transport = t;
+	}
+
+	/**
+	 * 取得に失敗したときの再試行の方針を指定する。<br>
+	 * 指定しなければ再試行しない ({@link RetryPolicy#NONE})。
+	 * 非同期の読み込みには適用しない。
+	 *
+	 * @param policy
+	 *            再試行の方針
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException("policy");
+		retryPolicy = policy;
+	}
+
+	/**
+	 * URLへの接続を開き、入力ストリームを得る
+	 *
+	 * @param url 現在の日付で解決したソースURL
+	 * @return ソースURLの入力ストリーム
+	 * @throws java.io.IOException
+	 *             通信エラーが発生した場合にスローします
+	 */
+	private InputStream openStream(String url) throws IOException {
+		if (responseCache != null)
+			return new ByteArrayInputStream(responseCache.fetch(url, df).getBody());
+		return transport.body(transport.open(url, df, true));
+	}
+
+	/**
+	 * 解析結果を得る。<br>
+	 * まだ読み込んでいなければソースURLから読み込む。複数のスレッドから同時に呼ばれても、
+	 * 読み込みは1回だけ行われる。2回目以降は {@link #refresh()} を呼ぶまで同じ解析結果を返す。
+	 *
+	 * @return 解析結果
+	 * @throws java.io.IOException
+	 *             通信エラーまたは入力ストリームでエラーが発生した場合にスローします
+	 */
+	public ParsedUsageDocument getDocument() throws IOException {
+		ParsedUsageDocument doc = document;
+		if (doc != null)
+			return doc;
+		synchronized (loadLock) {
+			if (document == null) {
+				document = fetchDocument();
+				generation++;
+			}
+			return document;
+		}
+	}
+
+	/**
+	 * ソースURLから読み込み直し、解析結果を差し替える。<br>
+	 * 差し替えが終わるまでは、他のスレッドには以前の解析結果が見える。
+	 * 他のスレッドが読み込み中に呼んだ場合は、その読み込みの完了を待ってその結果を返し、
+	 * 重ねて読み込むことはしない。
+	 *
+	 * @return 新しい解析結果
+	 * @throws java.io.IOException
+	 *             通信エラーまたは入力ストリームでエラーが発生した場合にスローします
+	 */
+	public ParsedUsageDocument refresh() throws IOException {
+		int seen = generation;
+		synchronized (loadLock) {
+			if (generation != seen && document != null)
+				return document; // 待っている間に他のスレッドが読み込み直した
+			document = fetchDocument();
+			generation++;
+			return document;
+		}
+	}
+
+	/**
+	 * 解析結果を得る。エラー発生時はログに出力してnullを返す。
+	 *
+	 * @return 解析結果。エラー発生時はnull
+	 */
+	private ParsedUsageDocument loadDocument() {
+		try {
+			return getDocument();
+		} catch (IOException e) {
+			LOG.warn("Failed to load {}", df.resolveURL(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * 現在の日付で解決したURLからテキストを読み込み、解析する
 	 *
-	 * @return URL上にあるテキスト。エラー発生時はnull
+	 * @return 解析結果
 	 * @throws java.io.IOException
 	 *             通信エラーまたは入力ストリームでエラーが発生した場合にスローします
-	 * @since 1.0
 	 */
-	private Vector<String> readFromURL() throws IOException {
-		URL url = new URL(df.dataURL);
-		URLConnection connection = url.openConnection();
-		connection.setDoInput(true);
-		InputStream inStream = connection.getInputStream();
+	private ParsedUsageDocument fetchDocument() throws IOException {
+		RetryPolicy policy = retryPolicy;
+		for (int attempt = 1;; attempt++) {
+			String url = df.resolveURL();
+			try {
+				return fetchDocument(url);
+			} catch (IOException e) {
+				if (!policy.shouldRetry(e, attempt))
+					throw e;
+				try {
+					Thread.sleep(policy.getDelayMillis(attempt));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while retrying " + url);
+				}
+			}
+		}
+	}
 
+	/**
+	 * 指定したURLからテキストを読み込み、解析する。解析結果は公開しない。<br>
+	 * 翌日分の先読みなど、現在の日付以外のURLを読む場合に使う。
+	 * 結果はデータフォーマット定義のサーキットブレーカーに記録し、開いている場合は取得を試みない。
+	 *
+	 * @param url 読み込むURL
+	 * @return 解析結果
+	 * @throws java.io.IOException
+	 *             通信エラーまたは入力ストリームでエラーが発生した場合、
+	 *             サーキットブレーカーが開いている場合にスローします
+	 */
+	ParsedUsageDocument fetchDocument(String url) throws IOException {
+		DemandMetrics metrics = df.getMetrics();
+		CircuitBreaker breaker = df.getCircuitBreaker();
+		try {
+			breaker.acquire(url);
+		} catch (DemandFetchException e) {
+			metrics.recordError(e);
+			throw e;
+		}
+		try {
+			ParsedUsageDocument ret = fetchAndParse(url, metrics);
+			breaker.onSuccess();
+			return ret;
+		} catch (IOException e) {
+			breaker.onFailure(e);
+			metrics.recordError(e);
+			throw e;
+		} catch (RuntimeException e) {
+			breaker.onFailure(e);
+			metrics.recordError(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * 本文を取得して解析する。304が返された場合は以前の解析結果を返す
+	 */
+	private ParsedUsageDocument fetchAndParse(String url, DemandMetrics metrics) throws IOException {
+		long start = System.nanoTime();
+		if (responseCache != null) {
+			HttpResponseCache.Response response = responseCache.fetch(url, df);
+			Object parsed = response.getParsed();
+			if (parsed instanceof ParsedUsageDocument && ((ParsedUsageDocument) parsed).hasSameLayout(df)) {
+				// 304が返され、以前の解析結果がそのまま使える
+				metrics.recordFetch(System.nanoTime() - start, 0);
+				metrics.recordCacheHit();
+				return (ParsedUsageDocument) parsed;
+			}
+			byte[] body = response.getBody();
+			metrics.recordFetch(System.nanoTime() - start, body.length);
+			ParsedUsageDocument ret = parseDocument(url, body);
+			response.setParsed(ret);
+			return ret;
+		}
+		byte[] body = transport.readBody(transport.open(url, df, true));
+		metrics.recordFetch(System.nanoTime() - start, body.length);
+		return parseDocument(url, body);
+	}
+
+	/**
+	 * 受け取った本文を解析する。
+	 *
+	 * @param url 読み込んだURL
+	 * @param body 本文
+	 * @return 解析結果
+	 * @throws java.io.IOException
+	 *             文字コードが不正な場合にスローします
+	 */
+	private ParsedUsageDocument parseDocument(String url, byte[] body) throws IOException {
+		return parseDocument(url, ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * バイト列を解析し、解析時間と行数を記録する。
+	 */
+	private ParsedUsageDocument parseDocument(String url, ByteBuffer data) throws IOException {
+		long start = System.nanoTime();
+		List<CharSequence> lines = splitLines(data);
+		ParsedUsageDocument ret = toDocument(url, lines, planFor(url, lines));
+		df.getMetrics().recordParse(System.nanoTime() - start, lines.size());
+		return ret;
+	}
+
+	/**
+	 * バイト列から直接解析する。<br>
+	 * 保存しておいたファイルなどを、{@link java.io.Reader} を作らずに解析する場合に使う。
+	 * 解析結果はこのパーサのgetterには反映しない。
+	 *
+	 * @param data 供給データのバイト列。positionからlimitまでを読む。positionとlimitは変更しない
+	 * @return 解析結果。取得したURLはnullとなる
+	 * @throws java.io.IOException
+	 *             文字コードが不正な場合にスローします
+	 */
+	public ParsedUsageDocument parse(ByteBuffer data) throws IOException {
+		return parseDocument(null, data);
+	}
+
+	/**
+	 * バイト列を行に分ける。<br>
+	 * ASCIIだけからなる行 (需要実績の行はすべてそうである) はデコードせずにバイト列のビューとし、
+	 * 日本語を含む見出しの行だけを文字コードに従ってデコードする。
+	 * 文字コードがASCIIと互換でない場合は、全体をデコードする。
+	 *
+	 * @param data 供給データのバイト列
+	 * @return 各行
+	 * @throws java.io.IOException
+	 *             文字コードが不正な場合にスローします
+	 */
+	private List<CharSequence> splitLines(ByteBuffer data) throws IOException {
+		List<CharSequence> ret = new ArrayList<CharSequence>(400);
+		if (!isAsciiCompatible(df.charset)) {
+			byte[] b = new byte[data.remaining()];
+			data.duplicate().get(b);
+			ret.addAll(readLines(new ByteArrayInputStream(b)));
+			return ret;
+		}
+		final int limit = data.limit();
+		int start = data.position();
+		while (start < limit) {
+			int end = start;
+			boolean ascii = true;
+			byte c = 0;
+			for (; end < limit; end++) {
+				c = data.get(end);
+				if (c == '\n' || c == '\r')
+					break;
+				if (c < 0)
+					ascii = false;
+			}
+			if (ascii) {
+				ret.add(new AsciiBytes(data, start, end));
+			} else {
+				byte[] b = new byte[end - start];
+				for (int i = 0; i < b.length; i++)
+					b[i] = data.get(start + i);
+				ret.add(new String(b, df.charset));
+			}
+			// 改行はLF・CR・CRLFのいずれも受け付ける (BufferedReader#readLine と同じ)
+			start = end + 1;
+			if (c == '\r' && start < limit && data.get(start) == '\n')
+				start++;
+		}
+		return ret;
+	}
+
+	/**
+	 * 文字コードがASCIIと互換で、数字・区切り記号・改行を1バイトのASCIIとして表すかどうかを返す。
+	 */
+	private static boolean isAsciiCompatible(String charset) {
+		Boolean ret = ASCII_COMPATIBLE.get(charset);
+		if (ret == null) {
+			try {
+				String probe = "0123456789,./:- \r\n";
+				ret = Arrays.equals(probe.getBytes("US-ASCII"), probe.getBytes(charset));
+			} catch (UnsupportedEncodingException e) {
+				ret = Boolean.FALSE;
+			}
+			ASCII_COMPATIBLE.put(charset, ret);
+		}
+		return ret;
+	}
+
+	private static final ConcurrentHashMap<String, Boolean> ASCII_COMPATIBLE =
+			new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * 読み込んだテキストに使う解析計画を決める。<br>
+	 * キャッシュした計画の見出し行が一致すればそれを使い、一致しなければ見出しを検出し直してキャッシュする。
+	 * 見出しの位置が変わった場合と、見出しが見つからないセクションがある場合は警告を記録する。
+	 *
+	 * @param url 読み込んだURL
+	 * @param lines 読み込んだテキスト
+	 * @return 解析計画
+	 */
+	private ParsePlan planFor(String url, List<? extends CharSequence> lines) {
+		ParsePlan cached = df.getDetectedParsePlan();
+		if (cached != null && cached.matches(lines))
+			return cached;
+		ParsePlan plan = ParsePlan.detect(df, lines);
+		ParsePlan previous = cached == null ? df.getParsePlan() : cached;
+		if (!plan.hasSameLayout(previous))
+			LOG.warn("Layout of {} differs from {}: {}", url, previous, plan);
+		if (!plan.getMissingSections().isEmpty()) {
+			LOG.warn("Section headers not found in {}: {}", url, plan.getMissingSections());
+			df.getMetrics().recordError(new DemandFetchException(FetchFailure.PARSE, 0,
+					"Section headers not found: " + plan.getMissingSections()));
+		}
+		df.setParsePlan(plan);
+		return plan;
+	}
+
+	/**
+	 * 読み込んだテキストを解析する。<br>
+	 * 解析できなかったセクションはnullとする。
+	 *
+	 * @param url 読み込んだURL
+	 * @param lines 読み込んだテキスト
+	 * @param plan 各セクションの位置
+	 * @return 解析結果
+	 */
+	private ParsedUsageDocument toDocument(String url, List<? extends CharSequence> lines, ParsePlan plan) {
+		CSVRowScanner sc = new CSVRowScanner();
+		String dateText = null;
+		PeakSupply supply = null;
+		PeakDemand demand = null;
+		DemandSeries hourlySeries = null;
+		DemandSeries fiveMinSeries = null;
+		if (!lines.isEmpty())
+			dateText = lines.get(0).toString().split(" ")[0];
+		try {
+			if (plan.has(DemandSection.PEAK_SUPPLY))
+				supply = toPeakSupply(sc, lines.get(plan.getLine(DemandSection.PEAK_SUPPLY)));
+		} catch (RuntimeException e) {
+			// 解析できなかった
+		}
+		try {
+			if (plan.has(DemandSection.PEAK_DEMAND))
+				demand = toPeakDemand(sc, lines.get(plan.getLine(DemandSection.PEAK_DEMAND)));
+		} catch (RuntimeException e) {
+			// 解析できなかった
+		}
+		// 各行は系列に1回だけ読み込み、行ごとのオブジェクトは解析結果が要求されたときに系列から作る
+		// 九州電力に対する特例：九電は5分ごとのデータしか公開していない
+		if (plan.has(DemandSection.HOURLY)) {
+			try {
+				hourlySeries = readSeries(lines, plan.getLine(DemandSection.HOURLY), 24, false, false);
+			} catch (RuntimeException e) {
+				// 解析できなかった
+			}
+		}
+		if (plan.has(DemandSection.FIVE_MIN)) {
+			try {
+				fiveMinSeries = readSeries(lines, plan.getLine(DemandSection.FIVE_MIN), 288, true,
+						plan.hasFiveMinSecondary());
+			} catch (RuntimeException e) {
+				// 解析できなかった
+			}
+		}
+		return new ParsedUsageDocument(df, url, System.currentTimeMillis(), dateText, supply, demand, hourlySeries,
+				fiveMinSeries);
+	}
+
+	/**
+	 * 入力ストリームから全ての行を読み込む
+	 *
+	 * @param inStream
+	 *            入力ストリーム。読み込み後に閉じる
+	 * @return 読み込んだ行
+	 * @throws java.io.IOException
+	 *             入力ストリームでエラーが発生した場合にスローします
+	 */
+	private Vector<String> readLines(InputStream inStream) throws IOException {
 		try {
 			BufferedReader input = new BufferedReader(new InputStreamReader(inStream, df.charset));
 
@@ -219,28 +623,238 @@ public class ElectricUsageCSVParser {
 	}
 
 	/**
-	 * ピーク時の予想最大電力（需要）を得る。
+	 * ソースURLからデータを1行ずつ読み込み、解析結果をリスナに通知する。<br>
+	 * 全てのセクションを読み込む。
 	 *
-	 * @return ピーク時の予想最大電力
+	 * @param listener
+	 *            解析結果を受け取るリスナ
 	 * @throws java.io.IOException
+	 *             通信エラーまたは入力ストリームでエラーが発生した場合にスローします
+	 * @see #parse(DemandDataListener, EnumSet)
 	 */
-	public PeakDemand getPeakDemand() {
-		if (buff == null)
-			try {
-				buff = readFromURL();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				return null;
+	public void parse(DemandDataListener listener) throws IOException {
+		parse(listener, EnumSet.allOf(DemandSection.class));
+	}
+
+	/**
+	 * ソースURLからデータを1行ずつ読み込み、解析結果をリスナに通知する。<br>
+	 * 要求されたセクションを全て読み終えた時点で読み込みを打ち切る。
+	 *
+	 * @param listener
+	 *            解析結果を受け取るリスナ
+	 * @param sections
+	 *            読み込むセクション
+	 * @throws java.io.IOException
+	 *             通信エラーまたは入力ストリームでエラーが発生した場合にスローします
+	 */
+	public void parse(DemandDataListener listener, EnumSet<DemandSection> sections) throws IOException {
+		String url = df.resolveURL();
+		InputStream inStream = openStream(url);
+		try {
+			parse(url, inStream, listener, sections);
+		} finally {
+			inStream.close();
+		}
+	}
+
+	/**
+	 * 入力ストリームからデータを1行ずつ読み込み、解析結果をリスナに通知する。<br>
+	 * 各セクションは見出し行を見つけた次の行から読むので、行を溜めずに1回の走査で済む。
+	 * 要求されたセクションを全て読み終えた時点で読み込みを打ち切る。
+	 * 入力ストリームは閉じないので、呼び出し側で閉じること。
+	 *
+	 * @param in
+	 *            供給データの入力ストリーム
+	 * @param listener
+	 *            解析結果を受け取るリスナ
+	 * @param sections
+	 *            読み込むセクション
+	 * @throws java.io.IOException
+	 *             入力ストリームでエラーが発生した場合にスローします
+	 */
+	public void parse(InputStream in, DemandDataListener listener, EnumSet<DemandSection> sections)
+			throws IOException {
+		parse(null, in, listener, sections);
+	}
+
+	/**
+	 * 入力ストリームからデータを1行ずつ読み込み、解析結果をリスナに通知する。
+	 *
+	 * @param url 読み込んだURL (ログに使う)。URLから読み込んだのでなければnull
+	 * @see #parse(InputStream, DemandDataListener, EnumSet)
+	 */
+	private void parse(String url, InputStream in, DemandDataListener listener, EnumSet<DemandSection> sections)
+			throws IOException {
+		boolean wantSupply = sections.contains(DemandSection.PEAK_SUPPLY) && df.peakSupply_Line != 0;
+		boolean wantDemand = sections.contains(DemandSection.PEAK_DEMAND) && df.peakDemand_Line != 0;
+		// 九州電力に対する特例：時間ごとのデータがない場合は読まない
+		boolean wantHourly = sections.contains(DemandSection.HOURLY) && df.hourlyDemand_Line != 0;
+		boolean wantFiveMin = sections.contains(DemandSection.FIVE_MIN) && df.fiveMinDemand_Line != 0;
+
+		BufferedReader input = new BufferedReader(new InputStreamReader(in, df.charset));
+		CSVRowScanner sc = new CSVRowScanner();
+		ParsePlan.Detector detector = new ParsePlan.Detector(df);
+		DemandSection current = null;
+		int row = 0;
+		boolean fiveMinSecondary = false;
+		HourlyDemand prevHourly = null;
+		FiveMinDemand prevFiveMin = null;
+		String line;
+		int lineNo = 0;
+		while ((wantSupply || wantDemand || wantHourly || wantFiveMin) && (line = input.readLine()) != null) {
+			DemandSection header = detector.accept(lineNo++, line);
+			if (header != null) {
+				current = header;
+				row = 0;
+				if (header == DemandSection.FIVE_MIN)
+					fiveMinSecondary = detector.toPlan().hasFiveMinSecondary();
+				continue;
+			}
+			if (current == DemandSection.PEAK_SUPPLY) {
+				if (wantSupply && row == 0) {
+					listener.onPeakSupply(toPeakSupply(sc, line));
+					wantSupply = false;
+				}
+			} else if (current == DemandSection.PEAK_DEMAND) {
+				if (wantDemand && row == 0) {
+					listener.onPeakDemand(toPeakDemand(sc, line));
+					wantDemand = false;
+				}
+			} else if (current == DemandSection.HOURLY) {
+				if (wantHourly) {
+					prevHourly = toHourlyDemand(sc, line, prevHourly);
+					listener.onHourlyDemand(prevHourly);
+					if (row + 1 >= 24)
+						wantHourly = false;
+				}
+			} else if (current == DemandSection.FIVE_MIN) {
+				if (wantFiveMin) {
+					FiveMinDemand fd = toFiveMinDemand(sc, line, prevFiveMin, fiveMinSecondary);
+					if (fd == null) {
+						wantFiveMin = false; // 実績の入っていない行以降は読まない
+					} else {
+						listener.onFiveMinDemand(fd);
+						prevFiveMin = fd;
+					}
+				}
 			}
-		String baseData = buff.get(df.peakDemand_Line);
-		String[] baseDataArray = baseData.split(",");
-		PeakDemand ret;
+			row++;
+		}
+		if (detector.isComplete()) {
+			ParsePlan plan = detector.toPlan();
+			if (!plan.hasSameLayout(df.getDetectedParsePlan()))
+				df.setParsePlan(plan);
+		} else if (wantSupply || wantDemand || wantHourly || wantFiveMin) {
+			LOG.warn("Section headers not found in {}: {}", url, detector.toPlan().getMissingSections());
+		}
+	}
+
+	/**
+	 * ピーク供給の行を解析する
+	 *
+	 * @param sc 行スキャナ
+	 * @param baseData ピーク供給の行
+	 * @return ピーク時の最大電力供給
+	 */
+	private PeakSupply toPeakSupply(CSVRowScanner sc, CharSequence baseData) {
+		sc.reset(baseData);
+		int amount = sc.nextInt();
+		String time = sc.nextString();
+		if (df.isHokkaido)
+			return new PeakSupplyH(time, (float) amount);
+		return new PeakSupply(time, amount);
+	}
+
+	/**
+	 * ピーク需要の行を解析する
+	 *
+	 * @param sc 行スキャナ
+	 * @param baseData ピーク需要の行
+	 * @return ピーク時の予想最大電力
+	 */
+	private PeakDemand toPeakDemand(CSVRowScanner sc, CharSequence baseData) {
+		sc.reset(baseData);
+		int amount = sc.nextInt();
+		String time = sc.nextString();
 		if (df.isHokkaido)
-			ret = new PeakDemandH(baseDataArray[1], baseDataArray[0]);
+			return new PeakDemandH(time, (float) amount);
+		return new PeakDemand(time, amount);
+	}
+
+	/**
+	 * 時間別需要の行を解析する
+	 *
+	 * @param sc 行スキャナ
+	 * @param basedata 時間別需要の行
+	 * @param prev 直前の行の解析結果 (日付文字列の再利用に使う。nullも可)
+	 * @return 時間ごとの需要実績
+	 */
+	private HourlyDemand toHourlyDemand(CSVRowScanner sc, CharSequence basedata, HourlyDemand prev) {
+		sc.reset(basedata);
+		String date = sc.nextString(prev == null ? null : prev.getDate());
+		String time = sc.nextString();
+		int today = sc.nextInt();
+		int diff;
+		if (df.isNewFormat)
+			diff = -1048576; // 最終フィールドが予測(東電)ならば前日比を表示させないため-1048576を送る
 		else
-			ret = new PeakDemand(baseDataArray[1], baseDataArray[0]);
-		return ret;
+			diff = sc.nextInt();
+		if (df.isHokkaido)
+			return new HourlyDemandH(date, time, today, diff);
+		return new HourlyDemand(date, time, today, diff);
+	}
+
+	/**
+	 * 5分ごと需要の行を解析する
+	 *
+	 * @param sc 行スキャナ
+	 * @param basedata 5分ごと需要の行
+	 * @param prev 直前の行の解析結果 (日付文字列の再利用に使う。nullも可)
+	 * @return 5分ごとの需要実績。実績が入っていない行の場合はnull
+	 */
+	FiveMinDemand toFiveMinDemand(CSVRowScanner sc, CharSequence basedata, FiveMinDemand prev) {
+		return toFiveMinDemand(sc, basedata, prev, df.getParsePlan().hasFiveMinSecondary());
+	}
+
+	/**
+	 * 5分ごと需要の行を解析する
+	 *
+	 * @param sc 行スキャナ
+	 * @param basedata 5分ごと需要の行
+	 * @param prev 直前の行の解析結果 (日付文字列の再利用に使う。nullも可)
+	 * @param secondary 第4フィールドが前日実績であればtrue
+	 * @return 5分ごとの需要実績。実績が入っていない行の場合はnull
+	 */
+	private FiveMinDemand toFiveMinDemand(CSVRowScanner sc, CharSequence basedata, FiveMinDemand prev,
+			boolean secondary) {
+		sc.reset(basedata);
+		if (sc.isNextFieldEmpty())
+			return null;
+		String date = sc.nextString(prev == null ? null : prev.getDate());
+		if (!sc.hasNextField())
+			return null;
+		String time = sc.nextString();
+		if (!sc.hasNextField() || sc.isNextFieldEmpty())
+			return null;
+		int today = sc.nextInt();
+		int diff;
+		if (!secondary)
+			diff = -1048576; // 最終フィールドが予測(東電)ならば前日比を表示させないため-1048576を送る
+		else
+			diff = sc.nextInt(); // 九州電力に対する特例：5分ごとの予測でも前日比を表示できる
+		if (df.isHokkaido)
+			return new FiveMinDemandH(date, time, today, diff);
+		return new FiveMinDemand(date, time, today, diff);
+	}
+
+	/**
+	 * ピーク時の予想最大電力（需要）を得る。
+	 *
+	 * @return ピーク時の予想最大電力
+	 */
+	public PeakDemand getPeakDemand() {
+		ParsedUsageDocument doc = loadDocument();
+		return doc == null ? null : doc.getPeakDemand();
 	}
 
 	/**
@@ -249,107 +863,415 @@ public class ElectricUsageCSVParser {
 	 * @return ピーク時の最大電力供給
 	 */
 	public PeakSupply getPeakSupply() {
-		if (buff == null)
-			try {
-				buff = readFromURL();
-			} catch (IOException e) {
-				e.printStackTrace();
-				return null;
-			}
-		String baseData = buff.get(df.peakSupply_Line); // 上から3行目に明記されている
-		String[] baseDataArray = baseData.split(",");
-		PeakSupply ret;
-		if (df.isHokkaido)
-			ret = new PeakSupplyH(baseDataArray[1], baseDataArray[0]);
-		else
-			ret = new PeakSupply(baseDataArray[1], baseDataArray[0]);
-		return ret;
+		ParsedUsageDocument doc = loadDocument();
+		return doc == null ? null : doc.getPeakSupply();
 	}
 
 	/**
-	 * 時間ごとの需要実績データを得る。
+	 * 時間ごとの需要実績データを得る。<br>
+	 * 解析結果の写しを返すので、変更しても他の呼び出し元には影響しない。
 	 *
 	 * @return 時間ごとの需要実績
 	 */
 	public Vector<HourlyDemand> getHourlyDemand() {
-		// 九州電力に対する特例：九電は5分ごとのデータしか公開していない
-		if (df.hourlyDemand_Line == 0) {
+		ParsedUsageDocument doc = loadDocument();
+		if (doc == null || doc.getHourlyDemand() == null)
+			return null;
+		return new Vector<HourlyDemand>(doc.getHourlyDemand());
+	}
+
+	/**
+	 * 5分ごとの需要実績データを得る。<br>
+	 * 解析結果の写しを返すので、変更しても他の呼び出し元には影響しない。
+	 *
+	 * @return 時間ごとの需要実績
+	 */
+	public Vector<FiveMinDemand> get5MinDemand() {
+		ParsedUsageDocument doc = loadDocument();
+		if (doc == null || doc.get5MinDemand() == null)
 			return null;
+		return new Vector<FiveMinDemand>(doc.get5MinDemand());
+	}
+
+	/**
+	 * 最新の時間ごとの需要実績 (需要が0でない最後の行) を得る。<br>
+	 * {@code HourlyDemand.seekNearestHistory(getHourlyDemand())} と同じ結果を、コピーも探索もせずに返す。
+	 *
+	 * @return 最新の需要実績。該当する行がない場合またはエラー発生時はnull
+	 */
+	public HourlyDemand getLatestHourlyDemand() {
+		ParsedUsageDocument doc = loadDocument();
+		return doc == null ? null : doc.getLatestHourlyDemand();
+	}
+
+	/**
+	 * 最新の5分ごとの需要実績 (需要が0でない最後の行) を得る。<br>
+	 * {@code HourlyDemand.seekNearestHistory(get5MinDemand())} と同じ結果を、コピーも探索もせずに返す。
+	 *
+	 * @return 最新の需要実績。該当する行がない場合またはエラー発生時はnull
+	 */
+	public FiveMinDemand getLatest5MinDemand() {
+		ParsedUsageDocument doc = loadDocument();
+		return doc == null ? null : doc.getLatest5MinDemand();
+	}
+
+	/**
+	 * 時間ごとの需要実績データを、プリミティブ配列による形式で得る。<br>
+	 * 第2列には予測値 (東電形式) または前日実績が入る。読み取り専用。
+	 *
+	 * @return 時間ごとの需要実績。時間ごとのデータがない場合またはエラー発生時はnull
+	 */
+	public DemandSeries getHourlyDemandSeries() {
+		ParsedUsageDocument doc = loadDocument();
+		return doc == null ? null : doc.getHourlyDemandSeries();
+	}
+
+	/**
+	 * 5分ごとの需要実績データを、プリミティブ配列による形式で得る。<br>
+	 * {@link #get5MinDemand()} と異なり、まだ実績の入っていない時刻の行も欠測として含む。読み取り専用。
+	 *
+	 * @return 5分ごとの需要実績。5分ごとのデータがない場合またはエラー発生時はnull
+	 */
+	public DemandSeries get5MinDemandSeries() {
+		ParsedUsageDocument doc = loadDocument();
+		return doc == null ? null : doc.get5MinDemandSeries();
+	}
+
+	/**
+	 * 解析結果を、失敗の理由とともに得る。<br>
+	 * {@link #getDocument()} と同じく、読み込み済みであればそれを返す。
+	 * nullを返すgetterと異なり、データがないのか取得に失敗したのかを区別できる。
+	 *
+	 * @return 解析結果または失敗の理由
+	 */
+	public DemandResult<ParsedUsageDocument> getDocumentResult() {
+		try {
+			return DemandResult.of(getDocument());
+		} catch (IOException e) {
+			return DemandResult.failure(e);
+		} catch (RuntimeException e) {
+			return DemandResult.failure(e);
 		}
+	}
 
-		Vector<HourlyDemand> ret = new Vector<HourlyDemand>();
-		if (buff == null)
+	/**
+	 * ピーク時の予想最大電力（需要）を、失敗の理由とともに得る。
+	 *
+	 * @return ピーク時の予想最大電力。データがない場合は {@link FetchFailure#NO_DATA}
+	 */
+	public DemandResult<PeakDemand> getPeakDemandResult() {
+		DemandResult<ParsedUsageDocument> doc = getDocumentResult();
+		if (!doc.isSuccess())
+			return DemandResult.failure(doc.getFailure());
+		return DemandResult.of(doc.getValue().getPeakDemand());
+	}
+
+	/**
+	 * ピーク時の予想最大電力供給を、失敗の理由とともに得る。
+	 *
+	 * @return ピーク時の最大電力供給。データがない場合は {@link FetchFailure#NO_DATA}
+	 */
+	public DemandResult<PeakSupply> getPeakSupplyResult() {
+		DemandResult<ParsedUsageDocument> doc = getDocumentResult();
+		if (!doc.isSuccess())
+			return DemandResult.failure(doc.getFailure());
+		return DemandResult.of(doc.getValue().getPeakSupply());
+	}
+
+	/**
+	 * 時間ごとの需要実績データを、失敗の理由とともに得る。
+	 *
+	 * @return 時間ごとの需要実績の写し。データがない場合は {@link FetchFailure#NO_DATA}
+	 */
+	public DemandResult<Vector<HourlyDemand>> getHourlyDemandResult() {
+		DemandResult<ParsedUsageDocument> doc = getDocumentResult();
+		if (!doc.isSuccess())
+			return DemandResult.failure(doc.getFailure());
+		List<HourlyDemand> list = doc.getValue().getHourlyDemand();
+		return DemandResult.of(list == null || list.isEmpty() ? null : new Vector<HourlyDemand>(list));
+	}
+
+	/**
+	 * 5分ごとの需要実績データを、失敗の理由とともに得る。
+	 *
+	 * @return 5分ごとの需要実績の写し。データがない場合は {@link FetchFailure#NO_DATA}
+	 */
+	public DemandResult<Vector<FiveMinDemand>> get5MinDemandResult() {
+		DemandResult<ParsedUsageDocument> doc = getDocumentResult();
+		if (!doc.isSuccess())
+			return DemandResult.failure(doc.getFailure());
+		List<FiveMinDemand> list = doc.getValue().get5MinDemand();
+		return DemandResult.of(list == null || list.isEmpty() ? null : new Vector<FiveMinDemand>(list));
+	}
+
+	/**
+	 * ソースURLから非同期に読み込み直し、解析結果を差し替える。<br>
+	 * 通信はノンブロッキングI/Oで行うため、完了を待つ間はスレッドを使わない。
+	 * 名前解決と解析、コールバックの実行には指定したExecutorを使う。
+	 * レスポンスキャッシュを設定している場合と、http以外のURLの場合は、
+	 * 通信もExecutor上でブロックして行う。
+	 * 非同期の読み込み中に呼んだ場合は、その読み込みの結果を返す。
+	 * 読み込み中に {@link #refresh()} などで解析結果が差し替えられた場合は、
+	 * 読み込んだ結果でそれを上書きせず、差し替えられた解析結果を返す。
+	 *
+	 * @param executor 解析とコールバックの実行に使うExecutor
+	 * @return 解析結果
+	 */
+	public DemandFuture<ParsedUsageDocument> fetchAsync(final Executor executor) {
+		final DemandFuture<ParsedUsageDocument> future;
+		final int seen;
+		synchronized (asyncLock) {
+			if (pendingFetch != null)
+				return pendingFetch;
+			future = new DemandFuture<ParsedUsageDocument>(executor);
+			pendingFetch = future;
+			seen = generation;
+		}
+		final String url = df.resolveURL();
+		if (responseCache != null || !url.startsWith("http:")) {
 			try {
-				buff = readFromURL();
-			} catch (IOException e) {
-				e.printStackTrace();
-				return null;
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							finishFetch(future, seen, fetchDocument(url), null);
+						} catch (IOException e) {
+							finishFetch(future, seen, null, e);
+						} catch (RuntimeException e) {
+							finishFetch(future, seen, null, e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				finishFetch(future, seen, null, e);
 			}
-		final int startLine = df.hourlyDemand_Line;
-		for (int i = startLine; i < startLine + 24; i++) {
-			String basedata = buff.get(i);
-			String[] baseDataArray = basedata.split(",");
-			String diffStr = baseDataArray[3];
-			if (df.isNewFormat)
-				diffStr = "-1048576"; // 最終フィールドが予測(東電)ならば前日比を表示させないため-1048576を送る
-			HourlyDemand hd;
-			if (df.isHokkaido)
-				hd = new HourlyDemandH(baseDataArray[0], baseDataArray[1], baseDataArray[2], diffStr);
-			else
-				hd = new HourlyDemand(baseDataArray[0], baseDataArray[1], baseDataArray[2], diffStr);
-			ret.add(hd);
+			return future;
 		}
-		return ret;
+		final DemandMetrics metrics = df.getMetrics();
+		final CircuitBreaker breaker = df.getCircuitBreaker();
+		try {
+			breaker.acquire(url);
+		} catch (DemandFetchException e) {
+			metrics.recordError(e);
+			finishFetch(future, seen, null, e);
+			return future;
+		}
+		long timeout = transport.getConnectTimeout(df) + transport.getReadTimeout(df);
+		final long start = System.nanoTime();
+		try {
+			AsyncHttpClient.shared().get(url, timeout, transport, executor, new AsyncHttpClient.Handler() {
+				public void completed(final byte[] body) {
+					metrics.recordFetch(System.nanoTime() - start, body.length);
+					try {
+						executor.execute(new Runnable() {
+							public void run() {
+								try {
+									ParsedUsageDocument doc = parseDocument(url, body);
+									breaker.onSuccess();
+									finishFetch(future, seen, doc, null);
+								} catch (IOException e) {
+									breaker.onFailure(e);
+									metrics.recordError(e);
+									finishFetch(future, seen, null, e);
+								} catch (RuntimeException e) {
+									breaker.onFailure(e);
+									metrics.recordError(e);
+									finishFetch(future, seen, null, e);
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						breaker.release();
+						finishFetch(future, seen, null, e);
+					}
+				}
+
+				public void failed(Throwable cause) {
+					breaker.onFailure(cause);
+					metrics.recordError(cause);
+					finishFetch(future, seen, null, cause);
+				}
+			});
+		} catch (IOException e) {
+			breaker.release();
+			finishFetch(future, seen, null, e);
+		} catch (RejectedExecutionException e) {
+			breaker.release();
+			finishFetch(future, seen, null, e);
+		}
+		return future;
 	}
 
 	/**
-	 * 5分ごとの需要実績データを得る。
+	 * 非同期の読み込みを終え、成功していれば解析結果を差し替える。<br>
+	 * {@link #refresh()} と同じく {@link #loadLock} を取り、読み込みを始めてから他で差し替えられていなければ差し替える。
 	 *
-	 * @return 時間ごとの需要実績
+	 * @param seen 読み込みを始めたときの {@link #generation}
 	 */
-	public Vector<FiveMinDemand> get5MinDemand() {
-		if (df.fiveMinDemand_Line == 0) {
-			return null;
+	private void finishFetch(DemandFuture<ParsedUsageDocument> future, int seen, ParsedUsageDocument doc,
+			Throwable cause) {
+		synchronized (asyncLock) {
+			if (pendingFetch == future)
+				pendingFetch = null;
 		}
-		Vector<FiveMinDemand> ret = new Vector<FiveMinDemand>();
-		if (buff == null)
-			try {
-				buff = readFromURL();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				return null;
+		if (doc != null) {
+			synchronized (loadLock) {
+				if (generation == seen || document == null) {
+					document = doc;
+					generation++;
+				} else {
+					doc = document; // 読み込み中に新しい解析結果に差し替えられた
+				}
 			}
-		final int startLine = df.fiveMinDemand_Line;
-		for (int i = startLine; i < buff.size(); i++) {
-			String basedata = buff.get(i);
-			String[] baseDataArray = basedata.split(",");
-			if (baseDataArray.length < 3)
-				break;
-			String diffStr;
-			if (df.hourlyDemand_Line != 0)
-				diffStr = "-1048576"; // 最終フィールドが予測(東電)ならば前日比を表示させないため-1048576を送る
-			else
-				diffStr = baseDataArray[3]; // 九州電力に対する特例：5分ごとの予測でも前日比を表示できる
-			String demandStr;
-			if (baseDataArray.length >= 3)
-				demandStr = baseDataArray[2];
+			future.complete(doc);
+		} else {
+			future.fail(cause);
+		}
+	}
+
+	/**
+	 * ピーク時の予想最大電力（需要）を非同期に得る。<br>
+	 * 読み込み済みであれば、その解析結果から得る。
+	 *
+	 * @param executor 解析とコールバックの実行に使うExecutor
+	 * @return ピーク時の予想最大電力
+	 * @see #fetchAsync(Executor)
+	 */
+	public DemandFuture<PeakDemand> getPeakDemandAsync(Executor executor) {
+		return viewAsync(executor, new DocumentView<PeakDemand>() {
+			PeakDemand get(ParsedUsageDocument doc) {
+				return doc.getPeakDemand();
+			}
+		});
+	}
+
+	/**
+	 * ピーク時の予想最大電力供給を非同期に得る。<br>
+	 * 読み込み済みであれば、その解析結果から得る。
+	 *
+	 * @param executor 解析とコールバックの実行に使うExecutor
+	 * @return ピーク時の最大電力供給
+	 * @see #fetchAsync(Executor)
+	 */
+	public DemandFuture<PeakSupply> getPeakSupplyAsync(Executor executor) {
+		return viewAsync(executor, new DocumentView<PeakSupply>() {
+			PeakSupply get(ParsedUsageDocument doc) {
+				return doc.getPeakSupply();
+			}
+		});
+	}
+
+	/**
+	 * 時間ごとの需要実績データを非同期に得る。<br>
+	 * 読み込み済みであれば、その解析結果から得る。
+	 *
+	 * @param executor 解析とコールバックの実行に使うExecutor
+	 * @return 時間ごとの需要実績。時間ごとのデータがない場合はnull
+	 * @see #fetchAsync(Executor)
+	 */
+	public DemandFuture<Vector<HourlyDemand>> getHourlyDemandAsync(Executor executor) {
+		return viewAsync(executor, new DocumentView<Vector<HourlyDemand>>() {
+			Vector<HourlyDemand> get(ParsedUsageDocument doc) {
+				return doc.getHourlyDemand() == null ? null : new Vector<HourlyDemand>(doc.getHourlyDemand());
+			}
+		});
+	}
+
+	/**
+	 * 5分ごとの需要実績データを非同期に得る。<br>
+	 * 読み込み済みであれば、その解析結果から得る。
+	 *
+	 * @param executor 解析とコールバックの実行に使うExecutor
+	 * @return 5分ごとの需要実績。5分ごとのデータがない場合はnull
+	 * @see #fetchAsync(Executor)
+	 */
+	public DemandFuture<Vector<FiveMinDemand>> get5MinDemandAsync(Executor executor) {
+		return viewAsync(executor, new DocumentView<Vector<FiveMinDemand>>() {
+			Vector<FiveMinDemand> get(ParsedUsageDocument doc) {
+				return doc.get5MinDemand() == null ? null : new Vector<FiveMinDemand>(doc.get5MinDemand());
+			}
+		});
+	}
+
+	private <T> DemandFuture<T> viewAsync(Executor executor, final DocumentView<T> view) {
+		ParsedUsageDocument doc = document;
+		if (doc != null)
+			return DemandFuture.completed(executor, view.get(doc));
+		final DemandFuture<T> ret = new DemandFuture<T>(executor);
+		fetchAsync(executor).addCallback(new DemandCallback<ParsedUsageDocument>() {
+			public void onSuccess(ParsedUsageDocument result) {
+				ret.complete(view.get(result));
+			}
+
+			public void onFailure(Throwable cause) {
+				ret.fail(cause);
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * 解析結果から一部を取り出す
+	 */
+	private static abstract class DocumentView<T> {
+		abstract T get(ParsedUsageDocument doc);
+	}
+
+	/**
+	 * 読み込んだテキストから需要実績の行を読み、DemandSeriesに直接格納する
+	 *
+	 * @param lines 読み込んだテキスト
+	 * @param startLine 開始行
+	 * @param maxRows 最大行数
+	 * @param fiveMin 5分ごとの需要実績であればtrue
+	 * @param fiveMinSecondary 5分ごとの需要実績が第4フィールドに前日実績を持つ (九電のみ)
+	 * @return 需要実績。データ行がなければnull
+	 */
+	private DemandSeries readSeries(List<? extends CharSequence> lines, int startLine, int maxRows, boolean fiveMin,
+			boolean fiveMinSecondary) {
+		// 時間ごとの第4フィールドは予測 (東電形式)、5分ごとの第4フィールドは前日実績 (九電のみ)
+		final boolean forecast = !fiveMin && df.isNewFormat;
+		final boolean hasSecondary = !fiveMin || fiveMinSecondary;
+		CSVRowScanner sc = new CSVRowScanner();
+		DemandSeries ret = null;
+		final int endLine = Math.min(lines.size(), startLine + maxRows);
+		for (int i = startLine; i < endLine; i++) {
+			sc.reset(lines.get(i));
+			if (sc.isNextFieldEmpty())
+				break; // 空行でデータの終わり
+			if (ret == null)
+				ret = new DemandSeries(sc.nextString(), fiveMin, forecast, df.isHokkaido, maxRows);
 			else
-				demandStr = df.isHokkaido ? "0.0" : "0";
-			FiveMinDemand hd;
-			if (df.isHokkaido)
-				hd = new FiveMinDemandH(baseDataArray[0], baseDataArray[1], demandStr, diffStr);
+				sc.skipField();
+			if (!sc.hasNextField())
+				break;
+			int minute = sc.nextMinuteOfDay();
+			boolean isMissing = !sc.hasNextField() || sc.isNextFieldEmpty();
+			int today = 0;
+			if (isMissing) {
+				if (sc.hasNextField())
+					sc.skipField();
+			} else {
+				today = sc.nextInt();
+			}
+			int second = DemandSeries.NO_VALUE;
+			if (hasSecondary && sc.hasNextField() && !sc.isNextFieldEmpty())
+				second = sc.nextInt();
+			if (isMissing)
+				ret.addMissing(minute, second);
 			else
-				hd = new FiveMinDemand(baseDataArray[0], baseDataArray[1], demandStr, diffStr);
-			ret.add(hd);
+				ret.add(minute, today, second);
 		}
 		return ret;
 	}
 
+	/**
+	 * 1行目に書かれている日付を得る。
+	 *
+	 * @return 日付の文字列。エラー発生時はnull
+	 */
 	public String getDateText() {
-		String baseData = buff.get(0);
-		String[] baseDataArray = baseData.split(" ");
-		return baseDataArray[0];
+		ParsedUsageDocument doc = loadDocument();
+		return doc == null ? null : doc.getDateText();
 	}
 
 	/**
@@ -358,15 +1280,16 @@ public class ElectricUsageCSVParser {
 	 * @return 読み込んだテキストファイルのテキスト
 	 */
 	public String getReadText() {
+		String url = df.resolveURL();
 		try {
-			Vector<String> readLines = readFromURL();
+			Vector<String> readLines = readLines(openStream(url));
 			String ret = new String();
 			for (int i = 0; i < readLines.size(); i++) {
 				ret += readLines.get(i) + "\n";
 			}
 			return ret;
 		} catch (IOException e) {
-			e.printStackTrace();
+			LOG.warn("Failed to read {}", url, e);
 			return null;
 		}
 	}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.CharacterCodingException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 取得に失敗した理由
+ *
+ * @see DemandResult#getFailureReason()
+ */
+public enum FetchFailure {
+
+    /**
+     * 取得と解析はできたが、求めるデータが含まれていない (休日で公表されていない、まだ実績がないなど)
+     */
+    NO_DATA,
+
+    /**
+     * サーバがエラーのステータスを返した
+     */
+    HTTP_STATUS,
+
+    /**
+     * 接続または応答がタイムアウトした
+     */
+    TIMEOUT,
+
+    /**
+     * 接続できない、名前解決できない、接続が切れたなどの通信エラー
+     */
+    NETWORK,
+
+    /**
+     * 応答を解析できなかった
+     */
+    PARSE,
+
+    /**
+     * 区域のサーバが不調なため、取得を試みずに失敗させた
+     *
+     * @see CircuitBreaker
+     */
+    CIRCUIT_OPEN,
+
+    /**
+     * 割り込まれた、または取り消された
+     */
+    INTERRUPTED;
+
+    /**
+     * 例外から失敗の理由を判定する。
+     *
+     * @param cause 失敗の原因
+     * @return 失敗の理由
+     */
+    public static FetchFailure of(Throwable cause) {
+        if (cause instanceof DemandFetchException)
+            return ((DemandFetchException) cause).getReason();
+        if (cause instanceof SocketTimeoutException || cause instanceof TimeoutException)
+            return TIMEOUT;
+        if (cause instanceof InterruptedIOException || cause instanceof InterruptedException
+                || cause instanceof CancellationException)
+            return INTERRUPTED;
+        if (cause instanceof CharacterCodingException || cause instanceof UnsupportedEncodingException
+                || cause instanceof RuntimeException)
+            return PARSE;
+        return NETWORK;
+    }
+
+}
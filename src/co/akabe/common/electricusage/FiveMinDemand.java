@@ -49,6 +49,18 @@ public class FiveMinDemand extends HourlyDemand {
         super(d, t, dm, y);
     }
 
+    /**
+     * コンストラクタ：九州電力
+     *
+     * @param d  日付
+     * @param t  時刻
+     * @param dm 需要
+     * @param y  前日比
+     */
+    public FiveMinDemand(String d, String t, int dm, int y) {
+        super(d, t, dm, y);
+    }
+
     @Override
     public String toString() {
         return this.getTime() + "の需要実績は" + getDemandToday() + "万kWでした。";
@@ -28,7 +28,7 @@ public class FiveMinDemandH extends FiveMinDemand {
      * @param dm 需要
      */
     public FiveMinDemandH(String d, String t, String dm) {
-        super(d, t, dm.split("\\.")[0], "-1048576");
+        super(d, t, CSVRowScanner.parseInt(dm), -1048576);
     }
 
     /**
@@ -40,6 +40,18 @@ public class FiveMinDemandH extends FiveMinDemand {
      * @param y  前日比
      */
     public FiveMinDemandH(String d, String t, String dm, String y) {
-        super(d, t, dm.split("\\.")[0], y);
+        super(d, t, CSVRowScanner.parseInt(dm), Integer.parseInt(y));
+    }
+
+    /**
+     * コンストラクタ：九州電力
+     *
+     * @param d  日付
+     * @param t  時刻
+     * @param dm 需要 (小数部切り捨て済み)
+     * @param y  前日比
+     */
+    public FiveMinDemandH(String d, String t, int dm, int y) {
+        super(d, t, dm, y);
     }
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * 5分ごとの需要実績を差分で取得するセッション
+ * <p>
+ * 1区域につき1つ作成し、{@link #poll()} を繰り返し呼び出す。前回までに読んだ最後の行と
+ * その位置を覚えておき、HTTPのRangeリクエストでその行以降だけを取得して、新しく追加された
+ * 行だけを返す。サーバがRangeに対応していない場合は全体を取得し、読み済みの行を読み飛ばす。
+ * <p>
+ * 前回の最後の行が同じ位置に見つからない場合 (上にある時間ごとの実績が埋まって位置がずれた場合など) は
+ * 全体を取得し直し、読み済みの行を読み飛ばす。日付が変わってファイルが作り直された場合だけ、
+ * 新しい日付の行を全て返す。
+ * <p>
+ * このクラスはスレッドセーフである。
+ */
+public class FiveMinDemandSession {
+
+    private final SupplyDataFormat format;
+    private final ElectricUsageCSVParser parser;
+    private final CSVRowScanner scanner = new CSVRowScanner();
+    private volatile HttpTransport transport = HttpTransport.getDefault();
+
+    private String currentURL;
+    private String currentDate;
+    private int seenRows;
+    private FiveMinDemand latest;
+    private long lastRowStart;
+    private byte[] lastRow;
+    private long lastTransferredBytes;
+    private boolean lastPollPartial;
+
+    /**
+     * コンストラクタ
+     *
+     * @param f データフォーマット定義。5分ごとのデータを含むものであること
+     */
+    public FiveMinDemandSession(SupplyDataFormat f) {
+        if (f.fiveMinDemand_Line == 0)
+            throw new IllegalArgumentException("Format has no five-minute demand: " + f.dataURL);
+        format = f;
+        parser = new ElectricUsageCSVParser(f);
+    }
+
+    /**
+     * 取得に使う通信の設定を指定する。<br>
+     * 指定しなければ {@link HttpTransport#getDefault()} を使う。
+     * バイト位置で差分を取得するため、gzipの圧縮は使わない。
+     *
+     * @param t 通信の設定
+     */
+    public void setTransport(HttpTransport t) {
+        if (t == null)
+            throw new NullPointerException("transport");
+        transport = t;
+    }
+
+    /**
+     * 前回の呼び出し以降に追加された5分ごとの需要実績を取得する。
+     *
+     * @return 新しく追加された需要実績。追加がなければ空
+     * @throws IOException 通信エラーが発生した場合、データフォーマット定義のサーキットブレーカーが開いている場合
+     */
+    public synchronized Vector<FiveMinDemand> poll() throws IOException {
+        DemandMetrics metrics = format.getMetrics();
+        CircuitBreaker breaker = format.getCircuitBreaker();
+        try {
+            breaker.acquire(format.resolveURL());
+        } catch (DemandFetchException e) {
+            metrics.recordError(e);
+            throw e;
+        }
+        try {
+            Vector<FiveMinDemand> ret = pollOnce(metrics);
+            breaker.onSuccess();
+            return ret;
+        } catch (IOException e) {
+            breaker.onFailure(e);
+            metrics.recordError(e);
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.onFailure(e);
+            metrics.recordError(e);
+            throw e;
+        }
+    }
+
+    private Vector<FiveMinDemand> pollOnce(DemandMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        String url = format.resolveURL();
+        if (!url.equals(currentURL)) {
+            reset(); // 日付が変わって別のファイルになった
+            currentURL = url;
+        }
+        HttpTransport t = transport;
+        URLConnection connection = t.open(url, format, false);
+        lastPollPartial = false;
+        if (lastRow != null && connection instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            http.setRequestProperty("Range", "bytes=" + lastRowStart + "-");
+            int status = http.getResponseCode();
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                byte[] tail = t.readBody(http);
+                metrics.recordFetch(System.nanoTime() - start, tail.length);
+                lastTransferredBytes = tail.length;
+                String range = http.getHeaderField("Content-Range");
+                if (range != null && range.startsWith("bytes " + lastRowStart + "-") && startsWith(tail, lastRow)) {
+                    Vector<FiveMinDemand> delta = new Vector<FiveMinDemand>();
+                    if (scanRows(tail, lastRow.length, lastRowStart, delta)) {
+                        lastPollPartial = true;
+                        return delta;
+                    }
+                }
+                // 前回の最後の行が同じ位置にない (上の行の長さが変わった)：全体を読み直して読み済みの行を読み飛ばす
+                return pollFull(t, url, metrics, tail.length);
+            }
+            if (status == 416) { // Range Not Satisfiable：ファイルが短くなった
+                t.discard(http);
+                return pollFull(t, url, metrics, 0);
+            }
+            // 200の場合はRangeに対応していないので、全体を受け取って読み飛ばす
+        }
+        byte[] body = t.readBody(connection);
+        metrics.recordFetch(System.nanoTime() - start, body.length);
+        lastTransferredBytes = body.length;
+        return scanFull(body);
+    }
+
+    /**
+     * Rangeを使わずに全体を取得し直す。
+     *
+     * @param transferred この回の取得でここまでに受信したバイト数
+     */
+    private Vector<FiveMinDemand> pollFull(HttpTransport t, String url, DemandMetrics metrics, long transferred)
+            throws IOException {
+        long start = System.nanoTime();
+        byte[] body = t.readBody(t.open(url, format, false));
+        metrics.recordFetch(System.nanoTime() - start, body.length);
+        lastTransferredBytes = transferred + body.length;
+        return scanFull(body);
+    }
+
+    /**
+     * 読み込み状態を破棄し、次回の {@link #poll()} で最初から読み直すようにする。
+     */
+    public synchronized void reset() {
+        currentDate = null;
+        seenRows = 0;
+        latest = null;
+        lastRowStart = 0;
+        lastRow = null;
+    }
+
+    /**
+     * 現在読み込んでいるデータの日付を返す。
+     *
+     * @return データの日付。まだ読み込んでいなければnull
+     */
+    public synchronized String getDate() {
+        return currentDate;
+    }
+
+    /**
+     * これまでに読んだ行数を返す。
+     *
+     * @return 当日分の読み込み済み行数
+     */
+    public synchronized int getSeenCount() {
+        return seenRows;
+    }
+
+    /**
+     * 最後に読んだ需要実績を返す。
+     *
+     * @return 最新の需要実績。まだ読み込んでいなければnull
+     */
+    public synchronized FiveMinDemand getLatest() {
+        return latest;
+    }
+
+    /**
+     * 前回の {@link #poll()} で受信した本文のバイト数を返す。
+     *
+     * @return 受信したバイト数
+     */
+    public synchronized long getLastTransferredBytes() {
+        return lastTransferredBytes;
+    }
+
+    /**
+     * 前回の {@link #poll()} がRangeリクエストによる差分取得だったかどうかを返す。
+     *
+     * @return 差分取得だった場合はtrue
+     */
+    public synchronized boolean isLastPollPartial() {
+        return lastPollPartial;
+    }
+
+    /**
+     * 全体を受け取った場合の処理。読み済みの行を読み飛ばし、それ以降を解析する。
+     */
+    private Vector<FiveMinDemand> scanFull(byte[] body) throws UnsupportedEncodingException {
+        Vector<FiveMinDemand> delta = new Vector<FiveMinDemand>();
+        int pos = fiveMinStart(body);
+        if (pos >= body.length) {
+            reset();
+            return delta;
+        }
+
+        String firstRow = decode(body, pos, lineEnd(body, pos));
+        String date = scanner.reset(firstRow).nextString();
+        if (!date.equals(currentDate)) {
+            reset(); // 日付が変わった
+            currentDate = date;
+        }
+        for (int i = 0; i < seenRows && pos < body.length; i++) {
+            int end = lineEnd(body, pos);
+            if (i == seenRows - 1) {
+                // 次回のRangeリクエストのために、読み済みの最後の行の新しい位置を覚える
+                lastRowStart = pos;
+                lastRow = Arrays.copyOfRange(body, pos, Math.min(end + 1, body.length));
+            }
+            pos = end + 1;
+        }
+        if (!scanRows(body, pos, 0, delta)) {
+            reset();
+            currentDate = date;
+            delta.clear();
+            scanRows(body, pos, 0, delta);
+        }
+        return delta;
+    }
+
+    /**
+     * 5分ごと需要の行を読み、実績の入っていない行が現れるまでを差分に加える。
+     *
+     * @param buf 受信した本文
+     * @param pos 読み始める位置 (行の先頭)
+     * @param base bufの先頭のファイル上の位置
+     * @param delta 新しい需要実績の格納先
+     * @return 日付が食い違う行が見つかった場合はfalse
+     */
+    private boolean scanRows(byte[] buf, int pos, long base, Vector<FiveMinDemand> delta)
+            throws UnsupportedEncodingException {
+        while (pos < buf.length) {
+            int end = lineEnd(buf, pos);
+            if (end == buf.length)
+                break; // 改行で終わっていない行は書き込み途中の可能性があるので読まない
+            FiveMinDemand fd = parser.toFiveMinDemand(scanner, decode(buf, pos, end), latest);
+            if (fd == null)
+                break;
+            if (currentDate == null)
+                currentDate = fd.getDate();
+            else if (!currentDate.equals(fd.getDate()))
+                return false;
+            delta.add(fd);
+            latest = fd;
+            seenRows++;
+            lastRowStart = base + pos;
+            lastRow = Arrays.copyOfRange(buf, pos, end + 1);
+            pos = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * 5分ごとの需要実績の最初の行の位置を求める。<br>
+     * 解析計画の位置の直前が5分ごとの見出しであればそのまま使い、そうでなければ先頭から見出しを探し直す。
+     *
+     * @return 最初の行のバイト位置。見つからなければ本文の長さ
+     */
+    private int fiveMinStart(byte[] body) throws UnsupportedEncodingException {
+        int line = format.getParsePlan().getLine(DemandSection.FIVE_MIN);
+        int pos = 0;
+        for (int i = 0; i < line - 1 && pos < body.length; i++)
+            pos = lineEnd(body, pos) + 1;
+        if (pos < body.length) {
+            int end = lineEnd(body, pos);
+            if (ParsePlan.classify(decode(body, pos, end)) == DemandSection.FIVE_MIN)
+                return end + 1;
+        }
+        ParsePlan.Detector detector = new ParsePlan.Detector(format);
+        pos = 0;
+        for (int i = 0; pos < body.length; i++) {
+            int end = lineEnd(body, pos);
+            if (detector.accept(i, decode(body, pos, end)) == DemandSection.FIVE_MIN) {
+                if (detector.isComplete())
+                    format.setParsePlan(detector.toPlan());
+                return end + 1;
+            }
+            pos = end + 1;
+        }
+        return body.length;
+    }
+
+    private String decode(byte[] buf, int start, int end) throws UnsupportedEncodingException {
+        if (end > start && buf[end - 1] == '\r')
+            end--;
+        return new String(buf, start, end - start, format.charset);
+    }
+
+    private static int lineEnd(byte[] buf, int pos) {
+        while (pos < buf.length && buf[pos] != '\n')
+            pos++;
+        return pos;
+    }
+
+    private static boolean startsWith(byte[] buf, byte[] prefix) {
+        if (buf.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+}
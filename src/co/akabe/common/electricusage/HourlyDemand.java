@@ -19,6 +19,8 @@
 
 package co.akabe.common.electricusage;
 
+import java.util.Comparator;
+import java.util.List;
 import java.util.Vector;
 
 /**
@@ -30,6 +32,10 @@ public class HourlyDemand extends TimeAmountData {
      * 日付
      */
     private String dt;
+    /**
+     * 日付 (通算日)。解釈できなかった場合は {@link DemandDate#INVALID}
+     */
+    private int epochDay;
     /**
      * 当日実績
      */
@@ -57,10 +63,23 @@ public class HourlyDemand extends TimeAmountData {
      * @param y  前日実績
      */
     public HourlyDemand(String d, String t, String dm, String y) {
+        this(d, t, Integer.parseInt(dm), Integer.parseInt(y));
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param d  日付
+     * @param t  時刻
+     * @param dm 当日実績
+     * @param y  前日実績
+     */
+    public HourlyDemand(String d, String t, int dm, int y) {
         dt = d;
-        time = t;
-        td = Integer.parseInt(dm);
-        yd = Integer.parseInt(y);
+        epochDay = d == null ? DemandDate.INVALID : DemandDate.tryParseEpochDay(d);
+        setTime(t);
+        td = dm;
+        yd = y;
         is5Min = false;
     }
 
@@ -75,7 +94,8 @@ public class HourlyDemand extends TimeAmountData {
      */
     public HourlyDemand(String d, String t, String dm, String y, boolean five) {
         dt = d;
-        time = t;
+        epochDay = d == null ? DemandDate.INVALID : DemandDate.tryParseEpochDay(d);
+        setTime(t);
         td = Integer.parseInt(dm);
         yd = Integer.parseInt(y);
         is5Min = five;
@@ -90,6 +110,18 @@ public class HourlyDemand extends TimeAmountData {
         return dt;
     }
 
+    /**
+     * 日付を通算日 (1970年1月1日からの日数) で返す。
+     *
+     * @return 実績データの日付 (通算日)
+     * @throws NumberFormatException 日付として解釈できない場合
+     */
+    public int getEpochDay() {
+        if (epochDay == DemandDate.INVALID)
+            throw new NumberFormatException("Not a date: \"" + dt + "\"");
+        return epochDay;
+    }
+
     /**
      * 時刻を返す。
      *
@@ -198,7 +230,9 @@ public class HourlyDemand extends TimeAmountData {
     }
 
     /**
-     * 最新データを探す
+     * 最新データを探す<br>
+     * パーサから得たデータであれば、解析時に位置を記録している
+     * {@link ElectricUsageCSVParser#getLatest5MinDemand()} などを使うほうが速い。
      *
      * @param v 時間帯ごとのデータのセット
      * @return 最新需要データ
@@ -207,14 +241,74 @@ public class HourlyDemand extends TimeAmountData {
         if (v == null) {
             return null;
         }
-        for (int i = (v.size() - 1); i >= 0; i--) { // 後ろから探索
-            T tmp = v.get(i);
-            if (tmp.getDemandToday() > 0)
-                return tmp; // 0でないデータが発見されたら得られる最新データ
+        synchronized (v) { // 探索中に他のスレッドが変更しないよう、まとめてロックを取る
+            for (int i = (v.size() - 1); i >= 0; i--) { // 後ろから探索
+                T tmp = v.get(i);
+                if (tmp.getDemandToday() > 0)
+                    return tmp; // 0でないデータが発見されたら得られる最新データ
+            }
         }
         return null;
     }
 
+    /**
+     * 時刻が指定した時刻以前である最後のデータを二分探索で探す。<br>
+     * データは時刻の昇順に並んでいること。
+     *
+     * @param v 時間帯ごとのデータのセット
+     * @param minuteOfDay 0時からの経過分
+     * @return 該当するデータの添字。該当するデータがなければ-1
+     */
+    public static int indexAtOrBefore(List<? extends HourlyDemand> v, int minuteOfDay) {
+        return upperBound(v, minuteOfDay) - 1;
+    }
+
+    /**
+     * 時刻が指定した範囲にあるデータを返す。<br>
+     * データは時刻の昇順に並んでいること。返されるリストは元のデータのビューであり、コピーしない。
+     *
+     * @param v 時間帯ごとのデータのセット
+     * @param fromMinute 開始時刻 (0時からの経過分、この時刻を含む)
+     * @param toMinute 終了時刻 (0時からの経過分、この時刻を含む)
+     * @return 範囲内のデータ
+     */
+    public static <T extends HourlyDemand> List<T> between(List<T> v, int fromMinute, int toMinute) {
+        int from = upperBound(v, fromMinute - 1);
+        int to = Math.max(from, upperBound(v, toMinute));
+        return v.subList(from, to);
+    }
+
+    /**
+     * 時刻が指定した時刻より後である最初のデータの添字を返す。
+     */
+    private static int upperBound(List<? extends HourlyDemand> v, int minuteOfDay) {
+        int lo = 0;
+        int hi = v.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (v.get(mid).getMinuteOfDay() <= minuteOfDay)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * 日付・時刻の昇順に並べるためのComparator。区域をまたいだデータの並べ替えに使う。
+     */
+    public static final Comparator<HourlyDemand> CHRONOLOGICAL_ORDER = new Comparator<HourlyDemand>() {
+        public int compare(HourlyDemand a, HourlyDemand b) {
+            int da = a.getEpochDay();
+            int db = b.getEpochDay();
+            if (da != db)
+                return da < db ? -1 : 1;
+            int ma = a.getMinuteOfDay();
+            int mb = b.getMinuteOfDay();
+            return ma < mb ? -1 : (ma == mb ? 0 : 1);
+        }
+    };
+
     @Override
     public int getAmount() {
         return getDemandToday();
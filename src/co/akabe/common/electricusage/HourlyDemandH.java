@@ -30,7 +30,19 @@ public class HourlyDemandH extends HourlyDemand {
      * @param y  前日実績
      */
     public HourlyDemandH(String d, String t, String dm, String y) {
-        super(d, t, dm.split("\\.")[0], y);
+        super(d, t, CSVRowScanner.parseInt(dm), Integer.parseInt(y));
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param d  日付
+     * @param t  時刻
+     * @param dm 当日実績 (小数部切り捨て済み)
+     * @param y  前日実績
+     */
+    public HourlyDemandH(String d, String t, int dm, int y) {
+        super(d, t, dm, y);
     }
 
     /**
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 条件付きGETでデータを取得し、応答をディスクに保存するキャッシュ
+ * <p>
+ * URLごとに前回の応答のETagとLast-Modifiedを覚えておき、次回の取得時に
+ * If-None-Match / If-Modified-Since を送る。サーバが304を返した場合は
+ * 保存しておいた本文と、その本文から作った解析結果を再利用する。
+ * 本文と検証子は指定したディレクトリに保存するため、プロセスを再起動しても引き継がれる。
+ * <p>
+ * 保存するURLの数には上限があり、超えた場合は最も長く使われていないURLの応答をメモリとディスクから破棄する。
+ * 日付入りのURLは日ごとに変わるので、上限がなければ保存した応答が増え続ける。
+ * <p>
+ * このクラスはスレッドセーフである。1つのインスタンスを複数のパーサで共有してよい。
+ */
+public class HttpResponseCache {
+
+    /**
+     * 保存するURLの数の上限の既定値
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private final File directory;
+    private final int maxEntries;
+    private volatile HttpTransport transport = HttpTransport.getDefault();
+
+    /**
+     * 保存済みの応答。キーはファイル名で、使われた順に並ぶ。
+     * 値がnullのものはディスクにだけあり、まだ読み込んでいない。
+     * ディスク上のファイルの置き換えと削除もこのマップで同期する
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * 保存するURLの数の上限を既定値とするインスタンスを作る。
+     *
+     * @param dir 応答を保存するディレクトリ。存在しなければ作成する
+     * @throws IOException ディレクトリを作成できなかった場合
+     */
+    public HttpResponseCache(File dir) throws IOException {
+        this(dir, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * コンストラクタ<br>
+     * ディレクトリに上限より多くの応答が保存されていれば、古いものから削除する。
+     *
+     * @param dir 応答を保存するディレクトリ。存在しなければ作成する
+     * @param max 保存するURLの数の上限
+     * @throws IOException ディレクトリを作成できなかった場合
+     */
+    public HttpResponseCache(File dir, int max) throws IOException {
+        if (max <= 0)
+            throw new IllegalArgumentException("max must be positive: " + max);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create cache directory: " + dir);
+        directory = dir;
+        maxEntries = max;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HttpResponseCache.Entry> eldest) {
+                if (size() <= maxEntries)
+                    return false;
+                deleteFiles(eldest.getKey());
+                return true;
+            }
+        };
+        scanDirectory();
+    }
+
+    /**
+     * 応答を保存するディレクトリを返す。
+     *
+     * @return 保存先ディレクトリ
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 保存するURLの数の上限を返す。
+     *
+     * @return 上限
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * 保存している応答の数を返す。
+     *
+     * @return 保存しているURLの数
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * 取得に使う通信の設定を指定する。
+     *
+     * @param t 通信の設定
+     */
+    public void setTransport(HttpTransport t) {
+        if (t == null)
+            throw new NullPointerException("transport");
+        transport = t;
+    }
+
+    /**
+     * URLからデータを取得する。<br>
+     * 以前の応答が保存されていれば条件付きGETを行い、304が返された場合は保存済みの応答を返す。
+     * HTTP以外のURLはキャッシュせずにそのまま読み込む。
+     *
+     * @param dataURL 取得するURL
+     * @return 取得結果
+     * @throws IOException 通信エラーまたは保存時のエラーが発生した場合
+     */
+    public Response fetch(String dataURL) throws IOException {
+        return fetch(dataURL, null);
+    }
+
+    /**
+     * URLからデータを、データフォーマット定義のタイムアウトで取得する。
+     *
+     * @param dataURL 取得するURL
+     * @param format タイムアウトを決めるデータフォーマット定義。nullの場合は通信の設定の既定値
+     * @return 取得結果
+     * @throws IOException 通信エラーまたは保存時のエラーが発生した場合
+     * @see #fetch(String)
+     */
+    public Response fetch(String dataURL, SupplyDataFormat format) throws IOException {
+        HttpTransport t = transport;
+        URLConnection connection = t.open(dataURL, format, true);
+        if (!(connection instanceof HttpURLConnection))
+            return new Response(new Entry(null, null, t.readBody(connection)), false);
+
+        HttpURLConnection http = (HttpURLConnection) connection;
+        Entry cached = lookup(dataURL);
+        if (cached != null) {
+            if (cached.etag != null)
+                http.setRequestProperty("If-None-Match", cached.etag);
+            if (cached.lastModified != null)
+                http.setRequestProperty("If-Modified-Since", cached.lastModified);
+        }
+
+        int status = http.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            t.discard(http);
+            return new Response(cached, true);
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            t.discard(http);
+            throw DemandFetchException.httpStatus(status, dataURL);
+        }
+
+        Entry fresh = new Entry(http.getHeaderField("ETag"), http.getHeaderField("Last-Modified"),
+                t.readBody(http));
+        if (fresh.etag != null || fresh.lastModified != null)
+            store(dataURL, fresh);
+        else
+            remove(dataURL); // 検証子がなければ条件付きGETはできない
+        return new Response(fresh, false);
+    }
+
+    /**
+     * URLの保存済み応答を破棄する。
+     *
+     * @param dataURL 破棄するURL
+     */
+    public void remove(String dataURL) {
+        String name = fileName(dataURL);
+        synchronized (entries) {
+            entries.remove(name);
+            deleteFiles(name);
+        }
+    }
+
+    private Entry lookup(String dataURL) {
+        String name = fileName(dataURL);
+        synchronized (entries) {
+            if (!entries.containsKey(name))
+                return null;
+            Entry e = entries.get(name);
+            if (e == null) {
+                e = load(name, dataURL);
+                if (e == null)
+                    entries.remove(name); // 読めないファイルは取得し直したときに上書きする
+                else
+                    entries.put(name, e);
+            }
+            return e;
+        }
+    }
+
+    /**
+     * ディレクトリに保存済みの応答を、新しいものが後になるように登録する。
+     * 上限を超えた古い応答と、対になるファイルがない本文は削除する。
+     */
+    private void scanDirectory() {
+        File[] metas = directory.listFiles();
+        if (metas == null)
+            return;
+        Arrays.sort(metas, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        synchronized (entries) {
+            for (File f : metas) {
+                String n = f.getName();
+                if (n.endsWith(".meta"))
+                    entries.put(n.substring(0, n.length() - ".meta".length()), null);
+            }
+            for (File f : metas) {
+                String n = f.getName();
+                if (n.endsWith(".body") && !entries.containsKey(n.substring(0, n.length() - ".body".length())))
+                    f.delete();
+            }
+        }
+    }
+
+    private void deleteFiles(String name) {
+        new File(directory, name + ".meta").delete();
+        new File(directory, name + ".body").delete();
+    }
+
+    private Entry load(String name, String dataURL) {
+        File meta = new File(directory, name + ".meta");
+        File body = new File(directory, name + ".body");
+        if (!meta.isFile() || !body.isFile())
+            return null;
+        try {
+            Properties p = new Properties();
+            InputStream in = new FileInputStream(meta);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            if (!dataURL.equals(p.getProperty("url")))
+                return null;
+            return new Entry(p.getProperty("etag"), p.getProperty("lastModified"),
+                    readFully(new FileInputStream(body)));
+        } catch (IOException e) {
+            return null; // 壊れたキャッシュは無視して取得し直す
+        }
+    }
+
+    private void store(String dataURL, Entry e) throws IOException {
+        String name = fileName(dataURL);
+        Properties p = new Properties();
+        p.setProperty("url", dataURL);
+        if (e.etag != null)
+            p.setProperty("etag", e.etag);
+        if (e.lastModified != null)
+            p.setProperty("lastModified", e.lastModified);
+
+        // 一時ファイルは書き込みごとに別の名前にし、同じURLを同時に保存しても混ざらないようにする
+        File bodyTmp = File.createTempFile(name + ".", ".tmp", directory);
+        File metaTmp = null;
+        try {
+            OutputStream out = new FileOutputStream(bodyTmp);
+            try {
+                out.write(e.body);
+            } finally {
+                out.close();
+            }
+            metaTmp = File.createTempFile(name + ".", ".tmp", directory);
+            out = new FileOutputStream(metaTmp);
+            try {
+                p.store(out, null);
+            } finally {
+                out.close();
+            }
+            // 本文を先に置き換え、メタデータを最後に置き換えることで、中途半端な状態を読まないようにする
+            synchronized (entries) {
+                File meta = new File(directory, name + ".meta");
+                meta.delete();
+                replace(bodyTmp, new File(directory, name + ".body"));
+                replace(metaTmp, meta);
+                entries.put(name, e);
+            }
+        } finally {
+            bodyTmp.delete();
+            if (metaTmp != null)
+                metaTmp.delete();
+        }
+    }
+
+    private static void replace(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            to.delete();
+            if (!from.renameTo(to))
+                throw new IOException("Cannot write cache file: " + to);
+        }
+    }
+
+    private static String fileName(String dataURL) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(dataURL.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 保存済みの応答
+     */
+    private static final class Entry {
+        final String etag;
+        final String lastModified;
+        final byte[] body;
+        volatile Object parsed;
+
+        Entry(String et, String lm, byte[] b) {
+            etag = et;
+            lastModified = lm;
+            body = b;
+        }
+    }
+
+    /**
+     * {@link HttpResponseCache#fetch(String)} の取得結果
+     */
+    public static final class Response {
+
+        private final Entry entry;
+        private final boolean notModified;
+
+        Response(Entry e, boolean nm) {
+            entry = e;
+            notModified = nm;
+        }
+
+        /**
+         * 応答の本文を返す。返された配列は変更しないこと。
+         *
+         * @return 応答の本文
+         */
+        public byte[] getBody() {
+            return entry.body;
+        }
+
+        /**
+         * サーバが304 (Not Modified) を返したかどうかを返す。
+         *
+         * @return 保存済みの応答を再利用した場合はtrue
+         */
+        public boolean isNotModified() {
+            return notModified;
+        }
+
+        /**
+         * この本文から作った解析結果を返す。
+         *
+         * @return 解析結果。まだ解析されていなければnull
+         */
+        public Object getParsed() {
+            return entry.parsed;
+        }
+
+        /**
+         * この本文から作った解析結果を保存する。次に304が返されたときに再利用される。
+         * 解析結果はメモリ上にだけ保存される。
+         *
+         * @param parsed 解析結果
+         */
+        public void setParsed(Object parsed) {
+            entry.parsed = parsed;
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 需給データの取得に使う通信の設定
+ * <p>
+ * 次のことを行う：
+ * <ul>
+ * <li>接続・読み込みのタイムアウトを設定する。データフォーマット定義ごとに
+ * {@link SupplyDataFormat#setTimeouts(int, int)} で上書きできる</li>
+ * <li>Accept-Encoding: gzip を送り、圧縮された応答を展開する</li>
+ * <li>エラー応答の本文を読み捨て、本文の読み残しが {@link #DRAIN_LIMIT_BYTES} 以下なら読み捨ててから閉じる。
+ * こうすることでJDKが接続をホストごとにプールし、次の取得で再利用する (持続的接続)。
+ * 途中で読み込みを打ち切った場合に読み残しがそれより多ければ、読み捨てずに接続を切る</li>
+ * <li>通信路上のバイト数 (圧縮されたまま) と展開後のバイト数を数える</li>
+ * </ul>
+ * <p>
+ * このクラスはスレッドセーフである。
+ */
+public class HttpTransport {
+
+    /**
+     * 接続タイムアウトの既定値 (ミリ秒)
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * 読み込みタイムアウトの既定値 (ミリ秒)
+     */
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * 途中で閉じた本文を、接続の再利用のために読み捨てる上限 (バイト)。
+     * 読み残しがこれより多いか、長さが分からない場合は接続を切る
+     */
+    public static final int DRAIN_LIMIT_BYTES = 16 * 1024;
+
+    private static final HttpTransport DEFAULT = new HttpTransport();
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT_MILLIS;
+    private volatile boolean gzip = true;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+
+    /**
+     * 共有の設定を返す。パーサなどで設定を指定しなかった場合に使われる。
+     *
+     * @return 共有の設定
+     */
+    public static HttpTransport getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * タイムアウトの既定値を設定する。
+     *
+     * @param connectMillis 接続タイムアウト (ミリ秒)。0は無期限
+     * @param readMillis 読み込みタイムアウト (ミリ秒)。0は無期限
+     */
+    public void setTimeouts(int connectMillis, int readMillis) {
+        if (connectMillis < 0 || readMillis < 0)
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        connectTimeout = connectMillis;
+        readTimeout = readMillis;
+    }
+
+    /**
+     * gzipで圧縮された応答を受け付けるかどうかを設定する。
+     *
+     * @param enabled 受け付ける場合はtrue (既定値)
+     */
+    public void setGzipEnabled(boolean enabled) {
+        gzip = enabled;
+    }
+
+    /**
+     * gzipで圧縮された応答を受け付けるかどうかを返す。
+     *
+     * @return 受け付ける場合はtrue
+     */
+    public boolean isGzipEnabled() {
+        return gzip;
+    }
+
+    /**
+     * データフォーマット定義に対する接続タイムアウトを返す。
+     *
+     * @param format データフォーマット定義。nullの場合は既定値
+     * @return 接続タイムアウト (ミリ秒)
+     */
+    public int getConnectTimeout(SupplyDataFormat format) {
+        return format != null && format.getConnectTimeout() > 0 ? format.getConnectTimeout() : connectTimeout;
+    }
+
+    /**
+     * データフォーマット定義に対する読み込みタイムアウトを返す。
+     *
+     * @param format データフォーマット定義。nullの場合は既定値
+     * @return 読み込みタイムアウト (ミリ秒)
+     */
+    public int getReadTimeout(SupplyDataFormat format) {
+        return format != null && format.getReadTimeout() > 0 ? format.getReadTimeout() : readTimeout;
+    }
+
+    /**
+     * 接続を作る。まだ接続はしないので、呼び出し側でリクエストヘッダを追加してよい。
+     *
+     * @param url 取得するURL
+     * @param format タイムアウトを決めるデータフォーマット定義。nullの場合は既定値
+     * @param allowGzip gzipを受け付けるか。Rangeで本文の一部を取得する場合はfalseにすること
+     * @return 接続
+     * @throws IOException URLが不正な場合
+     */
+    public URLConnection open(String url, SupplyDataFormat format, boolean allowGzip) throws IOException {
+        URLConnection c = new URL(url).openConnection();
+        c.setDoInput(true);
+        c.setConnectTimeout(getConnectTimeout(format));
+        c.setReadTimeout(getReadTimeout(format));
+        if (allowGzip && gzip && c instanceof HttpURLConnection)
+            c.setRequestProperty("Accept-Encoding", "gzip");
+        requests.incrementAndGet();
+        return c;
+    }
+
+    /**
+     * 応答の本文を開く。gzipで圧縮されていれば展開する。<br>
+     * 最後まで読むか、読み残しが {@link #DRAIN_LIMIT_BYTES} 以下で閉じた場合は、接続は再利用される。
+     * それより多く読み残して閉じた場合は、残りを受け取らずに接続を切る。
+     *
+     * @param c {@link #open(String, SupplyDataFormat, boolean)} で作った接続
+     * @return 本文の入力ストリーム
+     * @throws DemandFetchException サーバがエラーのステータスを返した場合
+     * @throws IOException 通信エラーが発生した場合
+     */
+    public InputStream body(URLConnection c) throws IOException {
+        if (c instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection) c;
+            int status = http.getResponseCode();
+            if (status >= 400) {
+                discard(http);
+                throw DemandFetchException.httpStatus(status, c.getURL().toString());
+            }
+        }
+        InputStream wire = new Wire(c.getInputStream(), wireBytes,
+                c instanceof HttpURLConnection ? (HttpURLConnection) c : null, c.getContentLengthLong());
+        if ("gzip".equalsIgnoreCase(c.getContentEncoding()))
+            return new Counting(new GZIPInputStream(wire), decodedBytes);
+        return new Counting(wire, decodedBytes);
+    }
+
+    /**
+     * 応答の本文を全て読み込んで閉じる。
+     *
+     * @param c {@link #open(String, SupplyDataFormat, boolean)} で作った接続
+     * @return 本文
+     * @throws IOException 通信エラーが発生した場合
+     */
+    public byte[] readBody(URLConnection c) throws IOException {
+        return HttpResponseCache.readFully(body(c));
+    }
+
+    /**
+     * 本文を使わない応答 (304やエラー) を読み捨てる。接続は再利用される。
+     *
+     * @param c 接続
+     */
+    public void discard(HttpURLConnection c) {
+        InputStream in = c.getErrorStream();
+        try {
+            if (in == null)
+                in = c.getInputStream();
+            drain(in);
+        } catch (IOException e) {
+            // 読み捨てに失敗した接続は再利用されないだけ
+        }
+    }
+
+    /**
+     * 作った接続の数を返す。
+     *
+     * @return 接続を作った回数
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * 通信路上で受け取った本文のバイト数を返す。圧縮されていれば圧縮されたままの大きさである。
+     *
+     * @return 受け取ったバイト数
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * 展開後の本文のバイト数を返す。
+     *
+     * @return 展開後のバイト数
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    /**
+     * 他の経路 ({@link AsyncHttpClient}) で受け取ったバイト数を記録する。
+     */
+    void record(long wire, long decoded) {
+        requests.incrementAndGet();
+        wireBytes.addAndGet(wire);
+        decodedBytes.addAndGet(decoded);
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        try {
+            byte[] buf = new byte[4096];
+            while (in.read(buf) != -1) {
+                // 読み捨てる
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 読んだバイト数を数える入力ストリーム
+     */
+    private static class Counting extends FilterInputStream {
+        private final AtomicLong counter;
+        long count;
+        boolean eof;
+
+        Counting(InputStream in, AtomicLong c) {
+            super(in);
+            counter = c;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.incrementAndGet();
+                count++;
+            } else {
+                eof = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counter.addAndGet(n);
+                count += n;
+            } else if (n < 0) {
+                eof = true;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counter.addAndGet(skipped);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * 通信路上の本文。閉じるときに、読み残しの量に応じて読み捨てるか接続を切るかを決める
+     */
+    private static final class Wire extends Counting {
+        private final HttpURLConnection connection;
+        private final long length;
+
+        Wire(InputStream in, AtomicLong c, HttpURLConnection http, long contentLength) {
+            super(in, c);
+            connection = http;
+            length = contentLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!eof && connection != null) {
+                if (length >= 0 && length - count <= DRAIN_LIMIT_BYTES) {
+                    // 読み残しが少なければ読み捨てて、接続を再利用できるようにする
+                    byte[] buf = new byte[4096];
+                    try {
+                        while (read(buf, 0, buf.length) != -1) {
+                            // 読み捨てる
+                        }
+                    } catch (IOException e) {
+                        // 読み捨てに失敗した接続は再利用されないだけ
+                    }
+                } else {
+                    // 途中で打ち切った大きな本文や長さの分からない本文は、残りを受け取らずに接続を切る
+                    connection.disconnect();
+                    return;
+                }
+            }
+            super.close();
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 計測値をJMXで公開する {@link DemandMetrics} の実装
+ * <p>
+ * {@link #forArea(ServiceArea)} で区域ごとのインスタンスを得て、データフォーマット定義に設定する。
+ * インスタンスはプラットフォームのMBeanServerに
+ * {@code co.akabe.common.electricusage:type=DemandMetrics,area=区域名} として登録され、
+ * jconsoleなどで区域ごとの取得時間のヒストグラム・解析時間・受信バイト数・行数・
+ * キャッシュヒット数・例外の種類ごとの失敗回数を見られる。
+ * <p>
+ * 記録はロックを取らず、アトミックな加算だけで行う。
+ * このクラスはスレッドセーフである。
+ */
+public class JmxDemandMetrics implements DemandMetrics, DemandMetricsMXBean {
+
+    /**
+     * 登録するMBeanのドメイン
+     */
+    public static final String DOMAIN = "co.akabe.common.electricusage";
+
+    /**
+     * 取得時間のヒストグラムの区間の上限 (ミリ秒)
+     */
+    private static final long[] BUCKETS_MILLIS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    private static final ConcurrentMap<ServiceArea, JmxDemandMetrics> AREAS =
+            new ConcurrentHashMap<ServiceArea, JmxDemandMetrics>();
+
+    private final String name;
+    private volatile ObjectName objectName;
+
+    private final AtomicLongArray fetchHistogram = new AtomicLongArray(BUCKETS_MILLIS.length + 1);
+    private final AtomicLong fetchCount = new AtomicLong();
+    private final AtomicLong fetchNanos = new AtomicLong();
+    private final AtomicLong fetchMaxNanos = new AtomicLong();
+    private final AtomicLong parseCount = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong rowsParsed = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * コンストラクタ。JMXには登録しない。
+     *
+     * @param name 計測対象の名前 (区域名など)
+     */
+    public JmxDemandMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 区域の計測値を得る。初めて呼ばれたときに作成してJMXに登録する。
+     *
+     * @param area 供給区域
+     * @return 区域の計測値
+     */
+    public static JmxDemandMetrics forArea(ServiceArea area) {
+        JmxDemandMetrics m = AREAS.get(area);
+        if (m != null)
+            return m;
+        m = new JmxDemandMetrics(area.name());
+        JmxDemandMetrics prev = AREAS.putIfAbsent(area, m);
+        if (prev != null)
+            return prev;
+        m.register();
+        return m;
+    }
+
+    /**
+     * プラットフォームのMBeanServerに登録する。同じ名前が登録済みの場合は何もしない。
+     *
+     * @return 登録した場合はtrue
+     */
+    public synchronized boolean register() {
+        if (objectName != null)
+            return true;
+        try {
+            String value = name.matches("[\\w.-]+") ? name : ObjectName.quote(name);
+            ObjectName on = new ObjectName(DOMAIN + ":type=DemandMetrics,area=" + value);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(on))
+                return false;
+            server.registerMBean(this, on);
+            objectName = on;
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    /**
+     * MBeanServerへの登録を解除する。
+     */
+    public synchronized void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // 既に解除されている
+        }
+        objectName = null;
+    }
+
+    /**
+     * 登録した名前を返す。
+     *
+     * @return MBeanの名前。登録していなければnull
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public void recordFetch(long nanos, long bytes) {
+        long millis = nanos / 1000000;
+        int i = 0;
+        while (i < BUCKETS_MILLIS.length && millis > BUCKETS_MILLIS[i])
+            i++;
+        fetchHistogram.incrementAndGet(i);
+        fetchCount.incrementAndGet();
+        fetchNanos.addAndGet(nanos);
+        bytesRead.addAndGet(bytes);
+        long max;
+        while (nanos > (max = fetchMaxNanos.get()) && !fetchMaxNanos.compareAndSet(max, nanos)) {
+            // 他のスレッドが更新した：読み直す
+        }
+    }
+
+    public void recordParse(long nanos, int rows) {
+        parseCount.incrementAndGet();
+        parseNanos.addAndGet(nanos);
+        rowsParsed.addAndGet(rows);
+    }
+
+    public void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public void recordError(Throwable cause) {
+        String type = cause.getClass().getName();
+        if (cause instanceof DemandFetchException)
+            type += "(" + ((DemandFetchException) cause).getReason() + ")";
+        AtomicLong c = errors.get(type);
+        if (c == null) {
+            AtomicLong created = new AtomicLong();
+            c = errors.putIfAbsent(type, created);
+            if (c == null)
+                c = created;
+        }
+        c.incrementAndGet();
+    }
+
+    public String getArea() {
+        return name;
+    }
+
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    public long[] getFetchLatencyBucketsMillis() {
+        return BUCKETS_MILLIS.clone();
+    }
+
+    public long[] getFetchLatencyHistogram() {
+        long[] ret = new long[fetchHistogram.length()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = fetchHistogram.get(i);
+        return ret;
+    }
+
+    public double getFetchLatencyMeanMillis() {
+        return mean(fetchNanos.get(), fetchCount.get());
+    }
+
+    public double getFetchLatencyMaxMillis() {
+        return fetchMaxNanos.get() / 1e6;
+    }
+
+    public long getFetchLatencyP50Millis() {
+        return percentile(0.5);
+    }
+
+    public long getFetchLatencyP99Millis() {
+        return percentile(0.99);
+    }
+
+    public long getParseCount() {
+        return parseCount.get();
+    }
+
+    public double getParseTimeMeanMillis() {
+        return mean(parseNanos.get(), parseCount.get());
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getRowsParsed() {
+        return rowsParsed.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getErrorCount() {
+        long sum = 0;
+        for (AtomicLong c : errors.values())
+            sum += c.get();
+        return sum;
+    }
+
+    public Map<String, Long> getErrorsByType() {
+        Map<String, Long> ret = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : errors.entrySet())
+            ret.put(e.getKey(), e.getValue().get());
+        return ret;
+    }
+
+    public void reset() {
+        for (int i = 0; i < fetchHistogram.length(); i++)
+            fetchHistogram.set(i, 0);
+        fetchCount.set(0);
+        fetchNanos.set(0);
+        fetchMaxNanos.set(0);
+        parseCount.set(0);
+        parseNanos.set(0);
+        bytesRead.set(0);
+        rowsParsed.set(0);
+        cacheHits.set(0);
+        errors.clear();
+    }
+
+    private static double mean(long nanos, long count) {
+        return count == 0 ? 0 : nanos / 1e6 / count;
+    }
+
+    /**
+     * ヒストグラムからパーセンタイルを求める。区間の上限を返し、最後の区間の場合は最大値を返す。
+     */
+    private long percentile(double p) {
+        long[] h = getFetchLatencyHistogram();
+        long total = 0;
+        for (long n : h)
+            total += n;
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS_MILLIS.length; i++) {
+            seen += h[i];
+            if (seen >= rank)
+                return BUCKETS_MILLIS[i];
+        }
+        return fetchMaxNanos.get() / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "JmxDemandMetrics[" + name + ", fetches=" + getFetchCount() + ", errors=" + getErrorCount() + "]";
+    }
+
+}
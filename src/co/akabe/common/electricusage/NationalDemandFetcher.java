@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 全区域の需給データを並行して取得するクラス
+ * <p>
+ * 各区域の取得を同時に開始するため、1回の更新にかかる時間は各社の応答時間の合計ではなく、
+ * 最も遅い会社の応答時間で決まる。同時に実行する取得の数は上限を設けて制限する。
+ * 仮想スレッドが使えるJVMでは仮想スレッドで、そうでなければ固定数のスレッドプールで実行する。
+ * 区域ごとのデータフォーマット定義は最初の取得で1回だけ作り、以降の取得で使い回す。
+ * 日付入りのURLを使う区域も、URLのテンプレートを持つ定義を取得のたびに解決する。
+ * そのため応答しない会社は区域ごとの {@link CircuitBreaker} が開き、しばらくはすぐに失敗するので、
+ * その会社のタイムアウトが毎回の更新にかかることはない。検出した解析計画やタイムアウトの設定も引き継がれる。
+ * <p>
+ * 使い終わったら {@link #shutdown()} を呼ぶこと。
+ */
+public class NationalDemandFetcher {
+
+    /**
+     * 区域ごとのタイムアウトの既定値 (ミリ秒)
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final long timeoutMillis;
+    private volatile HttpResponseCache responseCache;
+    private volatile boolean metricsEnabled;
+    private final Map<ServiceArea, SupplyDataFormat> areaFormats =
+            new EnumMap<ServiceArea, SupplyDataFormat>(ServiceArea.class);
+
+    /**
+     * 全区域を同時に取得し、区域ごとのタイムアウトを既定値とするインスタンスを作る。
+     */
+    public NationalDemandFetcher() {
+        this(ServiceArea.values().length, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param maxConcurrency 同時に実行する取得の上限
+     * @param timeout 区域ごとのタイムアウト (ミリ秒)。一括取得の開始時点から数える
+     */
+    public NationalDemandFetcher(int maxConcurrency, long timeout) {
+        if (maxConcurrency <= 0)
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        timeoutMillis = timeout;
+        permits = new Semaphore(maxConcurrency);
+        executor = createExecutor(maxConcurrency, "electricusage-fetch-");
+    }
+
+    /**
+     * 条件付きGETに使うレスポンスキャッシュを設定する。
+     *
+     * @param cache レスポンスキャッシュ。nullの場合はキャッシュを使わない
+     * @see ElectricUsageCSVParser#setResponseCache(HttpResponseCache)
+     */
+    public void setResponseCache(HttpResponseCache cache) {
+        responseCache = cache;
+    }
+
+    /**
+     * 区域ごとの計測値をJMXで公開するかどうかを設定する。<br>
+     * 有効にすると、{@link #fetch()} と {@link #fetch(EnumSet)} で使うデータフォーマット定義に
+     * {@link JmxDemandMetrics#forArea(ServiceArea)} を設定する。
+     * 既に記録先が設定されているデータフォーマット定義はそのままにする。
+     *
+     * @param enabled 公開する場合はtrue
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        metricsEnabled = enabled;
+    }
+
+    /**
+     * 区域の取得に使うデータフォーマット定義を差し替える。<br>
+     * 取得先のURLを差し替える場合に使う。
+     *
+     * @param area 供給区域
+     * @param f データフォーマット定義。nullの場合は {@link ServiceArea#buildFormat()} で作り直す
+     */
+    public void setFormat(ServiceArea area, SupplyDataFormat f) {
+        synchronized (areaFormats) {
+            if (f == null)
+                areaFormats.remove(area);
+            else
+                areaFormats.put(area, f);
+        }
+    }
+
+    /**
+     * 区域の取得に使うデータフォーマット定義を返す。<br>
+     * 最初に呼ばれたときに {@link ServiceArea#buildFormat()} で作り、以降は同じものを返す。
+     * タイムアウトやサーキットブレーカーの設定は、返された定義に対して行えばよい。
+     *
+     * @param area 供給区域
+     * @return データフォーマット定義
+     */
+    public SupplyDataFormat getFormat(ServiceArea area) {
+        synchronized (areaFormats) {
+            SupplyDataFormat f = areaFormats.get(area);
+            if (f == null) {
+                f = area.buildFormat();
+                areaFormats.put(area, f);
+            }
+            return f;
+        }
+    }
+
+    /**
+     * 全区域のデータを取得する。
+     *
+     * @return 全区域の取得結果
+     * @throws InterruptedException 取得の待機中に割り込まれた場合
+     */
+    public NationalSnapshot fetch() throws InterruptedException {
+        return fetch(EnumSet.allOf(ServiceArea.class));
+    }
+
+    /**
+     * 指定した区域のデータを取得する。<br>
+     * ある区域の取得に失敗しても他の区域の取得は続行し、失敗の原因を結果に記録する。
+     *
+     * @param targets 取得する区域
+     * @return 指定した区域の取得結果
+     * @throws InterruptedException 取得の待機中に割り込まれた場合
+     */
+    public NationalSnapshot fetch(EnumSet<ServiceArea> targets) throws InterruptedException {
+        Map<ServiceArea, SupplyDataFormat> selected =
+                new EnumMap<ServiceArea, SupplyDataFormat>(ServiceArea.class);
+        for (ServiceArea area : targets) {
+            SupplyDataFormat f = getFormat(area);
+            if (metricsEnabled && f.getMetrics() == DemandMetrics.NONE)
+                f.setMetrics(JmxDemandMetrics.forArea(area));
+            selected.put(area, f);
+        }
+        return fetch(selected);
+    }
+
+    /**
+     * 区域ごとに指定したデータフォーマット定義でデータを取得する。<br>
+     * サーキットブレーカーや解析計画は定義ごとに持つので、繰り返し取得する場合は同じ定義を渡すこと。
+     *
+     * @param formats 取得する区域とそのデータフォーマット定義
+     * @return 指定した区域の取得結果
+     * @throws InterruptedException 取得の待機中に割り込まれた場合
+     */
+    public NationalSnapshot fetch(Map<ServiceArea, SupplyDataFormat> formats) throws InterruptedException {
+        final long fetchedAt = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        Map<ServiceArea, Future<AreaSnapshot>> futures =
+                new EnumMap<ServiceArea, Future<AreaSnapshot>>(ServiceArea.class);
+        for (Map.Entry<ServiceArea, SupplyDataFormat> e : formats.entrySet())
+            futures.put(e.getKey(), executor.submit(new FetchTask(e.getKey(), e.getValue(), start)));
+
+        EnumMap<ServiceArea, AreaSnapshot> results = new EnumMap<ServiceArea, AreaSnapshot>(ServiceArea.class);
+        for (Map.Entry<ServiceArea, Future<AreaSnapshot>> e : futures.entrySet()) {
+            ServiceArea area = e.getKey();
+            Future<AreaSnapshot> future = e.getValue();
+            AreaSnapshot result;
+            try {
+                result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException ex) {
+                result = new AreaSnapshot(area, formats.get(area), ex.getCause(), elapsedSince(start));
+            } catch (TimeoutException ex) {
+                future.cancel(true);
+                // 応答の遅いサーバを開いて、次回以降の更新を待たせないようにする
+                formats.get(area).getCircuitBreaker().onFailure(ex);
+                formats.get(area).getMetrics().recordError(ex);
+                result = new AreaSnapshot(area, formats.get(area), ex, elapsedSince(start));
+            } catch (InterruptedException ex) {
+                for (Future<AreaSnapshot> f : futures.values())
+                    f.cancel(true);
+                throw ex;
+            }
+            results.put(area, result);
+        }
+        return new NationalSnapshot(results, fetchedAt, elapsedSince(start));
+    }
+
+    /**
+     * 取得用のスレッドを停止する。実行中の取得は中断しない。
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static long elapsedSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * 取得用のExecutorを作る。<br>
+     * 仮想スレッド (Java 21以降) が使えれば使い、使えなければデーモンスレッドの固定プールにする。
+     *
+     * @param maxConcurrency 固定プールのスレッド数
+     * @param namePrefix 固定プールのスレッド名の接頭辞
+     */
+    static ExecutorService createExecutor(int maxConcurrency, final String namePrefix) {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            // 仮想スレッドが使えないJVM
+        }
+        return Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, namePrefix + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * 1区域分を取得するタスク
+     */
+    private class FetchTask implements Callable<AreaSnapshot> {
+
+        private final ServiceArea area;
+        private final SupplyDataFormat format;
+        private final long start;
+
+        FetchTask(ServiceArea a, SupplyDataFormat f, long s) {
+            area = a;
+            format = f;
+            start = s;
+        }
+
+        public AreaSnapshot call() throws Exception {
+            permits.acquire();
+            try {
+                ElectricUsageCSVParser parser = new ElectricUsageCSVParser(format);
+                parser.setResponseCache(responseCache);
+                return new AreaSnapshot(area, format, parser.getDocument(), elapsedSince(start));
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * 全国一括取得の結果
+ * <p>
+ * 区域ごとの取得結果 ({@link AreaSnapshot}) をまとめて保持する。
+ */
+public final class NationalSnapshot {
+
+    private final Map<ServiceArea, AreaSnapshot> areas;
+    private final long fetchedAt;
+    private final long elapsedMillis;
+
+    NationalSnapshot(EnumMap<ServiceArea, AreaSnapshot> a, long fetched, long elapsed) {
+        areas = Collections.unmodifiableMap(a);
+        fetchedAt = fetched;
+        elapsedMillis = elapsed;
+    }
+
+    /**
+     * 区域の取得結果を返す。
+     *
+     * @param area 供給区域
+     * @return 取得結果。取得対象でなかった区域ではnull
+     */
+    public AreaSnapshot get(ServiceArea area) {
+        return areas.get(area);
+    }
+
+    /**
+     * 全区域の取得結果を返す。
+     *
+     * @return 区域ごとの取得結果 (変更不可)
+     */
+    public Map<ServiceArea, AreaSnapshot> getAreas() {
+        return areas;
+    }
+
+    /**
+     * 取得に成功した区域の結果を返す。
+     *
+     * @return 取得に成功した区域の結果
+     */
+    public Vector<AreaSnapshot> getSucceeded() {
+        Vector<AreaSnapshot> ret = new Vector<AreaSnapshot>();
+        for (AreaSnapshot s : areas.values()) {
+            if (s.isSuccess())
+                ret.add(s);
+        }
+        return ret;
+    }
+
+    /**
+     * 取得に失敗した区域の結果を返す。
+     *
+     * @return 取得に失敗した区域の結果
+     */
+    public Vector<AreaSnapshot> getFailed() {
+        Vector<AreaSnapshot> ret = new Vector<AreaSnapshot>();
+        for (AreaSnapshot s : areas.values()) {
+            if (!s.isSuccess())
+                ret.add(s);
+        }
+        return ret;
+    }
+
+    /**
+     * 取得を開始した時刻を返す。
+     *
+     * @return 取得開始時刻 ({@link System#currentTimeMillis()} の値)
+     */
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    /**
+     * 一括取得全体にかかった時間を返す。
+     *
+     * @return 一括取得にかかった時間 (ミリ秒)
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+}
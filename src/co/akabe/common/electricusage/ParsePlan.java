@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ *
+ * This file is part of the Electricity Usage Parser Library.
+ *
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * 供給データCSVの各セクションがどの行から始まるかをまとめた解析計画
+ * <p>
+ * セクションの見出し行 (「ピーク時供給力」「予想最大電力」「DATE,TIME」で始まる行) を先頭から1回だけ走査して、
+ * 各セクションのデータ行の位置を求める。求めた計画は {@link SupplyDataFormat#getParsePlan()} で
+ * データフォーマット定義ごとにキャッシュし、次回以降の取得では見出し行が同じ位置にあることだけを確かめて再利用する。
+ * 電力会社が行を追加するなどして確認に失敗した場合だけ、検出をやり直す。
+ * <p>
+ * 読み込むセクションはデータフォーマット定義の行番号で決まる。行番号が0のセクションは見出しがあっても読まない。
+ * 行番号そのものは、検出を行う前の初期値としてだけ使う。
+ * <p>
+ * このクラスは不変である。
+ */
+public final class ParsePlan {
+
+    /**
+     * ピーク時供給力の見出しに含まれる文字列
+     */
+    static final String PEAK_SUPPLY_MARKER = "供給力";
+
+    /**
+     * ピーク時予想最大電力の見出しに含まれる文字列
+     */
+    static final String PEAK_DEMAND_MARKER = "予想最大電力";
+
+    /**
+     * 需要実績の見出しの先頭
+     */
+    static final String SERIES_MARKER = "DATE,TIME";
+
+    /**
+     * 5分ごとの需要実績の見出しに含まれる文字列 (「５分間隔値」)
+     */
+    static final String FIVE_MIN_MARKER = "分間隔";
+
+    /**
+     * 5分ごとの需要実績の見出しで、第4フィールドが前日実績であることを表す列名
+     */
+    static final String PREVIOUS_DAY_COLUMN = "前日実績";
+
+    private static final DemandSection[] SECTIONS = DemandSection.values();
+
+    /**
+     * セクションごとのデータ行の位置 (0始まり)。0はセクションがないことを表す
+     */
+    private final int[] lines;
+
+    /**
+     * 5分ごとの需要実績が第4フィールド (前日実績) を持つ
+     */
+    private final boolean fiveMinSecondary;
+
+    /**
+     * 見出しから検出した計画である
+     */
+    private final boolean detected;
+
+    /**
+     * データフォーマット定義で読むことになっているが、見出しが見つからなかったセクション
+     */
+    private final EnumSet<DemandSection> missing;
+
+    private ParsePlan(int[] lines, boolean fiveMinSecondary, boolean detected, EnumSet<DemandSection> missing) {
+        this.lines = lines;
+        this.fiveMinSecondary = fiveMinSecondary;
+        this.detected = detected;
+        this.missing = missing;
+    }
+
+    /**
+     * データフォーマット定義の行番号をそのまま使う計画を作る。
+     *
+     * @param f データフォーマット定義
+     * @return 見出しを確かめていない計画
+     */
+    static ParsePlan fromFormat(SupplyDataFormat f) {
+        int[] lines = new int[SECTIONS.length];
+        for (DemandSection s : SECTIONS)
+            lines[s.ordinal()] = configuredLine(f, s);
+        // 九州電力に対する特例：時間ごとのデータがない形式では5分ごとの第4フィールドが前日実績
+        return new ParsePlan(lines, f.hourlyDemand_Line == 0, false, EnumSet.noneOf(DemandSection.class));
+    }
+
+    /**
+     * 読み込んだ行を先頭から走査し、見出し行から計画を作る。<br>
+     * 読むことになっている全てのセクションが見つかった時点で走査を打ち切る。
+     *
+     * @param f データフォーマット定義
+     * @param lines 読み込んだテキスト
+     * @return 検出した計画。見出しが見つからなかったセクションは {@link #getMissingSections()} に入る
+     */
+    public static ParsePlan detect(SupplyDataFormat f, List<? extends CharSequence> lines) {
+        Detector d = new Detector(f);
+        int lineNo = 0;
+        for (CharSequence line : lines) {
+            d.accept(lineNo++, line);
+            if (d.isComplete())
+                break;
+        }
+        return d.toPlan();
+    }
+
+    /**
+     * 読み込んだ行がこの計画どおりの位置に見出しを持つかどうかを確かめる。<br>
+     * 見出し行を各セクション1行ずつ調べるだけなので、検出よりはるかに軽い。
+     * 見出しが見つからなかったセクションがある計画は、次の取得で見つかる可能性があるので常に失敗とする。
+     *
+     * @param text 読み込んだテキスト
+     * @return 全てのセクションの見出しが計画どおりの位置にあればtrue
+     */
+    public boolean matches(List<? extends CharSequence> text) {
+        if (!missing.isEmpty())
+            return false;
+        for (DemandSection s : SECTIONS) {
+            int line = lines[s.ordinal()];
+            if (line == 0)
+                continue;
+            if (line >= text.size() || classify(text.get(line - 1)) != s)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * セクションのデータ行の位置を返す。
+     *
+     * @param s セクション
+     * @return データ行の位置 (0始まり)。セクションがなければ0
+     */
+    public int getLine(DemandSection s) {
+        return lines[s.ordinal()];
+    }
+
+    /**
+     * セクションを読むかどうかを返す。
+     *
+     * @param s セクション
+     * @return 読む場合はtrue
+     */
+    public boolean has(DemandSection s) {
+        return lines[s.ordinal()] != 0;
+    }
+
+    /**
+     * 5分ごとの需要実績が第4フィールドに前日実績を持つかどうかを返す。
+     *
+     * @return 前日実績を持つ場合はtrue
+     */
+    public boolean hasFiveMinSecondary() {
+        return fiveMinSecondary;
+    }
+
+    /**
+     * 見出しから検出した計画かどうかを返す。
+     *
+     * @return 検出した計画であればtrue。データフォーマット定義の行番号をそのまま使う計画であればfalse
+     */
+    public boolean isDetected() {
+        return detected;
+    }
+
+    /**
+     * 読むことになっているが見出しが見つからなかったセクションを返す。
+     *
+     * @return 見つからなかったセクション。全て見つかった場合は空
+     */
+    public EnumSet<DemandSection> getMissingSections() {
+        return EnumSet.copyOf(missing);
+    }
+
+    /**
+     * 各セクションの位置が同じかどうかを返す。
+     *
+     * @param other 比べる計画
+     * @return 位置と第4フィールドの扱いが同じであればtrue
+     */
+    public boolean hasSameLayout(ParsePlan other) {
+        if (other == null || fiveMinSecondary != other.fiveMinSecondary)
+            return false;
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i] != other.lines[i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ParsePlan[");
+        for (DemandSection s : SECTIONS) {
+            if (s.ordinal() > 0)
+                sb.append(',');
+            sb.append(s).append('=').append(lines[s.ordinal()]);
+        }
+        if (!missing.isEmpty())
+            sb.append(",missing=").append(missing);
+        return sb.append(']').toString();
+    }
+
+    /**
+     * 行がセクションの見出しであれば、そのセクションを返す。<br>
+     * データ行は数字で始まるので、先頭の1文字だけで見出しでないと分かる。
+     *
+     * @param line 行
+     * @return 見出しであればセクション、そうでなければnull
+     */
+    static DemandSection classify(CharSequence line) {
+        if (line.length() == 0)
+            return null;
+        char c = line.charAt(0);
+        if (c >= '0' && c <= '9')
+            return null;
+        String s = line.toString();
+        if (c == '\uFEFF')
+            s = s.substring(1); // BOM
+        if (s.startsWith(SERIES_MARKER))
+            return s.contains(FIVE_MIN_MARKER) ? DemandSection.FIVE_MIN : DemandSection.HOURLY;
+        if (s.contains(PEAK_DEMAND_MARKER))
+            return DemandSection.PEAK_DEMAND;
+        if (s.contains(PEAK_SUPPLY_MARKER))
+            return DemandSection.PEAK_SUPPLY;
+        return null;
+    }
+
+    private static int configuredLine(SupplyDataFormat f, DemandSection s) {
+        switch (s) {
+            case PEAK_SUPPLY:
+                return f.peakSupply_Line;
+            case PEAK_DEMAND:
+                return f.peakDemand_Line;
+            case HOURLY:
+                return f.hourlyDemand_Line;
+            default:
+                return f.fiveMinDemand_Line;
+        }
+    }
+
+    /**
+     * 1行ずつ渡された行から見出しを検出する。<br>
+     * 行を溜めないので、入力ストリームを読みながらでも使える。
+     */
+    static final class Detector {
+
+        private final EnumSet<DemandSection> wanted = EnumSet.noneOf(DemandSection.class);
+        private final int[] lines = new int[SECTIONS.length];
+        private final EnumSet<DemandSection> found = EnumSet.noneOf(DemandSection.class);
+        private boolean fiveMinSecondary;
+
+        Detector(SupplyDataFormat f) {
+            for (DemandSection s : SECTIONS) {
+                if (configuredLine(f, s) != 0)
+                    wanted.add(s);
+            }
+        }
+
+        /**
+         * 1行を調べる。
+         *
+         * @param lineNo 行の位置 (0始まり)
+         * @param line 行
+         * @return 読むことになっているセクションの見出しであれば、次の行から始まるそのセクション。そうでなければnull
+         */
+        DemandSection accept(int lineNo, CharSequence line) {
+            DemandSection s = classify(line);
+            if (s == null || !wanted.contains(s) || found.contains(s))
+                return null;
+            found.add(s);
+            lines[s.ordinal()] = lineNo + 1;
+            if (s == DemandSection.FIVE_MIN)
+                fiveMinSecondary = isPreviousDayColumn(line);
+            return s;
+        }
+
+        /**
+         * 読むことになっている全てのセクションの見出しが見つかったかどうかを返す。
+         */
+        boolean isComplete() {
+            return found.size() == wanted.size();
+        }
+
+        ParsePlan toPlan() {
+            EnumSet<DemandSection> missing = EnumSet.copyOf(wanted);
+            missing.removeAll(found);
+            return new ParsePlan(lines.clone(), fiveMinSecondary, true, missing);
+        }
+
+        /**
+         * 見出しの第4フィールドが前日実績の列かどうかを調べる。<br>
+         * 列の数ではなく列名で判定するので、太陽光の発電量などの別の列が加わっても前日実績とはみなさない。
+         */
+        private static boolean isPreviousDayColumn(CharSequence line) {
+            int field = 0;
+            int start = 0;
+            for (int i = 0; i <= line.length(); i++) {
+                if (i == line.length() || line.charAt(i) == ',') {
+                    if (field == 3)
+                        return line.subSequence(start, i).toString().contains(PREVIOUS_DAY_COLUMN);
+                    field++;
+                    start = i + 1;
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 1回の取得で得られた需給データの解析結果
+ * <p>
+ * 取得ごとに1つ作られ、以後変更されない。各行は解析時に {@link DemandSeries} へ1回だけ読み込み、
+ * {@link HourlyDemand} や {@link FiveMinDemand} のリストは最初に要求されたときに系列から作る。
+ * 系列は読み取り専用にしてあり、作ったリストは変更不可なので、ロックなしで任意のスレッドから参照してよい。
+ * {@link ElectricUsageCSVParser} は最新の解析結果をvolatileな参照で公開し、
+ * getterはこの解析結果のビューを返す。
+ */
+public final class ParsedUsageDocument {
+
+    private final SupplyDataFormat format;
+    private final String sourceURL;
+    private final long fetchedAt;
+    private final String dateText;
+    private final PeakSupply peakSupply;
+    private final PeakDemand peakDemand;
+    private final DemandSeries hourlySeries;
+    private final DemandSeries fiveMinSeries;
+    /** 5分ごとの需要実績のうち、最初の欠測の行の手前までの件数 */
+    private final int fiveMinCount;
+    private final int latestHourly;
+    private final int latestFiveMin;
+    /** 系列から作ったリスト。まだ作っていなければnull */
+    private volatile List<HourlyDemand> hourlyDemand;
+    private volatile List<FiveMinDemand> fiveMinDemand;
+
+    /**
+     * @param hs 時間ごとの需要実績。ない場合はnull
+     * @param fs 5分ごとの需要実績。ない場合はnull
+     */
+    ParsedUsageDocument(SupplyDataFormat f, String url, long fetched, String dt, PeakSupply ps, PeakDemand pd,
+                        DemandSeries hs, DemandSeries fs) {
+        format = f;
+        sourceURL = url;
+        fetchedAt = fetched;
+        dateText = dt;
+        peakSupply = ps;
+        peakDemand = pd;
+        if (hs != null)
+            hs.seal();
+        if (fs != null)
+            fs.seal();
+        hourlySeries = hs;
+        fiveMinSeries = fs;
+        latestHourly = hs == null ? -1 : hs.getLatestIndex();
+        // 5分ごとのリストは、実績の入っていない最初の行で終わる
+        int n = 0;
+        int latest = -1;
+        if (fs != null) {
+            while (n < fs.size() && !fs.isMissing(n)) {
+                if (fs.getDemandToday(n) > 0)
+                    latest = n;
+                n++;
+            }
+        }
+        fiveMinCount = n;
+        latestFiveMin = latest;
+    }
+
+    /**
+     * 解析に使ったデータフォーマット定義を返す。
+     *
+     * @return データフォーマット定義
+     */
+    public SupplyDataFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * 取得したURLを返す。日付入りのURLの場合は、解決した後のURLになる。
+     *
+     * @return 取得したURL。{@link ElectricUsageCSVParser#parse(java.nio.ByteBuffer)} で解析した場合はnull
+     */
+    public String getSourceURL() {
+        return sourceURL;
+    }
+
+    /**
+     * 取得した時刻を返す。
+     *
+     * @return 取得時刻 ({@link System#currentTimeMillis()} の値)
+     */
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    /**
+     * 1行目に書かれている日付を返す。
+     *
+     * @return 日付の文字列
+     */
+    public String getDateText() {
+        return dateText;
+    }
+
+    /**
+     * ピーク時の最大電力供給を返す。
+     *
+     * @return ピーク時の最大電力供給。解析できなかった場合はnull
+     */
+    public PeakSupply getPeakSupply() {
+        return peakSupply;
+    }
+
+    /**
+     * ピーク時の予想最大電力を返す。
+     *
+     * @return ピーク時の予想最大電力。解析できなかった場合はnull
+     */
+    public PeakDemand getPeakDemand() {
+        return peakDemand;
+    }
+
+    /**
+     * 時間ごとの需要実績を返す。
+     *
+     * @return 時間ごとの需要実績 (変更不可)。時間ごとのデータがない場合または解析できなかった場合はnull
+     */
+    public List<HourlyDemand> getHourlyDemand() {
+        if (hourlySeries == null)
+            return null;
+        List<HourlyDemand> ret = hourlyDemand;
+        if (ret == null) {
+            synchronized (this) {
+                ret = hourlyDemand;
+                if (ret == null) {
+                    HourlyDemand[] rows = new HourlyDemand[hourlySeries.size()];
+                    for (int i = 0; i < rows.length; i++)
+                        rows[i] = hourlySeries.getHourlyDemand(i);
+                    ret = Collections.unmodifiableList(Arrays.asList(rows));
+                    hourlyDemand = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 5分ごとの需要実績を、実績の入っている行まで返す。
+     *
+     * @return 5分ごとの需要実績 (変更不可)。5分ごとのデータがない場合または解析できなかった場合はnull
+     */
+    public List<FiveMinDemand> get5MinDemand() {
+        if (fiveMinSeries == null)
+            return null;
+        List<FiveMinDemand> ret = fiveMinDemand;
+        if (ret == null) {
+            synchronized (this) {
+                ret = fiveMinDemand;
+                if (ret == null) {
+                    FiveMinDemand[] rows = new FiveMinDemand[fiveMinCount];
+                    for (int i = 0; i < rows.length; i++)
+                        rows[i] = fiveMinSeries.getFiveMinDemand(i);
+                    ret = Collections.unmodifiableList(Arrays.asList(rows));
+                    fiveMinDemand = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 最新の時間ごとの需要実績 (需要が0でない最後の行) を返す。<br>
+     * 解析時に位置を記録しているので、{@link HourlyDemand#seekNearestHistory(java.util.Vector)} と異なり探索しない。
+     *
+     * @return 最新の需要実績。該当する行がない場合はnull
+     */
+    public HourlyDemand getLatestHourlyDemand() {
+        return latestHourly < 0 ? null : getHourlyDemand().get(latestHourly);
+    }
+
+    /**
+     * 最新の5分ごとの需要実績 (需要が0でない最後の行) を返す。<br>
+     * 解析時に位置を記録しているので探索しない。
+     *
+     * @return 最新の需要実績。該当する行がない場合はnull
+     */
+    public FiveMinDemand getLatest5MinDemand() {
+        return latestFiveMin < 0 ? null : get5MinDemand().get(latestFiveMin);
+    }
+
+    /**
+     * 最新の需要実績までのn時間分を返す。
+     *
+     * @param n 件数。最新の実績までの件数より多い場合は先頭から
+     * @return 時間ごとの需要実績 (変更不可、コピーしないビュー)。時間ごとのデータがない場合はnull
+     */
+    public List<HourlyDemand> getLastHourlyDemand(int n) {
+        if (hourlySeries == null)
+            return null;
+        return getHourlyDemand().subList(Math.max(0, latestHourly + 1 - n), latestHourly + 1);
+    }
+
+    /**
+     * 最新の需要実績までのn件の5分ごとの需要実績を返す。
+     *
+     * @param n 件数。最新の実績までの件数より多い場合は先頭から
+     * @return 5分ごとの需要実績 (変更不可、コピーしないビュー)。5分ごとのデータがない場合はnull
+     */
+    public List<FiveMinDemand> getLast5MinDemand(int n) {
+        if (fiveMinSeries == null)
+            return null;
+        return get5MinDemand().subList(Math.max(0, latestFiveMin + 1 - n), latestFiveMin + 1);
+    }
+
+    /**
+     * 時間ごとの需要実績を、プリミティブ配列による形式で返す。
+     *
+     * @return 時間ごとの需要実績 (読み取り専用)。時間ごとのデータがない場合または解析できなかった場合はnull
+     */
+    public DemandSeries getHourlyDemandSeries() {
+        return hourlySeries;
+    }
+
+    /**
+     * 5分ごとの需要実績を、まだ実績の入っていない行を欠測として含めて返す。
+     *
+     * @return 5分ごとの需要実績 (読み取り専用)。5分ごとのデータがない場合または解析できなかった場合はnull
+     */
+    public DemandSeries get5MinDemandSeries() {
+        return fiveMinSeries;
+    }
+
+    /**
+     * 指定したデータフォーマット定義と行の配置が同じかどうかを返す。
+     * URLが同じでも行の配置が違う定義で解析した結果は再利用できない。
+     */
+    boolean hasSameLayout(SupplyDataFormat f) {
+        return f.peakDemand_Line == format.peakDemand_Line && f.peakSupply_Line == format.peakSupply_Line
+                && f.hourlyDemand_Line == format.hourlyDemand_Line
+                && f.fiveMinDemand_Line == format.fiveMinDemand_Line && f.isNewFormat == format.isNewFormat
+                && f.isHokkaido == format.isHokkaido && f.charset.equals(format.charset);
+    }
+
+}
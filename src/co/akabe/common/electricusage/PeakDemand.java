@@ -33,7 +33,7 @@ public class PeakDemand extends TimeAmountData {
      * @param am ピーク時電力量
      */
     public PeakDemand(String tm, int am) {
-        time = tm;
+        setTime(tm);
         peakAmount = am;
     }
 
@@ -31,7 +31,6 @@ public class PeakDemandH extends PeakDemand {
      */
     public PeakDemandH(String tm, float am) {
         super(tm, (int) am);
-        time = tm;
     }
 
     /**
@@ -33,7 +33,7 @@ public class PeakSupply extends TimeAmountData {
      * @param am ピーク時電力量
      */
     public PeakSupply(String tm, int am) {
-        time = tm;
+        setTime(tm);
         peakAmount = am;
     }
 
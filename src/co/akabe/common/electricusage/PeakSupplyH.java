@@ -28,7 +28,6 @@ public class PeakSupplyH extends PeakSupply {
      */
     public PeakSupplyH(String tm, float am) {
         super(tm, (int) am);
-        time = tm;
     }
 
     /**
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.Random;
+
+/**
+ * 1区域分の公開の遅れを学習し、次に取得する時刻を決めるクラス
+ * <p>
+ * 5分ごとの需要実績は、その時刻から各社それぞれの遅れで公開される。
+ * 新しい行を見つけたとき、その行は前回の取得から今回の取得までの間に公開されたことが分かるので、
+ * その中間を遅れの観測値とし、指数移動平均で推定する。
+ * 次の取得は次の行が公開される見込みの時刻の直後とし、その時刻を過ぎても公開されていなければ、
+ * ゆらぎを加えた指数バックオフで取得間隔を広げる。
+ * <p>
+ * スレッドセーフではない。
+ */
+public final class PublicationEstimator {
+
+    /**
+     * 5分ごとの需要実績の間隔 (ミリ秒)
+     */
+    public static final long INTERVAL_MILLIS = 5 * 60 * 1000L;
+
+    /**
+     * 公開の遅れとして学習する上限 (ミリ秒)。これより遅れて見つかった行は、
+     * 公開の遅れではなく公開の停止や時計のずれによるものとみなして学習しない
+     */
+    public static final long MAX_LAG_MILLIS = 30 * 60 * 1000L;
+
+    /** 観測値の重み */
+    private static final double ALPHA = 0.3;
+
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final long margin;
+    private final Random random;
+    private long lag = -1;
+    private int misses;
+
+    /**
+     * コンストラクタ
+     *
+     * @param minBackoffMillis バックオフの初期間隔 (ミリ秒)
+     * @param maxBackoffMillis バックオフの最大間隔 (ミリ秒)
+     * @param marginMillis 公開見込み時刻から取得までの余裕 (ミリ秒)
+     * @param r ゆらぎに使う乱数
+     */
+    public PublicationEstimator(long minBackoffMillis, long maxBackoffMillis, long marginMillis, Random r) {
+        if (minBackoffMillis <= 0 || maxBackoffMillis < minBackoffMillis)
+            throw new IllegalArgumentException("Invalid backoff: " + minBackoffMillis + ", " + maxBackoffMillis);
+        minBackoff = minBackoffMillis;
+        maxBackoff = maxBackoffMillis;
+        margin = marginMillis;
+        random = r;
+    }
+
+    /**
+     * 新しい行が見つかったことを記録する。
+     *
+     * @param latestAt 新しく見つかった最新の行の時刻 ({@link DemandDate#toEpochMillis(int, int)})
+     * @param previousPollAt 前回取得した時刻。初回の場合は負の値
+     * @param observedAt 今回取得した時刻
+     */
+    public void onChanged(long latestAt, long previousPollAt, long observedAt) {
+        misses = 0;
+        long upper = observedAt - latestAt;
+        // 初回は公開された時刻の下限が分からないので学習しない
+        if (previousPollAt < 0 || upper < 0)
+            return;
+        long lower = Math.max(0, previousPollAt - latestAt);
+        if (lower > upper || upper > MAX_LAG_MILLIS)
+            return;
+        long sample = (lower + upper) / 2;
+        if (lag < 0)
+            lag = sample;
+        else
+            lag += Math.round((sample - lag) * ALPHA);
+    }
+
+    /**
+     * 新しい行が見つからなかったことを記録する。
+     */
+    public void onUnchanged() {
+        if (misses < 30)
+            misses++;
+    }
+
+    /**
+     * 次に取得する時刻を求める。
+     *
+     * @param latestAt これまでに見つかった最新の行の時刻。まだ行がない場合は負の値
+     * @param now 現在時刻
+     * @return 次に取得する時刻
+     */
+    public long nextPollAt(long latestAt, long now) {
+        if (lag >= 0 && latestAt >= 0) {
+            long expected = latestAt + INTERVAL_MILLIS + lag + margin;
+            if (expected > now)
+                return expected;
+        }
+        long delay = Math.min(maxBackoff, minBackoff << Math.min(misses, 20));
+        // ±25%のゆらぎ
+        long jitter = (long) (delay * 0.25 * (random.nextDouble() * 2 - 1));
+        return now + Math.max(1, delay + jitter);
+    }
+
+    /**
+     * 推定した公開の遅れを返す。
+     *
+     * @return 行の時刻から公開までの遅れ (ミリ秒)。まだ推定できていない場合は負の値
+     */
+    public long getEstimatedLag() {
+        return lag;
+    }
+
+    /**
+     * 連続して新しい行が見つからなかった回数を返す。
+     *
+     * @return 連続して新しい行が見つからなかった回数
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.Random;
+
+/**
+ * 取得に失敗したときの再試行の方針
+ * <p>
+ * 再試行の間隔は指数的に延ばし、上限で打ち切る。複数の区域やプロセスが同時に再試行しないよう、
+ * 間隔は半分から全体の範囲でばらつかせる。
+ * 再試行するのは一時的と考えられる失敗 (タイムアウト、通信エラー、5xx・408・429のステータス) だけで、
+ * データがない場合、4xxのステータス、解析エラー、{@link CircuitBreaker} が開いている場合は再試行しない。
+ * <p>
+ * このクラスは不変である。
+ */
+public final class RetryPolicy {
+
+    /**
+     * 再試行しない
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 1);
+
+    /**
+     * 3回まで試み、0.5秒から間隔を倍にしていく
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 10000, 2);
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final Random random = new Random();
+
+    /**
+     * コンストラクタ
+     *
+     * @param maxAttempts 最初の1回を含む試行回数の上限
+     * @param initialDelayMillis 1回目の再試行までの間隔 (ミリ秒)
+     * @param maxDelayMillis 再試行の間隔の上限 (ミリ秒)
+     * @param multiplier 再試行ごとに間隔に掛ける倍率
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis, double multiplier) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis || multiplier < 1)
+            throw new IllegalArgumentException("Invalid backoff");
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * 試行回数の上限を返す。
+     *
+     * @return 最初の1回を含む試行回数の上限
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 失敗した試行の後に再試行するかどうかを判定する。
+     *
+     * @param cause 失敗の原因
+     * @param attempt 失敗した試行が何回目か (1から数える)
+     * @return 再試行する場合はtrue
+     */
+    public boolean shouldRetry(Throwable cause, int attempt) {
+        if (attempt >= maxAttempts)
+            return false;
+        switch (FetchFailure.of(cause)) {
+            case TIMEOUT:
+            case NETWORK:
+                return true;
+            case HTTP_STATUS:
+                int status = ((DemandFetchException) cause).getStatus();
+                return status >= 500 || status == 408 || status == 429;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 再試行までの間隔を返す。
+     *
+     * @param attempt 失敗した試行が何回目か (1から数える)
+     * @return 間隔 (ミリ秒)
+     */
+    public long getDelayMillis(int attempt) {
+        double d = initialDelayMillis * Math.pow(multiplier, attempt - 1);
+        long delay = (long) Math.min(maxDelayMillis, d);
+        if (delay <= 1)
+            return delay;
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy[maxAttempts=" + maxAttempts + ", initialDelay=" + initialDelayMillis + "ms, maxDelay="
+                + maxDelayMillis + "ms, multiplier=" + multiplier + "]";
+    }
+
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 5分ごとの需要実績を1件ずつ受け取り、集計値を逐次更新するクラス
+ * <p>
+ * 次の値を、受け取るたびに一定時間 (最小・最大はならし定数時間) で更新し、いつでも取り出せる：
+ * <ul>
+ * <li>指定した長さの移動窓 ({@link Window}) ごとの合計・平均・最小・最大とその時刻、窓内の最大使用率</li>
+ * <li>その日の最小・最大とその時刻、平均、ピーク供給に対する使用率の最大とその時刻</li>
+ * <li>時間帯ごとの平均</li>
+ * </ul>
+ * 需要実績の一覧全体を毎回集計し直す必要はない。{@link DemandPollScheduler} が通知する
+ * 新しい実績をそのまま {@link #addAll(List)} に渡せばよい。
+ * <p>
+ * 時刻は前回より後のものだけを受け付け、同じ時刻や前の時刻の実績は無視する。
+ * 日付が変わると集計をやり直す。
+ * <p>
+ * このクラスはスレッドセーフではない。
+ */
+public class RollingDemandAggregator {
+
+    /**
+     * 移動窓の長さの既定値 (分)
+     */
+    public static final int DEFAULT_WINDOW_MINUTES = 30;
+
+    private final Window[] windows;
+
+    private int epochDay = DemandDate.INVALID;
+    private int lastMinute = -1;
+    private int latest;
+    private int count;
+    private long sum;
+    private int max;
+    private int maxMinute = -1;
+    private int min;
+    private int minMinute = -1;
+
+    private int supply;
+    private float peakUsage;
+    private int peakUsageMinute = -1;
+
+    private final long[] hourSum = new long[24];
+    private final int[] hourCount = new int[24];
+
+    /**
+     * 30分の移動窓を1つ持つ集計を作る。
+     */
+    public RollingDemandAggregator() {
+        this(DEFAULT_WINDOW_MINUTES);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param windowMinutes 移動窓の長さ (分)。5の倍数で指定する。複数指定した場合はそれぞれの窓を持つ
+     */
+    public RollingDemandAggregator(int... windowMinutes) {
+        windows = new Window[windowMinutes.length];
+        for (int i = 0; i < windows.length; i++)
+            windows[i] = new Window(windowMinutes[i]);
+    }
+
+    /**
+     * 使用率の基準となるピーク供給を設定する。以後に受け取る実績の使用率に使う。
+     *
+     * @param s ピーク供給。nullの場合は使用率を求めない
+     */
+    public void setPeakSupply(PeakSupply s) {
+        supply = s == null ? 0 : s.getAmount();
+    }
+
+    /**
+     * 実績を1件受け取る。
+     *
+     * @param d 5分ごとの需要実績
+     * @return 集計に加えた場合はtrue、前回以前の時刻のため無視した場合はfalse
+     * @throws NumberFormatException 日付または時刻を解釈できない場合
+     */
+    public boolean add(FiveMinDemand d) {
+        return add(d.getEpochDay(), d.getMinuteOfDay(), d.getDemandToday());
+    }
+
+    /**
+     * 実績を順に受け取る。
+     *
+     * @param list 5分ごとの需要実績
+     * @return 集計に加えた件数
+     */
+    public int addAll(List<? extends FiveMinDemand> list) {
+        int added = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (add(list.get(i)))
+                added++;
+        }
+        return added;
+    }
+
+    /**
+     * 系列のうち、まだ受け取っていない時刻の実績を受け取る。欠測は飛ばす。
+     *
+     * @param series 5分ごとの需要実績の系列
+     * @return 集計に加えた件数
+     */
+    public int addAll(DemandSeries series) {
+        int day = series.getEpochDay();
+        int from = day == epochDay ? series.upperBound(lastMinute) : 0;
+        int added = 0;
+        for (int i = from; i < series.size(); i++) {
+            if (!series.isMissing(i) && add(day, series.getMinuteOfDay(i), series.getDemandToday(i)))
+                added++;
+        }
+        return added;
+    }
+
+    /**
+     * 実績を1件受け取る。
+     *
+     * @param day 日付 (通算日)
+     * @param minuteOfDay 時刻 (0時からの経過分)
+     * @param demand 需要 (万kW)
+     * @return 集計に加えた場合はtrue、前回以前の時刻のため無視した場合はfalse
+     */
+    public boolean add(int day, int minuteOfDay, int demand) {
+        if (day != epochDay) {
+            if (day < epochDay && epochDay != DemandDate.INVALID)
+                return false; // 前日の実績
+            reset();
+            epochDay = day;
+        } else if (minuteOfDay <= lastMinute) {
+            return false;
+        }
+        lastMinute = minuteOfDay;
+        latest = demand;
+        count++;
+        sum += demand;
+        if (maxMinute < 0 || demand > max) {
+            max = demand;
+            maxMinute = minuteOfDay;
+        }
+        if (minMinute < 0 || demand < min) {
+            min = demand;
+            minMinute = minuteOfDay;
+        }
+        int hour = minuteOfDay / 60;
+        hourSum[hour] += demand;
+        hourCount[hour]++;
+        if (supply > 0) {
+            float usage = (float) demand / supply * 100;
+            if (peakUsageMinute < 0 || usage > peakUsage) {
+                peakUsage = usage;
+                peakUsageMinute = minuteOfDay;
+            }
+        }
+        for (Window w : windows)
+            w.add(minuteOfDay, demand, supply);
+        return true;
+    }
+
+    /**
+     * 集計を初めからやり直す。ピーク供給の設定は残す。
+     */
+    public void reset() {
+        epochDay = DemandDate.INVALID;
+        lastMinute = -1;
+        latest = 0;
+        count = 0;
+        sum = 0;
+        maxMinute = -1;
+        minMinute = -1;
+        peakUsageMinute = -1;
+        peakUsage = 0;
+        Arrays.fill(hourSum, 0);
+        Arrays.fill(hourCount, 0);
+        for (Window w : windows)
+            w.clear();
+    }
+
+    /**
+     * 最初の移動窓を返す。
+     *
+     * @return 移動窓
+     */
+    public Window getWindow() {
+        return windows[0];
+    }
+
+    /**
+     * 移動窓を返す。
+     *
+     * @param i コンストラクタで指定した順の番号
+     * @return 移動窓
+     */
+    public Window getWindow(int i) {
+        return windows[i];
+    }
+
+    /**
+     * 集計中の日付を返す。
+     *
+     * @return 日付 (通算日)。まだ受け取っていなければ {@link DemandDate#INVALID}
+     */
+    public int getEpochDay() {
+        return epochDay;
+    }
+
+    /**
+     * その日に受け取った件数を返す。
+     *
+     * @return 件数
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * 最新の需要を返す。
+     *
+     * @return 需要 (万kW)。まだ受け取っていなければ {@link DemandSeries#NO_VALUE}
+     */
+    public int getLatest() {
+        return count == 0 ? DemandSeries.NO_VALUE : latest;
+    }
+
+    /**
+     * 最新の時刻を返す。
+     *
+     * @return 0時からの経過分。まだ受け取っていなければ-1
+     */
+    public int getLatestMinute() {
+        return lastMinute;
+    }
+
+    /**
+     * その日の最大需要を返す。
+     *
+     * @return 需要 (万kW)。まだ受け取っていなければ {@link DemandSeries#NO_VALUE}
+     */
+    public int getDailyMax() {
+        return count == 0 ? DemandSeries.NO_VALUE : max;
+    }
+
+    /**
+     * その日の最大需要の時刻を返す。同じ値が複数ある場合は最初の時刻。
+     *
+     * @return 0時からの経過分。まだ受け取っていなければ-1
+     */
+    public int getDailyMaxMinute() {
+        return maxMinute;
+    }
+
+    /**
+     * その日の最小需要を返す。
+     *
+     * @return 需要 (万kW)。まだ受け取っていなければ {@link DemandSeries#NO_VALUE}
+     */
+    public int getDailyMin() {
+        return count == 0 ? DemandSeries.NO_VALUE : min;
+    }
+
+    /**
+     * その日の最小需要の時刻を返す。同じ値が複数ある場合は最初の時刻。
+     *
+     * @return 0時からの経過分。まだ受け取っていなければ-1
+     */
+    public int getDailyMinMinute() {
+        return minMinute;
+    }
+
+    /**
+     * その日の平均需要を返す。
+     *
+     * @return 平均 (万kW)。まだ受け取っていなければNaN
+     */
+    public double getDailyMean() {
+        return count == 0 ? Double.NaN : (double) sum / count;
+    }
+
+    /**
+     * 最新の需要のピーク供給に対する使用率を返す。
+     *
+     * @return 使用率 (パーセント単位)。ピーク供給が設定されていないか、まだ受け取っていなければ0
+     * @see HourlyDemand#getUsePercentage(PeakSupply)
+     */
+    public float getUsagePercent() {
+        return supply <= 0 || count == 0 ? 0 : (float) latest / supply * 100;
+    }
+
+    /**
+     * その日の使用率の最大を返す。使用率は受け取った時点のピーク供給で求める。
+     *
+     * @return 使用率 (パーセント単位)。求めていなければ0
+     */
+    public float getPeakUsagePercent() {
+        return peakUsage;
+    }
+
+    /**
+     * その日の使用率が最大となった時刻を返す。
+     *
+     * @return 0時からの経過分。求めていなければ-1
+     */
+    public int getPeakUsageMinute() {
+        return peakUsageMinute;
+    }
+
+    /**
+     * 時間帯の平均需要を返す。
+     *
+     * @param hour 時 (0～23)
+     * @return 平均 (万kW)。その時間帯の実績がなければNaN
+     */
+    public double getHourlyAverage(int hour) {
+        return hourCount[hour] == 0 ? Double.NaN : (double) hourSum[hour] / hourCount[hour];
+    }
+
+    /**
+     * 移動窓の集計
+     * <p>
+     * 窓の長さを w 分とすると、最新の時刻 t に対して t - w より後の実績を集計する。
+     * 合計は出入りの差分で、最小・最大は単調な両端キューで保つ。
+     */
+    public static final class Window {
+        private final int minutes;
+        private final int capacity;
+
+        // 窓内の実績 (リングバッファ)
+        private final int[] minute;
+        private final int[] value;
+        private final int[] usageSupply;
+        private int head;
+        private int size;
+        private long sum;
+
+        // 最大・最小の候補 (リングバッファ上の位置を値の単調な順に持つ)
+        private final int[] maxQueue;
+        private int maxHead;
+        private int maxSize;
+        private final int[] minQueue;
+        private int minHead;
+        private int minSize;
+
+        Window(int m) {
+            if (m <= 0 || m % 5 != 0)
+                throw new IllegalArgumentException("Window must be a positive multiple of 5 minutes: " + m);
+            minutes = m;
+            capacity = m / 5;
+            minute = new int[capacity];
+            value = new int[capacity];
+            usageSupply = new int[capacity];
+            maxQueue = new int[capacity];
+            minQueue = new int[capacity];
+        }
+
+        void add(int t, int v, int supply) {
+            // 窓から外れた実績を取り除く。5分刻みでない時刻が混じって満杯の場合も古いものから取り除く
+            while (size > 0 && (minute[head] <= t - minutes || size == capacity))
+                removeOldest();
+            int slot = (head + size) % capacity;
+            minute[slot] = t;
+            value[slot] = v;
+            usageSupply[slot] = supply;
+            size++;
+            sum += v;
+            while (maxSize > 0 && value[maxQueue[(maxHead + maxSize - 1) % capacity]] <= v)
+                maxSize--;
+            maxQueue[(maxHead + maxSize++) % capacity] = slot;
+            while (minSize > 0 && value[minQueue[(minHead + minSize - 1) % capacity]] >= v)
+                minSize--;
+            minQueue[(minHead + minSize++) % capacity] = slot;
+        }
+
+        private void removeOldest() {
+            if (maxSize > 0 && maxQueue[maxHead] == head) {
+                maxHead = (maxHead + 1) % capacity;
+                maxSize--;
+            }
+            if (minSize > 0 && minQueue[minHead] == head) {
+                minHead = (minHead + 1) % capacity;
+                minSize--;
+            }
+            sum -= value[head];
+            head = (head + 1) % capacity;
+            size--;
+        }
+
+        void clear() {
+            head = size = 0;
+            maxHead = maxSize = 0;
+            minHead = minSize = 0;
+            sum = 0;
+        }
+
+        /**
+         * 窓の長さを返す。
+         *
+         * @return 窓の長さ (分)
+         */
+        public int getMinutes() {
+            return minutes;
+        }
+
+        /**
+         * 窓内の件数を返す。
+         *
+         * @return 件数
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 窓内の合計を返す。
+         *
+         * @return 合計 (万kW)
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * 窓内の平均 (移動平均) を返す。
+         *
+         * @return 平均 (万kW)。窓内に実績がなければNaN
+         */
+        public double getMean() {
+            return size == 0 ? Double.NaN : (double) sum / size;
+        }
+
+        /**
+         * 窓内の最大を返す。
+         *
+         * @return 最大 (万kW)。窓内に実績がなければ {@link DemandSeries#NO_VALUE}
+         */
+        public int getMax() {
+            return maxSize == 0 ? DemandSeries.NO_VALUE : value[maxQueue[maxHead]];
+        }
+
+        /**
+         * 窓内の最大の時刻を返す。同じ値が複数ある場合は最後の時刻。
+         *
+         * @return 0時からの経過分。窓内に実績がなければ-1
+         */
+        public int getMaxMinute() {
+            return maxSize == 0 ? -1 : minute[maxQueue[maxHead]];
+        }
+
+        /**
+         * 窓内の最小を返す。
+         *
+         * @return 最小 (万kW)。窓内に実績がなければ {@link DemandSeries#NO_VALUE}
+         */
+        public int getMin() {
+            return minSize == 0 ? DemandSeries.NO_VALUE : value[minQueue[minHead]];
+        }
+
+        /**
+         * 窓内の最小の時刻を返す。同じ値が複数ある場合は最後の時刻。
+         *
+         * @return 0時からの経過分。窓内に実績がなければ-1
+         */
+        public int getMinMinute() {
+            return minSize == 0 ? -1 : minute[minQueue[minHead]];
+        }
+
+        /**
+         * 窓内の最大需要の、受け取った時点のピーク供給に対する使用率を返す。
+         *
+         * @return 使用率 (パーセント単位)。ピーク供給が設定されていなかった場合や窓内に実績がなければ0
+         */
+        public float getPeakUsagePercent() {
+            if (maxSize == 0)
+                return 0;
+            int s = usageSupply[maxQueue[maxHead]];
+            return s <= 0 ? 0 : (float) getMax() / s * 100;
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+/**
+ * 電力会社の供給区域
+ * <p>
+ * 沖縄電力は需給データを公表していないため含まない。
+ */
+public enum ServiceArea {
+
+    /**
+     * 北海道電力
+     */
+    HOKKAIDO,
+
+    /**
+     * 東北電力
+     */
+    TOHOKU,
+
+    /**
+     * 東京電力
+     */
+    TOKYO,
+
+    /**
+     * 北陸電力
+     */
+    HOKURIKU,
+
+    /**
+     * 中部電力
+     */
+    CHUBU,
+
+    /**
+     * 関西電力
+     */
+    KANSAI,
+
+    /**
+     * 中国電力
+     */
+    CHUGOKU,
+
+    /**
+     * 四国電力
+     */
+    SHIKOKU,
+
+    /**
+     * 九州電力
+     */
+    KYUSHU;
+
+    /**
+     * この区域のデータフォーマット定義を得る。<br>
+     * 日付入りのURLを使う区域では、取得のたびにその時点の日付でURLを解決するフォーマットを作成する。
+     * その場合は呼ぶたびに新しい定義を作るので、サーキットブレーカーや解析計画を引き継ぐには
+     * 作った定義を使い回すこと。
+     *
+     * @return データフォーマット定義
+     */
+    public SupplyDataFormat buildFormat() {
+        switch (this) {
+            case HOKKAIDO:
+                return ElectricUsageCSVParser.Format_Hokkaido;
+            case TOHOKU:
+                return ElectricUsageCSVParser.buildTohokuFormat();
+            case TOKYO:
+                return ElectricUsageCSVParser.Format_Tokyo;
+            case HOKURIKU:
+                return ElectricUsageCSVParser.buildHokurikuFormat();
+            case CHUBU:
+                return ElectricUsageCSVParser.Format_Chubu;
+            case KANSAI:
+                return ElectricUsageCSVParser.Format_Kansai;
+            case CHUGOKU:
+                return ElectricUsageCSVParser.buildChugokuFormat();
+            case SHIKOKU:
+                return ElectricUsageCSVParser.Format_Shikoku;
+            case KYUSHU:
+                return ElectricUsageCSVParser.buildKyushuFormat();
+            default:
+                throw new AssertionError(this);
+        }
+    }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2011-2013 Kuropen.
+ * 
+ * This file is part of the Electricity Usage Parser Library.
+ * 
+ * The Electricity Usage Parser Library is free software:
+ * you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * The Electricity Usage Parser Library is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied 
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with The Electricity Usage Parser Library.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package co.akabe.common.electricusage;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * データフォーマット定義ごとに最新の解析結果を保持するキャッシュ
+ * <p>
+ * 有効期限 (TTL) の間は読み込み済みの解析結果をそのまま返す。有効期限が近づくと
+ * バックグラウンドで読み込み直し (refresh-ahead)、呼び出し元は読み込みを待たずに済む。
+ * 同じデータフォーマット定義に対する読み込みは同時に1つしか行わず、
+ * 同時に要求した呼び出し元はその結果を共有する。読み込み直しに失敗した場合は、
+ * 期限切れであっても以前の解析結果を返し続ける (stale-while-revalidate)。
+ * <p>
+ * 日付入りのURLのデータフォーマット定義 ({@link SupplyDataFormat#setURLTemplate(String)}) では、
+ * 日付が変わる少し前から翌日分のURLを先読みしておき、日付が変わった後の最初の参照で待たずに返す。
+ * 翌日分がまだ公開されていなければ、日付が変わった後しばらくの間まで再試行する。
+ * 日付はデータフォーマット定義の時計 ({@link SupplyDataFormat#getClock()}) で判定する。
+ * <p>
+ * データフォーマット定義は同じインスタンスを同じキーとみなす。
+ * このクラスはスレッドセーフである。使い終わったら {@link #shutdown()} を呼ぶこと。
+ */
+public class SnapshotCache {
+
+    private final long ttlNanos;
+    private final long refreshAheadNanos;
+    private final ConcurrentHashMap<SupplyDataFormat, Entry> entries =
+            new ConcurrentHashMap<SupplyDataFormat, Entry>();
+    private final ExecutorService executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private volatile HttpResponseCache responseCache;
+    private volatile long prefetchLead = DEFAULT_PREFETCH_LEAD_MILLIS;
+
+    /**
+     * 翌日分の先読みを日付が変わる何ミリ秒前から始めるかの既定値
+     */
+    public static final long DEFAULT_PREFETCH_LEAD_MILLIS = 60000;
+
+    /**
+     * コンストラクタ
+     *
+     * @param ttlMillis 解析結果の有効期限 (ミリ秒)
+     * @param refreshAheadMillis 有効期限の何ミリ秒前からバックグラウンドで読み込み直すか。0の場合は読み込み直さない
+     */
+    public SnapshotCache(long ttlMillis, long refreshAheadMillis) {
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException("ttlMillis must be positive: " + ttlMillis);
+        if (refreshAheadMillis < 0 || refreshAheadMillis >= ttlMillis)
+            throw new IllegalArgumentException("refreshAheadMillis must be in [0, ttlMillis): " + refreshAheadMillis);
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadMillis);
+        executor = NationalDemandFetcher.createExecutor(ServiceArea.values().length, "electricusage-refresh-");
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "electricusage-refresh-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * 条件付きGETに使うレスポンスキャッシュを設定する。
+     *
+     * @param cache レスポンスキャッシュ。nullの場合はキャッシュを使わない
+     * @see ElectricUsageCSVParser#setResponseCache(HttpResponseCache)
+     */
+    public void setResponseCache(HttpResponseCache cache) {
+        responseCache = cache;
+    }
+
+    /**
+     * 翌日分の先読みを日付が変わる何ミリ秒前から始めるかを設定する。<br>
+     * 日付が変わった後も同じ時間だけ再試行する。
+     *
+     * @param millis 先読みを始める時間 (ミリ秒)。0の場合は先読みしない
+     */
+    public void setPrefetchLead(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("millis must not be negative: " + millis);
+        prefetchLead = millis;
+    }
+
+    /**
+     * 解析結果を得る。<br>
+     * 有効期限内であれば読み込み済みの解析結果を待ち時間なしに返す。
+     * まだ読み込んでいない場合と有効期限が切れている場合は、読み込みの完了を待つ。
+     *
+     * @param format データフォーマット定義
+     * @return 解析結果
+     * @throws java.io.IOException
+     *             まだ一度も読み込めていない状態で、読み込みに失敗した場合にスローします
+     */
+    public ParsedUsageDocument get(SupplyDataFormat format) throws IOException {
+        Entry e = entryFor(format);
+        e.accessed = true;
+        Loaded current = e.loaded;
+        boolean sameURL = true;
+        if (current != null && format.getURLTemplate() != null) {
+            String url = format.resolveURL();
+            if (!url.equals(current.document.getSourceURL())) {
+                // 日付が変わった：先読みしてあればそれを使う
+                Loaded next = e.promotePrefetched(url);
+                if (next != null)
+                    current = next;
+                else
+                    sameURL = false;
+            }
+        }
+        if (current != null && sameURL) {
+            long age = System.nanoTime() - current.loadedAt;
+            if (age < ttlNanos) {
+                if (refreshAheadNanos > 0 && age >= ttlNanos - refreshAheadNanos)
+                    e.startLoad(false);
+                format.getMetrics().recordCacheHit();
+                return current.document;
+            }
+        }
+        try {
+            return e.startLoad(true).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + format.resolveURL());
+        } catch (ExecutionException ex) {
+            if (current != null)
+                return current.document; // 読み込みに失敗したので以前の解析結果を返す
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 読み込み済みの解析結果を、有効期限にかかわらず読み込みを行わずに得る。
+     *
+     * @param format データフォーマット定義
+     * @return 解析結果。まだ読み込んでいない場合はnull
+     */
+    public ParsedUsageDocument peek(SupplyDataFormat format) {
+        Entry e = entries.get(format);
+        if (e == null)
+            return null;
+        Loaded current = e.loaded;
+        return current == null ? null : current.document;
+    }
+
+    /**
+     * 直近の読み込みが失敗した場合に、その原因を得る。
+     *
+     * @param format データフォーマット定義
+     * @return 失敗の原因。直近の読み込みが成功した場合、またはまだ読み込んでいない場合はnull
+     */
+    public Throwable getLastFailure(SupplyDataFormat format) {
+        Entry e = entries.get(format);
+        return e == null ? null : e.lastFailure;
+    }
+
+    /**
+     * データフォーマット定義に対する解析結果を破棄する。
+     *
+     * @param format データフォーマット定義
+     */
+    public void invalidate(SupplyDataFormat format) {
+        entries.remove(format);
+    }
+
+    /**
+     * バックグラウンドの読み込みを停止する。実行中の読み込みは中断しない。
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdown();
+    }
+
+    private Entry entryFor(SupplyDataFormat format) {
+        Entry e = entries.get(format);
+        if (e == null) {
+            Entry created = new Entry(format);
+            e = entries.putIfAbsent(format, created);
+            if (e == null)
+                e = created;
+        }
+        return e;
+    }
+
+    /**
+     * 読み込み済みの解析結果と、読み込んだ時刻
+     */
+    private static final class Loaded {
+        final ParsedUsageDocument document;
+        final long loadedAt;
+
+        Loaded(ParsedUsageDocument doc, long at) {
+            document = doc;
+            loadedAt = at;
+        }
+    }
+
+    /**
+     * データフォーマット定義1つ分の状態
+     */
+    private final class Entry implements Callable<ParsedUsageDocument>, Runnable {
+
+        private final SupplyDataFormat format;
+        private final AtomicReference<FutureTask<ParsedUsageDocument>> inFlight =
+                new AtomicReference<FutureTask<ParsedUsageDocument>>();
+        volatile Loaded loaded;
+        /** 先読みした翌日分 */
+        private Loaded prefetched;
+        /** 先読みを予定しているか */
+        private boolean prefetchScheduled;
+        volatile Throwable lastFailure;
+        /** 前回の読み込み以降に参照されたか。参照されていなければ期限前の読み込み直しを行わない */
+        volatile boolean accessed;
+
+        Entry(SupplyDataFormat f) {
+            format = f;
+        }
+
+        /**
+         * 読み込みを開始する。既に読み込み中であれば、その読み込みを返す。
+         *
+         * @param inCaller 新たに読み込む場合に呼び出し元のスレッドで実行するならtrue
+         */
+        FutureTask<ParsedUsageDocument> startLoad(boolean inCaller) {
+            while (true) {
+                FutureTask<ParsedUsageDocument> task = inFlight.get();
+                if (task != null)
+                    return task;
+                task = new FutureTask<ParsedUsageDocument>(this) {
+                    @Override
+                    protected void done() {
+                        inFlight.compareAndSet(this, null);
+                    }
+                };
+                if (inFlight.compareAndSet(null, task)) {
+                    if (inCaller) {
+                        task.run();
+                    } else {
+                        try {
+                            executor.execute(task);
+                        } catch (RejectedExecutionException ex) {
+                            task.run(); // 停止後は呼び出し元で読み込む
+                        }
+                    }
+                    return task;
+                }
+            }
+        }
+
+        public ParsedUsageDocument call() throws IOException {
+            ElectricUsageCSVParser parser = new ElectricUsageCSVParser(format);
+            parser.setResponseCache(responseCache);
+            ParsedUsageDocument doc;
+            try {
+                doc = parser.getDocument();
+            } catch (IOException ex) {
+                lastFailure = ex;
+                throw ex;
+            } catch (RuntimeException ex) {
+                lastFailure = ex;
+                throw ex;
+            }
+            loaded = new Loaded(doc, System.nanoTime());
+            lastFailure = null;
+            accessed = false;
+            synchronized (this) {
+                // 先読みより先に同じ日の分を読み込んだ場合は、先読みした分を捨てる
+                if (prefetched != null && doc.getSourceURL().equals(prefetched.document.getSourceURL())) {
+                    prefetched = null;
+                    prefetchScheduled = false;
+                }
+            }
+            schedulePrefetch();
+            if (refreshAheadNanos > 0) {
+                try {
+                    timer.schedule((Runnable) this, ttlNanos - refreshAheadNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException ex) {
+                    // 停止済み
+                }
+            }
+            return doc;
+        }
+
+        /**
+         * 先読みした翌日分が指定したURLのものであれば、読み込み済みの解析結果として使う。
+         *
+         * @return 先読みした解析結果。指定したURLのものがなければnull
+         */
+        Loaded promotePrefetched(String url) {
+            Loaded next;
+            synchronized (this) {
+                next = prefetched;
+                if (next == null || !url.equals(next.document.getSourceURL()))
+                    return null;
+                prefetched = null;
+                prefetchScheduled = false;
+                loaded = next;
+            }
+            schedulePrefetch();
+            return next;
+        }
+
+        /**
+         * 日付入りのURLであれば、翌日分の先読みを予定する。既に予定していれば何もしない。
+         */
+        void schedulePrefetch() {
+            long lead = prefetchLead;
+            if (lead <= 0 || format.getURLTemplate() == null)
+                return;
+            synchronized (this) {
+                if (prefetchScheduled)
+                    return;
+                prefetchScheduled = true;
+            }
+            long now = format.getClock().currentTimeMillis();
+            int tomorrow = DemandDate.epochDayAt(now) + 1;
+            long rollover = DemandDate.toEpochMillis(tomorrow, 0);
+            schedulePrefetch(new Prefetch(tomorrow, rollover, lead), rollover - lead - now);
+        }
+
+        private void schedulePrefetch(Prefetch p, long delay) {
+            try {
+                timer.schedule(p, Math.max(0, delay), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // 停止済み
+            }
+        }
+
+        /**
+         * 翌日分の先読み。失敗した場合は、日付が変わった後も先読みの開始と同じ時間だけ再試行する
+         */
+        private final class Prefetch implements Runnable {
+            private final int day;
+            private final long rollover;
+            private final long lead;
+
+            Prefetch(int d, long r, long l) {
+                day = d;
+                rollover = r;
+                lead = l;
+            }
+
+            public void run() {
+                if (entries.get(format) != Entry.this)
+                    return;
+                ElectricUsageCSVParser parser = new ElectricUsageCSVParser(format);
+                parser.setResponseCache(responseCache);
+                try {
+                    ParsedUsageDocument doc = parser.fetchDocument(format.resolveURL(day));
+                    synchronized (Entry.this) {
+                        prefetched = new Loaded(doc, System.nanoTime());
+                    }
+                    return;
+                } catch (IOException ex) {
+                    // まだ公開されていない
+                } catch (RuntimeException ex) {
+                    // まだ公開されていない
+                }
+                long now = format.getClock().currentTimeMillis();
+                if (now < rollover + lead) {
+                    schedulePrefetch(this, Math.max(1000, lead / 6));
+                } else {
+                    synchronized (Entry.this) {
+                        prefetchScheduled = false;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 期限前の読み込み直し。前回の読み込み以降に参照されていなければ何もしない。
+         */
+        public void run() {
+            if (accessed && entries.get(format) == this && !executor.isShutdown())
+                startLoad(false);
+        }
+    }
+
+}
@@ -19,8 +19,16 @@
 
 package co.akabe.common.electricusage;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
 /**
  * 供給データのフォーマットを指定するクラス
+ * <p>
+ * 日付入りのURLで公開している会社では、{@link #setURLTemplate(String)} でURLのテンプレートを設定すると、
+ * 取得のたびにその時点の日付でURLを解決する。日付をまたいで動き続けるプロセスでも、
+ * フォーマットを作り直す必要がない。
  */
 public class SupplyDataFormat {
 
@@ -64,6 +72,43 @@ public class SupplyDataFormat {
      */
     public boolean isHokkaido = false;
 
+    /**
+     * URLのテンプレート。設定されていなければnull
+     */
+    private volatile String urlTemplate;
+
+    /**
+     * URLの日付を決める時計
+     */
+    private volatile DemandClock clock = DemandClock.SYSTEM;
+
+    /**
+     * 接続タイムアウト (ミリ秒)。0の場合は {@link HttpTransport} の既定値
+     */
+    private volatile int connectTimeout;
+
+    /**
+     * 読み込みタイムアウト (ミリ秒)。0の場合は {@link HttpTransport} の既定値
+     */
+    private volatile int readTimeout;
+
+    /**
+     * 計測値の記録先
+     */
+    private volatile DemandMetrics metrics = DemandMetrics.NONE;
+
+    /**
+     * この供給データの取得に使うサーキットブレーカー
+     */
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * 見出しから検出した解析計画。まだ検出していなければnull
+     */
+    private volatile ParsePlan parsePlan;
+
+    private static final TimeZone JST = TimeZone.getTimeZone("Asia/Tokyo");
+
     /**
      * データフォーマット変数の初期化
      *
@@ -125,6 +170,31 @@ public class SupplyDataFormat {
         fiveMinDemand_Line = 0;
     }
 
+    /**
+     * 設定を全て引き継いだ複製を作る。<br>
+     * 行番号・文字コード・URL・北海道フラグ・時計・タイムアウト・計測値の記録先と、サーキットブレーカーの設定を引き継ぐ。
+     * 解析計画とサーキットブレーカーの状態は引き継がず、新しく持つ。
+     * 形式の異なる過去のファイルを別々に解析する場合に、元の定義の解析計画を書き換えないために使う。
+     *
+     * @param f 複製元のデータフォーマット定義
+     */
+    SupplyDataFormat(SupplyDataFormat f) {
+        dataURL = f.dataURL;
+        peakDemand_Line = f.peakDemand_Line;
+        peakSupply_Line = f.peakSupply_Line;
+        hourlyDemand_Line = f.hourlyDemand_Line;
+        fiveMinDemand_Line = f.fiveMinDemand_Line;
+        charset = f.charset;
+        isNewFormat = f.isNewFormat;
+        isHokkaido = f.isHokkaido;
+        urlTemplate = f.urlTemplate;
+        clock = f.clock;
+        connectTimeout = f.connectTimeout;
+        readTimeout = f.readTimeout;
+        metrics = f.metrics;
+        circuitBreaker.configureFrom(f.circuitBreaker);
+    }
+
     /**
      * 北海道フラグを立てる
      *
@@ -135,4 +205,186 @@ public class SupplyDataFormat {
         isHokkaido = true;
     }
 
+    /**
+     * 日付入りのURLのテンプレートを設定する。<br>
+     * テンプレート中の「{」と「}」で囲んだ部分は {@link SimpleDateFormat} のパターンとみなし、
+     * 日本標準時での日付に置き換える。例えば「juyo_02_{yyyyMMdd}.csv」のように書く。
+     * 設定すると {@link #dataURL} も現在の日付で解決したURLに置き換える。
+     *
+     * @param template URLのテンプレート。nullの場合は {@link #dataURL} をそのまま使う
+     */
+    public void setURLTemplate(String template) {
+        urlTemplate = template;
+        if (template != null)
+            dataURL = resolveURL(getCurrentEpochDay());
+    }
+
+    /**
+     * 日付入りのURLのテンプレートを返す。
+     *
+     * @return URLのテンプレート。設定されていなければnull
+     */
+    public String getURLTemplate() {
+        return urlTemplate;
+    }
+
+    /**
+     * URLの日付を決める時計を設定する。
+     *
+     * @param c 時計
+     */
+    public void setClock(DemandClock c) {
+        if (c == null)
+            throw new NullPointerException("clock");
+        clock = c;
+    }
+
+    /**
+     * URLの日付を決める時計を返す。
+     *
+     * @return 時計
+     */
+    public DemandClock getClock() {
+        return clock;
+    }
+
+    /**
+     * 時計が示す現在の日付を返す。
+     *
+     * @return 日本標準時での通算日
+     */
+    public int getCurrentEpochDay() {
+        return DemandDate.epochDayAt(clock.currentTimeMillis());
+    }
+
+    /**
+     * 取得するURLを現在の日付で解決する。
+     *
+     * @return 取得するURL。テンプレートが設定されていなければ {@link #dataURL}
+     */
+    public String resolveURL() {
+        if (urlTemplate == null)
+            return dataURL;
+        return resolveURL(getCurrentEpochDay());
+    }
+
+    /**
+     * 取得するURLを指定した日付で解決する。
+     *
+     * @param epochDay 日本標準時での通算日
+     * @return 取得するURL。テンプレートが設定されていなければ {@link #dataURL}
+     */
+    public String resolveURL(int epochDay) {
+        String template = urlTemplate;
+        if (template == null)
+            return dataURL;
+        StringBuilder sb = new StringBuilder(template.length() + 8);
+        int pos = 0;
+        int open;
+        while ((open = template.indexOf('{', pos)) >= 0) {
+            int close = template.indexOf('}', open);
+            if (close < 0)
+                break;
+            sb.append(template, pos, open);
+            SimpleDateFormat f = new SimpleDateFormat(template.substring(open + 1, close));
+            f.setTimeZone(JST);
+            // 日本標準時の正午にして、日付を確実にその日にする
+            sb.append(f.format(new Date(DemandDate.toEpochMillis(epochDay, 12 * 60))));
+            pos = close + 1;
+        }
+        sb.append(template, pos, template.length());
+        return sb.toString();
+    }
+
+    /**
+     * この供給データを取得する際のタイムアウトを設定する。<br>
+     * 応答の遅い会社だけ長くする、といった場合に使う。
+     *
+     * @param connectMillis 接続タイムアウト (ミリ秒)。0の場合は {@link HttpTransport} の既定値
+     * @param readMillis 読み込みタイムアウト (ミリ秒)。0の場合は {@link HttpTransport} の既定値
+     */
+    public void setTimeouts(int connectMillis, int readMillis) {
+        if (connectMillis < 0 || readMillis < 0)
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        connectTimeout = connectMillis;
+        readTimeout = readMillis;
+    }
+
+    /**
+     * 接続タイムアウトを返す。
+     *
+     * @return 接続タイムアウト (ミリ秒)。0の場合は {@link HttpTransport} の既定値
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * 読み込みタイムアウトを返す。
+     *
+     * @return 読み込みタイムアウト (ミリ秒)。0の場合は {@link HttpTransport} の既定値
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * この供給データの取得と解析の計測値の記録先を設定する。
+     *
+     * @param m 記録先。nullの場合は記録しない
+     * @see JmxDemandMetrics#forArea(ServiceArea)
+     */
+    public void setMetrics(DemandMetrics m) {
+        metrics = m != null ? m : DemandMetrics.NONE;
+    }
+
+    /**
+     * 計測値の記録先を返す。
+     *
+     * @return 記録先。設定されていなければ {@link DemandMetrics#NONE}
+     */
+    public DemandMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * この供給データの取得に使うサーキットブレーカーを返す。<br>
+     * 開く条件は {@link CircuitBreaker#configure(int, long)} で変更できる。
+     *
+     * @return サーキットブレーカー
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * 各セクションの位置を表す解析計画を返す。<br>
+     * 一度でも取得したデータを解析していれば、その見出しから検出した計画を返す。
+     * まだ解析していなければ、コンストラクタで指定した行番号をそのまま使う計画を返す。
+     *
+     * @return 解析計画
+     */
+    public ParsePlan getParsePlan() {
+        ParsePlan plan = parsePlan;
+        return plan == null ? ParsePlan.fromFormat(this) : plan;
+    }
+
+    /**
+     * 検出した解析計画を次回以降の取得のためにキャッシュする。
+     *
+     * @param plan 解析計画
+     */
+    void setParsePlan(ParsePlan plan) {
+        parsePlan = plan;
+    }
+
+    /**
+     * 検出した解析計画を返す。
+     *
+     * @return 解析計画。まだ検出していなければnull
+     */
+    ParsePlan getDetectedParsePlan() {
+        return parsePlan;
+    }
+
 }
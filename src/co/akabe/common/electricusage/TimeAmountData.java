@@ -29,8 +29,50 @@ public abstract class TimeAmountData {
      */
     protected String time;
 
-    private String[] getTimeArray() {
-        return time.split(":");
+    /**
+     * 0時からの経過分に変換済みの時刻 ({@link #parsedTime} を変換した結果)。変換できなかった場合は-1
+     */
+    private int minuteOfDay;
+
+    /**
+     * minuteOfDayの変換元。timeが直接書き換えられた場合に変換し直すために使う
+     */
+    private String parsedTime;
+
+    /**
+     * 時刻を設定し、0時からの経過分に変換しておく。
+     *
+     * @param t 時刻 (H:MM形式、または「14:00～15:00」のような時間帯)
+     */
+    protected void setTime(String t) {
+        time = t;
+        parseTime();
+    }
+
+    private void parseTime() {
+        String t = time;
+        int m;
+        try {
+            m = t == null ? -1 : CSVRowScanner.parseMinuteOfDay(t);
+        } catch (NumberFormatException e) {
+            m = -1;
+        }
+        minuteOfDay = m;
+        parsedTime = t;
+    }
+
+    /**
+     * 時刻を0時からの経過分で返す。
+     *
+     * @return 0時からの経過分
+     * @throws NumberFormatException 時刻として解釈できない場合
+     */
+    public int getMinuteOfDay() {
+        if (parsedTime != time)
+            parseTime(); // サブクラスがtimeを直接設定した場合
+        if (minuteOfDay < 0)
+            throw new NumberFormatException("Not a time: \"" + time + "\"");
+        return minuteOfDay;
     }
 
     /**
@@ -39,13 +81,11 @@ public abstract class TimeAmountData {
      * @return 日付データの時刻(n時台)
      */
     public int getHour() {
-        int ret = Integer.parseInt(getTimeArray()[0]);
-        return ret;
+        return getMinuteOfDay() / 60;
     }
 
     public int getMinute() {
-        int ret = Integer.parseInt(getTimeArray()[1]);
-        return ret;
+        return getMinuteOfDay() % 60;
     }
 
     /**
@@ -0,0 +1,137 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandCallback;
+import co.akabe.common.electricusage.DemandFuture;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.PeakSupply;
+import co.akabe.common.electricusage.ServiceArea;
+
+public class AsyncFetchTest extends TestCase {
+
+    private ReplayServer mServer;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new ReplayServer();
+        mServer.start(0);
+        // 1スレッドだけで全区域を取得する
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testAllAreasOnOneThread() throws Exception {
+        for (ServiceArea area : ServiceArea.values())
+            mServer.setLatency(area, 500);
+        long start = System.currentTimeMillis();
+        Map<ServiceArea, DemandFuture<PeakSupply>> futures =
+                new EnumMap<ServiceArea, DemandFuture<PeakSupply>>(ServiceArea.class);
+        for (ServiceArea area : ServiceArea.values())
+            futures.put(area, new ElectricUsageCSVParser(mServer.formatFor(area)).getPeakSupplyAsync(mExecutor));
+        for (Map.Entry<ServiceArea, DemandFuture<PeakSupply>> e : futures.entrySet())
+            assertTrue(e.getKey().toString(), e.getValue().get(5, TimeUnit.SECONDS).getAmount() > 0);
+        // 通信の待ち時間は重なるので、9区域×500msではなく1区域分程度で終わる
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void testMatchesBlockingGetters() throws Exception {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.CHUBU));
+        Vector<FiveMinDemand> async = parser.get5MinDemandAsync(mExecutor).get();
+        Vector<FiveMinDemand> blocking = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.CHUBU))
+                .get5MinDemand();
+        assertEquals(blocking.size(), async.size());
+        assertEquals(blocking.lastElement().toString(), async.lastElement().toString());
+        // 読み込み済みなので通信しない
+        assertNotNull(parser.getHourlyDemandAsync(mExecutor).get());
+        assertEquals(2, mServer.getRequestCount(ServiceArea.CHUBU));
+    }
+
+    @Test
+    public void testCoalescesConcurrentFetches() throws Exception {
+        mServer.setLatency(ServiceArea.KYUSHU, 300);
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.KYUSHU));
+        DemandFuture<ParsedUsageDocument> a = parser.fetchAsync(mExecutor);
+        DemandFuture<ParsedUsageDocument> b = parser.fetchAsync(mExecutor);
+        assertSame(a, b);
+        assertSame(a.get(), parser.getDocument());
+        assertEquals(1, mServer.getRequestCount(ServiceArea.KYUSHU));
+    }
+
+    @Test
+    public void testOlderAsyncResultDoesNotOverwriteRefresh() throws Exception {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.TOKYO));
+        // Executorを塞いで、非同期の読み込みが同期の読み込み直しより後に終わるようにする
+        final CountDownLatch blocked = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        DemandFuture<ParsedUsageDocument> async = parser.fetchAsync(mExecutor);
+        ParsedUsageDocument refreshed = parser.refresh();
+        blocked.countDown();
+
+        assertSame(refreshed, async.get(5, TimeUnit.SECONDS));
+        assertSame(refreshed, parser.getDocument());
+        assertEquals(2, mServer.getRequestCount(ServiceArea.TOKYO));
+    }
+
+    @Test
+    public void testFailureCallback() throws Exception {
+        mServer.setError(ServiceArea.KANSAI, 1.0, 503);
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.KANSAI));
+        final CountDownLatch called = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        DemandFuture<PeakSupply> f = parser.getPeakSupplyAsync(mExecutor);
+        f.addCallback(new DemandCallback<PeakSupply>() {
+            public void onSuccess(PeakSupply result) {
+                called.countDown();
+            }
+
+            public void onFailure(Throwable cause) {
+                failure[0] = cause;
+                called.countDown();
+            }
+        });
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+        assertTrue(failure[0] instanceof IOException);
+        try {
+            f.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(failure[0], e.getCause());
+        }
+    }
+
+}
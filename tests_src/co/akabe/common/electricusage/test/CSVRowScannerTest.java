@@ -0,0 +1,58 @@
+package co.akabe.common.electricusage.test;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import co.akabe.common.electricusage.CSVRowScanner;
+
+public class CSVRowScannerTest extends TestCase {
+
+    @Test
+    public void testFields() {
+        CSVRowScanner sc = new CSVRowScanner().reset("2016/8/1,13:05,4275,-12");
+        assertEquals("2016/8/1", sc.nextString());
+        assertEquals("13:05", sc.nextString());
+        assertEquals(4275, sc.nextInt());
+        assertEquals(-12, sc.nextInt());
+        assertFalse(sc.hasNextField());
+    }
+
+    @Test
+    public void testDecimalIsTruncated() {
+        CSVRowScanner sc = new CSVRowScanner().reset("425.6,14:00～15:00");
+        assertEquals(425, sc.nextInt());
+        assertEquals("14:00～15:00", sc.nextString());
+        assertEquals(184, CSVRowScanner.parseInt("184.7"));
+    }
+
+    @Test
+    public void testEmptyFields() {
+        CSVRowScanner sc = new CSVRowScanner().reset("2016/8/1,23:55,");
+        sc.skipField();
+        sc.skipField();
+        assertTrue(sc.hasNextField());
+        assertTrue(sc.isNextFieldEmpty());
+        assertEquals("", sc.nextString());
+        assertFalse(sc.hasNextField());
+    }
+
+    @Test
+    public void testReuseCandidate() {
+        String date = "2016/8/1";
+        CSVRowScanner sc = new CSVRowScanner().reset("2016/8/1,0:05,2042");
+        assertSame(date, sc.nextString(date));
+        assertNotSame("0:00", sc.nextString("0:00"));
+    }
+
+    @Test
+    public void testInvalidNumber() {
+        try {
+            new CSVRowScanner().reset("abc").nextInt();
+            fail();
+        } catch (NumberFormatException e) {
+            // 期待通り
+        }
+    }
+
+}
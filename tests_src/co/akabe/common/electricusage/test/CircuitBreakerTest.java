@@ -0,0 +1,134 @@
+package co.akabe.common.electricusage.test;
+
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.CircuitBreaker;
+import co.akabe.common.electricusage.DemandClock;
+import co.akabe.common.electricusage.DemandFetchException;
+import co.akabe.common.electricusage.DemandResult;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FetchFailure;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.RetryPolicy;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private ReplayServer mServer;
+    private final AtomicLong mNow = new AtomicLong(1000000);
+    private final DemandClock mClock = new DemandClock() {
+        public long currentTimeMillis() {
+            return mNow.get();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new ReplayServer();
+        mServer.start(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testOpensAndFailsFast() {
+        CircuitBreaker breaker = new CircuitBreaker(mClock);
+        breaker.configure(3, 60000);
+        DemandFetchException error = new DemandFetchException(FetchFailure.HTTP_STATUS, 503, "down");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+            breaker.onFailure(error);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            breaker.acquire("x");
+            fail();
+        } catch (DemandFetchException e) {
+            assertEquals(FetchFailure.CIRCUIT_OPEN, e.getReason());
+        }
+
+        mNow.addAndGet(60000);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        try {
+            breaker.acquire("x");
+        } catch (DemandFetchException e) {
+            fail();
+        }
+        try {
+            breaker.acquire("x"); // 試行は1回だけ
+            fail();
+        } catch (DemandFetchException e) {
+            assertEquals(FetchFailure.CIRCUIT_OPEN, e.getReason());
+        }
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testClientErrorsDoNotOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(mClock);
+        for (int i = 0; i < 10; i++)
+            breaker.onFailure(new DemandFetchException(FetchFailure.HTTP_STATUS, 404, "missing"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testParserStopsHittingDeadServer() {
+        mServer.setError(ServiceArea.KANSAI, 1, 503);
+        SupplyDataFormat f = mServer.formatFor(ServiceArea.KANSAI);
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(f);
+        for (int i = 0; i < 3; i++) {
+            DemandResult<ParsedUsageDocument> r = parser.getDocumentResult();
+            assertEquals(FetchFailure.HTTP_STATUS, r.getFailureReason());
+            assertEquals(503, ((DemandFetchException) r.getFailure()).getStatus());
+        }
+        for (int i = 0; i < 5; i++)
+            assertEquals(FetchFailure.CIRCUIT_OPEN, parser.getDocumentResult().getFailureReason());
+        assertEquals(3, mServer.getRequestCount(ServiceArea.KANSAI));
+    }
+
+    @Test
+    public void testRetryWithBackoff() {
+        mServer.setError(ServiceArea.TOKYO, 1, 503);
+        SupplyDataFormat f = mServer.formatFor(ServiceArea.TOKYO);
+        f.getCircuitBreaker().configure(0, 0);
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(f);
+        parser.setRetryPolicy(new RetryPolicy(4, 10, 40, 2));
+        assertEquals(FetchFailure.HTTP_STATUS, parser.getDocumentResult().getFailureReason());
+        assertEquals(4, mServer.getRequestCount(ServiceArea.TOKYO));
+
+        mServer.setError(ServiceArea.TOKYO, 1, 404);
+        assertFalse(parser.getDocumentResult().isSuccess());
+        assertEquals(5, mServer.getRequestCount(ServiceArea.TOKYO)); // 4xxは再試行しない
+
+        mServer.setError(ServiceArea.TOKYO, 0, 503);
+        assertTrue(parser.getDocumentResult().isSuccess());
+    }
+
+    @Test
+    public void testNoDataIsNotAFailure() {
+        SupplyDataFormat chubu = mServer.formatFor(ServiceArea.CHUBU);
+        SupplyDataFormat noFiveMin = new SupplyDataFormat(chubu.dataURL, chubu.peakDemand_Line,
+                chubu.peakSupply_Line, chubu.hourlyDemand_Line);
+        DemandResult<Vector<FiveMinDemand>> r = new ElectricUsageCSVParser(noFiveMin).get5MinDemandResult();
+        assertFalse(r.isSuccess());
+        assertEquals(FetchFailure.NO_DATA, r.getFailureReason());
+        assertNull(r.getFailure());
+        assertTrue(new ElectricUsageCSVParser(chubu).get5MinDemandResult().isSuccess());
+    }
+
+}
@@ -0,0 +1,80 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandArchive;
+import co.akabe.common.electricusage.DemandDate;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class DemandArchiveTest extends TestCase {
+
+    private File mFile;
+    private ElectricUsageCSVParser mParser;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("tokyo", ".dat");
+        mFile.delete();
+        mParser = new ElectricUsageCSVParser(new SupplyDataFormat(
+                getClass().getResource("juyo-j.csv").toString(), 5, 2, 8, 44));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void testDemandDate() {
+        assertEquals(0, DemandDate.toEpochDay(1970, 1, 1));
+        int day = DemandDate.parseEpochDay("2016/8/1");
+        assertEquals(17014, day);
+        assertEquals("2016/8/1", DemandDate.format(day));
+        assertEquals("2016/2/29", DemandDate.format(DemandDate.parseEpochDay("2016-2-29")));
+    }
+
+    @Test
+    public void testPutAndReopen() throws IOException {
+        DemandArchive archive = DemandArchive.open(mFile);
+        int day = archive.put(mParser);
+        assertEquals(DemandDate.parseEpochDay("2016/8/1"), day);
+        archive.close();
+
+        archive = DemandArchive.open(mFile);
+        try {
+            assertTrue(archive.contains(day));
+            assertFalse(archive.contains(day - 1));
+            assertFalse(archive.contains(day + 1000));
+            assertEquals(4816, archive.getPeakSupply(day));
+            assertEquals(14 * 60, archive.getPeakSupplyMinute(day));
+            assertEquals(4300, archive.getPeakDemand(day));
+            assertEquals(mParser.get5MinDemand().get(100).getDemandToday(), archive.getDemand(day, 100));
+            assertEquals(DemandArchive.NO_VALUE, archive.getDemand(day, 200));
+            assertEquals(day, archive.getFirstDay());
+            assertEquals(day, archive.getLastDay());
+
+            IntBuffer view = archive.getDayView(day);
+            assertEquals(DemandArchive.SLOTS_PER_DAY, view.remaining());
+            assertEquals(archive.getDemand(day, 5), view.get(5));
+
+            int[] range = new int[2 * DemandArchive.SLOTS_PER_DAY];
+            assertEquals(range.length, archive.copyDemand(day - 1, day, range));
+            assertEquals(DemandArchive.NO_VALUE, range[0]);
+            assertEquals(archive.getDemand(day, 0), range[DemandArchive.SLOTS_PER_DAY]);
+        } finally {
+            archive.close();
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.CircuitBreaker;
+import co.akabe.common.electricusage.DemandArchive;
+import co.akabe.common.electricusage.DemandArchiveSink;
+import co.akabe.common.electricusage.DemandBackfillImporter;
+import co.akabe.common.electricusage.DemandBackfillSink;
+import co.akabe.common.electricusage.DemandDate;
+import co.akabe.common.electricusage.DemandMetrics;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class DemandBackfillImporterTest extends TestCase {
+
+    private static final int TOKYO_FILES = 40;
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mRoot = File.createTempFile("backfill", "");
+        mRoot.delete();
+        for (int i = 0; i < TOKYO_FILES; i++)
+            copy("juyo-j.csv", new File(mRoot, "tokyo/" + (2016 + i % 2) + "/day" + i + ".csv"));
+        copy("juyo_cepco003.csv", new File(mRoot, "CHUBU/juyo_cepco003.csv"));
+        copy("juyo_hokkaidou.csv", new File(mRoot, "hokkaido/juyo_hokkaidou.csv"));
+        copy("juyo-j.csv", new File(mRoot, "tokyo/readme.txt"));
+        OutputStream out = new FileOutputStream(new File(mRoot, "tokyo/broken.csv"));
+        out.write("not a demand file\r\n".getBytes("US-ASCII"));
+        out.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(mRoot);
+        super.tearDown();
+    }
+
+    private void copy(String resource, File dst) throws IOException {
+        dst.getParentFile().mkdirs();
+        InputStream in = getClass().getResourceAsStream(resource);
+        OutputStream out = new FileOutputStream(dst);
+        try {
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0)
+                out.write(b, 0, n);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children)
+                delete(c);
+        }
+        f.delete();
+    }
+
+    @Test
+    public void testImportsAllAreasInParallel() throws IOException {
+        final Map<ServiceArea, AtomicInteger> counts = new ConcurrentHashMap<ServiceArea, AtomicInteger>();
+        final Map<ServiceArea, Integer> fiveMinRows = new ConcurrentHashMap<ServiceArea, Integer>();
+        for (ServiceArea a : ServiceArea.values())
+            counts.put(a, new AtomicInteger());
+        final AtomicInteger reports = new AtomicInteger();
+
+        DemandBackfillImporter importer = new DemandBackfillImporter(4);
+        importer.setProgressListener(new DemandBackfillImporter.ProgressListener() {
+            public void onProgress(DemandBackfillImporter.Progress p) {
+                reports.incrementAndGet();
+            }
+        }, 0);
+        DemandBackfillImporter.Progress p = importer.run(mRoot, new DemandBackfillSink() {
+            public void accept(ServiceArea area, File source, ParsedUsageDocument doc) {
+                counts.get(area).incrementAndGet();
+                fiveMinRows.put(area, doc.get5MinDemand().size());
+            }
+        });
+
+        assertEquals(TOKYO_FILES + 3, p.getFilesTotal());
+        assertEquals(TOKYO_FILES + 3, p.getFilesDone());
+        assertEquals(1, p.getFilesFailed()); // broken.csv
+        assertEquals(TOKYO_FILES, counts.get(ServiceArea.TOKYO).get());
+        assertEquals(1, counts.get(ServiceArea.CHUBU).get());
+        assertEquals(1, counts.get(ServiceArea.HOKKAIDO).get());
+        assertEquals(0, counts.get(ServiceArea.KANSAI).get());
+        assertEquals(170, fiveMinRows.get(ServiceArea.TOKYO).intValue());
+        assertTrue(p.getRows() > TOKYO_FILES * (24 + 170));
+        assertTrue(p.getFilesPerSecond() > 0);
+        assertTrue(p.getRowsPerSecond() > 0);
+        assertTrue(reports.get() >= 1);
+    }
+
+    @Test
+    public void testSinkFailureAborts() {
+        DemandBackfillImporter importer = new DemandBackfillImporter(2);
+        try {
+            importer.run(mRoot, new DemandBackfillSink() {
+                public void accept(ServiceArea area, File source, ParsedUsageDocument doc) throws IOException {
+                    throw new IOException("disk full");
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        assertTrue(importer.getProgress().getFilesDone() < TOKYO_FILES + 3);
+    }
+
+    @Test
+    public void testArchiveSink() throws IOException {
+        File dir = new File(mRoot, "archives");
+        dir.mkdirs();
+        DemandArchiveSink sink = new DemandArchiveSink(dir);
+        try {
+            new DemandBackfillImporter().run(mRoot, sink);
+            DemandArchive tokyo = sink.archiveFor(ServiceArea.TOKYO);
+            assertTrue(tokyo.contains(DemandDate.parseEpochDay("2016/8/1")));
+            assertEquals(4816, tokyo.getPeakSupply(DemandDate.parseEpochDay("2016/8/1")));
+        } finally {
+            sink.close();
+        }
+        assertTrue(new File(dir, "tokyo.dat").exists());
+        assertTrue(new File(dir, "chubu.dat").exists());
+    }
+
+    @Test
+    public void testFormatSettingsAreCopied() throws IOException {
+        final AtomicInteger parsed = new AtomicInteger();
+        DemandMetrics metrics = new DemandMetrics() {
+            public void recordFetch(long nanos, long bytes) {
+            }
+
+            public void recordParse(long nanos, int rows) {
+                parsed.incrementAndGet();
+            }
+
+            public void recordCacheHit() {
+            }
+
+            public void recordError(Throwable cause) {
+            }
+        };
+        SupplyDataFormat f = ServiceArea.CHUBU.buildFormat();
+        f.setTimeouts(1234, 5678);
+        f.setMetrics(metrics);
+        f.getCircuitBreaker().configure(1, 1000);
+
+        final SupplyDataFormat[] used = new SupplyDataFormat[1];
+        DemandBackfillImporter importer = new DemandBackfillImporter(1);
+        importer.setFormat(ServiceArea.CHUBU, f);
+        importer.run(mRoot, new DemandBackfillSink() {
+            public void accept(ServiceArea area, File source, ParsedUsageDocument doc) {
+                if (area == ServiceArea.CHUBU)
+                    used[0] = doc.getFormat();
+            }
+        });
+
+        assertNotNull(used[0]);
+        assertNotSame(f, used[0]);
+        assertEquals(1234, used[0].getConnectTimeout());
+        assertEquals(5678, used[0].getReadTimeout());
+        assertSame(metrics, used[0].getMetrics());
+        assertEquals(1, parsed.get());
+        // ブレーカーは設定だけを引き継ぎ、状態は別に持つ
+        CircuitBreaker breaker = used[0].getCircuitBreaker();
+        assertNotSame(f.getCircuitBreaker(), breaker);
+        breaker.onFailure(new IOException("connection reset"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.State.CLOSED, f.getCircuitBreaker().getState());
+    }
+
+}
@@ -0,0 +1,153 @@
+package co.akabe.common.electricusage.test;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandDate;
+import co.akabe.common.electricusage.DemandHistoryStore;
+import co.akabe.common.electricusage.DemandSeries;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class DemandHistoryStoreTest extends TestCase {
+
+    @Test
+    public void testSealedDayRoundTrip() {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(new SupplyDataFormat(
+                getClass().getResource("juyo-j.csv").toString(), 5, 2, 8, 44));
+        DemandSeries series = parser.get5MinDemandSeries();
+        int day = series.getEpochDay();
+
+        DemandHistoryStore store = new DemandHistoryStore();
+        store.putDay(ServiceArea.TOKYO, series);
+        assertTrue(store.contains(ServiceArea.TOKYO, day));
+        assertFalse(store.contains(ServiceArea.KANSAI, day));
+        assertEquals(series.countPresent(), store.getSampleCount());
+        // 1件あたり平均2バイト未満に収まる
+        assertTrue(store.getCompressedBytes() < series.size() * 2);
+
+        DemandHistoryStore.Cursor c = store.newCursor();
+        c.reset(ServiceArea.TOKYO, day - 1, day + 1);
+        int n = 0;
+        for (int i = 0; i < series.size(); i++) {
+            if (series.isMissing(i))
+                continue;
+            assertTrue(c.next());
+            assertEquals(day, c.getEpochDay());
+            assertEquals(series.getMinuteOfDay(i), c.getMinuteOfDay());
+            assertEquals(series.getDemandToday(i), c.getDemand());
+            n++;
+        }
+        assertFalse(c.next());
+        assertEquals(series.countPresent(), n);
+
+        // 同じ日を置き換えても件数は増えない
+        store.putDay(ServiceArea.TOKYO, series);
+        assertEquals(series.countPresent(), store.getSampleCount());
+    }
+
+    @Test
+    public void testAppendSealsOnDayChange() {
+        DemandHistoryStore store = new DemandHistoryStore();
+        assertEquals(-1, store.getFirstDay(ServiceArea.CHUBU));
+        assertTrue(store.append(ServiceArea.CHUBU, 17000, 0, 2000));
+        assertTrue(store.append(ServiceArea.CHUBU, 17000, 5, 1990));
+        assertFalse(store.append(ServiceArea.CHUBU, 17000, 5, 1980)); // 上書き
+        assertTrue(store.append(ServiceArea.CHUBU, 17000, 10, 1975));
+        assertEquals(0, store.getCompressedBytes());
+
+        assertTrue(store.append(ServiceArea.CHUBU, 17001, 0, 2100));
+        assertTrue(store.getCompressedBytes() > 0);
+        assertFalse(store.append(ServiceArea.CHUBU, 17000, 15, 1970));
+        assertEquals(17000, store.getFirstDay(ServiceArea.CHUBU));
+        assertEquals(17001, store.getLastDay(ServiceArea.CHUBU));
+        assertEquals(4, store.getSampleCount());
+
+        // 封じた日と当日分を続けて読む
+        DemandHistoryStore.Cursor c = store.newCursor();
+        c.reset(ServiceArea.CHUBU, 16990, 17010);
+        int[] minutes = { 0, 5, 10, 0 };
+        int[] demands = { 2000, 1980, 1975, 2100 };
+        for (int i = 0; i < minutes.length; i++) {
+            assertTrue(c.next());
+            assertEquals(i < 3 ? 17000 : 17001, c.getEpochDay());
+            assertEquals(minutes[i], c.getMinuteOfDay());
+            assertEquals(demands[i], c.getDemand());
+        }
+        assertFalse(c.next());
+
+        store.seal(ServiceArea.CHUBU);
+        c.reset(ServiceArea.CHUBU, 17001, 17001);
+        assertTrue(c.next());
+        assertEquals(2100, c.getDemand());
+        assertFalse(c.next());
+
+        // 過去の日を後から埋める
+        DemandSeries old = new DemandSeries("2016/1/1", true, false, false, 1);
+        old.add(60, 1500, DemandSeries.NO_VALUE);
+        store.putDay(ServiceArea.CHUBU, old);
+        assertEquals(DemandDate.parseEpochDay("2016/1/1"), store.getFirstDay(ServiceArea.CHUBU));
+        assertTrue(store.contains(ServiceArea.CHUBU, 17000));
+    }
+
+    @Test
+    public void testPutDayThenAppendKeepsBackfill() {
+        // 再起動時に当日の途中までのファイルを取り込んでから、ポーリングの追加が始まる
+        DemandSeries partial = new DemandSeries("2016/8/1", true, false, false, 10);
+        for (int i = 0; i < 10; i++)
+            partial.add(i * 5, 3000 + i, DemandSeries.NO_VALUE);
+        int day = partial.getEpochDay();
+        DemandHistoryStore store = new DemandHistoryStore();
+        store.putDay(ServiceArea.TOKYO, partial);
+
+        assertTrue(store.append(ServiceArea.TOKYO, day, 50, 3050));
+        assertFalse(store.append(ServiceArea.TOKYO, day, 45, 3009)); // 取り込み済みの時刻
+        assertEquals(11, store.getSampleCount());
+        assertEquals(0, store.getCompressedBytes());
+
+        DemandHistoryStore.Cursor c = store.newCursor();
+        c.reset(ServiceArea.TOKYO, day, day);
+        for (int i = 0; i < 11; i++) {
+            assertTrue(c.next());
+            assertEquals(i * 5, c.getMinuteOfDay());
+            assertEquals(i < 10 ? 3000 + i : 3050, c.getDemand());
+        }
+        assertFalse(c.next());
+
+        store.seal(ServiceArea.TOKYO);
+        assertEquals(11, store.getSampleCount());
+        c.reset(ServiceArea.TOKYO, day, day);
+        int n = 0;
+        while (c.next())
+            n++;
+        assertEquals(11, n);
+    }
+
+    @Test
+    public void testGapsAndLargeJumps() {
+        DemandHistoryStore store = new DemandHistoryStore();
+        int[] minutes = { 5, 10, 100, 600, 605, 1435 };
+        int[] demands = { Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 70000, -3, 12345 };
+        for (int i = 0; i < minutes.length; i++)
+            store.append(ServiceArea.KYUSHU, 18000, minutes[i], demands[i]);
+        store.seal(ServiceArea.KYUSHU);
+
+        DemandHistoryStore.Cursor c = store.newCursor();
+        c.reset(ServiceArea.KYUSHU, 18000, 18000);
+        for (int i = 0; i < minutes.length; i++) {
+            assertTrue(c.next());
+            assertEquals(minutes[i], c.getMinuteOfDay());
+            assertEquals(demands[i], c.getDemand());
+        }
+        assertFalse(c.next());
+
+        try {
+            store.append(ServiceArea.KYUSHU, 18001, 1440, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+}
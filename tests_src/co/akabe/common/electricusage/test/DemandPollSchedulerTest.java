@@ -0,0 +1,67 @@
+package co.akabe.common.electricusage.test;
+
+import java.util.List;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandPollScheduler;
+import co.akabe.common.electricusage.DemandUpdateListener;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.ServiceArea;
+
+public class DemandPollSchedulerTest extends TestCase {
+
+    private ReplayServer mServer;
+    private DemandPollScheduler mScheduler;
+    private final Vector<Integer> mUpdates = new Vector<Integer>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new ReplayServer();
+        mServer.start(0);
+        mScheduler = new DemandPollScheduler(50, 100, 0);
+        mScheduler.addListener(new DemandUpdateListener() {
+            public void onDemandUpdated(ServiceArea area, List<FiveMinDemand> newRows) {
+                mUpdates.add(newRows.size());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mScheduler.shutdown();
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testNotifiesOnlyOnChange() throws InterruptedException {
+        mScheduler.watch(ServiceArea.TOHOKU, mServer.formatFor(ServiceArea.TOHOKU));
+        Thread.sleep(600);
+        assertTrue(mScheduler.getFetchCount(ServiceArea.TOHOKU) >= 3);
+        assertEquals(1, mUpdates.size());
+        assertNull(mScheduler.getLastFailure(ServiceArea.TOHOKU));
+    }
+
+    @Test
+    public void testNotifiesNewRows() throws InterruptedException {
+        // 10:00から、実時間1秒で仮想時間10分進める
+        mServer.setClock(600, 600);
+        mScheduler.watch(ServiceArea.CHUBU, mServer.formatFor(ServiceArea.CHUBU));
+        Thread.sleep(1300);
+        mScheduler.unwatch(ServiceArea.CHUBU);
+        assertEquals(121, mUpdates.get(0).intValue());
+        int total = 0;
+        for (int n : mUpdates)
+            total += n;
+        assertTrue(mUpdates.toString(), mUpdates.size() >= 2);
+        assertTrue(mUpdates.toString(), total >= 121 + 2 && total <= 121 + 3);
+    }
+
+}
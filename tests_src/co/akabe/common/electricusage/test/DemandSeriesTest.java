@@ -0,0 +1,146 @@
+package co.akabe.common.electricusage.test;
+
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandDate;
+import co.akabe.common.electricusage.DemandSeries;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.FiveMinDemandH;
+import co.akabe.common.electricusage.HourlyDemand;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.SupplyDataFormat;
+import co.akabe.common.electricusage.SupplyDataFormatH;
+
+public class DemandSeriesTest extends TestCase {
+
+    @Test
+    public void testAddAndMissing() {
+        DemandSeries s = new DemandSeries("2016/8/1", true, false, false, 2);
+        s.add(0, 2053, DemandSeries.NO_VALUE);
+        s.add(5, 2042, DemandSeries.NO_VALUE);
+        s.addMissing(10, DemandSeries.NO_VALUE);
+        assertEquals(3, s.size());
+        assertEquals(2, s.countPresent());
+        assertFalse(s.isMissing(1));
+        assertTrue(s.isMissing(2));
+        assertEquals("0:10", s.getTime(2));
+
+        FiveMinDemand fd = s.getFiveMinDemand(1);
+        assertEquals("2016/8/1", fd.getDate());
+        assertEquals("0:05", fd.getTime());
+        assertEquals(2042, fd.getDemandToday());
+        assertEquals(2, s.toFiveMinDemand().size());
+    }
+
+    @Test
+    public void testFromParser() {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(new SupplyDataFormat(
+                getClass().getResource("juyo-j.csv").toString(), 5, 2, 8, 44));
+        DemandSeries hourly = parser.getHourlyDemandSeries();
+        assertEquals(24, hourly.size());
+        assertTrue(hourly.isForecast());
+        assertEquals(13 * 60, hourly.getMinuteOfDay(13));
+
+        DemandSeries five = parser.get5MinDemandSeries();
+        assertEquals(288, five.size());
+        assertEquals(170, five.countPresent());
+        assertTrue(five.isMissing(170));
+
+        // 従来の取得方法と同じ結果になる
+        Vector<FiveMinDemand> expected = parser.get5MinDemand();
+        Vector<FiveMinDemand> actual = five.toFiveMinDemand();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTime(), actual.get(i).getTime());
+            assertEquals(expected.get(i).getDemandToday(), actual.get(i).getDemandToday());
+            assertEquals(expected.get(i).getDemandYesterday(), actual.get(i).getDemandYesterday());
+        }
+        Vector<HourlyDemand> hourlyExpected = parser.getHourlyDemand();
+        assertEquals(hourlyExpected.get(5).getDemandYesterday(), hourly.getHourlyDemand(5).getDemandYesterday());
+    }
+
+    @Test
+    public void testLookups() {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(new SupplyDataFormat(
+                getClass().getResource("juyo-j.csv").toString(), 5, 2, 8, 44));
+        DemandSeries five = parser.get5MinDemandSeries();
+        assertEquals(DemandDate.parseEpochDay("2016/8/1"), five.getEpochDay());
+        // 14:05までしか実績がないので14:35以前の最新は14:05
+        assertEquals("14:05", five.getTime(five.indexAtOrBefore(14 * 60 + 35)));
+        assertEquals("13:30", five.getTime(five.indexAtOrBefore(13 * 60 + 33)));
+        assertEquals(25, five.upperBound(15 * 60) - five.lowerBound(13 * 60));
+
+        Vector<FiveMinDemand> v = parser.get5MinDemand();
+        assertEquals("13:30", v.get(HourlyDemand.indexAtOrBefore(v, 13 * 60 + 33)).getTime());
+        assertEquals(-1, HourlyDemand.indexAtOrBefore(v, -1));
+        List<FiveMinDemand> range = HourlyDemand.between(v, 13 * 60, 15 * 60);
+        assertEquals("13:00", range.get(0).getTime());
+        assertEquals("14:05", range.get(range.size() - 1).getTime());
+        assertEquals(13, range.get(0).getHour());
+        assertEquals(5, range.get(range.size() - 1).getMinute());
+    }
+
+    @Test
+    public void testHokkaidoAdapters() {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(new SupplyDataFormatH(
+                getClass().getResource("juyo_hokkaidou.csv").toString(), 5, 2, 11, 44));
+        DemandSeries five = parser.get5MinDemandSeries();
+        assertTrue(five.getFiveMinDemand(0) instanceof FiveMinDemandH);
+        assertEquals(parser.get5MinDemand().get(0).getDemandToday(), five.getDemandToday(0));
+    }
+
+    @Test
+    public void testLatest() throws Exception {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(new SupplyDataFormat(
+                getClass().getResource("juyo-j.csv").toString(), 5, 2, 8, 44));
+        ParsedUsageDocument doc = parser.getDocument();
+        // 解析時に記録した位置は、後ろから探索した結果と一致する
+        FiveMinDemand latest = HourlyDemand.seekNearestHistory(parser.get5MinDemand());
+        assertSame(doc.get5MinDemand().get(doc.get5MinDemand().indexOf(latest)), doc.getLatest5MinDemand());
+        assertEquals("14:05", parser.getLatest5MinDemand().getTime());
+        HourlyDemand latestHour = HourlyDemand.seekNearestHistory(parser.getHourlyDemand());
+        assertEquals(latestHour.getTime(), doc.getLatestHourlyDemand().getTime());
+
+        List<FiveMinDemand> last = doc.getLast5MinDemand(3);
+        assertEquals(3, last.size());
+        assertSame(doc.getLatest5MinDemand(), last.get(2));
+        assertEquals("13:55", last.get(0).getTime());
+        assertEquals(doc.getLatestHourlyDemand(), doc.getLastHourlyDemand(100).get(doc.getLastHourlyDemand(100).size() - 1));
+
+        DemandSeries five = doc.get5MinDemandSeries();
+        assertEquals("14:05", five.getTime(five.getLatestIndex()));
+        IntBuffer view = five.getLastDemandTodayView(3);
+        assertEquals(3, view.remaining());
+        assertEquals(latest.getDemandToday(), view.get(2));
+        assertTrue(view.isReadOnly());
+        assertEquals(0, new DemandSeries("2016/8/1", true, false, false, 1).getLastDemandTodayView(5).remaining());
+    }
+
+    @Test
+    public void testDocumentListsAreBuiltFromSeries() throws Exception {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(new SupplyDataFormat(
+                getClass().getResource("juyo-j.csv").toString(), 5, 2, 8, 44));
+        ParsedUsageDocument doc = parser.getDocument();
+        DemandSeries five = doc.get5MinDemandSeries();
+        List<FiveMinDemand> rows = doc.get5MinDemand();
+        // 一度作ったリストを使い回す
+        assertSame(rows, doc.get5MinDemand());
+        assertSame(doc.getHourlyDemand(), doc.getHourlyDemand());
+        // 実績の入っていない最初の行の手前まで
+        assertEquals(five.countPresent(), rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(five.getTime(i), rows.get(i).getTime());
+            assertEquals(five.getDemandToday(i), rows.get(i).getDemandToday());
+        }
+        assertEquals(24, doc.getHourlyDemand().size());
+        assertEquals(doc.getHourlyDemandSeries().getDemandToday(13), doc.getHourlyDemand().get(13).getDemandToday());
+    }
+
+}
@@ -0,0 +1,135 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandSection;
+import co.akabe.common.electricusage.DemandSeries;
+import co.akabe.common.electricusage.DemandSnapshotCodec;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.PeakSupplyH;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class DemandSnapshotCodecTest extends TestCase {
+
+    private byte[] read(String resource) throws IOException {
+        InputStream in = getClass().getResourceAsStream(resource);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0)
+                out.write(b, 0, n);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private ParsedUsageDocument parse(SupplyDataFormat f, String resource) throws IOException {
+        return new ElectricUsageCSVParser(f).parse(ByteBuffer.wrap(read(resource)));
+    }
+
+    private static void assertSameSeries(DemandSeries expected, DemandSeries actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getDate(), actual.getDate());
+        assertEquals(expected.isForecast(), actual.isForecast());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getMinuteOfDay(i), actual.getMinuteOfDay(i));
+            assertEquals(expected.getDemandToday(i), actual.getDemandToday(i));
+            assertEquals(expected.getSecondary(i), actual.getSecondary(i));
+            assertEquals(expected.isMissing(i), actual.isMissing(i));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        SupplyDataFormat f = ElectricUsageCSVParser.Format_Chubu;
+        ParsedUsageDocument doc = parse(f, "juyo_cepco003.csv");
+        byte[] encoded = DemandSnapshotCodec.encode(ServiceArea.CHUBU, doc);
+        assertTrue(encoded.length * 10 < read("juyo_cepco003.csv").length);
+
+        ParsedUsageDocument back = DemandSnapshotCodec.decode(ByteBuffer.wrap(encoded), f);
+        assertEquals(doc.getDateText(), back.getDateText());
+        assertEquals(doc.getFetchedAt(), back.getFetchedAt());
+        assertEquals(doc.getPeakSupply().getAmount(), back.getPeakSupply().getAmount());
+        assertEquals(doc.getPeakSupply().getTime(), back.getPeakSupply().getTime());
+        assertEquals(doc.getPeakDemand().getAmount(), back.getPeakDemand().getAmount());
+        assertSameSeries(doc.getHourlyDemandSeries(), back.getHourlyDemandSeries());
+        assertSameSeries(doc.get5MinDemandSeries(), back.get5MinDemandSeries());
+        assertEquals(doc.getLatest5MinDemand().toStringWithDiff(), back.getLatest5MinDemand().toStringWithDiff());
+    }
+
+    @Test
+    public void testReaderStreamsSeveralAreas() throws IOException {
+        ParsedUsageDocument tokyo = parse(ElectricUsageCSVParser.Format_Tokyo, "juyo-j.csv");
+        ParsedUsageDocument hokkaido = parse(ElectricUsageCSVParser.Format_Hokkaido, "juyo_hokkaidou.csv");
+        ByteBuffer buf = ByteBuffer.allocateDirect(
+                DemandSnapshotCodec.maxEncodedSize(tokyo) + DemandSnapshotCodec.maxEncodedSize(hokkaido));
+        DemandSnapshotCodec.encode(ServiceArea.TOKYO, tokyo, buf);
+        DemandSnapshotCodec.encode(ServiceArea.HOKKAIDO, hokkaido, buf);
+        buf.flip();
+
+        DemandSnapshotCodec.Reader r = new DemandSnapshotCodec.Reader();
+        r.reset(buf);
+        assertEquals(ServiceArea.TOKYO, r.getArea());
+        assertEquals(tokyo.get5MinDemandSeries().getEpochDay(), r.getEpochDay());
+        assertEquals(tokyo.getPeakSupply().getAmount(), r.getPeakSupply());
+        assertEquals(tokyo.getPeakSupply().getMinuteOfDay(), r.getPeakSupplyMinute());
+        DemandSeries fiveMin = tokyo.get5MinDemandSeries();
+        int hourlyRows = 0;
+        int fiveMinRows = 0;
+        while (r.nextRow()) {
+            if (r.getRowSection() == DemandSection.HOURLY) {
+                hourlyRows++;
+                continue;
+            }
+            int i = fiveMinRows++;
+            assertEquals(i, r.getRowIndex());
+            assertEquals(fiveMin.getMinuteOfDay(i), r.getMinuteOfDay());
+            assertEquals(fiveMin.getDemandToday(i), r.getDemandToday());
+        }
+        assertEquals(tokyo.getHourlyDemandSeries().size(), hourlyRows);
+        assertEquals(fiveMin.size(), fiveMinRows);
+
+        r.reset(buf);
+        assertEquals(ServiceArea.HOKKAIDO, r.getArea());
+        assertTrue(r.isHokkaido());
+        while (r.nextRow()) {
+            // 読み飛ばす
+        }
+        assertFalse(buf.hasRemaining());
+
+        buf.rewind();
+        DemandSnapshotCodec.Reader skip = new DemandSnapshotCodec.Reader();
+        skip.reset(buf);
+        while (skip.nextRow()) {
+            // 東電分を読み飛ばす
+        }
+        ParsedUsageDocument back = DemandSnapshotCodec.decode(buf, ElectricUsageCSVParser.Format_Hokkaido);
+        assertTrue(back.getPeakSupply() instanceof PeakSupplyH);
+        assertSameSeries(hokkaido.get5MinDemandSeries(), back.get5MinDemandSeries());
+    }
+
+    @Test
+    public void testRejectsNewerVersion() throws IOException {
+        ParsedUsageDocument doc = parse(ElectricUsageCSVParser.Format_Tokyo, "juyo-j.csv");
+        byte[] encoded = DemandSnapshotCodec.encode(ServiceArea.TOKYO, doc);
+        encoded[2] = (byte) (DemandSnapshotCodec.VERSION + 1);
+        try {
+            new DemandSnapshotCodec.Reader().reset(ByteBuffer.wrap(encoded));
+            fail();
+        } catch (IOException e) {
+            // 期待通り
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandDataListener;
+import co.akabe.common.electricusage.DemandSection;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.HourlyDemand;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.PeakDemand;
+import co.akabe.common.electricusage.PeakSupply;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class ElectricUsageCSVParserStreamTest extends TestCase {
+
+    private static class Collector implements DemandDataListener {
+        PeakSupply peakSupply;
+        PeakDemand peakDemand;
+        Vector<HourlyDemand> hourly = new Vector<HourlyDemand>();
+        Vector<FiveMinDemand> fiveMin = new Vector<FiveMinDemand>();
+
+        public void onPeakSupply(PeakSupply s) {
+            peakSupply = s;
+        }
+
+        public void onPeakDemand(PeakDemand d) {
+            peakDemand = d;
+        }
+
+        public void onHourlyDemand(HourlyDemand d) {
+            hourly.add(d);
+        }
+
+        public void onFiveMinDemand(FiveMinDemand d) {
+            fiveMin.add(d);
+        }
+    }
+
+    /**
+     * 読まれたバイト数を数える入力ストリーム
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        int count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+    }
+
+    private byte[] readResource(String resource) throws IOException {
+        InputStream in = getClass().getResourceAsStream(resource);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0)
+                out.write(b, 0, n);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private Collector parse(SupplyDataFormat format, String resource, EnumSet<DemandSection> sections)
+            throws IOException {
+        InputStream in = getClass().getResourceAsStream(resource);
+        try {
+            Collector c = new Collector();
+            new ElectricUsageCSVParser(format).parse(in, c, sections);
+            return c;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testParseAllSections() throws IOException {
+        Collector c = parse(ElectricUsageCSVParser.Format_Tokyo, "juyo-j.csv",
+                EnumSet.allOf(DemandSection.class));
+        assertEquals(4816, c.peakSupply.getAmount());
+        assertEquals(14, c.peakSupply.getHour());
+        assertEquals(4300, c.peakDemand.getAmount());
+        assertEquals(24, c.hourly.size());
+        assertEquals("2016/8/1", c.hourly.get(0).getDate());
+        assertEquals(23, c.hourly.get(23).getHour());
+        // 14:05更新のデータなので0:00～14:05の170件
+        assertEquals(170, c.fiveMin.size());
+        assertEquals("14:05", c.fiveMin.lastElement().getTime());
+        assertEquals(-1048576, c.fiveMin.get(0).getDemandYesterday());
+    }
+
+    @Test
+    public void testParsePeakOnly() throws IOException {
+        // 読み込みの打ち切りが読み取りバッファより大きな差になるよう、需要実績の行を後ろに増やす
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(readResource("juyo-j.csv"));
+        byte[] row = "2016/8/1,23:55,\r\n".getBytes("Shift_JIS");
+        while (body.size() < 256 * 1024)
+            body.write(row);
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(body.toByteArray()));
+
+        Collector c = new Collector();
+        new ElectricUsageCSVParser(ElectricUsageCSVParser.Format_Tokyo).parse(in, c,
+                EnumSet.of(DemandSection.PEAK_SUPPLY, DemandSection.PEAK_DEMAND));
+        assertEquals(4816, c.peakSupply.getAmount());
+        assertEquals(4300, c.peakDemand.getAmount());
+        assertTrue(c.hourly.isEmpty());
+        assertTrue(c.fiveMin.isEmpty());
+        // ピークの2セクションは先頭の数行にあるので、読み取りバッファ2つ分 (16KB) 以内で読み込みを打ち切る
+        assertTrue("read " + in.count + " bytes", in.count <= 16 * 1024);
+        assertTrue(in.available() > 0);
+    }
+
+    @Test
+    public void testParseHokkaido() throws IOException {
+        Collector c = parse(ElectricUsageCSVParser.Format_Hokkaido, "juyo_hokkaidou.csv",
+                EnumSet.allOf(DemandSection.class));
+        assertEquals(425, c.peakSupply.getAmount());
+        assertEquals(380, c.peakDemand.getAmount());
+        assertEquals(24, c.hourly.size());
+        assertEquals(184, c.hourly.get(0).getDemandToday());
+        assertEquals(170, c.fiveMin.size());
+    }
+
+    private void assertSameAsStream(SupplyDataFormat format, String resource) throws IOException {
+        Collector c = parse(format, resource, EnumSet.allOf(DemandSection.class));
+        byte[] body = readResource(resource);
+        // 先頭にゴミのある読み取り専用のダイレクトバッファから、positionを進めて読む
+        ByteBuffer buf = ByteBuffer.allocateDirect(body.length + 3);
+        buf.put(new byte[] {9, 9, 9}).put(body).flip();
+        buf.position(3);
+        ParsedUsageDocument doc = new ElectricUsageCSVParser(format).parse(buf.asReadOnlyBuffer());
+        assertEquals(3, buf.position());
+        assertEquals(c.peakSupply.getAmount(), doc.getPeakSupply().getAmount());
+        assertEquals(c.peakSupply.getTime(), doc.getPeakSupply().getTime());
+        assertEquals(c.peakDemand.getAmount(), doc.getPeakDemand().getAmount());
+        assertEquals(c.hourly.size(), doc.getHourlyDemand().size());
+        for (int i = 0; i < c.hourly.size(); i++)
+            assertEquals(c.hourly.get(i).toStringWithDiff(), doc.getHourlyDemand().get(i).toStringWithDiff());
+        assertEquals(c.fiveMin.size(), doc.get5MinDemand().size());
+        for (int i = 0; i < c.fiveMin.size(); i++)
+            assertEquals(c.fiveMin.get(i).toStringWithDiff(), doc.get5MinDemand().get(i).toStringWithDiff());
+        assertNull(doc.getSourceURL());
+    }
+
+    @Test
+    public void testParseBytes() throws IOException {
+        assertSameAsStream(ElectricUsageCSVParser.Format_Tokyo, "juyo-j.csv");
+        assertSameAsStream(ElectricUsageCSVParser.Format_Hokkaido, "juyo_hokkaidou.csv");
+        assertSameAsStream(ElectricUsageCSVParser.Format_Chubu, "juyo_cepco003.csv");
+    }
+
+}
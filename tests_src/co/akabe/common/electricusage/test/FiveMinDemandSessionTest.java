@@ -0,0 +1,149 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.FiveMinDemandSession;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FiveMinDemandSessionTest extends TestCase {
+
+    private HttpServer mServer;
+    private volatile String mBody;
+    private volatile boolean mRangeSupported = true;
+    private SupplyDataFormat mFormat;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        InputStream in = getClass().getResourceAsStream("juyo-j.csv");
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        int n;
+        while ((n = in.read(b)) != -1)
+            buf.write(b, 0, n);
+        in.close();
+        mBody = buf.toString("Shift_JIS");
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/juyo-j.csv", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                byte[] body = mBody.getBytes("Shift_JIS");
+                String range = ex.getRequestHeaders().getFirst("Range");
+                int from = 0;
+                int status = 200;
+                if (mRangeSupported && range != null) {
+                    from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                    status = 206;
+                    ex.getResponseHeaders().set("Content-Range",
+                            "bytes " + from + "-" + (body.length - 1) + "/" + body.length);
+                }
+                ex.sendResponseHeaders(status, body.length - from);
+                OutputStream out = ex.getResponseBody();
+                out.write(body, from, body.length - from);
+                out.close();
+                ex.close();
+            }
+        });
+        mServer.start();
+        mFormat = new SupplyDataFormat("http://127.0.0.1:" + mServer.getAddress().getPort() + "/juyo-j.csv",
+                5, 2, 8, 44);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop(0);
+        super.tearDown();
+    }
+
+    private void publish(String time, int demand) {
+        mBody = mBody.replace("2016/8/1," + time + ",\r\n", "2016/8/1," + time + "," + demand + "\r\n");
+    }
+
+    @Test
+    public void testOnlyNewRowsAreReturned() throws IOException {
+        FiveMinDemandSession session = new FiveMinDemandSession(mFormat);
+        assertEquals(170, session.poll().size());
+        assertFalse(session.isLastPollPartial());
+        assertEquals("14:05", session.getLatest().getTime());
+
+        assertTrue(session.poll().isEmpty());
+        assertTrue(session.isLastPollPartial());
+
+        publish("14:10", 4301);
+        publish("14:15", 4305);
+        Vector<FiveMinDemand> delta = session.poll();
+        assertTrue(session.isLastPollPartial());
+        assertEquals(2, delta.size());
+        assertEquals("14:10", delta.get(0).getTime());
+        assertEquals(4305, delta.get(1).getDemandToday());
+        assertEquals(172, session.getSeenCount());
+        assertTrue(session.getLastTransferredBytes() < 4000);
+    }
+
+    @Test
+    public void testFallsBackWithoutRangeSupport() throws IOException {
+        mRangeSupported = false;
+        FiveMinDemandSession session = new FiveMinDemandSession(mFormat);
+        session.poll();
+        publish("14:10", 4301);
+        Vector<FiveMinDemand> delta = session.poll();
+        assertFalse(session.isLastPollPartial());
+        assertEquals(1, delta.size());
+        assertEquals(4301, delta.get(0).getDemandToday());
+    }
+
+    @Test
+    public void testShiftAboveFiveMinKeepsPosition() throws IOException {
+        FiveMinDemandSession session = new FiveMinDemandSession(mFormat);
+        assertEquals(170, session.poll().size());
+
+        // 14時の時間ごとの実績が埋まり、見出しの更新時刻も変わって5分ごとの行の位置がずれる
+        mBody = mBody.replace("2016/8/1,14:00,0,", "2016/8/1,14:00,4305,")
+                .replace("2016/8/1 14:05 UPDATE", "2016/8/1 14:10 UPDATE");
+        publish("14:10", 4301);
+        Vector<FiveMinDemand> delta = session.poll();
+        assertFalse(session.isLastPollPartial());
+        assertEquals(1, delta.size());
+        assertEquals("14:10", delta.get(0).getTime());
+        assertEquals(171, session.getSeenCount());
+
+        // 読み直した位置から差分取得を続けられる
+        publish("14:15", 4305);
+        delta = session.poll();
+        assertTrue(session.isLastPollPartial());
+        assertEquals(1, delta.size());
+        assertEquals(4305, delta.get(0).getDemandToday());
+
+        mRangeSupported = false;
+        mBody = mBody.replace("2016/8/1,15:00,0,", "2016/8/1,15:00,4400,");
+        assertTrue(session.poll().isEmpty());
+        assertEquals(172, session.getSeenCount());
+    }
+
+    @Test
+    public void testNewDayRestarts() throws IOException {
+        FiveMinDemandSession session = new FiveMinDemandSession(mFormat);
+        session.poll();
+        mBody = mBody.replace("2016/8/1,", "2016/8/2,");
+        Vector<FiveMinDemand> delta = session.poll();
+        assertEquals("2016/8/2", session.getDate());
+        assertEquals(170, delta.size());
+    }
+
+}
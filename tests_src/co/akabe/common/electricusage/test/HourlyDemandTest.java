@@ -45,6 +45,23 @@ public class HourlyDemandTest extends TestCase {
         assertEquals(mTimeString, mHourlyDemand.getTime());
     }
 
+    @Test
+    public void testGetHourAndMinute() {
+        String[] hm = mTimeString.split(":");
+        assertEquals(Integer.parseInt(hm[0]), mHourlyDemand.getHour());
+        assertEquals(Integer.parseInt(hm[1]), mHourlyDemand.getMinute());
+        assertEquals(mHourlyDemand.getHour() * 60 + mHourlyDemand.getMinute(), mHourlyDemand.getMinuteOfDay());
+    }
+
+    @Test
+    public void testGetEpochDay() {
+        // 1970/1/1からの日数
+        assertEquals(0, new HourlyDemand("1970/1/1", "0:00", "100", "-1048576").getEpochDay());
+        assertEquals(11016, new HourlyDemand("2000/2/29", "0:00", "100", "-1048576").getEpochDay());
+        assertEquals(16070, new HourlyDemand("2013/12/31", "23:00", "100", "-1048576").getEpochDay());
+        assertEquals(17014, new HourlyDemand("2016/8/1", "14:00", "100", "-1048576").getEpochDay());
+    }
+
     @Test
     public void testGetDemandToday() {
         assertEquals(mDemand, mHourlyDemand.getDemandToday());
@@ -0,0 +1,178 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.HttpResponseCache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpResponseCacheTest extends TestCase {
+
+    private HttpServer mServer;
+    private File mDir;
+    private String mUrl;
+    private int mFullResponses;
+    private byte[] mBody = "2016/8/1 14:05 UPDATE\r\n".getBytes();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("electricusage", "cache");
+        mDir.delete();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                if ("\"v1\"".equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+                    ex.sendResponseHeaders(304, -1);
+                } else {
+                    mFullResponses++;
+                    ex.getResponseHeaders().set("ETag", "\"v1\"");
+                    ex.sendResponseHeaders(200, mBody.length);
+                    OutputStream out = ex.getResponseBody();
+                    out.write(mBody);
+                    out.close();
+                }
+                ex.close();
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/juyo-j.csv";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop(0);
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void testNotModifiedReusesParsedResult() throws IOException {
+        HttpResponseCache cache = new HttpResponseCache(mDir);
+        HttpResponseCache.Response first = cache.fetch(mUrl);
+        assertFalse(first.isNotModified());
+        assertTrue(Arrays.equals(mBody, first.getBody()));
+        Object parsed = new Object();
+        first.setParsed(parsed);
+
+        HttpResponseCache.Response second = cache.fetch(mUrl);
+        assertTrue(second.isNotModified());
+        assertSame(parsed, second.getParsed());
+        assertEquals(1, mFullResponses);
+    }
+
+    @Test
+    public void testSurvivesRestart() throws IOException {
+        new HttpResponseCache(mDir).fetch(mUrl);
+
+        HttpResponseCache restarted = new HttpResponseCache(mDir);
+        HttpResponseCache.Response r = restarted.fetch(mUrl);
+        assertTrue(r.isNotModified());
+        assertNull(r.getParsed());
+        assertTrue(Arrays.equals(mBody, r.getBody()));
+        assertEquals(1, mFullResponses);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        String base = mUrl.substring(0, mUrl.lastIndexOf('/') + 1);
+        HttpResponseCache cache = new HttpResponseCache(mDir, 2);
+        cache.fetch(base + "juyo_05_20160801.csv");
+        cache.fetch(base + "juyo_05_20160802.csv");
+        assertTrue(cache.fetch(base + "juyo_05_20160801.csv").isNotModified());
+        cache.fetch(base + "juyo_05_20160803.csv");
+        assertEquals(3, mFullResponses);
+        assertEquals(2, cache.size());
+        assertEquals(4, mDir.list().length);
+
+        // 最後に使ったのが最も古い0802だけが破棄されている
+        assertTrue(cache.fetch(base + "juyo_05_20160801.csv").isNotModified());
+        assertTrue(cache.fetch(base + "juyo_05_20160803.csv").isNotModified());
+        assertFalse(cache.fetch(base + "juyo_05_20160802.csv").isNotModified());
+        assertEquals(4, mFullResponses);
+        assertEquals(4, mDir.list().length);
+    }
+
+    @Test
+    public void testOldFilesArePrunedOnRestart() throws IOException {
+        String base = mUrl.substring(0, mUrl.lastIndexOf('/') + 1);
+        HttpResponseCache cache = new HttpResponseCache(mDir);
+        for (int day = 1; day <= 3; day++)
+            cache.fetch(base + "juyo_05_2016080" + day + ".csv");
+        assertEquals(6, mDir.list().length);
+        // 保存した順に更新時刻を並べる
+        long time = System.currentTimeMillis() - 60000;
+        for (String name : mDir.list())
+            new File(mDir, name).setLastModified(time);
+        for (File f : mDir.listFiles()) {
+            if (f.getName().endsWith(".meta") && isMetaFor(f, base + "juyo_05_20160803.csv"))
+                f.setLastModified(time + 1000);
+        }
+
+        HttpResponseCache restarted = new HttpResponseCache(mDir, 1);
+        assertEquals(1, restarted.size());
+        assertEquals(2, mDir.list().length);
+        assertTrue(restarted.fetch(base + "juyo_05_20160803.csv").isNotModified());
+        assertEquals(3, mFullResponses);
+    }
+
+    @Test
+    public void testStoreLeavesNoTemporaryFiles() throws Exception {
+        final HttpResponseCache cache = new HttpResponseCache(mDir);
+        Thread[] threads = new Thread[4];
+        final IOException[] failure = new IOException[1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            cache.remove(mUrl);
+                            cache.fetch(mUrl);
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(failure[0]);
+        for (String name : mDir.list())
+            assertFalse(name, name.endsWith(".tmp"));
+        assertTrue(cache.fetch(mUrl).isNotModified());
+    }
+
+    private static boolean isMetaFor(File meta, String url) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(meta);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return url.equals(p.getProperty("url"));
+    }
+
+}
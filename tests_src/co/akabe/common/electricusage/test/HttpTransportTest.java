@@ -0,0 +1,160 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.EnumSet;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandDataListener;
+import co.akabe.common.electricusage.DemandSection;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.FiveMinDemandSession;
+import co.akabe.common.electricusage.HourlyDemand;
+import co.akabe.common.electricusage.HttpTransport;
+import co.akabe.common.electricusage.PeakDemand;
+import co.akabe.common.electricusage.PeakSupply;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class HttpTransportTest extends TestCase {
+
+    private ReplayServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new ReplayServer();
+        mServer.start(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testGzipResponse() throws IOException {
+        Vector<FiveMinDemand> plain = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.TOKYO)).get5MinDemand();
+
+        mServer.setGzip(ServiceArea.TOKYO, true);
+        HttpTransport transport = new HttpTransport();
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.TOKYO));
+        parser.setTransport(transport);
+        Vector<FiveMinDemand> gzipped = parser.get5MinDemand();
+
+        assertEquals(plain.size(), gzipped.size());
+        assertEquals(plain.lastElement().toString(), gzipped.lastElement().toString());
+        assertEquals(1, transport.getRequestCount());
+        assertTrue(transport.getWireBytes() > 0);
+        assertTrue(transport.getWireBytes() < transport.getDecodedBytes());
+    }
+
+    @Test
+    public void testGzipResponseAsync() throws Exception {
+        mServer.setGzip(ServiceArea.CHUBU, true);
+        HttpTransport transport = new HttpTransport();
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.CHUBU));
+        parser.setTransport(transport);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Vector<FiveMinDemand> async = parser.get5MinDemandAsync(executor).get(5, TimeUnit.SECONDS);
+            assertEquals(new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.CHUBU)).get5MinDemand().size(),
+                    async.size());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(transport.getWireBytes() < transport.getDecodedBytes());
+    }
+
+    @Test
+    public void testRangeIsNotCompressed() throws IOException {
+        mServer.setGzip(ServiceArea.CHUBU, true);
+        FiveMinDemandSession session = new FiveMinDemandSession(mServer.formatFor(ServiceArea.CHUBU));
+        HttpTransport transport = new HttpTransport();
+        session.setTransport(transport);
+        assertFalse(session.poll().isEmpty());
+        assertTrue(session.poll().isEmpty());
+        assertTrue(session.isLastPollPartial());
+        assertEquals(transport.getWireBytes(), transport.getDecodedBytes());
+    }
+
+    @Test
+    public void testEarlyStopDoesNotReadWholeBody() throws IOException {
+        // 末尾に5MBほどの行を足した本文から、ピーク時供給力だけを読む
+        byte[] recording = recording("juyo-j.csv");
+        ByteArrayOutputStream big = new ByteArrayOutputStream();
+        big.write(recording);
+        byte[] filler = "2016/8/1,23:55,4000,4100\r\n".getBytes("US-ASCII");
+        while (big.size() < 5000000)
+            big.write(filler);
+        mServer.setRecording(ServiceArea.TOKYO, big.toByteArray());
+
+        HttpTransport transport = new HttpTransport();
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.TOKYO));
+        parser.setTransport(transport);
+        final PeakSupply[] supply = new PeakSupply[1];
+        parser.parse(new DemandDataListener() {
+            public void onPeakSupply(PeakSupply s) {
+                supply[0] = s;
+            }
+
+            public void onPeakDemand(PeakDemand d) {
+            }
+
+            public void onHourlyDemand(HourlyDemand d) {
+            }
+
+            public void onFiveMinDemand(FiveMinDemand d) {
+            }
+        }, EnumSet.of(DemandSection.PEAK_SUPPLY));
+        assertEquals(4816, supply[0].getAmount());
+        assertTrue("received " + transport.getWireBytes(), transport.getWireBytes() < 64 * 1024);
+
+        // 接続を切った後も次の取得はできる
+        mServer.setRecording(ServiceArea.TOKYO, recording);
+        assertEquals(4816, parser.getPeakSupply().getAmount());
+    }
+
+    private byte[] recording(String resource) throws IOException {
+        InputStream in = getClass().getResourceAsStream(resource);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0)
+                out.write(b, 0, n);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testReadTimeoutPerFormat() throws IOException {
+        mServer.setLatency(ServiceArea.KANSAI, 3000);
+        SupplyDataFormat f = mServer.formatFor(ServiceArea.KANSAI);
+        f.setTimeouts(1000, 200);
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(f);
+        long start = System.currentTimeMillis();
+        try {
+            parser.refresh();
+            fail();
+        } catch (SocketTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.JmxDemandMetrics;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class JmxDemandMetricsTest extends TestCase {
+
+    private ReplayServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new ReplayServer();
+        mServer.start(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testFetchAndParseAreRecorded() throws IOException {
+        JmxDemandMetrics metrics = new JmxDemandMetrics("test");
+        SupplyDataFormat f = mServer.formatFor(ServiceArea.CHUBU);
+        f.setMetrics(metrics);
+        new ElectricUsageCSVParser(f).refresh();
+
+        assertEquals(1, metrics.getFetchCount());
+        assertEquals(mServer.getBytesServed(ServiceArea.CHUBU), metrics.getBytesRead());
+        assertEquals(1, metrics.getParseCount());
+        assertTrue(metrics.getRowsParsed() > 288);
+        long sum = 0;
+        for (long n : metrics.getFetchLatencyHistogram())
+            sum += n;
+        assertEquals(1, sum);
+        assertEquals(0, metrics.getErrorCount());
+    }
+
+    @Test
+    public void testErrorsByType() {
+        mServer.setError(ServiceArea.KANSAI, 1, 503);
+        JmxDemandMetrics metrics = new JmxDemandMetrics("test");
+        SupplyDataFormat f = mServer.formatFor(ServiceArea.KANSAI);
+        f.setMetrics(metrics);
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(f);
+        for (int i = 0; i < 2; i++) {
+            try {
+                parser.refresh();
+                fail();
+            } catch (IOException e) {
+                // 期待通り
+            }
+        }
+        Map<String, Long> errors = metrics.getErrorsByType();
+        assertEquals(2, metrics.getErrorCount());
+        assertEquals(1, errors.size());
+        assertEquals(Long.valueOf(2), errors.values().iterator().next());
+    }
+
+    @Test
+    public void testRegisteredPerArea() throws Exception {
+        JmxDemandMetrics metrics = JmxDemandMetrics.forArea(ServiceArea.TOKYO);
+        assertSame(metrics, JmxDemandMetrics.forArea(ServiceArea.TOKYO));
+        metrics.reset();
+        metrics.recordFetch(30 * 1000000L, 100);
+        metrics.recordFetch(700 * 1000000L, 100);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(JmxDemandMetrics.DOMAIN + ":type=DemandMetrics,area=TOKYO");
+        assertEquals(2L, server.getAttribute(name, "FetchCount"));
+        assertEquals(200L, server.getAttribute(name, "BytesRead"));
+        assertEquals(50L, server.getAttribute(name, "FetchLatencyP50Millis"));
+        assertEquals(1000L, server.getAttribute(name, "FetchLatencyP99Millis"));
+        server.invoke(name, "reset", null, null);
+        assertEquals(0, metrics.getFetchCount());
+    }
+
+}
@@ -0,0 +1,102 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandFetchException;
+import co.akabe.common.electricusage.FetchFailure;
+import co.akabe.common.electricusage.FiveMinDemandSession;
+import co.akabe.common.electricusage.NationalDemandFetcher;
+import co.akabe.common.electricusage.NationalSnapshot;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class NationalDemandFetcherTest extends TestCase {
+
+    private ReplayServer mServer;
+    private NationalDemandFetcher mFetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new ReplayServer();
+        mServer.start(0);
+        mFetcher = new NationalDemandFetcher(4, 5000);
+        for (ServiceArea area : ServiceArea.values())
+            mFetcher.setFormat(area, mServer.formatFor(area));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFetcher.shutdown();
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testFormatsAreReusedAcrossCycles() throws InterruptedException {
+        SupplyDataFormat tohoku = mFetcher.getFormat(ServiceArea.TOHOKU);
+        assertNotNull(tohoku.getURLTemplate());
+        tohoku.setTimeouts(1000, 2000);
+
+        NationalSnapshot first = mFetcher.fetch();
+        for (ServiceArea area : ServiceArea.values())
+            assertTrue(area.toString(), first.get(area).isSuccess());
+        assertTrue(tohoku.getParsePlan().isDetected());
+
+        NationalSnapshot second = mFetcher.fetch(EnumSet.of(ServiceArea.TOHOKU, ServiceArea.KYUSHU));
+        assertSame(tohoku, second.get(ServiceArea.TOHOKU).getFormat());
+        assertSame(tohoku, mFetcher.getFormat(ServiceArea.TOHOKU));
+        assertEquals(2000, mFetcher.getFormat(ServiceArea.TOHOKU).getReadTimeout());
+        assertSame(mFetcher.getFormat(ServiceArea.KYUSHU), second.get(ServiceArea.KYUSHU).getFormat());
+    }
+
+    @Test
+    public void testBreakerStaysOpenForDatedArea() throws InterruptedException {
+        mServer.setError(ServiceArea.HOKURIKU, 1, 503);
+        mFetcher.getFormat(ServiceArea.HOKURIKU).getCircuitBreaker().configure(2, 60000);
+        EnumSet<ServiceArea> targets = EnumSet.of(ServiceArea.HOKURIKU, ServiceArea.TOKYO);
+        for (int i = 0; i < 2; i++) {
+            NationalSnapshot s = mFetcher.fetch(targets);
+            assertEquals(FetchFailure.HTTP_STATUS, s.get(ServiceArea.HOKURIKU).getFailureReason());
+            assertTrue(s.get(ServiceArea.TOKYO).isSuccess());
+        }
+        // 以降の更新ではサーバに問い合わせずにすぐ失敗する
+        for (int i = 0; i < 3; i++) {
+            NationalSnapshot s = mFetcher.fetch(targets);
+            assertEquals(FetchFailure.CIRCUIT_OPEN, s.get(ServiceArea.HOKURIKU).getFailureReason());
+            String message = s.get(ServiceArea.HOKURIKU).getFailure().getMessage();
+            assertTrue(message, message.matches(".*juyo_05_\\d{8}\\.csv"));
+        }
+        assertEquals(2, mServer.getRequestCount(ServiceArea.HOKURIKU));
+        assertEquals(5, mServer.getRequestCount(ServiceArea.TOKYO));
+    }
+
+    @Test
+    public void testSessionBreakerUsesResolvedURL() throws IOException {
+        mServer.setError(ServiceArea.TOHOKU, 1, 503);
+        SupplyDataFormat f = mFetcher.getFormat(ServiceArea.TOHOKU);
+        f.getCircuitBreaker().configure(1, 60000);
+        FiveMinDemandSession session = new FiveMinDemandSession(f);
+        try {
+            session.poll();
+            fail();
+        } catch (DemandFetchException e) {
+            assertEquals(FetchFailure.HTTP_STATUS, e.getReason());
+        }
+        try {
+            session.poll();
+            fail();
+        } catch (DemandFetchException e) {
+            assertEquals(FetchFailure.CIRCUIT_OPEN, e.getReason());
+            assertTrue(e.getMessage(), e.getMessage().endsWith(f.resolveURL()));
+        }
+    }
+
+}
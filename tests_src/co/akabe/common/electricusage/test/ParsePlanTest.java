@@ -0,0 +1,180 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandDataListener;
+import co.akabe.common.electricusage.DemandSection;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.HourlyDemand;
+import co.akabe.common.electricusage.ParsePlan;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.PeakDemand;
+import co.akabe.common.electricusage.PeakSupply;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class ParsePlanTest extends TestCase {
+
+    private byte[] mBody;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        InputStream in = getClass().getResourceAsStream("juyo-j.csv");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0)
+                out.write(b, 0, n);
+        } finally {
+            in.close();
+        }
+        mBody = out.toByteArray();
+    }
+
+    /**
+     * 指定した行の前に行を挿入した本文を作る
+     */
+    private byte[] insertLine(int lineNo, String line) throws IOException {
+        int pos = 0;
+        for (int i = 0; i < lineNo; i++) {
+            while (mBody[pos] != '\n')
+                pos++;
+            pos++;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(mBody, 0, pos);
+        out.write((line + "\r\n").getBytes("Shift_JIS"));
+        out.write(mBody, pos, mBody.length - pos);
+        return out.toByteArray();
+    }
+
+    private static SupplyDataFormat newTokyoFormat() {
+        return new SupplyDataFormat("", 5, 2, 8, 44);
+    }
+
+    @Test
+    public void testPlanIsReused() throws IOException {
+        SupplyDataFormat f = newTokyoFormat();
+        assertFalse(f.getParsePlan().isDetected());
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(f);
+        parser.parse(ByteBuffer.wrap(mBody));
+        ParsePlan plan = f.getParsePlan();
+        assertTrue(plan.isDetected());
+        assertEquals(8, plan.getLine(DemandSection.HOURLY));
+        assertEquals(44, plan.getLine(DemandSection.FIVE_MIN));
+        assertFalse(plan.hasFiveMinSecondary());
+
+        parser.parse(ByteBuffer.wrap(mBody));
+        assertSame(plan, f.getParsePlan());
+    }
+
+    @Test
+    public void testInsertedLineIsDetected() throws IOException {
+        SupplyDataFormat f = newTokyoFormat();
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(f);
+        ParsedUsageDocument expected = parser.parse(ByteBuffer.wrap(mBody));
+        ParsePlan before = f.getParsePlan();
+
+        // 予想最大電力の前にお知らせの行が増えた
+        byte[] shifted = insertLine(4, "お知らせ,需要データの形式を変更しました");
+        ParsedUsageDocument doc = parser.parse(ByteBuffer.wrap(shifted));
+        ParsePlan after = f.getParsePlan();
+        assertNotSame(before, after);
+        assertEquals(2, after.getLine(DemandSection.PEAK_SUPPLY));
+        assertEquals(6, after.getLine(DemandSection.PEAK_DEMAND));
+        assertEquals(9, after.getLine(DemandSection.HOURLY));
+        assertEquals(45, after.getLine(DemandSection.FIVE_MIN));
+
+        assertEquals(expected.getPeakSupply().getAmount(), doc.getPeakSupply().getAmount());
+        assertEquals(expected.getPeakDemand().getAmount(), doc.getPeakDemand().getAmount());
+        assertEquals(expected.getHourlyDemand().size(), doc.getHourlyDemand().size());
+        assertEquals(expected.getHourlyDemand().get(23).toStringWithDiff(),
+                doc.getHourlyDemand().get(23).toStringWithDiff());
+        assertEquals(expected.get5MinDemand().size(), doc.get5MinDemand().size());
+        assertEquals(expected.getLatest5MinDemand().toStringWithDiff(), doc.getLatest5MinDemand().toStringWithDiff());
+        assertEquals(expected.get5MinDemandSeries().size(), doc.get5MinDemandSeries().size());
+
+        // 読み込みながら解析する場合も同じ結果になる
+        final Vector<HourlyDemand> hourly = new Vector<HourlyDemand>();
+        final Vector<FiveMinDemand> fiveMin = new Vector<FiveMinDemand>();
+        final PeakDemand[] demand = new PeakDemand[1];
+        new ElectricUsageCSVParser(newTokyoFormat()).parse(new ByteArrayInputStream(shifted),
+                new DemandDataListener() {
+                    public void onPeakSupply(PeakSupply s) {
+                    }
+
+                    public void onPeakDemand(PeakDemand d) {
+                        demand[0] = d;
+                    }
+
+                    public void onHourlyDemand(HourlyDemand d) {
+                        hourly.add(d);
+                    }
+
+                    public void onFiveMinDemand(FiveMinDemand d) {
+                        fiveMin.add(d);
+                    }
+                }, EnumSet.allOf(DemandSection.class));
+        assertEquals(expected.getPeakDemand().getAmount(), demand[0].getAmount());
+        assertEquals(24, hourly.size());
+        assertEquals(expected.get5MinDemand().size(), fiveMin.size());
+    }
+
+    @Test
+    public void testMissingHeaderIsNotReadPositionally() throws IOException {
+        String text = new String(mBody, "Shift_JIS").replace("DATE,TIME,当日実績(５分間隔値)", "x");
+        SupplyDataFormat f = newTokyoFormat();
+        ParsedUsageDocument doc = new ElectricUsageCSVParser(f).parse(ByteBuffer.wrap(text.getBytes("Shift_JIS")));
+        assertEquals(EnumSet.of(DemandSection.FIVE_MIN), f.getParsePlan().getMissingSections());
+        assertNull(doc.get5MinDemand());
+        assertNotNull(doc.getHourlyDemand());
+    }
+
+    @Test
+    public void testKyushuFiveMinHasPreviousDay() throws IOException {
+        SupplyDataFormat f = new SupplyDataFormat("", 5, 2, 0, 8);
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(f);
+        InputStream in = getClass().getResourceAsStream("juyo-5min-kyushu.csv");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0)
+                out.write(b, 0, n);
+            parser.parse(ByteBuffer.wrap(out.toByteArray()));
+        } finally {
+            in.close();
+        }
+        assertTrue(f.getParsePlan().hasFiveMinSecondary());
+        assertFalse(f.getParsePlan().has(DemandSection.HOURLY));
+    }
+
+    @Test
+    public void testUnrelatedFourthColumnIsNotPreviousDay() throws IOException {
+        // 5分ごとの見出しに前日実績ではない列 (太陽光) が加わった
+        String text = new String(mBody, "Shift_JIS")
+                .replace("DATE,TIME,当日実績(５分間隔値)(万kW)", "DATE,TIME,当日実績(５分間隔値)(万kW),太陽光発電実績(万kW)")
+                .replace("2016/8/1,0:00,2053\r\n", "2016/8/1,0:00,2053,120\r\n");
+        SupplyDataFormat f = newTokyoFormat();
+        ParsedUsageDocument doc = new ElectricUsageCSVParser(f).parse(ByteBuffer.wrap(text.getBytes("Shift_JIS")));
+        assertTrue(f.getParsePlan().isDetected());
+        assertFalse(f.getParsePlan().hasFiveMinSecondary());
+        assertEquals(2053, doc.get5MinDemand().get(0).getDemandToday());
+        // 前日実績がない場合の値 (前日比を表示しない)
+        assertEquals(-1048576, doc.get5MinDemand().get(0).getDemandYesterday());
+    }
+
+}
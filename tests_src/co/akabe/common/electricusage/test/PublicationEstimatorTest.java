@@ -0,0 +1,55 @@
+package co.akabe.common.electricusage.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandDate;
+import co.akabe.common.electricusage.PublicationEstimator;
+
+public class PublicationEstimatorTest extends TestCase {
+
+    private static final long MINUTE = 60000;
+    private static final long T0 = DemandDate.toEpochMillis(DemandDate.toEpochDay(2013, 7, 1), 600);
+
+    @Test
+    public void testToEpochMillis() {
+        // 2013/7/1 10:00 JST = 2013/7/1 01:00 UTC
+        assertEquals(1372640400000L, T0);
+    }
+
+    @Test
+    public void testLearnsLag() {
+        PublicationEstimator e = new PublicationEstimator(10000, 300000, 0, new Random(1));
+        // 初回は下限が分からないので学習しない
+        e.onChanged(T0, -1, T0 + 4 * MINUTE);
+        assertTrue(e.getEstimatedLag() < 0);
+        // 10:05の行は10:08～10:09の間に公開された
+        e.onChanged(T0 + 5 * MINUTE, T0 + 8 * MINUTE, T0 + 9 * MINUTE);
+        assertEquals(3 * MINUTE + 30000, e.getEstimatedLag());
+        // 次の10:10の行は10:13:30の直後に取得する
+        assertEquals(T0 + 13 * MINUTE + 30000, e.nextPollAt(T0 + 5 * MINUTE, T0 + 9 * MINUTE));
+    }
+
+    @Test
+    public void testBackoffWithJitter() {
+        PublicationEstimator e = new PublicationEstimator(10000, 40000, 0, new Random(1));
+        long now = T0;
+        long prev = 0;
+        for (int i = 0; i < 5; i++) {
+            e.onUnchanged();
+            long delay = e.nextPollAt(-1, now) - now;
+            long base = Math.min(40000, 10000L << (i + 1));
+            assertTrue(delay >= base * 3 / 4 && delay <= base * 5 / 4);
+            assertTrue(i < 2 || delay <= 50000);
+            prev = delay;
+        }
+        assertTrue(prev > 0);
+        assertEquals(5, e.getMisses());
+        e.onChanged(T0, T0 - MINUTE, T0);
+        assertEquals(0, e.getMisses());
+    }
+
+}
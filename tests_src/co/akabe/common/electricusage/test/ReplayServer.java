@@ -0,0 +1,442 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import co.akabe.common.electricusage.CSVRowScanner;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+import co.akabe.common.electricusage.SupplyDataFormatH;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * テスト用の合成CSVを各社のURLと同じパスで配信するローカルHTTPサーバ
+ * <p>
+ * 配信するCSVは各社の形式に合わせて手で作ったもので、実際に取得したデータではない (テストリソースのREADME.mdを参照)。
+ * テストや負荷試験で実際の電力会社のサイトにアクセスしないために使う。
+ * {@link #formatFor(ServiceArea)} で、このサーバを指すデータフォーマット定義が得られる。
+ * 日付入りのURLを使う区域では、URLのテンプレートも引き継ぐ。
+ * 日付入りのファイル名 (juyo_02_yyyyMMdd.csv など) は日付にかかわらず同じ記録を返す。
+ * <p>
+ * {@link #setClock(int, double)} を呼ぶと、仮想時刻を早送りしながら1日分の5分ごとの更新を再現する。
+ * 仮想時刻より後の実績は空欄 (時間ごとの実績は0) にして返す。
+ * また区域ごとに応答の遅延・帯域制限・エラーを設定できる。
+ * ETag / If-None-Match と Range、gzipでの圧縮 ({@link #setGzip(ServiceArea, boolean)}) にも対応している。
+ * <p>
+ * 単体で起動する場合: {@code gradle replayServer -PreplayArgs="ポート 倍速 開始時刻(分)"}
+ */
+public class ReplayServer {
+
+    private static final String CHARSET = "Shift_JIS";
+
+    private final Map<ServiceArea, Area> areas = new EnumMap<ServiceArea, Area>(ServiceArea.class);
+    private final Random random = new Random();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private volatile long clockOrigin;
+    private volatile int startMinute = -1;
+    private volatile double speed = 1;
+
+    /**
+     * 同梱の合成CSVを読み込んでサーバを作る。
+     *
+     * @throws IOException 合成CSVを読み込めなかった場合
+     */
+    public ReplayServer() throws IOException {
+        put(ServiceArea.HOKKAIDO, "juyo_hokkaidou.csv");
+        put(ServiceArea.TOHOKU, "juyo_02_20160801.csv");
+        put(ServiceArea.TOKYO, "juyo-j.csv");
+        put(ServiceArea.HOKURIKU, "juyo_05_20160801.csv");
+        put(ServiceArea.CHUBU, "juyo_cepco003.csv");
+        put(ServiceArea.KANSAI, "juyo1_kansai.csv");
+        put(ServiceArea.CHUGOKU, "juyo_07_20160801.csv");
+        put(ServiceArea.SHIKOKU, "juyo_shikoku.csv");
+        put(ServiceArea.KYUSHU, "juyo-hourly-20160801.csv");
+    }
+
+    private void put(ServiceArea area, String resource) throws IOException {
+        InputStream in = ReplayServer.class.getResourceAsStream(resource);
+        if (in == null)
+            throw new IOException("Recording not found: " + resource);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            areas.put(area, new Area(area, out.toByteArray()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 区域の記録を差し替える。
+     *
+     * @param area 供給区域
+     * @param recording 配信するCSV (Shift_JIS)
+     */
+    public void setRecording(ServiceArea area, byte[] recording) {
+        areas.get(area).recording = recording;
+    }
+
+    /**
+     * 仮想時刻による再生を始める。
+     *
+     * @param start 再生開始時の仮想時刻 (0時からの経過分)
+     * @param s 再生速度 (実時間1秒あたりに進む仮想時間の秒数)
+     */
+    public void setClock(int start, double s) {
+        speed = s;
+        clockOrigin = System.currentTimeMillis();
+        startMinute = start;
+    }
+
+    /**
+     * 仮想時刻による再生をやめ、記録をそのまま返すようにする。
+     */
+    public void clearClock() {
+        startMinute = -1;
+    }
+
+    /**
+     * 現在の仮想時刻を返す。
+     *
+     * @return 0時からの経過分。再生していない場合は-1
+     */
+    public int getVirtualMinute() {
+        int start = startMinute;
+        if (start < 0)
+            return -1;
+        double elapsed = (System.currentTimeMillis() - clockOrigin) * speed / 60000.0;
+        return Math.min(24 * 60 - 1, start + (int) elapsed);
+    }
+
+    /**
+     * 区域の応答に遅延を入れる。
+     *
+     * @param area 供給区域
+     * @param millis 応答ヘッダを返すまでの遅延 (ミリ秒)
+     */
+    public void setLatency(ServiceArea area, long millis) {
+        areas.get(area).latencyMillis = millis;
+    }
+
+    /**
+     * 区域の応答の帯域を制限する。
+     *
+     * @param area 供給区域
+     * @param bytesPerSecond 1秒あたりの送信バイト数。0以下なら制限しない
+     */
+    public void setBandwidth(ServiceArea area, int bytesPerSecond) {
+        areas.get(area).bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * リクエストが Accept-Encoding: gzip を含む場合に、区域の応答をgzipで圧縮する。
+     * Rangeリクエストの応答は圧縮しない。
+     *
+     * @param area 供給区域
+     * @param enabled 圧縮する場合はtrue
+     */
+    public void setGzip(ServiceArea area, boolean enabled) {
+        areas.get(area).gzip = enabled;
+    }
+
+    /**
+     * 区域の応答にエラーを混ぜる。
+     *
+     * @param area 供給区域
+     * @param rate エラーを返す確率 (0～1)
+     * @param status エラー時に返すHTTPステータス
+     */
+    public void setError(ServiceArea area, double rate, int status) {
+        Area a = areas.get(area);
+        a.errorStatus = status;
+        a.errorRate = rate;
+    }
+
+    /**
+     * 区域へのリクエスト数を返す。
+     *
+     * @param area 供給区域
+     * @return リクエスト数
+     */
+    public int getRequestCount(ServiceArea area) {
+        return areas.get(area).requests.get();
+    }
+
+    /**
+     * 区域へ送信した本文のバイト数を返す。
+     *
+     * @param area 供給区域
+     * @return 送信したバイト数
+     */
+    public long getBytesServed(ServiceArea area) {
+        return areas.get(area).bytesServed.get();
+    }
+
+    /**
+     * サーバを起動する。
+     *
+     * @param port 待ち受けるポート。0なら空いているポートを使う
+     * @throws IOException 起動できなかった場合
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    serve(ex);
+                } finally {
+                    ex.close();
+                }
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * サーバを停止する。
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * 待ち受けているポートを返す。
+     *
+     * @return ポート番号
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * このサーバを指すデータフォーマット定義を返す。行の位置は各社の定義と同じ。
+     *
+     * @param area 供給区域
+     * @return データフォーマット定義
+     */
+    public SupplyDataFormat formatFor(ServiceArea area) {
+        SupplyDataFormat f = area.buildFormat();
+        String url = "http://127.0.0.1:" + getPort() + pathOf(f);
+        SupplyDataFormat ret;
+        if (f.isHokkaido)
+            ret = new SupplyDataFormatH(url, f.peakDemand_Line, f.peakSupply_Line, f.hourlyDemand_Line,
+                    f.fiveMinDemand_Line);
+        else
+            ret = new SupplyDataFormat(url, f.peakDemand_Line, f.peakSupply_Line, f.hourlyDemand_Line,
+                    f.fiveMinDemand_Line);
+        // 日付入りのURLはテンプレートのまま引き継ぐ
+        if (f.getURLTemplate() != null)
+            ret.setURLTemplate("http://127.0.0.1:" + getPort() + f.getURLTemplate().replaceFirst("^https?://[^/]*", ""));
+        return ret;
+    }
+
+    private static String pathOf(SupplyDataFormat f) {
+        try {
+            return new URL(f.dataURL).getPath();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(f.dataURL, e);
+        }
+    }
+
+    /**
+     * 日付部分を取り除いたパス。日付入りのファイル名をまとめて扱うために使う
+     */
+    private static String normalize(String path) {
+        return path.replaceAll("\\d{8}", "yyyyMMdd");
+    }
+
+    private void serve(HttpExchange ex) throws IOException {
+        Area area = null;
+        String path = normalize(ex.getRequestURI().getPath());
+        for (Area a : areas.values()) {
+            if (a.path.equals(path))
+                area = a;
+        }
+        if (area == null) {
+            ex.sendResponseHeaders(404, -1);
+            return;
+        }
+        area.requests.incrementAndGet();
+        sleep(area.latencyMillis);
+        if (area.errorRate > 0 && random.nextDouble() < area.errorRate) {
+            ex.sendResponseHeaders(area.errorStatus, -1);
+            return;
+        }
+
+        byte[] body = render(area);
+        String etag = etag(body);
+        ex.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+            ex.sendResponseHeaders(304, -1);
+            return;
+        }
+        int from = 0;
+        int status = 200;
+        String range = ex.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+            from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            if (from >= body.length) {
+                ex.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                ex.sendResponseHeaders(416, -1);
+                return;
+            }
+            status = 206;
+            ex.getResponseHeaders().set("Content-Range",
+                    "bytes " + from + "-" + (body.length - 1) + "/" + body.length);
+        }
+        ex.getResponseHeaders().set("Content-Type", "text/csv; charset=" + CHARSET);
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (area.gzip && status == 200 && accept != null && accept.contains("gzip")) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            GZIPOutputStream gz = new GZIPOutputStream(buf);
+            gz.write(body);
+            gz.close();
+            body = buf.toByteArray();
+            ex.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        ex.sendResponseHeaders(status, body.length - from);
+        OutputStream out = ex.getResponseBody();
+        int bps = area.bytesPerSecond;
+        int chunk = bps > 0 ? Math.max(1, bps / 10) : body.length;
+        for (int pos = from; pos < body.length; pos += chunk) {
+            int n = Math.min(chunk, body.length - pos);
+            // 受け取った側が読み終える前に数えておく
+            area.bytesServed.addAndGet(n);
+            out.write(body, pos, n);
+            out.flush();
+            if (bps > 0)
+                sleep(100);
+        }
+        out.close();
+    }
+
+    /**
+     * 仮想時刻に合わせて、まだ公表されていないはずの実績を空欄にした本文を作る。
+     */
+    private byte[] render(Area area) throws UnsupportedEncodingException {
+        int now = getVirtualMinute();
+        if (now < 0)
+            return area.recording;
+        SupplyDataFormat f = area.layout;
+        String[] lines = new String(area.recording, CHARSET).split("\r\n", -1);
+        StringBuilder sb = new StringBuilder(area.recording.length);
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (i == 0 && line.endsWith(" UPDATE")) {
+                line = line.substring(0, line.indexOf(' ')) + " " + (now / 60) + ":"
+                        + (now % 60 < 10 ? "0" : "") + (now % 60) + " UPDATE";
+            } else if (f.hourlyDemand_Line != 0 && i >= f.hourlyDemand_Line && i < f.hourlyDemand_Line + 24) {
+                String[] fields = line.split(",", -1);
+                if (CSVRowScanner.parseMinuteOfDay(fields[1]) + 60 > now) {
+                    fields[2] = "0";
+                    line = join(fields);
+                }
+            } else if (f.fiveMinDemand_Line != 0 && i >= f.fiveMinDemand_Line && line.length() > 0) {
+                String[] fields = line.split(",", -1);
+                if (CSVRowScanner.parseMinuteOfDay(fields[1]) > now) {
+                    fields[2] = "";
+                    line = join(fields);
+                }
+            }
+            sb.append(line);
+            if (i < lines.length - 1)
+                sb.append("\r\n");
+        }
+        return sb.toString().getBytes(CHARSET);
+    }
+
+    private static String join(String[] fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(fields[i]);
+        }
+        return sb.toString();
+    }
+
+    private static String etag(byte[] body) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(body);
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i = 0; i < 8; i++)
+                sb.append(Character.forDigit((d[i] >> 4) & 0xf, 16)).append(Character.forDigit(d[i] & 0xf, 16));
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 区域ごとの記録と設定
+     */
+    private static final class Area {
+        final SupplyDataFormat layout;
+        final String path;
+        volatile byte[] recording;
+        volatile long latencyMillis;
+        volatile int bytesPerSecond;
+        volatile boolean gzip;
+        volatile double errorRate;
+        volatile int errorStatus = 503;
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicLong bytesServed = new AtomicLong();
+
+        Area(ServiceArea area, byte[] r) {
+            layout = area.buildFormat();
+            path = normalize(pathOf(layout));
+            recording = r;
+        }
+    }
+
+    /**
+     * 単体で起動する。
+     *
+     * @param args ポート (省略時8080)、再生速度 (省略時は記録をそのまま返す)、開始時刻 (0時からの経過分、省略時0)
+     */
+    public static void main(String[] args) throws IOException {
+        ReplayServer s = new ReplayServer();
+        s.start(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        if (args.length > 1)
+            s.setClock(args.length > 2 ? Integer.parseInt(args[2]) : 0, Double.parseDouble(args[1]));
+        for (ServiceArea area : ServiceArea.values())
+            System.out.println(area + "\t" + s.formatFor(area).dataURL);
+    }
+
+}
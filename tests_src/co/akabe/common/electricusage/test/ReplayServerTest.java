@@ -0,0 +1,159 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.AreaSnapshot;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemandSession;
+import co.akabe.common.electricusage.NationalDemandFetcher;
+import co.akabe.common.electricusage.NationalSnapshot;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.PeakSupply;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+/**
+ * {@link ReplayServer} を使い、通信を伴う処理をオフラインで確認するテスト
+ */
+public class ReplayServerTest extends TestCase {
+
+    private ReplayServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new ReplayServer();
+        mServer.start(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    private Map<ServiceArea, SupplyDataFormat> allFormats() {
+        Map<ServiceArea, SupplyDataFormat> formats = new EnumMap<ServiceArea, SupplyDataFormat>(ServiceArea.class);
+        for (ServiceArea area : ServiceArea.values())
+            formats.put(area, mServer.formatFor(area));
+        return formats;
+    }
+
+    @Test
+    public void testGetPeakSupply() {
+        for (ServiceArea area : ServiceArea.values()) {
+            PeakSupply ps = new ElectricUsageCSVParser(mServer.formatFor(area)).getPeakSupply();
+            assertTrue(area.toString(), ps.getAmount() > 0);
+        }
+    }
+
+    @Test
+    public void testNationalFetch() throws InterruptedException {
+        mServer.setLatency(ServiceArea.TOKYO, 2000);
+        mServer.setError(ServiceArea.KANSAI, 1.0, 503);
+        for (ServiceArea area : ServiceArea.values()) {
+            if (area != ServiceArea.TOKYO)
+                mServer.setLatency(area, 200);
+        }
+        NationalDemandFetcher fetcher = new NationalDemandFetcher(9, 1000);
+        try {
+            NationalSnapshot snapshot = fetcher.fetch(allFormats());
+            assertEquals(7, snapshot.getSucceeded().size());
+            assertEquals(2, snapshot.getFailed().size());
+            assertTrue(snapshot.get(ServiceArea.TOKYO).getFailure() instanceof TimeoutException);
+            assertTrue(snapshot.get(ServiceArea.KANSAI).getFailure() instanceof IOException);
+            AreaSnapshot hokkaido = snapshot.get(ServiceArea.HOKKAIDO);
+            assertEquals(24, hokkaido.getHourlyDemand().size());
+            assertEquals(170, hokkaido.get5MinDemand().size());
+            // 並行して取得するので、7区域×200msではなく1区域分程度で終わる
+            assertTrue(snapshot.getElapsedMillis() < 1400);
+        } finally {
+            fetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testAcceleratedReplay() throws IOException, InterruptedException {
+        // 10:00から、実時間1秒で仮想時間10分進める
+        mServer.setClock(600, 600);
+        FiveMinDemandSession session = new FiveMinDemandSession(mServer.formatFor(ServiceArea.CHUBU));
+        assertEquals(121, session.poll().size());
+        assertEquals("10:00", session.getLatest().getTime());
+        Thread.sleep(1100);
+        int delta = session.poll().size();
+        assertTrue(delta >= 2 && delta <= 3);
+        assertTrue(session.isLastPollPartial());
+        assertEquals(2, mServer.getRequestCount(ServiceArea.CHUBU));
+    }
+
+    @Test
+    public void testBandwidthLimit() {
+        mServer.setBandwidth(ServiceArea.SHIKOKU, 20000);
+        long start = System.currentTimeMillis();
+        assertNotNull(new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.SHIKOKU)).get5MinDemand());
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertTrue(mServer.getBytesServed(ServiceArea.SHIKOKU) > 5000);
+    }
+
+    @Test
+    public void testConcurrentGettersDownloadOnce() throws Exception {
+        mServer.setLatency(ServiceArea.TOKYO, 300);
+        final ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.TOKYO));
+        final CountDownLatch ready = new CountDownLatch(1);
+        final Vector<Object> results = new Vector<Object>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        ready.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    results.add(n % 2 == 0 ? parser.get5MinDemand() : parser.getPeakSupply());
+                }
+            };
+            threads[i].start();
+        }
+        ready.countDown();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(threads.length, results.size());
+        assertFalse(results.contains(null));
+        assertEquals(1, mServer.getRequestCount(ServiceArea.TOKYO));
+    }
+
+    @Test
+    public void testRefreshPublishesNewDocument() throws IOException {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(mServer.formatFor(ServiceArea.TOKYO));
+        ParsedUsageDocument first = parser.getDocument();
+        Vector<FiveMinDemand> copy = parser.get5MinDemand();
+        copy.clear(); // 写しを変更しても解析結果には影響しない
+        assertFalse(first.get5MinDemand().isEmpty());
+        assertSame(first, parser.getDocument());
+        try {
+            first.get5MinDemandSeries().add(0, 0, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            // 読み取り専用
+        }
+        ParsedUsageDocument second = parser.refresh();
+        assertNotSame(first, second);
+        assertSame(second, parser.getDocument());
+        assertEquals(2, mServer.getRequestCount(ServiceArea.TOKYO));
+    }
+
+}
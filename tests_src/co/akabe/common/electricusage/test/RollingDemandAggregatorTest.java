@@ -0,0 +1,100 @@
+package co.akabe.common.electricusage.test;
+
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandSeries;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.FiveMinDemand;
+import co.akabe.common.electricusage.PeakSupply;
+import co.akabe.common.electricusage.RollingDemandAggregator;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class RollingDemandAggregatorTest extends TestCase {
+
+    @Test
+    public void testMatchesRecomputation() {
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(new SupplyDataFormat(
+                getClass().getResource("juyo-j.csv").toString(), 5, 2, 8, 44));
+        Vector<FiveMinDemand> all = parser.get5MinDemand();
+        PeakSupply supply = parser.getPeakSupply();
+
+        RollingDemandAggregator agg = new RollingDemandAggregator(30, 60);
+        agg.setPeakSupply(supply);
+        for (int n = 0; n < all.size(); n++) {
+            assertTrue(agg.add(all.get(n)));
+            int t = all.get(n).getMinuteOfDay();
+            // 一覧全体から求めた値と一致する
+            for (int w = 0; w < 2; w++) {
+                RollingDemandAggregator.Window win = agg.getWindow(w);
+                long sum = 0;
+                int count = 0;
+                int max = Integer.MIN_VALUE;
+                int min = Integer.MAX_VALUE;
+                for (int i = 0; i <= n; i++) {
+                    FiveMinDemand d = all.get(i);
+                    if (d.getMinuteOfDay() > t - win.getMinutes()) {
+                        sum += d.getDemandToday();
+                        count++;
+                        max = Math.max(max, d.getDemandToday());
+                        min = Math.min(min, d.getDemandToday());
+                    }
+                }
+                assertEquals(sum, win.getSum());
+                assertEquals(count, win.size());
+                assertEquals(max, win.getMax());
+                assertEquals(min, win.getMin());
+                assertEquals((double) sum / count, win.getMean(), 1e-9);
+            }
+        }
+
+        int max = Integer.MIN_VALUE;
+        long sum = 0;
+        for (FiveMinDemand d : all) {
+            max = Math.max(max, d.getDemandToday());
+            sum += d.getDemandToday();
+        }
+        assertEquals(all.size(), agg.getCount());
+        assertEquals(max, agg.getDailyMax());
+        assertEquals((double) sum / all.size(), agg.getDailyMean(), 1e-9);
+        assertEquals(all.lastElement().getDemandToday(), agg.getLatest());
+        assertEquals(all.lastElement().getUsePercentage(supply), agg.getUsagePercent(), 1e-4);
+        assertEquals((float) max / supply.getAmount() * 100, agg.getPeakUsagePercent(), 1e-4);
+        assertEquals(agg.getDailyMaxMinute(), agg.getPeakUsageMinute());
+        assertTrue(agg.getDailyMin() <= agg.getWindow().getMin());
+
+        // 同じ実績を重ねて渡しても変わらない
+        assertEquals(0, agg.addAll(all));
+        assertEquals(all.size(), agg.getCount());
+        DemandSeries series = parser.get5MinDemandSeries();
+        RollingDemandAggregator fromSeries = new RollingDemandAggregator();
+        assertEquals(all.size(), fromSeries.addAll(series));
+        assertEquals(0, fromSeries.addAll(series));
+        assertEquals(agg.getWindow().getSum(), fromSeries.getWindow().getSum());
+    }
+
+    @Test
+    public void testHourlyAverageAndDayChange() {
+        RollingDemandAggregator agg = new RollingDemandAggregator();
+        agg.add(17000, 13 * 60, 100);
+        agg.add(17000, 13 * 60 + 5, 200);
+        agg.add(17000, 14 * 60, 400);
+        assertFalse(agg.add(17000, 13 * 60 + 30, 999));
+        assertEquals(150.0, agg.getHourlyAverage(13), 1e-9);
+        assertEquals(400.0, agg.getHourlyAverage(14), 1e-9);
+        assertTrue(Double.isNaN(agg.getHourlyAverage(15)));
+        // 14:00の30分窓には13:30より後の実績だけが入る
+        assertEquals(1, agg.getWindow().size());
+
+        assertTrue(agg.add(17001, 0, 50));
+        assertEquals(1, agg.getCount());
+        assertEquals(50, agg.getDailyMax());
+        assertTrue(Double.isNaN(agg.getHourlyAverage(13)));
+        assertEquals(50, agg.getWindow().getMax());
+        assertFalse(agg.add(17000, 23 * 60, 1));
+    }
+
+}
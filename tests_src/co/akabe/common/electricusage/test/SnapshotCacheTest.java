@@ -0,0 +1,135 @@
+package co.akabe.common.electricusage.test;
+
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandClock;
+import co.akabe.common.electricusage.DemandDate;
+import co.akabe.common.electricusage.ParsedUsageDocument;
+import co.akabe.common.electricusage.ServiceArea;
+import co.akabe.common.electricusage.SnapshotCache;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class SnapshotCacheTest extends TestCase {
+
+    private ReplayServer mServer;
+    private SnapshotCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new ReplayServer();
+        mServer.start(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mCache != null)
+            mCache.shutdown();
+        mServer.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        mCache = new SnapshotCache(60000, 10000);
+        mServer.setLatency(ServiceArea.KANSAI, 300);
+        final SupplyDataFormat format = mServer.formatFor(ServiceArea.KANSAI);
+        final CountDownLatch ready = new CountDownLatch(1);
+        final Vector<ParsedUsageDocument> results = new Vector<ParsedUsageDocument>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        ready.await();
+                        results.add(mCache.get(format));
+                    } catch (Exception e) {
+                        // 結果の件数で検出する
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        ready.countDown();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(threads.length, results.size());
+        for (ParsedUsageDocument doc : results)
+            assertSame(results.get(0), doc);
+        assertEquals(1, mServer.getRequestCount(ServiceArea.KANSAI));
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        mCache = new SnapshotCache(1000, 600);
+        SupplyDataFormat format = mServer.formatFor(ServiceArea.CHUBU);
+        ParsedUsageDocument first = mCache.get(format);
+        assertSame(first, mCache.get(format));
+        // 参照されているので、有効期限の600ms前 (読み込みから400ms後) にバックグラウンドで読み込み直す
+        Thread.sleep(700);
+        assertEquals(2, mServer.getRequestCount(ServiceArea.CHUBU));
+        ParsedUsageDocument second = mCache.get(format);
+        assertNotSame(first, second);
+        assertEquals(2, mServer.getRequestCount(ServiceArea.CHUBU));
+    }
+
+    @Test
+    public void testRefreshAheadOnRead() throws Exception {
+        mCache = new SnapshotCache(1000, 600);
+        SupplyDataFormat format = mServer.formatFor(ServiceArea.CHUBU);
+        ParsedUsageDocument first = mCache.get(format);
+        Thread.sleep(700);
+        // 読み込み後に参照されていないので、タイマーでは読み込み直さない
+        assertEquals(1, mServer.getRequestCount(ServiceArea.CHUBU));
+        // 期限前の参照では以前の解析結果を待たずに返し、裏で読み込み直す
+        assertSame(first, mCache.get(format));
+        Thread.sleep(200);
+        assertEquals(2, mServer.getRequestCount(ServiceArea.CHUBU));
+        assertNotSame(first, mCache.get(format));
+    }
+
+    @Test
+    public void testStaleOnFailure() throws Exception {
+        mCache = new SnapshotCache(200, 0);
+        SupplyDataFormat format = mServer.formatFor(ServiceArea.SHIKOKU);
+        ParsedUsageDocument first = mCache.get(format);
+        mServer.setError(ServiceArea.SHIKOKU, 1.0, 503);
+        Thread.sleep(300);
+        assertSame(first, mCache.get(format));
+        assertNotNull(mCache.getLastFailure(format));
+        mServer.setError(ServiceArea.SHIKOKU, 0, 503);
+        assertNotSame(first, mCache.get(format));
+        assertNull(mCache.getLastFailure(format));
+    }
+
+    @Test
+    public void testMidnightPrefetch() throws Exception {
+        mCache = new SnapshotCache(60000, 10000);
+        final AtomicLong now = new AtomicLong(DemandDate.toEpochMillis(DemandDate.toEpochDay(2013, 7, 1), 0) - 30000);
+        SupplyDataFormat format = mServer.formatFor(ServiceArea.TOHOKU);
+        format.setURLTemplate(format.dataURL.replaceAll("\\d{8}", "{yyyyMMdd}"));
+        format.setClock(new DemandClock() {
+            public long currentTimeMillis() {
+                return now.get();
+            }
+        });
+        ParsedUsageDocument today = mCache.get(format);
+        assertTrue(today.getSourceURL().endsWith("20130630.csv"));
+        // 日付が変わる30秒前なので、すぐに翌日分を先読みする
+        Thread.sleep(300);
+        assertEquals(2, mServer.getRequestCount(ServiceArea.TOHOKU));
+        now.addAndGet(40000);
+        ParsedUsageDocument tomorrow = mCache.get(format);
+        assertTrue(tomorrow.getSourceURL().endsWith("20130701.csv"));
+        assertEquals(2, mServer.getRequestCount(ServiceArea.TOHOKU));
+    }
+
+}
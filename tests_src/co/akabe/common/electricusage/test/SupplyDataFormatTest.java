@@ -0,0 +1,78 @@
+package co.akabe.common.electricusage.test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import co.akabe.common.electricusage.DemandClock;
+import co.akabe.common.electricusage.DemandDate;
+import co.akabe.common.electricusage.ElectricUsageCSVParser;
+import co.akabe.common.electricusage.RetryPolicy;
+import co.akabe.common.electricusage.SupplyDataFormat;
+
+public class SupplyDataFormatTest extends TestCase {
+
+    @Test
+    public void testResolveURLAtFetchTime() {
+        final AtomicLong now = new AtomicLong(DemandDate.toEpochMillis(DemandDate.toEpochDay(2013, 7, 1), 23 * 60 + 59));
+        SupplyDataFormat f = ElectricUsageCSVParser.buildTohokuFormat();
+        f.setClock(new DemandClock() {
+            public long currentTimeMillis() {
+                return now.get();
+            }
+        });
+        assertEquals("http://setsuden.tohoku-epco.co.jp/common/demand/juyo_02_20130701.csv", f.resolveURL());
+        // 日本標準時で日付が変わる (UTCではまだ7月1日)
+        now.addAndGet(60000);
+        assertEquals("http://setsuden.tohoku-epco.co.jp/common/demand/juyo_02_20130702.csv", f.resolveURL());
+        assertEquals("http://setsuden.tohoku-epco.co.jp/common/demand/juyo_02_20131231.csv",
+                f.resolveURL(DemandDate.toEpochDay(2013, 12, 31)));
+    }
+
+    @Test
+    public void testWithoutTemplate() {
+        SupplyDataFormat f = ElectricUsageCSVParser.Format_Tokyo;
+        assertNull(f.getURLTemplate());
+        assertSame(f.dataURL, f.resolveURL());
+    }
+
+    @Test
+    public void testEpochDayAt() {
+        int day = DemandDate.toEpochDay(2013, 7, 2);
+        assertEquals(day - 1, DemandDate.epochDayAt(DemandDate.toEpochMillis(day, 0) - 1));
+        assertEquals(day, DemandDate.epochDayAt(DemandDate.toEpochMillis(day, 0)));
+        assertEquals(-1, DemandDate.epochDayAt(-9 * 3600 * 1000L - 1));
+    }
+
+    @Test
+    public void testFailureReportsResolvedURL() throws IOException {
+        final AtomicLong now = new AtomicLong(DemandDate.toEpochMillis(DemandDate.toEpochDay(2013, 7, 1), 12 * 60));
+        SupplyDataFormat f = new SupplyDataFormat("", 5, 2, 8, 44);
+        f.setClock(new DemandClock() {
+            public long currentTimeMillis() {
+                return now.get();
+            }
+        });
+        // 接続を拒否されるポート
+        f.setURLTemplate("http://127.0.0.1:1/juyo_02_{yyyyMMdd}.csv");
+        now.addAndGet(24 * 60 * 60 * 1000L);
+
+        ElectricUsageCSVParser parser = new ElectricUsageCSVParser(f);
+        parser.setRetryPolicy(new RetryPolicy(2, 10000, 10000, 1));
+        // 再試行の待機を割り込みで打ち切り、その例外のメッセージを見る
+        Thread.currentThread().interrupt();
+        try {
+            parser.refresh();
+            fail();
+        } catch (InterruptedIOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("juyo_02_20130702.csv"));
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+}